@@ -0,0 +1,156 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.offheap.OffHeapRepository;
+import io.andrebrait.widget.repository.rectangle.Dataset;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks for the {@link WidgetRepository} implementations kept in memory, as a whole: locks,
+ * stacking order and spatial index. Write scaling is measured by running the same benchmark with
+ * more threads, e.g. {@code -t 1}, then {@code -t 8}. With {@code -bm sample}, {@code drag} shows
+ * the distribution of the latency of saving, with and without waiting for the disk.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.Throughput)
+public class WidgetRepositoryBenchmark {
+
+    public enum Implementation {
+        IN_MEMORY(log -> new InMemoryRepository(new RTreeRepository())),
+        /**
+         * Caching the results of findAllInside
+         */
+        IN_MEMORY_CACHED(log -> new InMemoryRepository(
+                new RTreeRepository(),
+                null,
+                InMemoryRepository.DEFAULT_CACHE_CAPACITY)),
+        /**
+         * Recording the timers, histograms and lock waits
+         */
+        IN_MEMORY_METERED(log -> new InMemoryRepository(
+                new RTreeRepository(),
+                null,
+                0,
+                new SimpleMeterRegistry())),
+        /**
+         * Every change waits for the disk
+         */
+        IN_MEMORY_WAL(log -> new InMemoryRepository(new RTreeRepository(), log)),
+        SHARDED(log -> new ShardedInMemoryRepository(
+                ShardedInMemoryRepository.DEFAULT_TILE_SIZE,
+                RTreeRepository::new)),
+        /**
+         * Nothing on the heap but what reads hand out
+         */
+        OFF_HEAP(log -> new OffHeapRepository());
+
+        private final Function<WriteAheadLog, WidgetRepository> factory;
+
+        Implementation(Function<WriteAheadLog, WidgetRepository> factory) {
+            this.factory = factory;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Data {
+
+        @Param({
+                "IN_MEMORY",
+                "IN_MEMORY_CACHED",
+                "IN_MEMORY_METERED",
+                "IN_MEMORY_WAL",
+                "SHARDED",
+                "OFF_HEAP"})
+        Implementation implementation;
+
+        @Param({"100000"})
+        int size;
+
+        Path directory;
+        WriteAheadLog log;
+        WidgetRepository repository;
+        List<WidgetSnapshot> widgets;
+        List<Rectangle> searches;
+
+        @Setup(Level.Trial)
+        public void build() throws IOException {
+            directory = Files.createTempDirectory("wal");
+            log = new WriteAheadLog(directory, WriteAheadLog.DEFAULT_SNAPSHOT_EVERY);
+            repository = implementation.factory.apply(log);
+            widgets = new ArrayList<>(size);
+            List<Widget> generated = Dataset.UNIFORM.generate(size);
+            for (Widget widget : generated) {
+                widget.setZ(null);
+                widgets.add(repository.save(widget));
+            }
+            searches = Dataset.searches(generated, 1_000);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            log.close();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * A widget of the canvas dragged a little and brought to the front, as an editor would do
+     */
+    @Benchmark
+    public WidgetSnapshot drag(Data data) {
+        Random r = ThreadLocalRandom.current();
+        Widget widget = data.widgets.get(r.nextInt(data.widgets.size())).toWidget();
+        widget.setX(widget.getX() + r.nextInt(21) - 10);
+        widget.setY(widget.getY() + r.nextInt(21) - 10);
+        widget.setZ(null);
+        return data.repository.save(widget);
+    }
+
+    @Benchmark
+    public Object findAll(Data data) {
+        return data.repository.findAll();
+    }
+
+    @Benchmark
+    public Object findAllInside(Data data) {
+        List<Rectangle> searches = data.searches;
+        return data.repository.findAllInside(
+                searches.get(ThreadLocalRandom.current().nextInt(searches.size())));
+    }
+}
@@ -0,0 +1,123 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * The shapes of data the benchmarks run against. All of them are generated from a fixed seed, so
+ * results can be compared across runs. Z-indexes are random, so they have nothing to do with the
+ * positions.
+ */
+public enum Dataset {
+
+    /**
+     * Rectangles spread evenly over a 2M x 2M area
+     */
+    UNIFORM {
+        @Override
+        Widget next(Random r, int i) {
+            return widget(
+                    r,
+                    r.nextInt(2_000_000) - 1_000_000,
+                    r.nextInt(2_000_000) - 1_000_000,
+                    1 + r.nextInt(5_000),
+                    1 + r.nextInt(5_000));
+        }
+    },
+    /**
+     * Small rectangles packed around a hundred hot spots
+     */
+    CLUSTERED {
+        private static final int CLUSTERS = 100;
+
+        @Override
+        Widget next(Random r, int i) {
+            Random clusterRandom = new Random(i % CLUSTERS);
+            long centerX = clusterRandom.nextInt(2_000_000) - 1_000_000;
+            long centerY = clusterRandom.nextInt(2_000_000) - 1_000_000;
+            return widget(
+                    r,
+                    centerX + (long) (r.nextGaussian() * 10_000),
+                    centerY + (long) (r.nextGaussian() * 10_000),
+                    1 + r.nextInt(500),
+                    1 + r.nextInt(500));
+        }
+    },
+    /**
+     * Groups of a hundred rectangles, each one inside the previous one
+     */
+    NESTED {
+        private static final int GROUP_SIZE = 100;
+
+        @Override
+        Widget next(Random r, int i) {
+            Random groupRandom = new Random(i / GROUP_SIZE);
+            long centerX = groupRandom.nextInt(2_000_000) - 1_000_000;
+            long centerY = groupRandom.nextInt(2_000_000) - 1_000_000;
+            long halfSide = (GROUP_SIZE - i % GROUP_SIZE) * 50L;
+            return widget(r, centerX - halfSide, centerY - halfSide, 2 * halfSide, 2 * halfSide);
+        }
+    },
+    /**
+     * The same rectangle over and over
+     */
+    IDENTICAL {
+        @Override
+        Widget next(Random r, int i) {
+            return widget(r, 0, 0, 100, 100);
+        }
+    };
+
+    private static final long SEED = 42L;
+
+    abstract Widget next(Random r, int i);
+
+    public List<Widget> generate(int size) {
+        return generate(size, SEED);
+    }
+
+    public List<Widget> generate(int size, long seed) {
+        Random r = new Random(seed);
+        List<Widget> widgets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            widgets.add(next(r, i));
+        }
+        return widgets;
+    }
+
+    /**
+     * @return search rectangles of up to 100K x 100K around random widgets of the data set
+     */
+    public static List<Rectangle> searches(List<Widget> widgets, int count) {
+        Random r = new Random(SEED);
+        List<Rectangle> searches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Widget widget = widgets.get(r.nextInt(widgets.size()));
+            long x = widget.getX() - r.nextInt(50_000);
+            long y = widget.getY() - r.nextInt(50_000);
+            searches.add(InternalRectangle.of(
+                    x,
+                    y,
+                    x + 1 + r.nextInt(100_000),
+                    y + 1 + r.nextInt(100_000)));
+        }
+        return searches;
+    }
+
+    private static Widget widget(Random r, long x, long y, long width, long height) {
+        return Widget.builder()
+                .id(new UUID(r.nextLong(), r.nextLong()))
+                .x(x)
+                .y(y)
+                .width(width)
+                .height(height)
+                .z(BigInteger.valueOf(r.nextLong()))
+                .build();
+    }
+}
@@ -0,0 +1,367 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Benchmarks for every {@link RectangleRepository} implementation, over every {@link Dataset},
+ * with sizes from 1K to 10M rectangles. The full matrix takes a very long time (and
+ * {@link HashSetRepository} is hopeless at 10M), so it's usually a good idea to narrow it down
+ * with {@code -p}, e.g. {@code -p implementation=RTREE,RSTAR_TREE -p size=100000}.<br><br>
+ *
+ * Insertions and removals are measured in batches of {@value #BATCH} operations over a freshly
+ * built repository, so the size of the repository doesn't drift during the measurement.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RectangleRepositoryBenchmark {
+
+    static final int BATCH = 1_000;
+    private static final int SEARCHES = 1_000;
+    private static final int PAGE_SIZE = 100;
+
+    public enum Implementation {
+        RTREE(RTreeRepository::new),
+        FLAT_RTREE(() -> new FlatRTreeRepository<>(Widget.Z_ORDER)),
+        RSTAR_TREE(() -> new RStarTreeRepository<>(Widget.Z_ORDER)),
+        PERSISTENT_RTREE(() -> new PersistentRTreeRepository<>(Widget.Z_ORDER)),
+        HASH_SET(() -> new HashSetRepository<>(Widget.Z_ORDER));
+
+        private final Supplier<RectangleRepository<Widget>> factory;
+
+        Implementation(Supplier<RectangleRepository<Widget>> factory) {
+            this.factory = factory;
+        }
+
+        RectangleRepository<Widget> create(List<Widget> widgets) {
+            RectangleRepository<Widget> repository = factory.get();
+            repository.addAll(widgets);
+            return repository;
+        }
+
+        /**
+         * @return whether the repository can be used by many threads without external locking
+         */
+        boolean isConcurrent() {
+            return this == PERSISTENT_RTREE;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Data {
+
+        @Param({"RTREE", "FLAT_RTREE", "RSTAR_TREE", "PERSISTENT_RTREE", "HASH_SET"})
+        Implementation implementation;
+
+        @Param({"UNIFORM", "CLUSTERED", "NESTED", "IDENTICAL"})
+        Dataset dataset;
+
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        int size;
+
+        List<Widget> widgets;
+        List<Rectangle> searches;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            widgets = dataset.generate(size);
+            searches = Dataset.searches(widgets, SEARCHES);
+        }
+    }
+
+    /**
+     * A repository which is only read from, built once per trial
+     */
+    @State(Scope.Benchmark)
+    public static class ReadState {
+
+        RectangleRepository<Widget> repository;
+
+        @Setup(Level.Trial)
+        public void build(Data data) {
+            repository = data.implementation.create(data.widgets);
+        }
+    }
+
+    /**
+     * A repository built again before every batch, plus the rectangles to be added and removed
+     */
+    @State(Scope.Thread)
+    public static class WriteState {
+
+        RectangleRepository<Widget> repository;
+        List<Widget> toAdd;
+        List<Widget> toRemove;
+        /**
+         * Different widgets from the repository, and the same widgets dragged a little
+         */
+        List<Widget> toMove;
+        List<Widget> moved;
+
+        @Setup(Level.Invocation)
+        public void build(Data data) {
+            repository = data.implementation.create(data.widgets);
+            Random r = ThreadLocalRandom.current();
+            toAdd = data.dataset.generate(BATCH, r.nextLong());
+            toRemove = new ArrayList<>(BATCH);
+            for (int i = 0; i < BATCH; i++) {
+                toRemove.add(data.widgets.get(r.nextInt(data.widgets.size())));
+            }
+            toMove = new ArrayList<>(BATCH);
+            moved = new ArrayList<>(BATCH);
+            int start = r.nextInt(data.widgets.size());
+            for (int i = 0; i < Math.min(BATCH, data.widgets.size()); i++) {
+                Widget widget = data.widgets.get((start + i) % data.widgets.size());
+                toMove.add(widget);
+                moved.add(widget.toBuilder()
+                        .x(widget.getX() + r.nextInt(21) - 10)
+                        .y(widget.getY() + r.nextInt(21) - 10)
+                        .build());
+            }
+        }
+    }
+
+    /**
+     * Repository shared by readers and a writer. Implementations which aren't thread-safe are
+     * guarded by a read-write lock, like {@link io.andrebrait.widget.repository.InMemoryRepository}
+     * does.
+     */
+    @State(Scope.Group)
+    public static class MixedState {
+
+        RectangleRepository<Widget> repository;
+        ReadWriteLock lock;
+        Widget[] current;
+        Dataset dataset;
+
+        @Setup(Level.Trial)
+        public void build(Data data) {
+            repository = data.implementation.create(data.widgets);
+            lock = data.implementation.isConcurrent() ? null : new ReentrantReadWriteLock();
+            current = data.widgets.toArray(new Widget[0]);
+            dataset = data.dataset;
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+
+        public double bytesPerWidget;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public List<Widget> findAllInside(Data data, ReadState state) {
+        List<Rectangle> searches = data.searches;
+        return state.repository.findAllInside(
+                searches.get(ThreadLocalRandom.current().nextInt(searches.size())));
+    }
+
+    /**
+     * Only the first {@value #PAGE_SIZE} results of the same searches as {@link #findAllInside}
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public List<Widget> firstPageInside(Data data, ReadState state) {
+        List<Rectangle> searches = data.searches;
+        return state.repository.cursorInside(
+                searches.get(ThreadLocalRandom.current().nextInt(searches.size())))
+                .next(PAGE_SIZE);
+    }
+
+    /**
+     * The {@value #PAGE_SIZE} highest results of the same searches as {@link #findAllInside}
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public List<Widget> topInside(Data data, ReadState state) {
+        List<Rectangle> searches = data.searches;
+        return state.repository.findAllInside(
+                searches.get(ThreadLocalRandom.current().nextInt(searches.size())),
+                PAGE_SIZE,
+                ZOrder.DESCENDING);
+    }
+
+    /**
+     * Same as {@link #topInside}, but finding everything and sorting it afterwards
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public List<Widget> topInsideSorted(Data data, ReadState state) {
+        List<Rectangle> searches = data.searches;
+        List<Widget> result = state.repository.findAllInside(
+                searches.get(ThreadLocalRandom.current().nextInt(searches.size())));
+        result.sort(Widget.Z_ORDER.reversed());
+        return result.subList(0, Math.min(PAGE_SIZE, result.size()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public List<Widget> findAllIntersecting(Data data, ReadState state) {
+        List<Rectangle> searches = data.searches;
+        return state.repository.findAllIntersecting(
+                searches.get(ThreadLocalRandom.current().nextInt(searches.size())));
+    }
+
+    /**
+     * Hit-tests the center of a random rectangle, so there's always something there
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public Optional<Widget> findTopmostAt(Data data, ReadState state) {
+        List<Widget> widgets = data.widgets;
+        Widget widget = widgets.get(ThreadLocalRandom.current().nextInt(widgets.size()));
+        return state.repository.findTopmostAt(
+                widget.getX() + widget.getWidth() / 2,
+                widget.getY() + widget.getHeight() / 2);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    @OperationsPerInvocation(BATCH)
+    public void insert(WriteState state, Blackhole blackhole) {
+        for (Widget widget : state.toAdd) {
+            blackhole.consume(state.repository.add(widget));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    @OperationsPerInvocation(BATCH)
+    public void remove(WriteState state, Blackhole blackhole) {
+        for (Widget widget : state.toRemove) {
+            blackhole.consume(state.repository.remove(widget));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    @OperationsPerInvocation(BATCH)
+    public void update(WriteState state, Blackhole blackhole) {
+        for (int i = 0; i < state.toMove.size(); i++) {
+            blackhole.consume(state.repository.update(state.toMove.get(i), state.moved.get(i)));
+        }
+    }
+
+    /**
+     * What {@link #update(WriteState, Blackhole)} would cost without being done in place
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    @OperationsPerInvocation(BATCH)
+    public void removeAndAdd(WriteState state, Blackhole blackhole) {
+        for (int i = 0; i < state.toMove.size(); i++) {
+            blackhole.consume(state.repository.remove(state.toMove.get(i)));
+            blackhole.consume(state.repository.add(state.moved.get(i)));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Group("mixed")
+    @GroupThreads(3)
+    public List<Widget> mixedRead(Data data, MixedState state) {
+        List<Rectangle> searches = data.searches;
+        Rectangle search = searches.get(ThreadLocalRandom.current().nextInt(searches.size()));
+        if (state.lock == null) {
+            return state.repository.findAllInside(search);
+        }
+        state.lock.readLock().lock();
+        try {
+            return state.repository.findAllInside(search);
+        } finally {
+            state.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a random rectangle somewhere else
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedWrite(MixedState state) {
+        Random r = ThreadLocalRandom.current();
+        int index = r.nextInt(state.current.length);
+        Widget moved = state.dataset.generate(1, r.nextLong()).get(0);
+        if (state.lock != null) {
+            state.lock.writeLock().lock();
+        }
+        try {
+            state.repository.remove(state.current[index]);
+            state.current[index] = moved;
+            return state.repository.add(moved);
+        } finally {
+            if (state.lock != null) {
+                state.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reports how much heap the repository uses per rectangle (as a secondary result) after adding
+     * them one by one. The time includes a few forced GCs, so it doesn't mean much.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public RectangleRepository<Widget> build(Data data, Footprint footprint) {
+        List<Widget> widgets = new ArrayList<>(data.widgets);
+        Collections.shuffle(widgets, new Random(data.size));
+        long usedMemoryBefore = usedMemory();
+        RectangleRepository<Widget> repository = data.implementation.create(List.of());
+        widgets.forEach(repository::add);
+        footprint.bytesPerWidget = (usedMemory() - usedMemoryBefore) / (double) data.size;
+        return repository;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
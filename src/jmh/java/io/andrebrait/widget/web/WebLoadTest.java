@@ -0,0 +1,288 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.WidgetTestApplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Load test of the web tier, to compare running requests on Tomcat's pool of platform threads with
+ * running them on virtual threads.<br><br>
+ *
+ * The application is started in a JVM of its own, so the clients don't take its CPU or its file
+ * descriptors, and filled with widgets. Then every client, each with a connection of its own,
+ * sends requests one after the other, as soon as the previous one is answered: mostly searches
+ * for the widgets inside a random viewport, and some saves. Requests sent during the warmup
+ * aren't counted. The throughput, the latency percentiles and the number of failed requests are
+ * printed at the end.<br><br>
+ *
+ * Arguments, all optional and in order: {@code platform} or {@code virtual} threads (platform),
+ * the number of clients (10000), the seconds to measure (30), the seconds to warm up (10) and
+ * the number of widgets to start with (100000). Anything after those starting with {@code --} is
+ * passed to the application (e.g. {@code --spring.profiles.active=sql}), and anything starting
+ * with a single {@code -} to its JVM (e.g. {@code -Djdk.tracePinnedThreads=short}). The output of
+ * the application goes to {@code target/web-load-test.log}.
+ */
+public final class WebLoadTest {
+
+    private static final int VIEWPORT_SIZE = 1_000;
+    private static final int MAX_WIDGET_SIZE = 50;
+    /**
+     * How many requests in a hundred are saves
+     */
+    private static final int SAVE_PERCENTAGE = 10;
+    private static final int PRELOADERS = 64;
+
+    private final HttpClient client;
+    private final URI base;
+    private final long area;
+
+    private WebLoadTest(HttpClient client, URI base, int widgets) {
+        this.client = client;
+        this.base = base;
+        // About as many widgets in every viewport, however many there are
+        this.area = Math.max(VIEWPORT_SIZE, (long) Math.sqrt(widgets) * 100);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String threads = args.length > 0 ? args[0] : "platform";
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int warmup = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int widgets = args.length > 4 ? Integer.parseInt(args[4]) : 100_000;
+        List<String> jvmArgs = new ArrayList<>();
+        List<String> applicationArgs = new ArrayList<>();
+        for (String arg : Arrays.asList(args).subList(Math.min(args.length, 5), args.length)) {
+            (arg.startsWith("--") ? applicationArgs : jvmArgs).add(arg);
+        }
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        applicationArgs.add("--server.port=" + port);
+        applicationArgs.add("--widget.web.threads=" + threads);
+        // Every client is connected at once, in both modes
+        applicationArgs.add("--server.tomcat.max-connections=" + (clients + 1_000));
+        applicationArgs.add("--server.tomcat.accept-count=" + clients);
+        Process application = start(jvmArgs, applicationArgs);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient client = HttpClient.newBuilder()
+                    .executor(executor)
+                    .connectTimeout(Duration.ofMinutes(1))
+                    .build();
+            WebLoadTest test = new WebLoadTest(
+                    client,
+                    URI.create("http://localhost:" + port),
+                    widgets);
+            test.awaitUp(application);
+            test.preload(widgets);
+            Result result = test.run(clients, warmup, seconds);
+            System.out.printf(
+                    Locale.ROOT,
+                    "threads=%s clients=%d widgets=%d%n"
+                            + "throughput=%.0f requests/s failed=%d%n"
+                            + "latency p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f ms%n",
+                    threads,
+                    clients,
+                    widgets,
+                    result.count() / (double) seconds,
+                    result.failed,
+                    result.percentile(0.5),
+                    result.percentile(0.9),
+                    result.percentile(0.99),
+                    result.percentile(0.999),
+                    result.percentile(1));
+        } finally {
+            application.destroy();
+            application.waitFor();
+        }
+    }
+
+    private static Process start(List<String> jvmArgs, List<String> applicationArgs)
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        // As it's shipped, without the test classes and the configuration they bring along
+        command.add(Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .filter(entry -> !entry.endsWith("test-classes"))
+                .collect(Collectors.joining(File.pathSeparator)));
+        command.add(WidgetTestApplication.class.getName());
+        command.addAll(applicationArgs);
+        File log = new File("target/web-load-test.log");
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+    }
+
+    private void awaitUp(Process application) throws InterruptedException {
+        HttpRequest health = HttpRequest.newBuilder(base.resolve("/actuator/health")).build();
+        while (true) {
+            if (!application.isAlive()) {
+                throw new IllegalStateException("The application failed to start, see its log");
+            }
+            try {
+                if (client.send(health, HttpResponse.BodyHandlers.discarding()).statusCode()
+                        == 200) {
+                    return;
+                }
+            } catch (ConnectException e) {
+                // Not listening yet
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private void preload(int widgets) throws InterruptedException {
+        AtomicInteger remaining = new AtomicInteger(widgets);
+        try (ExecutorService preloaders = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < PRELOADERS; i++) {
+                preloaders.execute(() -> {
+                    while (remaining.getAndDecrement() > 0) {
+                        if (!send(save())) {
+                            throw new IllegalStateException("Failed to save a widget");
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private Result run(int clients, int warmup, int seconds) {
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long measureTo = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        List<Result> results = new ArrayList<>(clients);
+        try (ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                Result result = new Result();
+                results.add(result);
+                clientThreads.execute(() -> {
+                    long sent = System.nanoTime();
+                    while (sent < measureTo) {
+                        boolean ok = send(randomRequest());
+                        long received = System.nanoTime();
+                        if (sent >= measureFrom && received <= measureTo) {
+                            result.add(received - sent, ok);
+                        }
+                        sent = received;
+                    }
+                });
+            }
+        }
+        Result total = new Result();
+        results.forEach(total::addAll);
+        return total;
+    }
+
+    private HttpRequest randomRequest() {
+        if (ThreadLocalRandom.current().nextInt(100) < SAVE_PERCENTAGE) {
+            return save();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String query = String.format(
+                Locale.ROOT,
+                "/widgets?x=%d&y=%d&width=%d&height=%d",
+                random.nextLong(area - VIEWPORT_SIZE + 1),
+                random.nextLong(area - VIEWPORT_SIZE + 1),
+                VIEWPORT_SIZE,
+                VIEWPORT_SIZE);
+        return HttpRequest.newBuilder(base.resolve(query)).build();
+    }
+
+    private HttpRequest save() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String widget = String.format(
+                Locale.ROOT,
+                "{\"x\": %d, \"y\": %d, \"width\": %d, \"height\": %d}",
+                random.nextLong(area),
+                random.nextLong(area),
+                random.nextInt(1, MAX_WIDGET_SIZE + 1),
+                random.nextInt(1, MAX_WIDGET_SIZE + 1));
+        return HttpRequest.newBuilder(base.resolve("/widgets"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(widget))
+                .build();
+    }
+
+    /**
+     * @return whether the request succeeded
+     */
+    private boolean send(HttpRequest request) {
+        try {
+            int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            return status >= 200 && status < 300;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The latencies of the requests of a client, in nanoseconds
+     */
+    private static final class Result {
+
+        private long[] latencies = new long[64];
+        private int size;
+        private long failed;
+
+        void add(long latency, boolean ok) {
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+            latencies[size++] = latency;
+            if (!ok) {
+                failed++;
+            }
+        }
+
+        void addAll(Result other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.latencies[i], true);
+            }
+            failed += other.failed;
+        }
+
+        int count() {
+            return size;
+        }
+
+        /**
+         * @return the latency of the given quantile, in milliseconds
+         */
+        double percentile(double quantile) {
+            if (size == 0) {
+                return Double.NaN;
+            }
+            Arrays.sort(latencies, 0, size);
+            int index = (int) Math.min(size - 1, Math.ceil(quantile * size) - 1);
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -1,7 +1,23 @@
 package io.andrebrait.widget;
 
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.repository.WidgetTableWriter;
+import io.andrebrait.widget.repository.WriteAheadLog;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import io.andrebrait.widget.repository.rectangle.RectangleRepository;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
 
 @SpringBootApplication
 public class WidgetTestApplication {
@@ -10,4 +26,61 @@ public class WidgetTestApplication {
 		SpringApplication.run(WidgetTestApplication.class, args);
 	}
 
+	@Bean
+	public RectangleRepository<Widget> rectangleRepository() {
+		return new RTreeRepository();
+	}
+
+	/**
+	 * Only the in-memory profile logs its changes, and only if told where to. The directory is
+	 * taken as a plain file system path, not as a Spring resource.
+	 */
+	@Bean
+	@Profile("!sql & !sharded & !off-heap")
+	@ConditionalOnProperty("widget.wal.directory")
+	public WriteAheadLog writeAheadLog(
+			@Value("${widget.wal.directory}") String directory,
+			@Value("${widget.wal.snapshot-every:" + WriteAheadLog.DEFAULT_SNAPSHOT_EVERY + "}")
+					int snapshotEvery) {
+		return new WriteAheadLog(Path.of(directory), snapshotEvery);
+	}
+
+	/**
+	 * Only created once the {@code WIDGET} table is, since the widgets are read from it right
+	 * away. Closing it writes whatever is still queued, waiting for up to {@code
+	 * widget.sql.close-timeout} milliseconds.
+	 */
+	@Bean
+	@Profile("sql")
+	@DependsOn("entityManagerFactory")
+	public WidgetTableWriter widgetTableWriter(
+			JdbcTemplate jdbcTemplate,
+			TransactionTemplate transactionTemplate,
+			@Value("${widget.sql.queue-capacity:" + WidgetTableWriter.DEFAULT_QUEUE_CAPACITY + "}")
+					int queueCapacity,
+			@Value("${widget.sql.batch-size:" + WidgetTableWriter.DEFAULT_BATCH_SIZE + "}")
+					int batchSize,
+			@Value("${widget.sql.close-timeout:"
+					+ WidgetTableWriter.DEFAULT_CLOSE_TIMEOUT_MILLIS + "}")
+					long closeTimeoutMillis) {
+		return new WidgetTableWriter(
+				jdbcTemplate,
+				transactionTemplate,
+				queueCapacity,
+				batchSize,
+				closeTimeoutMillis);
+	}
+
+	/**
+	 * With {@code widget.web.threads=virtual}, each request runs on a virtual thread of its own
+	 * instead of on Tomcat's pool of worker threads, so the number of requests waiting for the
+	 * repository at once isn't limited by the size of that pool.
+	 */
+	@Bean
+	@ConditionalOnProperty(name = "widget.web.threads", havingValue = "virtual")
+	public TomcatProtocolHandlerCustomizer<?> virtualThreadsCustomizer() {
+		return protocolHandler -> protocolHandler.setExecutor(
+				Executors.newVirtualThreadPerTaskExecutor());
+	}
+
 }
@@ -0,0 +1,87 @@
+package io.andrebrait.widget.domain;
+
+import java.math.BigInteger;
+
+/**
+ * Exact, allocation-free arithmetic for areas of rectangles with {@code long} coordinates.<br><br>
+ *
+ * A side of a rectangle is at most 2<sup>64</sup> - 1 long (from {@link Long#MIN_VALUE} to
+ * {@link Long#MAX_VALUE}), so it always fits in an unsigned {@code long}, and an area always fits
+ * in an unsigned 128-bit integer. Areas are represented as a pair of {@code long}s: the high and
+ * the low 64 bits of that integer. This is a lot cheaper than {@link BigInteger} when comparing
+ * areas in a loop, since nothing needs to be allocated.
+ */
+public final class Areas {
+
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(Long.SIZE);
+
+    private Areas() {
+    }
+
+    /**
+     * @return the high 64 bits of the area of a rectangle with the given (unsigned) sides
+     */
+    public static long high(long width, long height) {
+        return Math.unsignedMultiplyHigh(width, height);
+    }
+
+    /**
+     * @return the low 64 bits of the area of a rectangle with the given (unsigned) sides
+     */
+    public static long low(long width, long height) {
+        return width * height;
+    }
+
+    /**
+     * @return the high 64 bits of the difference between two areas, which must not be negative
+     */
+    public static long subtractHigh(long high1, long low1, long high2, long low2) {
+        long borrow = Long.compareUnsigned(low1, low2) < 0 ? 1 : 0;
+        return high1 - high2 - borrow;
+    }
+
+    /**
+     * @return the low 64 bits of the difference between two areas, which must not be negative
+     */
+    public static long subtractLow(long low1, long low2) {
+        return low1 - low2;
+    }
+
+    /**
+     * Compares two areas, like {@link Comparable#compareTo(Object)}.
+     */
+    public static int compare(long high1, long low1, long high2, long low2) {
+        int result = Long.compareUnsigned(high1, high2);
+        if (result != 0) {
+            return result;
+        }
+        return Long.compareUnsigned(low1, low2);
+    }
+
+    /**
+     * @return the closest {@code double} to an area, for when it's only needed approximately
+     */
+    public static double toDouble(long high, long low) {
+        return unsignedToDouble(high) * 0x1p64 + unsignedToDouble(low);
+    }
+
+    private static double unsignedToDouble(long value) {
+        if (value >= 0) {
+            return value;
+        }
+        // Halved first, keeping the lowest bit so it still rounds the same way
+        return ((value >>> 1) | (value & 1)) * 2.0;
+    }
+
+    public static BigInteger toBigInteger(long high, long low) {
+        return unsigned(high).multiply(TWO_TO_THE_64).add(unsigned(low));
+    }
+
+    private static BigInteger unsigned(long value) {
+        BigInteger result = BigInteger.valueOf(value);
+        if (value < 0) {
+            result = result.add(TWO_TO_THE_64);
+        }
+        return result;
+    }
+}
@@ -34,6 +34,18 @@ public interface Rectangle {
                 && this.getY2() >= y2;
     }
 
+    /**
+     * Like the widgets themselves, which cover the cells from their left and top edges up to, but
+     * not including, their right and bottom edges: a point on the edge between two rectangles is
+     * only in the one starting there.
+     */
+    default boolean containsPoint(long x, long y) {
+        return this.getX() <= x
+                && x < this.getX2()
+                && this.getY() <= y
+                && y < this.getY2();
+    }
+
     default boolean intersects(Rectangle o) {
         return intersects(o.getX(), o.getY(), o.getX2(), o.getY2());
     }
@@ -49,6 +61,32 @@ public interface Rectangle {
         return area(getX(), getY(), getX2(), getY2());
     }
 
+    /**
+     * @return the high 64 bits of the area, as described in {@link Areas}
+     */
+    default long areaHigh() {
+        return Areas.high(getX2() - getX(), getY2() - getY());
+    }
+
+    /**
+     * @return the low 64 bits of the area, as described in {@link Areas}
+     */
+    default long areaLow() {
+        return Areas.low(getX2() - getX(), getY2() - getY());
+    }
+
+    /**
+     * Compares the area of this rectangle with the given one, without allocating anything.
+     *
+     * @param high the high 64 bits of the other area
+     * @param low the low 64 bits of the other area
+     * @return the same as {@link Comparable#compareTo(Object)}
+     * @see Areas
+     */
+    default int compareArea(long high, long low) {
+        return Areas.compare(areaHigh(), areaLow(), high, low);
+    }
+
     default BigInteger joinedArea(Rectangle o) {
         return joinedArea(o.getX(), o.getY(), o.getX2(), o.getY2());
     }
@@ -61,6 +99,24 @@ public interface Rectangle {
                 Math.max(this.getY2(), y2));
     }
 
+    /**
+     * @return the high 64 bits of {@link #joinedArea(Rectangle)}, as described in {@link Areas}
+     */
+    default long joinedAreaHigh(Rectangle o) {
+        return Areas.high(
+                Math.max(this.getX2(), o.getX2()) - Math.min(this.getX(), o.getX()),
+                Math.max(this.getY2(), o.getY2()) - Math.min(this.getY(), o.getY()));
+    }
+
+    /**
+     * @return the low 64 bits of {@link #joinedArea(Rectangle)}, as described in {@link Areas}
+     */
+    default long joinedAreaLow(Rectangle o) {
+        return Areas.low(
+                Math.max(this.getX2(), o.getX2()) - Math.min(this.getX(), o.getX()),
+                Math.max(this.getY2(), o.getY2()) - Math.min(this.getY(), o.getY()));
+    }
+
     default BigInteger intersectionArea(Rectangle o) {
         return intersectionArea(o.getX(), o.getY(), o.getX2(), o.getY2());
     }
@@ -76,9 +132,28 @@ public interface Rectangle {
                 Math.min(this.getY2(), y2));
     }
 
+    /**
+     * Compares the area of the intersection of this rectangle with the given one to the given
+     * area, without allocating anything.
+     *
+     * @param o the rectangle to intersect with this one
+     * @param high the high 64 bits of the area to compare with
+     * @param low the low 64 bits of the area to compare with
+     * @return the same as {@link Comparable#compareTo(Object)}
+     * @see Areas
+     */
+    default int compareIntersectionArea(Rectangle o, long high, long low) {
+        if (!intersects(o)) {
+            return Areas.compare(0, 0, high, low);
+        }
+        long width = Math.min(this.getX2(), o.getX2()) - Math.max(this.getX(), o.getX());
+        long height = Math.min(this.getY2(), o.getY2()) - Math.max(this.getY(), o.getY());
+        return Areas.compare(Areas.high(width, height), Areas.low(width, height), high, low);
+    }
+
     private static BigInteger area(long x, long y, long x2, long y2) {
-        BigInteger width = BigInteger.valueOf(x2).subtract(BigInteger.valueOf(x));
-        BigInteger height = BigInteger.valueOf(y2).subtract(BigInteger.valueOf(y));
-        return width.multiply(height);
+        long width = x2 - x;
+        long height = y2 - y;
+        return Areas.toBigInteger(Areas.high(width, height), Areas.low(width, height));
     }
 }
@@ -1,5 +1,6 @@
 package io.andrebrait.widget.domain;
 
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -7,13 +8,12 @@ import lombok.NoArgsConstructor;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
-import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
 import javax.persistence.Table;
 import javax.validation.constraints.Positive;
 import java.math.BigInteger;
+import java.util.Comparator;
 import java.util.UUID;
 
 /**
@@ -26,23 +26,27 @@ import java.util.UUID;
 @Entity
 @Table(
         name = "WIDGET",
-        indexes = {
-                @Index(unique = true, columnList = "UUID"),
-                @Index(unique = true, columnList = "PARENT"),
-                @Index(unique = true, columnList = "Z")
-        }
+        indexes = @Index(unique = true, columnList = "Z")
 )
 @Data
 @NoArgsConstructor
+@AllArgsConstructor
 @Builder(toBuilder = true)
 @EqualsAndHashCode(
         onlyExplicitlyIncluded = true,
         cacheStrategy = EqualsAndHashCode.CacheStrategy.LAZY)
 public class Widget implements IdentifiableRectangle {
 
+    /**
+     * Stacking order of widgets, from the bottom to the top. Widgets without a Z-index yet are
+     * below all the others.
+     */
+    public static final Comparator<Widget> Z_ORDER = Comparator.comparing(
+            Widget::getZ,
+            Comparator.nullsFirst(Comparator.naturalOrder()));
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    @Column(name = "ID", nullable = false, updatable = false, unique = true)
+    @Column(name = "ID", nullable = false, updatable = false, unique = true, length = 16)
     @EqualsAndHashCode.Include
     private UUID id;
     @Column(name = "X", nullable = false)
@@ -0,0 +1,67 @@
+package io.andrebrait.widget.domain;
+
+import lombok.Builder;
+import lombok.Value;
+import lombok.With;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.UUID;
+
+/**
+ * An immutable copy of a {@link Widget} as it was when it was stored, with its position in the
+ * stack as its Z-index.<br><br>
+ *
+ * Being immutable, repositories can keep them and hand the same instances out to everyone
+ * instead of copying their widgets on every read. To change a widget, {@link #toWidget()} gives a
+ * mutable copy of it to be saved again.
+ */
+@Value
+@Builder(toBuilder = true)
+public class WidgetSnapshot implements IdentifiableRectangle {
+
+    /**
+     * Stacking order of widgets, from the bottom to the top
+     */
+    public static final Comparator<WidgetSnapshot> Z_ORDER =
+            Comparator.comparing(WidgetSnapshot::getZ);
+
+    UUID id;
+    long x;
+    long y;
+    @With
+    BigInteger z;
+    long width;
+    long height;
+
+    /**
+     * @param widget a widget with an ID and a Z-index
+     * @return a snapshot of the widget
+     */
+    public static WidgetSnapshot of(Widget widget) {
+        return new WidgetSnapshot(
+                widget.getId(),
+                widget.getX(),
+                widget.getY(),
+                widget.getZ(),
+                widget.getWidth(),
+                widget.getHeight());
+    }
+
+    /**
+     * @return a mutable copy of this widget
+     */
+    public Widget toWidget() {
+        return new Widget(id, x, y, z, width, height);
+    }
+
+    @Override
+    public long getX2() {
+        return x + width;
+    }
+
+    @Override
+    public long getY2() {
+        return y + height;
+    }
+}
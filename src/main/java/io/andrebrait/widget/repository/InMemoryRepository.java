@@ -1,131 +1,462 @@
 package io.andrebrait.widget.repository;
 
-import io.andrebrait.widget.repository.rectangle.InternalRectangle;
+import io.andrebrait.widget.domain.Rectangle;
 import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
 import io.andrebrait.widget.repository.rectangle.RectangleRepository;
-import lombok.RequiredArgsConstructor;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
 
 import javax.validation.Valid;
-import java.math.BigInteger;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+/**
+ * Keeps every widget in memory. The Z-index of a widget is its position in the stack, from 0 at
+ * the bottom to {@code n - 1} at the top, so it's always a dense sequence: saving a widget at an
+ * occupied Z-index moves everything from there up one position, deleting one moves everything
+ * above it down, and a Z-index above the top is the same as no Z-index at all.<br><br>
+ *
+ * Internally, the stored widgets hold a label from a {@link ZOrderTree} as their Z-index instead
+ * of their position, so moving them up or down doesn't require touching them. What's handed out
+ * are {@link WidgetSnapshot WidgetSnapshots} with their position instead, kept along with them
+ * and only replaced when a widget is saved or when its position is found to have changed since
+ * its snapshot was taken, so reads don't copy anything otherwise.<br><br>
+ *
+ * With a {@link WriteAheadLog}, the widgets are recovered from it when the repository is created,
+ * and every change is appended to it while the write lock is held, so they're logged in the order
+ * they're made. Waiting for a change to be on the disk only happens after the lock is released,
+ * so changes made meanwhile are synced together.<br><br>
+ *
+ * The results of {@link #findAllInside(Rectangle)} can be kept in an {@link InsideQueryCache}, so
+ * searching the same rectangles over and over doesn't search the spatial index again until a
+ * widget inside them changes. Those results are shared, so they can't be changed.<br><br>
+ *
+ * With a {@link MeterRegistry}, the time taken by the main operations, the number of widgets found
+ * by the queries and the time spent waiting for the lock are recorded into histograms, and the
+ * statistics of the spatial index and of the cache are published as gauges.<br><br>
+ *
+ * A {@link WidgetChangeListener} is told about each widget saved or deleted right after the change,
+ * before the write lock is released.
+ */
 @Repository
-@Profile("!sql")
-@RequiredArgsConstructor
+@Profile("!sql & !sharded & !off-heap")
 public class InMemoryRepository implements WidgetRepository {
 
-    private final Map<UUID, Widget> widgetDatabase = new HashMap<>();
-    private final SortedMap<BigInteger, Widget> zIndexMap = new TreeMap<>();
+    public static final int DEFAULT_CACHE_CAPACITY = 100_000;
 
-    private final RectangleRepository rectangleRepository;
+    private final WidgetStack stack;
+    @Nullable
+    private final WriteAheadLog log;
+    @Nullable
+    private final InsideQueryCache cache;
+    @Nullable
+    private final WidgetChangeListener listener;
+    /**
+     * Changed whenever the positions of widgets which were not saved or deleted change
+     */
+    private long stackVersion;
+
+    private final RepositoryMetrics metrics;
+    private final ReadWriteLock lock;
+
+    public InMemoryRepository(RectangleRepository<Widget> rectangleRepository) {
+        this(rectangleRepository, null);
+    }
+
+    public InMemoryRepository(
+            RectangleRepository<Widget> rectangleRepository,
+            @Nullable WriteAheadLog log) {
+        this(rectangleRepository, log, 0);
+    }
+
+    /**
+     * @param rectangleRepository the spatial index of the widgets
+     * @param log the log to recover the widgets from and to append changes to, if they must
+     * survive a restart
+     * @param cacheCapacity the maximum number of widgets in the cached results of {@link
+     * #findAllInside(Rectangle)}, or 0 not to cache them
+     */
+    public InMemoryRepository(
+            RectangleRepository<Widget> rectangleRepository,
+            @Nullable WriteAheadLog log,
+            int cacheCapacity) {
+        // A composite without any registries records nothing
+        this(rectangleRepository, log, cacheCapacity, new CompositeMeterRegistry());
+    }
+
+    /**
+     * @param rectangleRepository the spatial index of the widgets
+     * @param log the log to recover the widgets from and to append changes to, if they must
+     * survive a restart
+     * @param cacheCapacity the maximum number of widgets in the cached results of {@link
+     * #findAllInside(Rectangle)}, or 0 not to cache them
+     * @param meterRegistry the registry to publish the metrics of the repository to
+     */
+    public InMemoryRepository(
+            RectangleRepository<Widget> rectangleRepository,
+            @Nullable WriteAheadLog log,
+            int cacheCapacity,
+            MeterRegistry meterRegistry) {
+        this(rectangleRepository, log, cacheCapacity, meterRegistry, null);
+    }
+
+    /**
+     * @param rectangleRepository the spatial index of the widgets
+     * @param log the log to recover the widgets from and to append changes to, if they must
+     * survive a restart
+     * @param cacheCapacity the maximum number of widgets in the cached results of {@link
+     * #findAllInside(Rectangle)}, or 0 not to cache them
+     * @param meterRegistry the registry to publish the metrics of the repository to
+     * @param listener told about every widget saved or deleted from now on, if anyone wants to
+     * know
+     */
+    @Autowired
+    public InMemoryRepository(
+            RectangleRepository<Widget> rectangleRepository,
+            @Nullable WriteAheadLog log,
+            @Value("${widget.cache.inside.capacity:" + DEFAULT_CACHE_CAPACITY + "}")
+                    int cacheCapacity,
+            MeterRegistry meterRegistry,
+            @Nullable WidgetChangeListener listener) {
+        this.stack = new WidgetStack(rectangleRepository);
+        this.log = log;
+        this.cache = cacheCapacity > 0 ? new InsideQueryCache(cacheCapacity) : null;
+        this.listener = listener;
+        this.metrics = new RepositoryMetrics(meterRegistry);
+        this.lock = metrics.lock();
+        if (rectangleRepository instanceof RTreeRepository) {
+            metrics.registerRTree(() -> rTreeStats((RTreeRepository) rectangleRepository));
+        }
+        if (cache != null) {
+            metrics.registerCache(cache);
+        }
+        if (log != null) {
+            log.recover(
+                    saved -> stack.put(new StoredWidget(
+                            saved.toWidget(),
+                            saved.getId(),
+                            saved.getZ().intValueExact())),
+                    id -> {
+                        StoredWidget existing = stack.get(id);
+                        if (existing != null) {
+                            stack.remove(existing);
+                        }
+                    });
+        }
+    }
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private RTreeRepository.Stats rTreeStats(RTreeRepository rTree) {
+        lock.readLock().lock();
+        try {
+            return rTree.stats();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
     @Override
-    public Widget save(@Valid Widget widget) {
+    public WidgetSnapshot save(@Valid Widget widget) {
+        long start = System.nanoTime();
+        try {
+            return doSave(widget);
+        } finally {
+            metrics.save.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private WidgetSnapshot doSave(Widget widget) {
+        StoredWidget stored;
+        long position = 0;
         lock.writeLock().lock();
         try {
-            Widget copy = widget.toBuilder().build();
-            if (copy.getId() == null) {
-                copy.setId(UUID.randomUUID());
-            }
-            if (widgetDatabase.containsKey(copy.getId())) {
-                updateCopyOnDatabase(copy);
-            } else {
-                addCopyToDatabase(copy);
+            UUID id = widget.getId() == null ? UUID.randomUUID() : widget.getId();
+            StoredWidget existing = stack.get(id);
+            int rank = stack.rankFor(widget.getZ(), existing);
+            stored = new StoredWidget(widget, id, rank);
+            if (log != null) {
+                // Before changing anything, so nothing changes if it can't be logged
+                position = log.appendSave(stored.getSnapshot());
             }
-            Widget databaseCopy = addCopyToDatabase(widget);
-            if (databaseCopy.getZ() == null) {
-                if (zIndexMap.isEmpty()) {
-                    databaseCopy.setZ(BigInteger.ZERO);
-                } else {
-                    databaseCopy.setZ(zIndexMap.lastKey().add(BigInteger.ONE));
+            if (cache != null) {
+                // Nothing else moves if it's put on top or kept where it was
+                if (existing == null ? rank < stack.size() : rank != stack.rank(existing)) {
+                    stackVersion++;
                 }
-            } else {
-                SortedMap<BigInteger, Widget> zIndexItemsAboveIt ()
+                cache.invalidate(existing, stored);
+            }
+            stack.put(stored);
+            if (listener != null) {
+                listener.changed(id, existing, stored.getSnapshot());
             }
-
-            widget.setId(databaseCopy.getId());
-            widget.setZ(databaseCopy.getZ());
-            return widget;
         } finally {
             lock.writeLock().unlock();
         }
+        if (log != null) {
+            log.sync(position);
+            snapshotIfDue(log);
+        }
+        return stored.getSnapshot();
     }
 
-    private Widget addCopyToDatabase(Widget copy) {
-        if (copy.getZ() == null) {
-
-            if (widget)
-            Widget currentCopy = widgetDatabase.get(widget.getId());
-            if (currentCopy != null && currentCopy.getZ().compareTo(widget.getZ()))
-            copy = widget.toBuilder().build();
-            widgetDatabase.put(widget.getId(), copy);
+    /**
+     * Saves every widget or none of them, under a single write lock: the positions are found and
+     * the batch is logged before anything changes, then the widgets are inserted into the stack in
+     * one go and the new ones into the spatial index together.
+     */
+    @Override
+    public List<WidgetSnapshot> saveAll(Collection<? extends Widget> widgets) {
+        long start = System.nanoTime();
+        try {
+            return doSaveAll(widgets);
+        } finally {
+            metrics.saveAll.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
-        return copy;
     }
 
-    private Widget updateCopyOnDatabase(Widget copy) {
-
+    private List<WidgetSnapshot> doSaveAll(Collection<? extends Widget> widgets) {
+        if (widgets.isEmpty()) {
+            return List.of();
+        }
+        WidgetStack.Batch batch;
+        long position = 0;
+        lock.writeLock().lock();
+        try {
+            batch = stack.prepare(widgets);
+            if (log != null) {
+                // Before changing anything, so nothing changes if it can't be logged
+                position = log.appendSaves(batch.snapshots());
+            }
+            if (cache != null) {
+                // Nothing else moves if they're all new and put on top
+                if (!batch.getExisting().isEmpty() || batch.getRank() < stack.size()) {
+                    stackVersion++;
+                }
+                batch.getStored().forEach(widget -> cache.invalidate(
+                        batch.replaced(widget.getId()),
+                        widget));
+            }
+            stack.putAll(batch);
+            if (listener != null) {
+                batch.notifyListener(listener);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (log != null) {
+            log.sync(position);
+            snapshotIfDue(log);
+        }
+        return batch.snapshots();
     }
 
     @Override
-    public Optional<Widget> findOne(UUID id) {
+    public Optional<WidgetSnapshot> findOne(UUID id) {
+        long start = System.nanoTime();
         lock.readLock().lock();
         try {
-            return Optional.ofNullable(widgetDatabase.get(id))
-                    .map(Widget::toBuilder)
-                    .map(Widget.WidgetBuilder::build);
+            return stack.findOne(id);
         } finally {
             lock.readLock().unlock();
+            metrics.findOne.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
     }
 
     @Override
     public void deleteById(UUID id) {
+        long start = System.nanoTime();
+        try {
+            doDeleteById(id);
+        } finally {
+            metrics.deleteById.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void doDeleteById(UUID id) {
+        long position;
         lock.writeLock().lock();
         try {
-            widgetDatabase.remove(id);
+            StoredWidget existing = stack.get(id);
+            if (existing == null) {
+                return;
+            }
+            position = log == null ? 0 : log.appendDelete(id);
+            if (cache != null) {
+                if (stack.rank(existing) < stack.size() - 1) {
+                    stackVersion++;
+                }
+                cache.invalidate(existing, null);
+            }
+            stack.remove(existing);
+            if (listener != null) {
+                listener.changed(id, existing, null);
+            }
         } finally {
             lock.writeLock().unlock();
         }
+        if (log != null) {
+            log.sync(position);
+            snapshotIfDue(log);
+        }
     }
 
+    /**
+     * Writes a snapshot of every widget if enough changes were logged since the last one. Saving
+     * and deleting widgets waits while they're read, but not while they're written.
+     */
+    private void snapshotIfDue(WriteAheadLog log) {
+        if (!log.isSnapshotDue()) {
+            return;
+        }
+        long segment;
+        List<WidgetSnapshot> widgets;
+        lock.readLock().lock();
+        try {
+            segment = log.rotateIfDue();
+            if (segment < 0) {
+                // Someone else got to it first
+                return;
+            }
+            widgets = stack.inStackOrder();
+        } finally {
+            lock.readLock().unlock();
+        }
+        log.writeSnapshot(segment, widgets);
+    }
+
+    @Override
+    public Iterable<WidgetSnapshot> findAll() {
+        long start = System.nanoTime();
+        List<WidgetSnapshot> result;
+        lock.readLock().lock();
+        try {
+            result = stack.inStackOrder();
+        } finally {
+            lock.readLock().unlock();
+            metrics.findAll.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        metrics.findAllResults.record(result.size());
+        return result;
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle) {
+        long start = System.nanoTime();
+        List<WidgetSnapshot> result;
+        try {
+            result = doFindAllInside(rectangle);
+        } finally {
+            metrics.findAllInside.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        metrics.findAllInsideResults.record(result.size());
+        return result;
+    }
+
+    private List<WidgetSnapshot> doFindAllInside(Rectangle rectangle) {
+        if (cache == null) {
+            List<WidgetSnapshot> result = new ArrayList<>();
+            forEachInside(rectangle, result::add);
+            return result;
+        }
+        lock.readLock().lock();
+        try {
+            List<WidgetSnapshot> cached = cache.get(rectangle, stackVersion, stack::toObservable);
+            if (cached != null) {
+                return cached;
+            }
+            List<StoredWidget> found = new ArrayList<>();
+            stack.forEachStoredInside(rectangle, found::add);
+            return cache.put(rectangle, found, stackVersion, stack::toObservable);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the statistics of the cache of {@link #findAllInside(Rectangle)}, if there is one
+     */
+    public Optional<QueryCacheStats> queryCacheStats() {
+        return Optional.ofNullable(cache).map(InsideQueryCache::stats);
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle, int limit, ZOrder order) {
+        long start = System.nanoTime();
+        List<WidgetSnapshot> result;
+        lock.readLock().lock();
+        try {
+            result = stack.findAllInside(rectangle, limit, order);
+        } finally {
+            lock.readLock().unlock();
+            metrics.findAllInside.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        metrics.findAllInsideResults.record(result.size());
+        return result;
+    }
+
+    /**
+     * The read lock is held while visiting, so the visitor should be quick.
+     */
     @Override
-    public Iterable<Widget> findAll() {
+    public boolean forEachInside(Rectangle rectangle, Predicate<? super WidgetSnapshot> visitor) {
         lock.readLock().lock();
         try {
-            return widgetDatabase.values()
-                    .stream()
-                    .map(Widget::toBuilder)
-                    .map(Widget.WidgetBuilder::build)
-                    .collect(Collectors.toList());
+            return stack.forEachInside(rectangle, visitor);
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    /*
+    /**
+     * The read lock is only held while finding each page.
+     */
+    @Override
+    public void forEachPage(int pageSize, Consumer<? super List<WidgetSnapshot>> visitor) {
+        stack.pages(null).forEach(lock.readLock(), pageSize, visitor);
+    }
+
+    /**
+     * The read lock is only held while finding each page, which skips the cache.
      */
     @Override
-    public List<Widget> findAllInside(InternalRectangle rectangle) {
-        return rectangleRepository.findAllInside(rectangle)
-                .stream()
-                .map(InternalRectangle::getId)
-                .map(widgetDatabase::get)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+    public void forEachPageInside(
+            Rectangle rectangle,
+            int pageSize,
+            Consumer<? super List<WidgetSnapshot>> visitor) {
+        stack.pages(rectangle).forEach(lock.readLock(), pageSize, visitor);
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllIntersecting(Rectangle rectangle) {
+        lock.readLock().lock();
+        try {
+            return stack.findAllIntersecting(rectangle);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<WidgetSnapshot> findTopmostAt(long x, long y) {
+        lock.readLock().lock();
+        try {
+            return stack.findTopmostAt(x, y);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 }
@@ -0,0 +1,265 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.IdentifiableRectangle;
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.RStarTreeRepository;
+import io.andrebrait.widget.repository.rectangle.RectangleRepository;
+import lombok.Value;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * The results of {@link WidgetRepository#findAllInside(Rectangle)} for the latest rectangles
+ * searched, for the {@link InMemoryRepository}.<br><br>
+ *
+ * A result only changes when a widget is saved or deleted inside its rectangle, so only those are
+ * dropped. The rectangles of the results are kept in a spatial index too, so finding the ones
+ * around a widget doesn't go through all of them. The positions of the widgets in the stack may
+ * change when any widget is saved or deleted, though, so each result is kept along with the
+ * version of the stack it was found at, and the Z-indexes of its widgets are looked up again
+ * when the stack changed since then.<br><br>
+ *
+ * The size of the cache is the number of widgets in its results (plus one for each result, so
+ * empty ones count too), and the least recently used results are evicted to keep it under its
+ * capacity. Results larger than that aren't cached at all.<br><br>
+ *
+ * This class is thread-safe, but keeping it consistent with the repository is up to the caller:
+ * results must be looked up and put while the repository can't change, and dropped when it does.
+ */
+final class InsideQueryCache {
+
+    private final int capacity;
+    private final Map<Bounds, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final RectangleRepository<Entry> index =
+            new RStarTreeRepository<>(Comparator.comparing(Entry::getId));
+    /*
+        Not a monitor, so virtual threads waiting for it don't pin their carriers
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /*
+        Guarded by lock
+     */
+    private int size;
+    /**
+     * Identifies the entries in the index, which only needs them to be distinct
+     */
+    private long lastId;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param capacity the maximum number of widgets to keep
+     */
+    InsideQueryCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param stackVersion the current version of the stack
+     * @param toObservable looks up the current snapshot of a widget in the result
+     * @return the widgets inside the rectangle, or {@code null} if they're not cached
+     */
+    @Nullable
+    List<WidgetSnapshot> get(
+            Rectangle rectangle,
+            long stackVersion,
+            Function<StoredWidget, WidgetSnapshot> toObservable) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(Bounds.of(rectangle));
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            if (entry.stackVersion != stackVersion) {
+                entry.snapshots = snapshotsOf(entry.widgets, toObservable);
+                entry.stackVersion = stackVersion;
+            }
+            return entry.snapshots;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param widgets the widgets found inside the rectangle
+     * @return the result for those widgets, which can't be changed
+     */
+    List<WidgetSnapshot> put(
+            Rectangle rectangle,
+            List<StoredWidget> widgets,
+            long stackVersion,
+            Function<StoredWidget, WidgetSnapshot> toObservable) {
+        List<WidgetSnapshot> snapshots = snapshotsOf(widgets, toObservable);
+        int weight = widgets.size() + 1;
+        if (weight > capacity) {
+            return snapshots;
+        }
+        lock.lock();
+        try {
+            Bounds bounds = Bounds.of(rectangle);
+            Entry entry = new Entry(++lastId, bounds, widgets, snapshots, stackVersion);
+            Entry previous = entries.put(bounds, entry);
+            if (previous != null) {
+                index.remove(previous);
+                size -= previous.widgets.size() + 1;
+            }
+            index.add(entry);
+            size += weight;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (size > capacity) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                index.remove(evicted);
+                size -= evicted.widgets.size() + 1;
+                evictions++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return snapshots;
+    }
+
+    /**
+     * Drops the results which had a widget with the given bounds, or which would have it now.
+     *
+     * @param previous the bounds of the widget before it changed, if it existed
+     * @param current the bounds of the widget after it changed, if it still exists
+     */
+    void invalidate(@Nullable Rectangle previous, @Nullable Rectangle current) {
+        lock.lock();
+        try {
+            if (previous != null) {
+                invalidateAround(previous);
+            }
+            if (current != null) {
+                invalidateAround(current);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A rectangle around the widget overlaps it too, since widgets are never empty, so only the
+     * ones overlapping it are looked at.
+     */
+    private void invalidateAround(Rectangle widget) {
+        for (Entry entry : index.findAllIntersecting(widget)) {
+            if (entry.contains(widget)) {
+                entries.remove(entry.bounds);
+                index.remove(entry);
+                size -= entry.widgets.size() + 1;
+                invalidations++;
+            }
+        }
+    }
+
+    QueryCacheStats stats() {
+        lock.lock();
+        try {
+            return new QueryCacheStats(
+                    entries.size(),
+                    size,
+                    hits,
+                    misses,
+                    evictions,
+                    invalidations);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static List<WidgetSnapshot> snapshotsOf(
+            List<StoredWidget> widgets,
+            Function<StoredWidget, WidgetSnapshot> toObservable) {
+        List<WidgetSnapshot> snapshots = new ArrayList<>(widgets.size());
+        for (StoredWidget widget : widgets) {
+            snapshots.add(toObservable.apply(widget));
+        }
+        return Collections.unmodifiableList(snapshots);
+    }
+
+    /**
+     * A copy of the searched rectangle, which may be a mutable widget
+     */
+    @Value
+    private static class Bounds implements Rectangle {
+
+        long x;
+        long y;
+        long x2;
+        long y2;
+
+        static Bounds of(Rectangle rectangle) {
+            return new Bounds(
+                    rectangle.getX(),
+                    rectangle.getY(),
+                    rectangle.getX2(),
+                    rectangle.getY2());
+        }
+    }
+
+    private static final class Entry implements IdentifiableRectangle {
+
+        private final UUID id;
+        private final Bounds bounds;
+        private final List<StoredWidget> widgets;
+        private List<WidgetSnapshot> snapshots;
+        private long stackVersion;
+
+        private Entry(
+                long id,
+                Bounds bounds,
+                List<StoredWidget> widgets,
+                List<WidgetSnapshot> snapshots,
+                long stackVersion) {
+            this.id = new UUID(0, id);
+            this.bounds = bounds;
+            this.widgets = widgets;
+            this.snapshots = snapshots;
+            this.stackVersion = stackVersion;
+        }
+
+        @Override
+        public UUID getId() {
+            return id;
+        }
+
+        @Override
+        public long getX() {
+            return bounds.getX();
+        }
+
+        @Override
+        public long getY() {
+            return bounds.getY();
+        }
+
+        @Override
+        public long getX2() {
+            return bounds.getX2();
+        }
+
+        @Override
+        public long getY2() {
+            return bounds.getY2();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package io.andrebrait.widget.repository;
+
+import lombok.Value;
+
+/**
+ * Statistics of the cache of query results of a repository, since it was created
+ */
+@Value
+public class QueryCacheStats {
+
+    /**
+     * Number of results cached
+     */
+    int entries;
+    /**
+     * Number of widgets in the results cached, plus one for each result
+     */
+    int size;
+    long hits;
+    long misses;
+    /**
+     * Number of results dropped to make room for others
+     */
+    long evictions;
+    /**
+     * Number of results dropped because a widget inside them changed
+     */
+    long invalidations;
+
+    /**
+     * @return the ratio of lookups which found a result, or 0 if there was none
+     */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,141 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The meters of the {@link InMemoryRepository}, registered once when it's created.<br><br>
+ *
+ * Operations and result sizes are recorded into histograms with fixed buckets, so the percentiles
+ * can be computed by whoever scrapes them, across instances too, and recording them is only a few
+ * atomic increments. The statistics of the spatial index and of the query cache are only read when
+ * they're scraped.
+ */
+final class RepositoryMetrics {
+
+    static final String OPERATIONS = "widget.repository.operations";
+    static final String RESULTS = "widget.repository.results";
+    static final String LOCK_WAIT = "widget.repository.lock.wait";
+
+    final Timer save;
+    final Timer saveAll;
+    final Timer findOne;
+    final Timer deleteById;
+    final Timer findAll;
+    final Timer findAllInside;
+    final DistributionSummary findAllResults;
+    final DistributionSummary findAllInsideResults;
+
+    private final MeterRegistry registry;
+
+    RepositoryMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.save = timer("save");
+        this.saveAll = timer("saveAll");
+        this.findOne = timer("findOne");
+        this.deleteById = timer("deleteById");
+        this.findAll = timer("findAll");
+        this.findAllInside = timer("findAllInside");
+        this.findAllResults = results("findAll");
+        this.findAllInsideResults = results("findAllInside");
+    }
+
+    private Timer timer(String operation) {
+        return Timer.builder(OPERATIONS)
+                .description("Time taken by the operations of the widget repository")
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry);
+    }
+
+    private DistributionSummary results(String operation) {
+        return DistributionSummary.builder(RESULTS)
+                .description("Number of widgets found by the queries of the widget repository")
+                .baseUnit("widgets")
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue(1e7)
+                .register(registry);
+    }
+
+    /**
+     * @return a read-write lock which records how long it's waited for
+     */
+    TimedReadWriteLock lock() {
+        return new TimedReadWriteLock(registry, LOCK_WAIT);
+    }
+
+    /**
+     * Registers the statistics of the spatial index as gauges, read when they're scraped
+     *
+     * @param stats reads the statistics, with whatever lock the index needs
+     */
+    void registerRTree(Supplier<RTreeRepository.Stats> stats) {
+        gauge("widget.rtree.depth", "max", stats, RTreeRepository.Stats::getMaxDepth);
+        gauge("widget.rtree.depth", "average", stats, RTreeRepository.Stats::getAverageDepth);
+        gauge("widget.rtree.overlap", "max", stats,
+                RTreeRepository.Stats::getMaxIntersectingArea);
+        gauge("widget.rtree.overlap", "average", stats,
+                RTreeRepository.Stats::getAverageIntersectingArea);
+        Gauge.builder("widget.rtree.nodes", stats, s -> s.get().getNodes())
+                .description("Number of nodes in the spatial index")
+                .strongReference(true)
+                .register(registry);
+        Gauge.builder("widget.rtree.leaves", stats, s -> s.get().getLeaves())
+                .description("Number of leaves in the spatial index")
+                .strongReference(true)
+                .register(registry);
+    }
+
+    private void gauge(
+            String name,
+            String statistic,
+            Supplier<RTreeRepository.Stats> stats,
+            ToDoubleFunction<RTreeRepository.Stats> value) {
+        Gauge.builder(name, stats, s -> value.applyAsDouble(s.get()))
+                .tag("statistic", statistic)
+                .strongReference(true)
+                .register(registry);
+    }
+
+    /**
+     * Registers the statistics of the query cache as counters and a gauge, read when scraped
+     */
+    void registerCache(InsideQueryCache cache) {
+        FunctionCounter.builder("widget.cache.inside.gets", cache, c -> c.stats().getHits())
+                .description("Number of results looked up in the cache")
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("widget.cache.inside.gets", cache, c -> c.stats().getMisses())
+                .description("Number of results looked up in the cache")
+                .tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder(
+                "widget.cache.inside.evictions",
+                cache,
+                c -> c.stats().getEvictions())
+                .description("Number of results dropped to make room for others")
+                .register(registry);
+        FunctionCounter.builder(
+                "widget.cache.inside.invalidations",
+                cache,
+                c -> c.stats().getInvalidations())
+                .description("Number of results dropped because a widget inside them changed")
+                .register(registry);
+        Gauge.builder("widget.cache.inside.size", cache, c -> c.stats().getSize())
+                .description("Number of widgets in the results cached, plus one for each result")
+                .baseUnit("widgets")
+                .register(registry);
+    }
+}
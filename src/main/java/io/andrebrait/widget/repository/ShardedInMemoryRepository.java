@@ -0,0 +1,552 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import io.andrebrait.widget.repository.rectangle.RectangleRepository;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Repository;
+
+import javax.validation.Valid;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Like {@link InMemoryRepository}, but the plane is split into square tiles, each with its own
+ * spatial index and its own lock, so widgets in different tiles can be saved at the same time.
+ * Widgets crossing the border between tiles go to an extra shard shared by the whole plane, so
+ * tiles should be much larger than the widgets. Queries only visit the tiles they touch, plus
+ * that shared one, looking each tile up unless they touch more tiles than there are shards, in
+ * which case the shards are gone through instead.<br><br>
+ *
+ * The stacking order is still global, so it's kept in a single {@link ZOrderTree} with its own
+ * lock, but that lock is only held for the O(log n) changes to the tree, while the slower
+ * changes to the spatial indexes run in parallel. The only exceptions are when the labels of the
+ * stack need to be spread out again, which changes the Z-index of every stored widget, and when
+ * a batch is saved: those wait for everything else to finish and block everything until they're
+ * done.<br><br>
+ *
+ * Locks are always taken in the same order, to avoid deadlocks: the global lock (read, or write
+ * only to relabel the stack or to save a batch), then the locks of the shards (by the order they
+ * were created), then the lock of the stack.<br><br>
+ *
+ * The same {@link WidgetSnapshot WidgetSnapshots} are handed out until the widgets are saved again
+ * or their positions change, as in {@link InMemoryRepository}.<br><br>
+ *
+ * Queries spanning many shards are not atomic: each shard is searched on its own, so a query
+ * running at the same time as a save may see the stack as it was before the save in one shard
+ * and after it in another.
+ */
+@Repository
+@Profile("sharded")
+public class ShardedInMemoryRepository implements WidgetRepository {
+
+    public static final long DEFAULT_TILE_SIZE = 1L << 16;
+
+    @lombok.Value
+    private static class Tile {
+        long x;
+        long y;
+    }
+
+    private static final class Shard {
+
+        private final int order;
+        /*
+            Bounds of the tile, or the whole plane for the shard of widgets crossing tiles
+         */
+        private final long x;
+        private final long y;
+        private final long x2;
+        private final long y2;
+        private final RectangleRepository<Widget> widgets;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private Shard(
+                int order,
+                long x,
+                long y,
+                long x2,
+                long y2,
+                RectangleRepository<Widget> widgets) {
+            this.order = order;
+            this.x = x;
+            this.y = y;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.widgets = widgets;
+        }
+
+        private boolean mayHaveAnyIn(Rectangle rectangle) {
+            return x <= rectangle.getX2()
+                    && x2 >= rectangle.getX()
+                    && y <= rectangle.getY2()
+                    && y2 >= rectangle.getY();
+        }
+    }
+
+    private final long tileSize;
+    private final Supplier<RectangleRepository<Widget>> shardFactory;
+
+    private final Map<UUID, StoredWidget> widgetDatabase = new ConcurrentHashMap<>();
+    private final ZOrderTree<StoredWidget> zOrder =
+            new ZOrderTree<>((widget, label) -> widget.setZ(BigInteger.valueOf(label)));
+    private final ReadWriteLock zOrderLock = new ReentrantReadWriteLock();
+
+    private final Map<Tile, Shard> shards = new ConcurrentHashMap<>();
+    private final AtomicInteger shardCount = new AtomicInteger();
+    private final Shard crossingShard;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Autowired
+    public ShardedInMemoryRepository(
+            @Value("${widget.shards.tile-size:" + DEFAULT_TILE_SIZE + "}") long tileSize) {
+        this(tileSize, RTreeRepository::new);
+    }
+
+    /**
+     * @param tileSize the width and height of the tiles
+     * @param shardFactory creates the spatial index of each shard
+     */
+    public ShardedInMemoryRepository(
+            long tileSize,
+            Supplier<RectangleRepository<Widget>> shardFactory) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("'tileSize' must be positive");
+        }
+        this.tileSize = tileSize;
+        this.shardFactory = shardFactory;
+        this.crossingShard = new Shard(
+                shardCount.getAndIncrement(),
+                Long.MIN_VALUE,
+                Long.MIN_VALUE,
+                Long.MAX_VALUE,
+                Long.MAX_VALUE,
+                shardFactory.get());
+    }
+
+    @Override
+    public WidgetSnapshot save(@Valid Widget widget) {
+        // Read more than once while looking for its shard, so it must not change meanwhile
+        Widget copy = widget.toBuilder().build();
+        UUID id = copy.getId() == null ? UUID.randomUUID() : copy.getId();
+        while (true) {
+            lock.readLock().lock();
+            try {
+                WidgetSnapshot snapshot = trySave(copy, id);
+                if (snapshot != null) {
+                    return snapshot;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            relabel();
+        }
+    }
+
+    /**
+     * Saves every widget or none of them. The shards a batch touches and whether the stack needs
+     * relabelling for it are only known once its existing widgets are out of the stack, so, like
+     * relabelling, it waits for everything else to finish and blocks everything until it's done.
+     */
+    @Override
+    public List<WidgetSnapshot> saveAll(Collection<? extends Widget> widgets) {
+        Map<UUID, Widget> byId = new LinkedHashMap<>();
+        for (Widget widget : widgets) {
+            UUID id = widget.getId() == null ? UUID.randomUUID() : widget.getId();
+            if (byId.put(id, widget) != null) {
+                throw new IllegalArgumentException("Widget " + id + " is repeated");
+            }
+        }
+        if (byId.isEmpty()) {
+            return List.of();
+        }
+        lock.writeLock().lock();
+        zOrderLock.writeLock().lock();
+        try {
+            Map<UUID, StoredWidget> existing = new HashMap<>();
+            for (UUID id : byId.keySet()) {
+                StoredWidget found = widgetDatabase.get(id);
+                if (found != null) {
+                    zOrder.remove(found.getLabel());
+                    existing.put(id, found);
+                }
+            }
+            int rank = rankFor(widgets.iterator().next().getZ());
+            List<StoredWidget> stored = new ArrayList<>(byId.size());
+            for (Map.Entry<UUID, Widget> entry : byId.entrySet()) {
+                int next = rank + stored.size();
+                stored.add(new StoredWidget(entry.getValue(), entry.getKey(), next));
+            }
+            long[] labels = zOrder.insertAll(rank, stored);
+            List<WidgetSnapshot> saved = new ArrayList<>(stored.size());
+            for (int i = 0; i < labels.length; i++) {
+                StoredWidget next = stored.get(i);
+                next.setZ(BigInteger.valueOf(labels[i]));
+                StoredWidget old = existing.get(next.getId());
+                Shard newShard = shardFor(next);
+                Shard oldShard = old == null ? null : shardFor(old);
+                if (old == null) {
+                    newShard.widgets.add(next);
+                } else if (oldShard == newShard) {
+                    newShard.widgets.update(old, next);
+                } else {
+                    oldShard.widgets.remove(old);
+                    newShard.widgets.add(next);
+                }
+                widgetDatabase.put(next.getId(), next);
+                saved.add(next.getSnapshot());
+            }
+            return saved;
+        } finally {
+            zOrderLock.writeLock().unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the widget as it was saved, or {@code null} if there was no room for it in the
+     * stack without relabelling it
+     */
+    @Nullable
+    private WidgetSnapshot trySave(Widget widget, UUID id) {
+        while (true) {
+            StoredWidget existing = widgetDatabase.get(id);
+            Shard newShard = shardFor(widget);
+            Shard oldShard = existing == null ? newShard : shardFor(existing);
+            Shard first = oldShard.order <= newShard.order ? oldShard : newShard;
+            Shard second = first == oldShard ? newShard : oldShard;
+            first.lock.writeLock().lock();
+            second.lock.writeLock().lock();
+            try {
+                if (widgetDatabase.get(id) != existing) {
+                    // Saved or deleted while waiting for the shards, which may not be these anymore
+                    continue;
+                }
+                StoredWidget stored = putInStack(widget, id, existing);
+                if (stored == null) {
+                    return null;
+                }
+                if (existing == null) {
+                    newShard.widgets.add(stored);
+                } else if (oldShard == newShard) {
+                    newShard.widgets.update(existing, stored);
+                } else {
+                    oldShard.widgets.remove(existing);
+                    newShard.widgets.add(stored);
+                }
+                return stored.getSnapshot();
+            } finally {
+                second.lock.writeLock().unlock();
+                first.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Nullable
+    private StoredWidget putInStack(Widget widget, UUID id, @Nullable StoredWidget existing) {
+        zOrderLock.writeLock().lock();
+        try {
+            long existingLabel = existing == null ? -1 : existing.getLabel();
+            if (existing != null) {
+                zOrder.remove(existingLabel);
+            }
+            int rank = rankFor(widget.getZ());
+            StoredWidget stored = new StoredWidget(widget, id, rank);
+            long label = zOrder.tryInsert(rank, stored);
+            if (label < 0) {
+                if (existing != null) {
+                    zOrder.put(existingLabel, existing);
+                }
+                return null;
+            }
+            stored.setZ(BigInteger.valueOf(label));
+            widgetDatabase.put(id, stored);
+            return stored;
+        } finally {
+            zOrderLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Spreads the labels of the stack out again. The Z-index of every stored widget changes, so
+     * nothing else can be running.
+     */
+    private void relabel() {
+        lock.writeLock().lock();
+        zOrderLock.writeLock().lock();
+        try {
+            zOrder.relabel();
+        } finally {
+            zOrderLock.writeLock().unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the position for the requested Z-index, from the bottom to right above the top
+     */
+    private int rankFor(@Nullable BigInteger z) {
+        return WidgetRepository.rankFor(z, zOrder.size());
+    }
+
+    /**
+     * @param found a widget from the database or from a shard, where only {@link StoredWidget
+     * StoredWidgets} are put
+     */
+    private WidgetSnapshot toObservable(Widget found) {
+        StoredWidget stored = (StoredWidget) found;
+        zOrderLock.readLock().lock();
+        try {
+            return stored.snapshotAt(zOrder.rank(stored.getLabel()));
+        } finally {
+            zOrderLock.readLock().unlock();
+        }
+    }
+
+    private Shard shardFor(Rectangle rectangle) {
+        long tileX = Math.floorDiv(rectangle.getX(), tileSize);
+        long tileY = Math.floorDiv(rectangle.getY(), tileSize);
+        if (tileX != Math.floorDiv(rectangle.getX2(), tileSize)
+                || tileY != Math.floorDiv(rectangle.getY2(), tileSize)) {
+            return crossingShard;
+        }
+        return shards.computeIfAbsent(new Tile(tileX, tileY), this::newShard);
+    }
+
+    private Shard newShard(Tile tile) {
+        long x = tile.getX() * tileSize;
+        long y = tile.getY() * tileSize;
+        // The last tile may end past the largest coordinate
+        long x2 = x + (tileSize - 1) < x ? Long.MAX_VALUE : x + (tileSize - 1);
+        long y2 = y + (tileSize - 1) < y ? Long.MAX_VALUE : y + (tileSize - 1);
+        return new Shard(shardCount.getAndIncrement(), x, y, x2, y2, shardFactory.get());
+    }
+
+    /**
+     * @return the shards which may have something in the rectangle
+     */
+    private List<Shard> shardsIn(Rectangle rectangle) {
+        List<Shard> result = new ArrayList<>();
+        result.add(crossingShard);
+        long tileX = Math.floorDiv(rectangle.getX(), tileSize);
+        long tileY = Math.floorDiv(rectangle.getY(), tileSize);
+        long tileX2 = Math.floorDiv(rectangle.getX2(), tileSize);
+        long tileY2 = Math.floorDiv(rectangle.getY2(), tileSize);
+        // Only tiles with something in them ever had a shard created, so when the rectangle
+        // covers more tiles than there are shards, going through the shards is quicker
+        int count = shards.size();
+        long columns = tileX2 - tileX;
+        long rows = tileY2 - tileY;
+        if (columns >= count || rows >= count || (columns + 1) * (rows + 1) > count) {
+            for (Shard shard : shards.values()) {
+                if (shard.mayHaveAnyIn(rectangle)) {
+                    result.add(shard);
+                }
+            }
+            return result;
+        }
+        for (long i = tileX; i <= tileX2; i++) {
+            for (long j = tileY; j <= tileY2; j++) {
+                Shard shard = shards.get(new Tile(i, j));
+                if (shard != null) {
+                    result.add(shard);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Optional<WidgetSnapshot> findOne(UUID id) {
+        zOrderLock.readLock().lock();
+        try {
+            return Optional.ofNullable(widgetDatabase.get(id)).map(this::toObservable);
+        } finally {
+            zOrderLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteById(UUID id) {
+        lock.readLock().lock();
+        try {
+            while (true) {
+                StoredWidget existing = widgetDatabase.get(id);
+                if (existing == null) {
+                    return;
+                }
+                Shard shard = shardFor(existing);
+                shard.lock.writeLock().lock();
+                try {
+                    if (widgetDatabase.get(id) != existing) {
+                        continue;
+                    }
+                    shard.widgets.remove(existing);
+                    zOrderLock.writeLock().lock();
+                    try {
+                        zOrder.remove(existing.getLabel());
+                        widgetDatabase.remove(id);
+                    } finally {
+                        zOrderLock.writeLock().unlock();
+                    }
+                    return;
+                } finally {
+                    shard.lock.writeLock().unlock();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterable<WidgetSnapshot> findAll() {
+        zOrderLock.readLock().lock();
+        try {
+            List<WidgetSnapshot> result = new ArrayList<>(zOrder.size());
+            zOrder.forEachInOrder((stored, rank) -> result.add(stored.snapshotAt(rank)));
+            return result;
+        } finally {
+            zOrderLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        forEachInside(rectangle, result::add);
+        return result;
+    }
+
+    /**
+     * Each shard returns its first widgets in that order, and the first of all of them are
+     * picked.
+     */
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle, int limit, ZOrder order) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Shard shard : shardsIn(rectangle)) {
+                shard.lock.readLock().lock();
+                try {
+                    for (Widget widget : shard.widgets.findAllInside(rectangle, limit, order)) {
+                        result.add(toObservable(widget));
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Comparator<WidgetSnapshot> comparator = order == ZOrder.ASCENDING
+                ? WidgetSnapshot.Z_ORDER
+                : WidgetSnapshot.Z_ORDER.reversed();
+        result.sort(comparator);
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * The read locks of each shard are held while visiting its widgets, so the visitor should be
+     * quick.
+     */
+    @Override
+    public boolean forEachInside(Rectangle rectangle, Predicate<? super WidgetSnapshot> visitor) {
+        lock.readLock().lock();
+        try {
+            for (Shard shard : shardsIn(rectangle)) {
+                shard.lock.readLock().lock();
+                try {
+                    boolean finished = shard.widgets.forEachInside(
+                            rectangle,
+                            widget -> visitor.test(toObservable(widget)));
+                    if (!finished) {
+                        return false;
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllIntersecting(Rectangle rectangle) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Shard shard : shardsIn(rectangle)) {
+                shard.lock.readLock().lock();
+                try {
+                    for (Widget widget : shard.widgets.findAllIntersecting(rectangle)) {
+                        result.add(toObservable(widget));
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public Optional<WidgetSnapshot> findTopmostAt(long x, long y) {
+        WidgetSnapshot result = null;
+        lock.readLock().lock();
+        try {
+            List<Shard> candidates = new ArrayList<>(2);
+            candidates.add(crossingShard);
+            Shard tile = shards.get(new Tile(
+                    Math.floorDiv(x, tileSize),
+                    Math.floorDiv(y, tileSize)));
+            if (tile != null) {
+                candidates.add(tile);
+            }
+            for (Shard shard : candidates) {
+                shard.lock.readLock().lock();
+                try {
+                    Optional<Widget> topmost = shard.widgets.findTopmostAt(x, y);
+                    if (topmost.isPresent()) {
+                        WidgetSnapshot candidate = toObservable(topmost.get());
+                        if (result == null
+                                || WidgetSnapshot.Z_ORDER.compare(candidate, result) > 0) {
+                            result = candidate;
+                        }
+                    }
+                } finally {
+                    shard.lock.readLock().unlock();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Optional.ofNullable(result);
+    }
+}
@@ -1,20 +1,240 @@
 package io.andrebrait.widget.repository;
 
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
 import io.andrebrait.widget.repository.rectangle.RectangleRepository;
-import lombok.RequiredArgsConstructor;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Repository;
 
+import javax.validation.Valid;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+/**
+ * Keeps the widgets in the {@code WIDGET} table, but only writes to it: the widgets are read from
+ * the table once, when the repository is created, and from then on every read is served from
+ * memory, the same way as in {@link InMemoryRepository}.<br><br>
+ *
+ * Changes are made in memory and queued to a {@link WidgetTableWriter} while the write lock is
+ * held, so they're queued in the order they're made, and they're written to the table later, in
+ * batches. Queueing them never waits, so reads are never held up by the database. Saving a
+ * widget only waits for it if the queue is full, after releasing the lock, and changes
+ * acknowledged but not written yet are lost if the process dies.<br><br>
+ *
+ * As in the {@link InMemoryRepository}, the {@link WidgetChangeListener} hears of every change
+ * while the write lock is still held.
+ */
 @Repository
 @Profile("sql")
-@RequiredArgsConstructor
 public class SqlRepository implements WidgetRepository {
 
-    private final RectangleRepository rectangleRepository;
+    private final WidgetStack stack;
+    private final WidgetTableWriter writer;
+    @Nullable
+    private final WidgetChangeListener listener;
 
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    public SqlRepository(
+            RectangleRepository<Widget> rectangleRepository,
+            WidgetTableWriter writer) {
+        this(rectangleRepository, writer, null);
+    }
+
+    /**
+     * @param rectangleRepository the spatial index of the widgets
+     * @param writer the writer to read the widgets from and to queue changes to
+     * @param listener told about every widget saved or deleted from now on, if anyone wants to
+     * know
+     */
+    @Autowired
+    public SqlRepository(
+            RectangleRepository<Widget> rectangleRepository,
+            WidgetTableWriter writer,
+            @Nullable WidgetChangeListener listener) {
+        this.stack = new WidgetStack(rectangleRepository);
+        this.writer = writer;
+        this.listener = listener;
+        writer.recover(saved -> stack.put(new StoredWidget(
+                saved.toWidget(),
+                saved.getId(),
+                saved.getZ().intValueExact())));
+    }
+
+    @Override
+    public WidgetSnapshot save(@Valid Widget widget) {
+        lock.writeLock().lock();
+        try {
+            UUID id = widget.getId() == null ? UUID.randomUUID() : widget.getId();
+            StoredWidget existing = stack.get(id);
+            int previousRank = existing == null ? -1 : stack.rank(existing);
+            StoredWidget stored = new StoredWidget(
+                    widget,
+                    id,
+                    stack.rankFor(widget.getZ(), existing));
+            stack.put(stored);
+            writer.queueSave(stored.getSnapshot(), previousRank, stack.size());
+            if (listener != null) {
+                listener.changed(id, existing, stored.getSnapshot());
+            }
+            return stored.getSnapshot();
+        } finally {
+            lock.writeLock().unlock();
+            writer.awaitRoom();
+        }
+    }
+
+    /**
+     * Saves every widget or none of them, under a single write lock, and queues the changes as a
+     * single group, so they're written to the table in the same transaction: the existing widgets
+     * are deleted first, then every widget is saved from the bottom up.
+     */
+    @Override
+    public List<WidgetSnapshot> saveAll(Collection<? extends Widget> widgets) {
+        if (widgets.isEmpty()) {
+            return List.of();
+        }
+        lock.writeLock().lock();
+        try {
+            WidgetStack.Batch batch = stack.prepare(widgets);
+            WidgetTableWriter.Group group = writer.group();
+            stack.putAll(
+                    batch,
+                    (widget, rank) -> group.delete(widget.getId(), rank, stack.size()));
+            // Counted from the size without them, as the deletes left it
+            int top = stack.size() - batch.getStored().size();
+            List<WidgetSnapshot> saved = batch.snapshots();
+            for (int i = 0; i < saved.size(); i++) {
+                group.save(saved.get(i), -1, top + i + 1);
+            }
+            group.queue();
+            if (listener != null) {
+                batch.notifyListener(listener);
+            }
+            return saved;
+        } finally {
+            lock.writeLock().unlock();
+            writer.awaitRoom();
+        }
+    }
+
+    @Override
+    public Optional<WidgetSnapshot> findOne(UUID id) {
+        lock.readLock().lock();
+        try {
+            return stack.findOne(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteById(UUID id) {
+        lock.writeLock().lock();
+        try {
+            StoredWidget existing = stack.get(id);
+            if (existing == null) {
+                return;
+            }
+            int rank = stack.rank(existing);
+            stack.remove(existing);
+            writer.queueDelete(id, rank, stack.size());
+            if (listener != null) {
+                listener.changed(id, existing, null);
+            }
+        } finally {
+            lock.writeLock().unlock();
+            writer.awaitRoom();
+        }
+    }
+
+    @Override
+    public Iterable<WidgetSnapshot> findAll() {
+        lock.readLock().lock();
+        try {
+            return stack.inStackOrder();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        forEachInside(rectangle, result::add);
+        return result;
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle, int limit, ZOrder order) {
+        lock.readLock().lock();
+        try {
+            return stack.findAllInside(rectangle, limit, order);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The read lock is held while visiting, so the visitor should be quick.
+     */
+    @Override
+    public boolean forEachInside(Rectangle rectangle, Predicate<? super WidgetSnapshot> visitor) {
+        lock.readLock().lock();
+        try {
+            return stack.forEachInside(rectangle, visitor);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The read lock is only held while finding each page.
+     */
+    @Override
+    public void forEachPage(int pageSize, Consumer<? super List<WidgetSnapshot>> visitor) {
+        stack.pages(null).forEach(lock.readLock(), pageSize, visitor);
+    }
+
+    /**
+     * The read lock is only held while finding each page.
+     */
+    @Override
+    public void forEachPageInside(
+            Rectangle rectangle,
+            int pageSize,
+            Consumer<? super List<WidgetSnapshot>> visitor) {
+        stack.pages(rectangle).forEach(lock.readLock(), pageSize, visitor);
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllIntersecting(Rectangle rectangle) {
+        lock.readLock().lock();
+        try {
+            return stack.findAllIntersecting(rectangle);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<WidgetSnapshot> findTopmostAt(long x, long y) {
+        lock.readLock().lock();
+        try {
+            return stack.findTopmostAt(x, y);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 }
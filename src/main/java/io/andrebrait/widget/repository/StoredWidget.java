@@ -0,0 +1,59 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+
+import java.math.BigInteger;
+import java.util.UUID;
+
+/**
+ * What the in-memory repositories keep for each widget: the widget itself, with the label of its
+ * position in the {@link ZOrderTree} as its Z-index, and the snapshot handed out for it, so the
+ * snapshot of a widget found in a spatial index is right there.
+ */
+final class StoredWidget extends Widget {
+
+    private volatile WidgetSnapshot snapshot;
+
+    /**
+     * The Z-index is left empty until a label is given to it.
+     *
+     * @param widget the widget being saved
+     * @param id the ID of the widget
+     * @param rank its position in the stack
+     */
+    StoredWidget(Widget widget, UUID id, int rank) {
+        super(id, widget.getX(), widget.getY(), null, widget.getWidth(), widget.getHeight());
+        this.snapshot = WidgetSnapshot.builder()
+                .id(id)
+                .x(widget.getX())
+                .y(widget.getY())
+                .z(BigInteger.valueOf(rank))
+                .width(widget.getWidth())
+                .height(widget.getHeight())
+                .build();
+    }
+
+    WidgetSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Only called while the position of the widget can't change, so every reader racing to
+     * replace the snapshot puts the same one.
+     *
+     * @return the snapshot, replaced first if it was taken at another position
+     */
+    WidgetSnapshot snapshotAt(int rank) {
+        WidgetSnapshot current = snapshot;
+        if (current.getZ().intValue() != rank) {
+            current = current.withZ(BigInteger.valueOf(rank));
+            snapshot = current;
+        }
+        return current;
+    }
+
+    long getLabel() {
+        return getZ().longValueExact();
+    }
+}
@@ -0,0 +1,95 @@
+package io.andrebrait.widget.repository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link ReentrantReadWriteLock} which records how long {@link Lock#lock()} waited for each of
+ * its locks. Every wait is timed, even the ones that turn out to be none: trying to take the lock
+ * first, to skip reading the clock, would let readers in ahead of a writer waiting for it, which
+ * {@link Lock#lock()} doesn't, and a steady stream of them could keep the writer out for good.
+ */
+final class TimedReadWriteLock implements ReadWriteLock {
+
+    private final Lock readLock;
+    private final Lock writeLock;
+
+    /**
+     * @param name the name of the timer, tagged with the mode of each lock
+     */
+    TimedReadWriteLock(MeterRegistry registry, String name) {
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        this.readLock = new TimedLock(lock.readLock(), timer(registry, name, "read"));
+        this.writeLock = new TimedLock(lock.writeLock(), timer(registry, name, "write"));
+    }
+
+    private static Timer timer(MeterRegistry registry, String name, String mode) {
+        return Timer.builder(name)
+                .description("Time spent waiting for the lock")
+                .tag("mode", mode)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(100))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry);
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    private static final class TimedLock implements Lock {
+
+        private final Lock delegate;
+        private final Timer timer;
+
+        private TimedLock(Lock delegate, Timer timer) {
+            this.delegate = delegate;
+            this.timer = timer;
+        }
+
+        @Override
+        public void lock() {
+            long start = System.nanoTime();
+            delegate.lock();
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            delegate.lockInterruptibly();
+        }
+
+        @Override
+        public boolean tryLock() {
+            return delegate.tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            return delegate.tryLock(time, unit);
+        }
+
+        @Override
+        public void unlock() {
+            delegate.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            return delegate.newCondition();
+        }
+    }
+}
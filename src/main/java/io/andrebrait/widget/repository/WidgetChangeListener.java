@@ -0,0 +1,24 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import org.springframework.lang.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Told about every widget saved or deleted, in the order they're changed, while the repository
+ * is still locked, so it must be quick and must not use the repository. The widgets only moving
+ * up or down the stack because of someone else's change aren't reported: their order doesn't
+ * change, only their Z-indexes.
+ */
+@FunctionalInterface
+public interface WidgetChangeListener {
+
+    /**
+     * @param id the ID of the widget
+     * @param previous the bounds of the widget before it changed, if it existed
+     * @param current the widget as it was saved, or {@code null} if it was deleted
+     */
+    void changed(UUID id, @Nullable Rectangle previous, @Nullable WidgetSnapshot current);
+}
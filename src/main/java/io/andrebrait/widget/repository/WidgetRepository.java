@@ -1,21 +1,164 @@
 package io.andrebrait.widget.repository;
 
-import io.andrebrait.widget.repository.rectangle.InternalRectangle;
+import io.andrebrait.widget.domain.Rectangle;
 import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import org.springframework.lang.Nullable;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+/**
+ * Widgets are saved as {@link Widget Widgets} and found as {@link WidgetSnapshot
+ * WidgetSnapshots}, which are immutable, so implementations are free to hand out the same ones
+ * over and over.
+ */
 public interface WidgetRepository {
 
-    Widget save(Widget widget);
+    /**
+     * @param widget the widget to save, which is copied and not changed
+     * @return the widget as it was saved, with its ID and its position in the stack
+     */
+    WidgetSnapshot save(Widget widget);
 
-    Optional<Widget> findOne(UUID id);
+    /**
+     * Saves widgets at consecutive positions in the stack, in the given order: the first one where
+     * {@link #save(Widget)} would put it if none of them existed, and each of the others right
+     * above the previous one, so only the Z-index of the first one is taken into account.<br><br>
+     *
+     * By default, they're saved one at a time, after moving the existing ones to the top, out of
+     * the way, so other changes can happen in between and, if saving one of them fails, the ones
+     * before it are still saved.
+     *
+     * @param widgets the widgets to save, which are copied and not changed
+     * @return the widgets as they were saved, in the same order
+     * @throws IllegalArgumentException if two of the widgets have the same ID
+     */
+    default List<WidgetSnapshot> saveAll(Collection<? extends Widget> widgets) {
+        Set<UUID> ids = new HashSet<>();
+        for (Widget widget : widgets) {
+            if (widget.getId() != null && !ids.add(widget.getId())) {
+                throw new IllegalArgumentException("Widget " + widget.getId() + " is repeated");
+            }
+        }
+        if (widgets.isEmpty()) {
+            return List.of();
+        }
+        int existing = 0;
+        WidgetSnapshot moved = null;
+        for (UUID id : ids) {
+            Optional<WidgetSnapshot> found = findOne(id);
+            if (found.isPresent()) {
+                existing++;
+                moved = save(found.get().toWidget().toBuilder().z(null).build());
+            }
+        }
+        List<WidgetSnapshot> saved = new ArrayList<>(widgets.size());
+        for (Widget widget : widgets) {
+            BigInteger z;
+            if (!saved.isEmpty()) {
+                z = saved.get(saved.size() - 1).getZ().add(BigInteger.ONE);
+            } else if (moved != null) {
+                // Below the ones moved to the top, which are all still there
+                BigInteger top = moved.getZ().add(BigInteger.ONE).subtract(
+                        BigInteger.valueOf(existing));
+                z = widget.getZ() == null || widget.getZ().compareTo(top) > 0
+                        ? top
+                        : widget.getZ().max(BigInteger.ZERO);
+            } else {
+                z = widget.getZ();
+            }
+            saved.add(save(widget.toBuilder().z(z).build()));
+        }
+        return saved;
+    }
+
+    /**
+     * Where {@link #save(Widget)} puts a widget with the given Z-index: at the bottom if it's
+     * negative, however far below, and right above the top if it has none or it's above that.
+     *
+     * @param top the position right above the top of the stack
+     * @return the position for the requested Z-index, from the bottom to right above the top
+     */
+    static int rankFor(@Nullable BigInteger z, int top) {
+        if (z == null || z.compareTo(BigInteger.valueOf(top)) > 0) {
+            return top;
+        }
+        return z.signum() < 0 ? 0 : z.intValueExact();
+    }
+
+    Optional<WidgetSnapshot> findOne(UUID id);
 
     void deleteById(UUID id);
 
-    Iterable<Widget> findAll();
+    Iterable<WidgetSnapshot> findAll();
+
+    List<WidgetSnapshot> findAllInside(Rectangle rectangle);
+
+    /**
+     * @return the first widgets inside the rectangle in the given Z-order, e.g. the 100 highest
+     * ones, sorted in that order
+     */
+    List<WidgetSnapshot> findAllInside(Rectangle rectangle, int limit, ZOrder order);
+
+    /**
+     * Visits the widgets inside the given rectangle as they're found, until the visitor returns
+     * {@code false}, without collecting them first.
+     *
+     * @return whether every widget inside the rectangle was visited
+     */
+    boolean forEachInside(Rectangle rectangle, Predicate<? super WidgetSnapshot> visitor);
+
+    /**
+     * Visits every widget from the bottom up, a page at a time, so they can be written somewhere
+     * slow without keeping the repository locked meanwhile, or holding all of them at once. Each
+     * page is found at once, but the stack may change between pages: a widget saved or deleted
+     * meanwhile may be visited twice or not at all, and the Z-indexes in different pages may not
+     * add up.<br><br>
+     *
+     * By default, every widget is found first, as with {@link #findAll()}, and then visited in
+     * pages.
+     *
+     * @param pageSize the most widgets in a page
+     * @param visitor receives each page, which is never empty
+     */
+    default void forEachPage(int pageSize, Consumer<? super List<WidgetSnapshot>> visitor) {
+        List<WidgetSnapshot> all = new ArrayList<>();
+        findAll().forEach(all::add);
+        inPages(all, pageSize, visitor);
+    }
+
+    /**
+     * Like {@link #forEachPage(int, Consumer)}, but only for the widgets inside the given
+     * rectangle. They're visited from the bottom up, unless they're all found first, as with
+     * {@link #findAllInside(Rectangle)}, which is what happens by default.
+     */
+    default void forEachPageInside(
+            Rectangle rectangle,
+            int pageSize,
+            Consumer<? super List<WidgetSnapshot>> visitor) {
+        inPages(findAllInside(rectangle), pageSize, visitor);
+    }
+
+    private static void inPages(
+            List<WidgetSnapshot> widgets,
+            int pageSize,
+            Consumer<? super List<WidgetSnapshot>> visitor) {
+        for (int i = 0; i < widgets.size(); i += pageSize) {
+            visitor.accept(widgets.subList(i, Math.min(i + pageSize, widgets.size())));
+        }
+    }
+
+    List<WidgetSnapshot> findAllIntersecting(Rectangle rectangle);
 
-    List<Widget> findAllInside(InternalRectangle rectangle);
+    Optional<WidgetSnapshot> findTopmostAt(long x, long y);
 }
@@ -0,0 +1,391 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.Cursor;
+import io.andrebrait.widget.repository.rectangle.RectangleRepository;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import org.springframework.lang.Nullable;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * The widgets of a repository that serves every read from memory, by ID, in a {@link ZOrderTree}
+ * and in a spatial index, kept in step with each other. The stored widgets hold their label in
+ * the tree as their Z-index, and reads hand out their snapshots at their current
+ * position.<br><br>
+ *
+ * This class is not thread-safe: the repositories using it lock around it, reading with a read
+ * lock, so positions can't change meanwhile, and changing it with a write lock.
+ */
+final class WidgetStack {
+
+    private final Map<UUID, StoredWidget> widgetDatabase = new HashMap<>();
+    private final ZOrderTree<StoredWidget> zOrder =
+            new ZOrderTree<>((widget, label) -> widget.setZ(BigInteger.valueOf(label)));
+
+    private final RectangleRepository<Widget> rectangleRepository;
+    private int modifications;
+
+    /**
+     * @param rectangleRepository the spatial index of the widgets, which must be empty
+     */
+    WidgetStack(RectangleRepository<Widget> rectangleRepository) {
+        this.rectangleRepository = rectangleRepository;
+    }
+
+    int size() {
+        return zOrder.size();
+    }
+
+    @Nullable
+    StoredWidget get(UUID id) {
+        return widgetDatabase.get(id);
+    }
+
+    /**
+     * @return the current position of a stored widget
+     */
+    int rank(StoredWidget stored) {
+        return zOrder.rank(stored.getLabel());
+    }
+
+    /**
+     * @param existing the stored widget being replaced, if any, which is not counted
+     * @return the position for the requested Z-index, from the bottom to right above the top
+     */
+    int rankFor(@Nullable BigInteger z, @Nullable StoredWidget existing) {
+        return WidgetRepository.rankFor(z, existing == null ? size() : size() - 1);
+    }
+
+    /**
+     * Puts a new widget in the position of its snapshot, replacing the one with the same ID
+     */
+    void put(StoredWidget stored) {
+        StoredWidget existing = widgetDatabase.get(stored.getId());
+        if (existing != null) {
+            zOrder.remove(existing.getLabel());
+        }
+        int rank = stored.getSnapshot().getZ().intValueExact();
+        stored.setZ(BigInteger.valueOf(zOrder.insert(rank, stored)));
+        widgetDatabase.put(stored.getId(), stored);
+        if (existing == null) {
+            rectangleRepository.add(stored);
+        } else {
+            // Moving or resizing a widget is usually a small change, which this can do in place
+            rectangleRepository.update(existing, stored);
+        }
+        modifications++;
+    }
+
+    /**
+     * Finds where each of the widgets goes, without changing anything yet
+     *
+     * @throws IllegalArgumentException if two of the widgets have the same ID
+     */
+    Batch prepare(Collection<? extends Widget> widgets) {
+        Map<UUID, Widget> byId = new LinkedHashMap<>();
+        for (Widget widget : widgets) {
+            UUID id = widget.getId() == null ? UUID.randomUUID() : widget.getId();
+            if (byId.put(id, widget) != null) {
+                throw new IllegalArgumentException("Widget " + id + " is repeated");
+            }
+        }
+        Map<UUID, StoredWidget> existing = new LinkedHashMap<>();
+        for (UUID id : byId.keySet()) {
+            StoredWidget found = widgetDatabase.get(id);
+            if (found != null) {
+                existing.put(id, found);
+            }
+        }
+        int top = size() - existing.size();
+        BigInteger z = widgets.isEmpty() ? null : widgets.iterator().next().getZ();
+        int rank = WidgetRepository.rankFor(z, top);
+        List<StoredWidget> stored = new ArrayList<>(byId.size());
+        byId.forEach((id, widget) -> stored.add(
+                new StoredWidget(widget, id, rank + stored.size())));
+        return new Batch(rank, existing, stored);
+    }
+
+    /**
+     * Puts the widgets of a batch at consecutive positions from its first one, replacing the
+     * existing ones with the same IDs
+     */
+    void putAll(Batch batch) {
+        putAll(batch, (widget, rank) -> {
+        });
+    }
+
+    /**
+     * Puts the widgets of a batch at consecutive positions from its first one, replacing the
+     * existing ones with the same IDs, which are taken out of the stack first, one at a time.
+     *
+     * @param removed told about each existing widget taken out of the stack, with the position
+     * it was taken from, before the next one is
+     */
+    void putAll(Batch batch, ObjIntConsumer<StoredWidget> removed) {
+        for (StoredWidget widget : batch.existing.values()) {
+            int rank = rank(widget);
+            zOrder.remove(widget.getLabel());
+            removed.accept(widget, rank);
+        }
+        long[] labels = zOrder.insertAll(batch.rank, batch.stored);
+        List<StoredWidget> added = new ArrayList<>(batch.stored.size() - batch.existing.size());
+        for (int i = 0; i < labels.length; i++) {
+            StoredWidget next = batch.stored.get(i);
+            next.setZ(BigInteger.valueOf(labels[i]));
+            if (widgetDatabase.put(next.getId(), next) == null) {
+                added.add(next);
+            }
+        }
+        batch.existing.values().forEach(widget -> rectangleRepository.update(
+                widget,
+                widgetDatabase.get(widget.getId())));
+        rectangleRepository.addAll(added);
+        modifications++;
+    }
+
+    void remove(StoredWidget stored) {
+        rectangleRepository.remove(stored);
+        zOrder.remove(stored.getLabel());
+        widgetDatabase.remove(stored.getId());
+        modifications++;
+    }
+
+    /**
+     * @param found a widget from the database or from the spatial index, where only {@link
+     * StoredWidget StoredWidgets} are put
+     */
+    WidgetSnapshot toObservable(Widget found) {
+        StoredWidget stored = (StoredWidget) found;
+        return stored.snapshotAt(zOrder.rank(stored.getLabel()));
+    }
+
+    Optional<WidgetSnapshot> findOne(UUID id) {
+        return Optional.ofNullable(widgetDatabase.get(id)).map(this::toObservable);
+    }
+
+    List<WidgetSnapshot> inStackOrder() {
+        List<WidgetSnapshot> result = new ArrayList<>(zOrder.size());
+        zOrder.forEachInOrder((stored, rank) -> result.add(stored.snapshotAt(rank)));
+        return result;
+    }
+
+    /**
+     * Visits the stored widgets themselves, so they can be kept without their snapshots
+     */
+    boolean forEachStoredInside(Rectangle rectangle, Predicate<? super StoredWidget> visitor) {
+        return rectangleRepository.forEachInside(
+                rectangle,
+                widget -> visitor.test((StoredWidget) widget));
+    }
+
+    boolean forEachInside(Rectangle rectangle, Predicate<? super WidgetSnapshot> visitor) {
+        return rectangleRepository.forEachInside(
+                rectangle,
+                widget -> visitor.test(toObservable(widget)));
+    }
+
+    List<WidgetSnapshot> findAllInside(Rectangle rectangle, int limit, ZOrder order) {
+        return rectangleRepository.findAllInside(rectangle, limit, order)
+                .stream()
+                .map(this::toObservable)
+                .collect(Collectors.toList());
+    }
+
+    List<WidgetSnapshot> findAllIntersecting(Rectangle rectangle) {
+        return rectangleRepository.findAllIntersecting(rectangle)
+                .stream()
+                .map(this::toObservable)
+                .collect(Collectors.toList());
+    }
+
+    Optional<WidgetSnapshot> findTopmostAt(long x, long y) {
+        return rectangleRepository.findTopmostAt(x, y).map(this::toObservable);
+    }
+
+    /**
+     * @param rectangle the rectangle the widgets must be inside, or {@code null} for every widget
+     */
+    Pages pages(@Nullable Rectangle rectangle) {
+        return new Pages(rectangle);
+    }
+
+    /**
+     * Goes through widgets from the bottom up, a page at a time, with the stack free to change
+     * between pages. Each page carries on right above the label of the last widget of the
+     * previous one, as it is now, or as it was if that widget is gone or was saved again since,
+     * so widgets which stay where they are are visited once. Only if the labels were spread out
+     * again meanwhile, it carries on from the position that widget was at instead.<br><br>
+     *
+     * Inside a rectangle, the pages come from a cursor in Z-order, which is kept while nothing
+     * changes and started again otherwise, going past the widgets already visited.
+     */
+    final class Pages {
+
+        @Nullable
+        private final Rectangle rectangle;
+        @Nullable
+        private Cursor<Widget> cursor;
+        private int cursorModifications;
+        private long cursorAfter;
+        @Nullable
+        private StoredWidget last;
+        private long lastLabel;
+        private int lastRank;
+        private int relabels;
+
+        private Pages(@Nullable Rectangle rectangle) {
+            this.rectangle = rectangle;
+        }
+
+        /**
+         * Finds the next page, taking the read lock only while doing so, and visits it after
+         * releasing it, until there are no more
+         *
+         * @param readLock the lock to hold while reading the stack
+         */
+        void forEach(Lock readLock, int pageSize, Consumer<? super List<WidgetSnapshot>> visitor) {
+            while (true) {
+                List<WidgetSnapshot> page;
+                readLock.lock();
+                try {
+                    page = next(pageSize);
+                } finally {
+                    readLock.unlock();
+                }
+                if (page.isEmpty()) {
+                    return;
+                }
+                visitor.accept(page);
+                if (page.size() < pageSize) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the next widgets, up to the given number, or none if there are no more
+         */
+        List<WidgetSnapshot> next(int pageSize) {
+            List<WidgetSnapshot> page = new ArrayList<>(Math.min(pageSize, 1_024));
+            if (rectangle == null) {
+                zOrder.forEachAbove(resumeLabel(), pageSize, (stored, rank) -> {
+                    page.add(stored.snapshotAt(rank));
+                    visited(stored, rank);
+                });
+                return page;
+            }
+            if (cursor == null || cursorModifications != modifications) {
+                cursorAfter = resumeLabel();
+                cursor = rectangleRepository.cursorInside(rectangle, ZOrder.ASCENDING);
+                cursorModifications = modifications;
+            }
+            while (page.size() < pageSize && cursor.hasNext()) {
+                StoredWidget stored = (StoredWidget) cursor.next();
+                if (stored.getLabel() > cursorAfter) {
+                    int rank = rank(stored);
+                    page.add(stored.snapshotAt(rank));
+                    visited(stored, rank);
+                }
+            }
+            return page;
+        }
+
+        private void visited(StoredWidget stored, int rank) {
+            last = stored;
+            lastLabel = stored.getLabel();
+            lastRank = rank;
+            relabels = zOrder.relabels();
+        }
+
+        /**
+         * @return the label the next page starts right above
+         */
+        private long resumeLabel() {
+            if (last == null) {
+                return Long.MIN_VALUE;
+            }
+            if (widgetDatabase.get(last.getId()) == last) {
+                // Its label may have changed since, but not its order among the others
+                return last.getLabel();
+            }
+            if (relabels == zOrder.relabels()) {
+                return lastLabel;
+            }
+            // What was above it is at its position now, unless something else changed too
+            int below = Math.min(lastRank, size()) - 1;
+            return below < 0 ? Long.MIN_VALUE : zOrder.labelAt(below);
+        }
+    }
+
+    /**
+     * Widgets to be saved together, with the positions they go to
+     */
+    static final class Batch {
+
+        private final int rank;
+        private final Map<UUID, StoredWidget> existing;
+        private final List<StoredWidget> stored;
+
+        private Batch(int rank, Map<UUID, StoredWidget> existing, List<StoredWidget> stored) {
+            this.rank = rank;
+            this.existing = existing;
+            this.stored = stored;
+        }
+
+        /**
+         * @return the position of the first widget
+         */
+        int getRank() {
+            return rank;
+        }
+
+        /**
+         * @return the stored widgets being replaced, in the order of the batch
+         */
+        Collection<StoredWidget> getExisting() {
+            return existing.values();
+        }
+
+        /**
+         * @return the new stored widgets, in the order of the batch
+         */
+        List<StoredWidget> getStored() {
+            return stored;
+        }
+
+        @Nullable
+        StoredWidget replaced(UUID id) {
+            return existing.get(id);
+        }
+
+        List<WidgetSnapshot> snapshots() {
+            return stored.stream().map(StoredWidget::getSnapshot).collect(Collectors.toList());
+        }
+
+        /**
+         * Tells the listener about every widget of the batch, once it's saved
+         */
+        void notifyListener(WidgetChangeListener listener) {
+            stored.forEach(widget -> listener.changed(
+                    widget.getId(),
+                    existing.get(widget.getId()),
+                    widget.getSnapshot()));
+        }
+    }
+}
@@ -0,0 +1,643 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.lang.Nullable;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.Closeable;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Writes the changes to a {@link WidgetRepository} to the {@code WIDGET} table behind its back:
+ * changes are queued as they're made and a background thread writes them in batches, each in a
+ * single transaction, in the order they were queued.<br><br>
+ *
+ * Queueing a change never waits, so it can be done while holding the lock the change was made
+ * under, which keeps the changes in the order they were made without holding up anyone reading.
+ * The queue is still bounded: once the change is made and that lock is released, {@link
+ * #awaitRoom()} waits while the queue is over its capacity, slowing changes down to the pace of
+ * the database instead of letting them pile up. So it's only over its capacity by the changes
+ * made since it filled up, at most one for each thread making them. Waiting is done on a {@link
+ * Lock} rather than a monitor, so it doesn't pin the carrier of a virtual thread.<br><br>
+ *
+ * A batch that fails to be written is retried until it is, since the ones after it can't be
+ * written without it. Closing the writer waits until everything queued is written, but only for
+ * so long: if the database is gone for good, it gives up, and whatever wasn't written is
+ * lost.<br><br>
+ *
+ * The {@code Z} column holds the position of each widget in the stack, like the Z-index of the
+ * widgets handed out, so a change may move the rows above it up or down. Each change carries the
+ * positions and the size of the stack it was made with, so those rows are known without reading
+ * them. A batch is written as its net effect on the table, so however many changes it has (e.g.
+ * saving a thousand widgets at the bottom of the stack), the rows in between are only moved
+ * once, by a constant number of statements.
+ */
+@Slf4j
+public final class WidgetTableWriter implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+    public static final int DEFAULT_BATCH_SIZE = 1_000;
+    public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 30_000;
+
+    private static final long RETRY_DELAY_MILLIS = 1_000;
+
+    private static final String SELECT =
+            "SELECT ID, X, Y, Z, WIDTH, HEIGHT FROM WIDGET ORDER BY Z";
+    private static final String INSERT =
+            "INSERT INTO WIDGET (ID, X, Y, Z, WIDTH, HEIGHT) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE =
+            "UPDATE WIDGET SET X = ?, Y = ?, WIDTH = ?, HEIGHT = ? WHERE ID = ?";
+    private static final String DELETE = "DELETE FROM WIDGET WHERE ID = ?";
+    /*
+        Z is unique, and the rows of a single UPDATE may be changed in any order, so moving them
+        up or down could conflict halfway through. They're moved to the negative of their new
+        positions first, where there is nothing, and only then to their new ones.
+     */
+    private static final String SHIFT_OUT =
+            "UPDATE WIDGET SET Z = -Z - ? - 1 WHERE Z BETWEEN ? AND ?";
+    private static final String SHIFT_IN = "UPDATE WIDGET SET Z = -Z - 1 WHERE Z < 0";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final long closeTimeoutMillis;
+    private final Thread thread;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition changesQueued = lock.newCondition();
+    private final Condition roomMade = lock.newCondition();
+    private final Condition batchWritten = lock.newCondition();
+    private final Condition abandoned = lock.newCondition();
+
+    /*
+        Guarded by lock. The queue holds groups of changes, each written in the same transaction
+        as a whole.
+     */
+    private final Deque<List<Change>> queue = new ArrayDeque<>();
+    private long queued;
+    private long written;
+    private boolean closed;
+    /**
+     * Whether closing gave up on writing what's left
+     */
+    private boolean gaveUp;
+
+    /**
+     * @param jdbcTemplate where the {@code WIDGET} table is
+     * @param transactionTemplate the transactions to write each batch in
+     * @param queueCapacity how many changes can wait to be written
+     * @param batchSize the maximum number of changes written in a single transaction, unless a
+     * single {@link Group} has more
+     */
+    public WidgetTableWriter(
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            int queueCapacity,
+            int batchSize) {
+        this(
+                jdbcTemplate,
+                transactionTemplate,
+                queueCapacity,
+                batchSize,
+                DEFAULT_CLOSE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param jdbcTemplate where the {@code WIDGET} table is
+     * @param transactionTemplate the transactions to write each batch in
+     * @param queueCapacity how many changes can wait to be written
+     * @param batchSize the maximum number of changes written in a single transaction, unless a
+     * single {@link Group} has more
+     * @param closeTimeoutMillis how long closing waits for the changes still queued to be
+     * written
+     */
+    public WidgetTableWriter(
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            int queueCapacity,
+            int batchSize,
+            long closeTimeoutMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+        this.closeTimeoutMillis = closeTimeoutMillis;
+        this.thread = new Thread(this::run, "widget-table-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads every widget in the table, from the bottom to the top of the stack
+     */
+    public void recover(Consumer<WidgetSnapshot> saved) {
+        jdbcTemplate.query(SELECT, resultSet -> {
+            saved.accept(WidgetSnapshot.builder()
+                    .id(toUuid(resultSet.getBytes(1)))
+                    .x(resultSet.getLong(2))
+                    .y(resultSet.getLong(3))
+                    .z(BigInteger.valueOf(resultSet.getLong(4)))
+                    .width(resultSet.getLong(5))
+                    .height(resultSet.getLong(6))
+                    .build());
+        });
+    }
+
+    /**
+     * Queues a widget to be saved, without waiting. Changes must be queued in the order they're
+     * made, and {@link #awaitRoom()} called after each.
+     *
+     * @param snapshot the widget as it was saved
+     * @param previousRank its position before being saved, or -1 if it's a new widget
+     * @param size the number of widgets after saving it
+     */
+    public void queueSave(WidgetSnapshot snapshot, int previousRank, int size) {
+        queue(List.of(new Change(snapshot.getId(), snapshot, previousRank, size)));
+    }
+
+    /**
+     * Queues a widget to be deleted, without waiting. Changes must be queued in the order they're
+     * made, and {@link #awaitRoom()} called after each.
+     *
+     * @param id the ID of the widget
+     * @param rank its position before being deleted
+     * @param size the number of widgets after deleting it
+     */
+    public void queueDelete(UUID id, int rank, int size) {
+        queue(List.of(new Change(id, null, rank, size)));
+    }
+
+    /**
+     * Starts queueing changes which must be written in the same transaction. Nothing is queued
+     * until {@link Group#queue()} is called.
+     */
+    public Group group() {
+        return new Group();
+    }
+
+    private void queue(List<Change> changes) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The writer is closed");
+            }
+            queue.add(changes);
+            queued++;
+            changesQueued.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits while more changes are queued than the capacity of the queue, or until the writer is
+     * closed. Meant to be called after releasing the lock the changes were queued under, so only
+     * the threads making changes wait for the database.
+     */
+    public void awaitRoom() {
+        lock.lock();
+        try {
+            while (queue.size() > queueCapacity && !closed) {
+                roomMade.await();
+            }
+        } catch (InterruptedException e) {
+            // The change is queued anyway
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every change queued so far is written, for as long as that takes
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            long target = queued;
+            while (written < target) {
+                batchWritten.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether every change queued so far was written within the timeout
+     */
+    private boolean flush(long timeoutMillis) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            long target = queued;
+            while (written < target) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = batchWritten.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking changes and waits until the ones already queued are written, for up to the
+     * close timeout. After that, it stops retrying and the ones not written yet are lost.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            changesQueued.signal();
+            roomMade.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (!flush(closeTimeoutMillis)) {
+            lock.lock();
+            try {
+                gaveUp = true;
+                abandoned.signalAll();
+                log.error(
+                        "Gave up on writing {} groups of changes after {} ms",
+                        queued - written,
+                        closeTimeoutMillis);
+            } finally {
+                lock.unlock();
+            }
+        }
+        try {
+            // Unless it's stuck in the database, it stops right away
+            thread.join(closeTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<List<Change>> batch;
+        while ((batch = take()) != null && writeUntilWritten(batch)) {
+            lock.lock();
+            try {
+                written += batch.size();
+                batchWritten.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for changes to be queued and takes as many groups of them as fit in a batch, or at
+     * least one
+     *
+     * @return the groups of the next batch, or {@code null} once closed and there's nothing left
+     */
+    @Nullable
+    private List<List<Change>> take() {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed) {
+                changesQueued.awaitUninterruptibly();
+            }
+            if (queue.isEmpty() || gaveUp) {
+                return null;
+            }
+            List<List<Change>> batch = new ArrayList<>();
+            batch.add(queue.poll());
+            int changes = batch.get(0).size();
+            List<Change> next;
+            while ((next = queue.peek()) != null && changes + next.size() <= batchSize) {
+                batch.add(queue.poll());
+                changes += next.size();
+            }
+            roomMade.signalAll();
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retries a batch until it's written, since the ones after it can't be written without it,
+     * unless closing gives up on it
+     *
+     * @return whether it was written
+     */
+    private boolean writeUntilWritten(List<List<Change>> batch) {
+        while (true) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> write(batch));
+                return true;
+            } catch (RuntimeException e) {
+                log.error("Failed to write {} groups of changes, retrying", batch.size(), e);
+            }
+            lock.lock();
+            try {
+                if (!gaveUp) {
+                    abandoned.await(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (gaveUp) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                // Nothing interrupts it
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(List<List<Change>> changes) {
+        Batch batch = new Batch();
+        for (List<Change> group : changes) {
+            group.forEach(change -> change.addTo(batch));
+        }
+        batch.write();
+    }
+
+    private static byte[] toBytes(UUID id) {
+        return ByteBuffer.allocate(16)
+                .putLong(id.getMostSignificantBits())
+                .putLong(id.getLeastSignificantBits())
+                .array();
+    }
+
+    private static UUID toUuid(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Changes queued together, so they're written in the same transaction: a batch may have more
+     * than the maximum number of changes in it, but never only some of these.
+     */
+    public final class Group {
+
+        private final List<Change> changes = new ArrayList<>();
+
+        private Group() {
+        }
+
+        /**
+         * @see #queueSave(WidgetSnapshot, int, int)
+         */
+        public Group save(WidgetSnapshot snapshot, int previousRank, int size) {
+            changes.add(new Change(snapshot.getId(), snapshot, previousRank, size));
+            return this;
+        }
+
+        /**
+         * @see #queueDelete(UUID, int, int)
+         */
+        public Group delete(UUID id, int rank, int size) {
+            changes.add(new Change(id, null, rank, size));
+            return this;
+        }
+
+        public void queue() {
+            if (!changes.isEmpty()) {
+                WidgetTableWriter.this.queue(List.copyOf(changes));
+            }
+        }
+    }
+
+    private static final class Change {
+
+        private final UUID id;
+        /**
+         * The widget as it was saved, or {@code null} if it was deleted
+         */
+        private final WidgetSnapshot saved;
+        private final int previousRank;
+        private final int size;
+
+        private Change(UUID id, WidgetSnapshot saved, int previousRank, int size) {
+            this.id = id;
+            this.saved = saved;
+            this.previousRank = previousRank;
+            this.size = size;
+        }
+
+        void addTo(Batch batch) {
+            if (saved == null) {
+                batch.start(size + 1);
+                batch.remove(id, previousRank);
+                return;
+            }
+            batch.start(previousRank < 0 ? size - 1 : size);
+            int rank = saved.getZ().intValueExact();
+            if (previousRank == rank) {
+                batch.update(saved);
+                return;
+            }
+            if (previousRank >= 0) {
+                batch.remove(id, previousRank);
+            }
+            batch.insert(saved, rank);
+        }
+    }
+
+    /**
+     * The net effect of a batch of changes on the table, so it's written with the same few
+     * statements however many changes there are:
+     * <ol>
+     *     <li>the rows removed or moved are deleted</li>
+     *     <li>the rows left in between are shifted to their new positions</li>
+     *     <li>the rows saved without moving are updated</li>
+     *     <li>the rows added or moved are inserted at their final positions</li>
+     * </ol>
+     * Each step is a single JDBC batch, with a single statement to shift every row.
+     */
+    private final class Batch {
+
+        /**
+         * The rows which were in the table before the batch and are still there, as ranges of
+         * their positions before the batch, sorted, each with how far it moved
+         */
+        private final List<Range> ranges = new ArrayList<>();
+        private final List<UUID> deleted = new ArrayList<>();
+        private final Map<UUID, WidgetSnapshot> updated = new LinkedHashMap<>();
+        /**
+         * The rows to insert, with their positions as of the last change
+         */
+        private final Map<UUID, Inserted> inserted = new LinkedHashMap<>();
+        private boolean started;
+
+        /**
+         * @param size the number of rows before the first change
+         */
+        void start(int size) {
+            if (!started && size > 0) {
+                ranges.add(new Range(0, size - 1));
+            }
+            started = true;
+        }
+
+        void update(WidgetSnapshot saved) {
+            Inserted row = inserted.get(saved.getId());
+            if (row == null) {
+                updated.put(saved.getId(), saved);
+            } else {
+                row.saved = saved;
+            }
+        }
+
+        void remove(UUID id, int rank) {
+            if (inserted.remove(id) == null) {
+                // It was in the table before the batch
+                deleted.add(id);
+                updated.remove(id);
+                split(rank);
+                split(rank + 1);
+                ranges.removeIf(range -> range.start() == rank);
+            }
+            move(rank + 1, -1);
+        }
+
+        void insert(WidgetSnapshot saved, int rank) {
+            split(rank);
+            move(rank, 1);
+            inserted.put(saved.getId(), new Inserted(saved, rank));
+        }
+
+        /**
+         * Splits the range with the given position inside it, so that a range starts there
+         */
+        private void split(int position) {
+            for (int i = 0; i < ranges.size(); i++) {
+                Range range = ranges.get(i);
+                if (range.start() < position && range.end() >= position) {
+                    Range upper = new Range(position - range.offset, range.to);
+                    upper.offset = range.offset;
+                    range.to = position - range.offset - 1;
+                    ranges.add(i + 1, upper);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Moves every row from the given position up by the given distance
+         */
+        private void move(int from, int distance) {
+            for (Range range : ranges) {
+                if (range.start() >= from) {
+                    range.offset += distance;
+                }
+            }
+            for (Inserted row : inserted.values()) {
+                if (row.rank >= from) {
+                    row.rank += distance;
+                }
+            }
+        }
+
+        void write() {
+            List<Object[]> arguments = new ArrayList<>();
+            for (UUID id : deleted) {
+                arguments.add(new Object[]{toBytes(id)});
+            }
+            execute(DELETE, arguments);
+
+            arguments = new ArrayList<>();
+            for (Range range : ranges) {
+                if (range.offset != 0) {
+                    arguments.add(new Object[]{range.offset, range.from, range.to});
+                }
+            }
+            if (!arguments.isEmpty()) {
+                execute(SHIFT_OUT, arguments);
+                jdbcTemplate.update(SHIFT_IN);
+            }
+
+            arguments = new ArrayList<>();
+            for (WidgetSnapshot saved : updated.values()) {
+                arguments.add(new Object[]{
+                        saved.getX(),
+                        saved.getY(),
+                        saved.getWidth(),
+                        saved.getHeight(),
+                        toBytes(saved.getId())});
+            }
+            execute(UPDATE, arguments);
+
+            arguments = new ArrayList<>();
+            for (Inserted row : inserted.values()) {
+                arguments.add(new Object[]{
+                        toBytes(row.saved.getId()),
+                        row.saved.getX(),
+                        row.saved.getY(),
+                        row.rank,
+                        row.saved.getWidth(),
+                        row.saved.getHeight()});
+            }
+            execute(INSERT, arguments);
+        }
+
+        private void execute(String sql, List<Object[]> arguments) {
+            if (arguments.size() == 1) {
+                jdbcTemplate.update(sql, arguments.get(0));
+            } else if (!arguments.isEmpty()) {
+                jdbcTemplate.batchUpdate(sql, arguments);
+            }
+        }
+    }
+
+    private static final class Range {
+
+        private final int from;
+        private int to;
+        private int offset;
+
+        private Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        int start() {
+            return from + offset;
+        }
+
+        int end() {
+            return to + offset;
+        }
+    }
+
+    private static final class Inserted {
+
+        private WidgetSnapshot saved;
+        private int rank;
+
+        private Inserted(WidgetSnapshot saved, int rank) {
+            this.saved = saved;
+            this.rank = rank;
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import org.springframework.lang.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes to a {@link WidgetRepository}, so it can be rebuilt after a
+ * restart.<br><br>
+ *
+ * Changes are appended to the current segment of the log, a file written through a {@link
+ * FileChannel}, but they're only durable once {@link #sync(long)} returns. Syncing is a group
+ * commit: the first thread to sync forces everything appended so far to the disk, and the ones
+ * waiting meanwhile find their changes were forced along with it, so a single {@code fsync} is
+ * shared by every change made while the previous one ran.<br><br>
+ *
+ * Every so many changes, the repository writes a snapshot of all its widgets. The log is rotated
+ * to a new segment at the same time, so the snapshot replaces every segment before it and those
+ * are deleted. Recovery reads the latest snapshot and replays the segments after it. A change
+ * only partially written at the end of the last segment (e.g. the process died while writing it)
+ * was never synced, so it's dropped.<br><br>
+ *
+ * Each record is a type, the ID of the widget, its dimensions and Z-index for saves, and a CRC32
+ * of all of that. Widgets saved together are a batch: a header with how many there are, followed
+ * by a save for each, and they're only replayed if every one of them is complete.
+ * <pre>
+ *     SAVE:   type (1) | id (16) | x (8) | y (8) | width (8) | height (8) | z (4) | crc (4)
+ *     DELETE: type (1) | id (16) | crc (4)
+ *     BATCH:  type (1) | count (4) | crc (4), followed by count SAVEs
+ * </pre>
+ * The Z-index is the position the widget was saved at, so replaying a save puts it in the same
+ * position again. The widgets of a batch are saved at consecutive positions, so they're all
+ * deleted first and then saved from the bottom up.<br><br>
+ *
+ * A record that fails halfway through being appended (e.g. the disk is full) is truncated away
+ * again, so the records appended after it don't follow a torn one, which recovery would take for
+ * the end of the log. If even that fails, the log can't be trusted anymore and every later append
+ * fails too.<br><br>
+ *
+ * Appending and syncing block on the disk, so they're guarded by {@link ReentrantLock}s rather
+ * than monitors: a virtual thread blocked while holding one of them, or waiting for one, releases
+ * its carrier thread.
+ */
+public final class WriteAheadLog implements Closeable {
+
+    public static final int DEFAULT_SNAPSHOT_EVERY = 100_000;
+
+    private static final byte SAVE = 1;
+    private static final byte DELETE = 2;
+    private static final byte BATCH = 3;
+    private static final int SAVE_SIZE = 1 + 16 + 8 * 4 + 4;
+    private static final int DELETE_SIZE = 1 + 16;
+    private static final int BATCH_SIZE = 1 + 4;
+    private static final int CRC_SIZE = 4;
+
+    private static final Pattern SEGMENT = Pattern.compile("wal-(\\p{XDigit}{16})\\.log");
+    private static final Pattern SNAPSHOT = Pattern.compile("snapshot-(\\p{XDigit}{16})\\.bin");
+
+    /**
+     * Opens the file of a new segment for writing
+     */
+    @FunctionalInterface
+    interface SegmentOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    private final Path directory;
+    private final int snapshotEvery;
+    private final SegmentOpener segmentOpener;
+
+    /*
+        Lock order: syncLock, then appendLock (appending and rotating), then snapshotLock
+     */
+    private final Lock syncLock = new ReentrantLock();
+    private final Lock appendLock = new ReentrantLock();
+    private final Lock snapshotLock = new ReentrantLock();
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(SAVE_SIZE + CRC_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel;
+    private long segment = -1;
+    private int appendedToSegment;
+    /*
+        Positions are counted in bytes appended since the log was opened, across segments
+     */
+    private long written;
+    private volatile long durable;
+    /*
+        Set when a record couldn't be appended nor taken back, after which nothing else can be
+     */
+    @Nullable
+    private IOException failure;
+
+    /**
+     * Opens the log in the given directory, which is created if needed. Nothing can be appended
+     * before {@link #recover(Consumer, Consumer)} is called.
+     *
+     * @param directory the directory holding the segments and snapshots
+     * @param snapshotEvery how many changes are appended to a segment before a snapshot is due
+     */
+    public WriteAheadLog(Path directory, int snapshotEvery) {
+        this(directory, snapshotEvery, path -> FileChannel.open(
+                path,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE));
+    }
+
+    /**
+     * @param segmentOpener opens the file of each new segment
+     */
+    WriteAheadLog(Path directory, int snapshotEvery, SegmentOpener segmentOpener) {
+        if (snapshotEvery <= 0) {
+            throw new IllegalArgumentException("'snapshotEvery' must be positive");
+        }
+        this.directory = directory;
+        this.snapshotEvery = snapshotEvery;
+        this.segmentOpener = segmentOpener;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Replays the latest snapshot and every change logged after it, in order, then starts a new
+     * segment for the changes to come.
+     *
+     * @param saved receives each saved widget, with the position it was saved at
+     * @param deleted receives the ID of each deleted widget
+     */
+    public void recover(Consumer<WidgetSnapshot> saved, Consumer<UUID> deleted) {
+        appendLock.lock();
+        try {
+            recoverLocked(saved, deleted);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void recoverLocked(Consumer<WidgetSnapshot> saved, Consumer<UUID> deleted) {
+        if (channel != null) {
+            throw new IllegalStateException("Already recovered");
+        }
+        try {
+            List<Long> snapshots = numbered(SNAPSHOT);
+            List<Long> segments = numbered(SEGMENT);
+            long start = 0;
+            if (!snapshots.isEmpty()) {
+                start = snapshots.get(snapshots.size() - 1);
+                try (InputStream in = Files.newInputStream(snapshotPath(start))) {
+                    if (replay(in, saved, deleted) >= 0) {
+                        throw new IOException("Snapshot " + snapshotPath(start) + " is corrupt");
+                    }
+                }
+            }
+            long last = start - 1;
+            for (int i = 0; i < segments.size(); i++) {
+                long number = segments.get(i);
+                if (number < start) {
+                    continue;
+                }
+                Path path = segmentPath(number);
+                long end;
+                try (InputStream in = Files.newInputStream(path)) {
+                    end = replay(in, saved, deleted);
+                }
+                if (end >= 0) {
+                    if (i != segments.size() - 1) {
+                        throw new IOException("Segment " + path + " is corrupt");
+                    }
+                    // Never synced, so whoever was saving it was never told it was saved
+                    try (FileChannel torn = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                        torn.truncate(end);
+                        torn.force(true);
+                    }
+                }
+                last = number;
+            }
+            openSegment(last + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the position right after the last complete record if the rest is incomplete or
+     * corrupt, or -1 if every record is complete
+     */
+    private long replay(InputStream in, Consumer<WidgetSnapshot> saved, Consumer<UUID> deleted)
+            throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        byte[] record = new byte[SAVE_SIZE + CRC_SIZE];
+        long position = 0;
+        while (true) {
+            int type = data.read();
+            if (type < 0) {
+                return -1;
+            }
+            ByteBuffer decoded = read(data, type, record);
+            if (decoded == null) {
+                return position;
+            }
+            if (type == BATCH) {
+                int count = decoded.getInt();
+                List<WidgetSnapshot> batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int next = data.read();
+                    ByteBuffer save = next == SAVE ? read(data, next, record) : null;
+                    if (save == null) {
+                        // The whole batch is dropped, as if none of it was written
+                        return position;
+                    }
+                    batch.add(toSnapshot(save));
+                }
+                for (WidgetSnapshot widget : batch) {
+                    deleted.accept(widget.getId());
+                }
+                batch.forEach(saved);
+                position += BATCH_SIZE + CRC_SIZE + (long) count * (SAVE_SIZE + CRC_SIZE);
+                continue;
+            }
+            if (type == SAVE) {
+                saved.accept(toSnapshot(decoded));
+            } else {
+                deleted.accept(new UUID(decoded.getLong(), decoded.getLong()));
+            }
+            position += decoded.limit();
+        }
+    }
+
+    /**
+     * Reads the rest of a record of the given type into the array
+     *
+     * @return the record, positioned right after its type, or {@code null} if it's incomplete,
+     * corrupt or of an unknown type
+     */
+    @Nullable
+    private ByteBuffer read(DataInputStream data, int type, byte[] record) throws IOException {
+        int size = type == SAVE
+                ? SAVE_SIZE
+                : type == DELETE ? DELETE_SIZE : type == BATCH ? BATCH_SIZE : -1;
+        if (size < 0) {
+            return null;
+        }
+        record[0] = (byte) type;
+        try {
+            data.readFully(record, 1, size - 1 + CRC_SIZE);
+        } catch (EOFException e) {
+            return null;
+        }
+        ByteBuffer decoded = ByteBuffer.wrap(record, 0, size + CRC_SIZE);
+        crc.reset();
+        crc.update(record, 0, size);
+        if ((int) crc.getValue() != decoded.getInt(size)) {
+            return null;
+        }
+        decoded.position(1);
+        return decoded;
+    }
+
+    private static WidgetSnapshot toSnapshot(ByteBuffer save) {
+        return WidgetSnapshot.builder()
+                .id(new UUID(save.getLong(), save.getLong()))
+                .x(save.getLong())
+                .y(save.getLong())
+                .width(save.getLong())
+                .height(save.getLong())
+                .z(BigInteger.valueOf(save.getInt()))
+                .build();
+    }
+
+    /**
+     * Appends a saved widget, to be replayed in the same position.
+     *
+     * @return the position to {@link #sync(long)} to make it durable
+     */
+    public long appendSave(WidgetSnapshot widget) {
+        appendLock.lock();
+        try {
+            buffer.clear();
+            putSave(buffer, widget);
+            putCrc(buffer, 0, crc);
+            buffer.flip();
+            return append(buffer, 1);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a deleted widget.
+     *
+     * @return the position to {@link #sync(long)} to make it durable
+     */
+    public long appendDelete(UUID id) {
+        appendLock.lock();
+        try {
+            buffer.clear();
+            buffer.put(DELETE);
+            putId(buffer, id);
+            putCrc(buffer, 0, crc);
+            buffer.flip();
+            return append(buffer, 1);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends widgets saved together, at consecutive positions, as a single batch: if the batch
+     * isn't complete, none of them is replayed.
+     *
+     * @param widgets the widgets as they were saved, from the bottom to the top
+     * @return the position to {@link #sync(long)} to make them durable
+     */
+    public long appendSaves(List<WidgetSnapshot> widgets) {
+        ByteBuffer batch = ByteBuffer.allocate(
+                BATCH_SIZE + CRC_SIZE + widgets.size() * (SAVE_SIZE + CRC_SIZE));
+        CRC32 batchCrc = new CRC32();
+        batch.put(BATCH);
+        batch.putInt(widgets.size());
+        putCrc(batch, 0, batchCrc);
+        for (WidgetSnapshot widget : widgets) {
+            int start = batch.position();
+            putSave(batch, widget);
+            putCrc(batch, start, batchCrc);
+        }
+        batch.flip();
+        appendLock.lock();
+        try {
+            return append(batch, widgets.size());
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static void putSave(ByteBuffer out, WidgetSnapshot widget) {
+        out.put(SAVE);
+        putId(out, widget.getId());
+        out.putLong(widget.getX());
+        out.putLong(widget.getY());
+        out.putLong(widget.getWidth());
+        out.putLong(widget.getHeight());
+        out.putInt(widget.getZ().intValueExact());
+    }
+
+    private static void putId(ByteBuffer out, UUID id) {
+        out.putLong(id.getMostSignificantBits());
+        out.putLong(id.getLeastSignificantBits());
+    }
+
+    /**
+     * Ends the record in the buffer, which starts at the given position, with the CRC32 of
+     * everything in it
+     */
+    private static void putCrc(ByteBuffer out, int start, CRC32 crc) {
+        crc.reset();
+        crc.update(out.array(), start, out.position() - start);
+        out.putInt((int) crc.getValue());
+    }
+
+    /**
+     * @param changes how many changes the records hold
+     */
+    private long append(ByteBuffer records, int changes) {
+        if (channel == null) {
+            throw new IllegalStateException("Not recovered yet, or already closed");
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("A torn record couldn't be taken back", failure);
+        }
+        int size = records.remaining();
+        long start = -1;
+        try {
+            start = channel.position();
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+        } catch (IOException e) {
+            if (start >= 0) {
+                undo(start, e);
+            }
+            throw new UncheckedIOException(e);
+        }
+        written += size;
+        appendedToSegment += changes;
+        return written;
+    }
+
+    /**
+     * Takes back the part of a record written before appending it failed, so the next ones
+     * don't follow it, or fails the log if it can't
+     */
+    private void undo(long start, IOException cause) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            failure = cause;
+        }
+    }
+
+    /**
+     * Waits until everything appended up to the given position is on the disk, forcing it there
+     * if no one else is already doing so.
+     *
+     * @param position a position returned when appending
+     */
+    public void sync(long position) {
+        if (durable >= position) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            // Someone else may have forced it while this was waiting
+            if (durable >= position) {
+                return;
+            }
+            long target;
+            FileChannel current;
+            appendLock.lock();
+            try {
+                target = written;
+                current = channel;
+            } finally {
+                appendLock.unlock();
+            }
+            current.force(false);
+            durable = target;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * @return whether enough changes were appended since the last snapshot to take another one
+     */
+    public boolean isSnapshotDue() {
+        appendLock.lock();
+        try {
+            return appendedToSegment >= snapshotEvery;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new segment, if a snapshot is due. It must be called while nothing is appended,
+     * along with reading the widgets to be written to the snapshot, so they match.
+     *
+     * @return the number of the new segment, to be given to {@link #writeSnapshot(long,
+     * Iterable)}, or -1 if no snapshot is due
+     */
+    public long rotateIfDue() {
+        syncLock.lock();
+        appendLock.lock();
+        try {
+            if (appendedToSegment < snapshotEvery) {
+                return -1;
+            }
+            // Everything in the old segment is durable once it's closed
+            channel.force(false);
+            channel.close();
+            durable = written;
+            openSegment(segment + 1);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            appendLock.unlock();
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot of every widget as they were when the given segment was started, then
+     * deletes the segments and snapshots it replaces.
+     *
+     * @param segment the segment started along with reading the widgets
+     * @param widgets every widget, from the bottom to the top
+     */
+    public void writeSnapshot(long segment, Iterable<WidgetSnapshot> widgets) {
+        snapshotLock.lock();
+        try {
+            List<Long> snapshots = numbered(SNAPSHOT);
+            if (!snapshots.isEmpty() && snapshots.get(snapshots.size() - 1) > segment) {
+                // A later one was written first
+                return;
+            }
+            Path temporary = directory.resolve("snapshot.tmp");
+            try (FileChannel out = FileChannel.open(
+                    temporary,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                writeSnapshot(Channels.newOutputStream(out), widgets);
+                out.force(true);
+            }
+            Files.move(temporary, snapshotPath(segment), StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+            for (long older : snapshots) {
+                Files.deleteIfExists(snapshotPath(older));
+            }
+            for (long older : numbered(SEGMENT)) {
+                if (older < segment) {
+                    Files.deleteIfExists(segmentPath(older));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void writeSnapshot(OutputStream out, Iterable<WidgetSnapshot> widgets)
+            throws IOException {
+        // Not closed here, so the channel can still be forced
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        ByteBuffer record = ByteBuffer.allocate(SAVE_SIZE + CRC_SIZE);
+        CRC32 recordCrc = new CRC32();
+        for (WidgetSnapshot widget : widgets) {
+            record.clear();
+            putSave(record, widget);
+            putCrc(record, 0, recordCrc);
+            data.write(record.array(), 0, record.position());
+        }
+        data.flush();
+    }
+
+    /**
+     * Makes renaming files in the directory durable. Not every platform can open a directory to
+     * do so, in which case it's left to the file system.
+     */
+    private void forceDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Best effort
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        channel = segmentOpener.open(segmentPath(number));
+        segment = number;
+        appendedToSegment = 0;
+        // The new segment itself must survive a crash
+        forceDirectory();
+    }
+
+    private List<Long> numbered(Pattern pattern) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Long> numbers = new ArrayList<>();
+            for (Path file : files.collect(Collectors.toList())) {
+                Matcher matcher = pattern.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    numbers.add(Long.parseUnsignedLong(matcher.group(1), 16));
+                }
+            }
+            numbers.sort(null);
+            return numbers;
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("wal-%016x.log", number));
+    }
+
+    private Path snapshotPath(long number) {
+        return directory.resolve(String.format("snapshot-%016x.bin", number));
+    }
+
+    /**
+     * Forces everything appended to the disk and closes the log.
+     */
+    @Override
+    public void close() {
+        syncLock.lock();
+        appendLock.lock();
+        try {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                channel = null;
+            }
+            durable = written;
+        } finally {
+            appendLock.unlock();
+            syncLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package io.andrebrait.widget.repository;
+
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The stacking order of the widgets: an order-statistics tree (a treap where every node knows the
+ * size of its subtree) of values sorted by a {@code long} label.<br><br>
+ *
+ * The labels are spread out with large gaps between them, so inserting a value at a given
+ * position only takes a label between the ones of its neighbours. The position (rank) of a value
+ * is never stored anywhere, it's computed from the subtree sizes when it's needed, so inserting
+ * something at the bottom of the stack doesn't need to touch anything above it. Everything is
+ * O(log n), except when two neighbours have no gap left between their labels. Then every label is
+ * spread out again, which is O(n), but that only happens after many insertions at the same
+ * spot.<br><br>
+ *
+ * Relabelling keeps the order of the labels, and every new label is reported to a listener, so
+ * the owner can keep a copy of them.<br><br>
+ *
+ * This class is not thread-safe and must be synchronized externally.
+ *
+ * @param <V> the type of the values
+ */
+final class ZOrderTree<V> {
+
+    /**
+     * Gap between a new label at the top and the label below it
+     */
+    private static final long TOP_GAP = 1L << 32;
+
+    private static final class Node<V> {
+
+        private long label;
+        private final V value;
+        private final int priority;
+        private int size = 1;
+        @Nullable
+        private Node<V> left;
+        @Nullable
+        private Node<V> right;
+
+        private Node(long label, V value, int priority) {
+            this.label = label;
+            this.value = value;
+            this.priority = priority;
+        }
+    }
+
+    private final Random random = new Random();
+    private final ObjLongConsumer<V> relabelListener;
+
+    @Nullable
+    private Node<V> root;
+    private int relabels;
+
+    /**
+     * @param relabelListener receives each value and its new label when labels are spread out
+     * again
+     */
+    ZOrderTree(ObjLongConsumer<V> relabelListener) {
+        this.relabelListener = relabelListener;
+    }
+
+    /**
+     * @return how many times the labels were spread out again, so labels kept from before can be
+     * told apart
+     */
+    int relabels() {
+        return relabels;
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Inserts a value at the given position, moving everything at or above it one position up.
+     *
+     * @param rank the position, from 0 (bottom) to {@link #size()} (top)
+     * @return the label of the value
+     */
+    long insert(int rank, V value) {
+        long label = tryInsert(rank, value);
+        if (label < 0) {
+            relabel();
+            label = tryInsert(rank, value);
+        }
+        return label;
+    }
+
+    /**
+     * Like {@link #insert(int, Object)}, but never relabels anything: nothing is inserted if
+     * there's no room left at that position.
+     *
+     * @return the label of the value, or -1 if it wasn't inserted
+     */
+    long tryInsert(int rank, V value) {
+        if (rank < 0 || rank > size()) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " for size " + size());
+        }
+        long label = labelFor(rank);
+        if (label >= 0) {
+            put(label, value);
+        }
+        return label;
+    }
+
+    /**
+     * Inserts values at consecutive positions from the given one, in order, moving everything at
+     * or above it up by as many positions. The labels are spread evenly over the gap at that
+     * position, which is only spread out again once for all of them if it's too small, and the
+     * values are joined to the tree in one go.
+     *
+     * @param rank the position of the first value, from 0 (bottom) to {@link #size()} (top)
+     * @return the labels of the values, in the same order
+     */
+    long[] insertAll(int rank, List<? extends V> values) {
+        if (rank < 0 || rank > size()) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " for size " + size());
+        }
+        if (values.isEmpty()) {
+            return new long[0];
+        }
+        long[] labels = labelsFor(rank, values.size());
+        if (labels == null) {
+            relabel();
+            labels = labelsFor(rank, values.size());
+            if (labels == null) {
+                throw new IllegalStateException("No room for " + values.size() + " values");
+            }
+        }
+        Node<V> inserted = null;
+        for (int i = 0; i < labels.length; i++) {
+            inserted = merge(inserted, new Node<>(labels[i], values.get(i), random.nextInt()));
+        }
+        Node<V>[] split = split(root, labels[0]);
+        root = merge(merge(split[0], inserted), split[1]);
+        return labels;
+    }
+
+    /**
+     * Inserts a value with a label which is known to be free, e.g. the one it had right before
+     * being removed
+     */
+    void put(long label, V value) {
+        Node<V>[] split = split(root, label);
+        root = merge(merge(split[0], new Node<>(label, value, random.nextInt())), split[1]);
+    }
+
+    /**
+     * @return the value removed, or {@code null} if there was no value with that label
+     */
+    @Nullable
+    V remove(long label) {
+        Node<V>[] below = split(root, label);
+        Node<V>[] above = split(below[1], label + 1);
+        root = merge(below[0], above[1]);
+        return above[0] == null ? null : above[0].value;
+    }
+
+    /**
+     * @return the position of the value with the given label, which must exist
+     */
+    int rank(long label) {
+        int rank = 0;
+        Node<V> current = root;
+        while (current != null) {
+            if (label < current.label) {
+                current = current.left;
+            } else if (label > current.label) {
+                rank += size(current.left) + 1;
+                current = current.right;
+            } else {
+                return rank + size(current.left);
+            }
+        }
+        throw new IllegalArgumentException("No value with label " + label);
+    }
+
+    /**
+     * Visits every value from the bottom to the top, along with its position
+     */
+    void forEachInOrder(ObjIntConsumer<V> visitor) {
+        Deque<Node<V>> stack = new ArrayDeque<>();
+        Node<V> current = root;
+        int rank = 0;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.push(current);
+                current = current.left;
+            }
+            current = stack.pop();
+            visitor.accept(current.value, rank++);
+            current = current.right;
+        }
+    }
+
+    /**
+     * Visits the values with labels higher than the given one, from the bottom up, along with
+     * their positions, until the limit is reached. Only the path to the first one is walked
+     * before visiting it, so this is O(log n) plus the values visited.
+     */
+    void forEachAbove(long label, int limit, ObjIntConsumer<V> visitor) {
+        Deque<Node<V>> stack = new ArrayDeque<>();
+        Node<V> current = root;
+        int rank = 0;
+        while (current != null) {
+            if (current.label > label) {
+                stack.push(current);
+                current = current.left;
+            } else {
+                rank += size(current.left) + 1;
+                current = current.right;
+            }
+        }
+        for (int visited = 0; visited < limit && !stack.isEmpty(); visited++) {
+            current = stack.pop();
+            visitor.accept(current.value, rank++);
+            current = current.right;
+            while (current != null) {
+                stack.push(current);
+                current = current.left;
+            }
+        }
+    }
+
+    /**
+     * @return the label of the value at the given position, which must exist
+     */
+    long labelAt(int rank) {
+        return select(rank).label;
+    }
+
+    /**
+     * @return a free label between the ones at {@code rank - 1} and {@code rank}, or -1 if there
+     * is no room left
+     */
+    private long labelFor(int rank) {
+        long lower = rank == 0 ? -1 : select(rank - 1).label;
+        if (rank == size()) {
+            return lower < Long.MAX_VALUE - TOP_GAP ? lower + TOP_GAP : -1;
+        }
+        long upper = select(rank).label;
+        if (upper - lower < 2) {
+            return -1;
+        }
+        return lower + (upper - lower) / 2;
+    }
+
+    /**
+     * @return as many free labels between the ones at {@code rank - 1} and {@code rank}, in
+     * ascending order, or {@code null} if there is no room for them
+     */
+    @Nullable
+    private long[] labelsFor(int rank, int count) {
+        long lower = rank == 0 ? -1 : select(rank - 1).label;
+        long step;
+        // Differences taken from upper - 1, so they never overflow when lower is -1
+        if (rank == size() && (Long.MAX_VALUE - 1 - lower) / TOP_GAP > count) {
+            // The same as inserting them on top one by one
+            step = TOP_GAP;
+        } else {
+            long upper = rank == size() ? Long.MAX_VALUE : select(rank).label;
+            step = (upper - 1 - lower) / (count + 1);
+            if (step < 1) {
+                return null;
+            }
+        }
+        long[] labels = new long[count];
+        for (int i = 0; i < count; i++) {
+            labels[i] = lower + step * (i + 1);
+        }
+        return labels;
+    }
+
+    private Node<V> select(int rank) {
+        Node<V> current = root;
+        int remaining = rank;
+        while (current != null) {
+            int leftSize = size(current.left);
+            if (remaining < leftSize) {
+                current = current.left;
+            } else if (remaining > leftSize) {
+                remaining -= leftSize + 1;
+                current = current.right;
+            } else {
+                return current;
+            }
+        }
+        throw new IndexOutOfBoundsException("Rank " + rank + " for size " + size());
+    }
+
+    /**
+     * Spreads the labels evenly over the whole range, keeping their order. The shape of the tree
+     * doesn't change.
+     */
+    void relabel() {
+        relabels++;
+        long gap = Long.MAX_VALUE / (size() + 2);
+        long label = gap;
+        Deque<Node<V>> stack = new ArrayDeque<>();
+        Node<V> current = root;
+        while (current != null || !stack.isEmpty()) {
+            while (current != null) {
+                stack.push(current);
+                current = current.left;
+            }
+            current = stack.pop();
+            current.label = label;
+            label += gap;
+            relabelListener.accept(current.value, current.label);
+            current = current.right;
+        }
+    }
+
+    /**
+     * @return the nodes with labels lower than the given one, and the others
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> Node<V>[] split(@Nullable Node<V> node, long label) {
+        if (node == null) {
+            return new Node[2];
+        }
+        Node<V>[] result;
+        if (node.label < label) {
+            result = split(node.right, label);
+            node.right = result[0];
+            result[0] = node;
+        } else {
+            result = split(node.left, label);
+            node.left = result[1];
+            result[1] = node;
+        }
+        update(node);
+        return result;
+    }
+
+    /**
+     * @return the union of both trees, where every label in the first is lower than every label
+     * in the second
+     */
+    @Nullable
+    private static <V> Node<V> merge(@Nullable Node<V> first, @Nullable Node<V> second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            first.right = merge(first.right, second);
+            update(first);
+            return first;
+        }
+        second.left = merge(first, second.left);
+        update(second);
+        return second;
+    }
+
+    private static <V> void update(Node<V> node) {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    private static <V> int size(@Nullable Node<V> node) {
+        return node == null ? 0 : node.size;
+    }
+}
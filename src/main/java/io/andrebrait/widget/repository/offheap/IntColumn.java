@@ -0,0 +1,44 @@
+package io.andrebrait.widget.repository.offheap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A growable array of {@code int} values kept outside of the heap, in direct {@link ByteBuffer
+ * ByteBuffers} of a fixed number of values each. Growing only allocates new chunks, so nothing is
+ * ever copied, and the heap only holds one small object per chunk.<br><br>
+ *
+ * Values never set are 0. This class is not thread-safe and must be synchronized externally.
+ */
+final class IntColumn {
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+
+    int get(int index) {
+        return chunks[index >>> CHUNK_SHIFT].getInt((index & CHUNK_MASK) << 2);
+    }
+
+    void set(int index, int value) {
+        chunks[index >>> CHUNK_SHIFT].putInt((index & CHUNK_MASK) << 2, value);
+    }
+
+    /**
+     * Makes sure every index lower than the given one can be used
+     */
+    void ensureCapacity(int capacity) {
+        int required = (int) (((long) capacity + CHUNK_MASK) >>> CHUNK_SHIFT);
+        if (required <= chunks.length) {
+            return;
+        }
+        int existing = chunks.length;
+        chunks = Arrays.copyOf(chunks, required);
+        for (int i = existing; i < required; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(Integer.BYTES << CHUNK_SHIFT)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.andrebrait.widget.repository.offheap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A growable array of {@code long} values kept outside of the heap, in direct {@link ByteBuffer
+ * ByteBuffers} of a fixed number of values each. Growing only allocates new chunks, so nothing is
+ * ever copied, and the heap only holds one small object per chunk.<br><br>
+ *
+ * Values never set are 0. This class is not thread-safe and must be synchronized externally.
+ */
+final class LongColumn {
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private ByteBuffer[] chunks = new ByteBuffer[0];
+
+    long get(int index) {
+        return chunks[index >>> CHUNK_SHIFT].getLong((index & CHUNK_MASK) << 3);
+    }
+
+    void set(int index, long value) {
+        chunks[index >>> CHUNK_SHIFT].putLong((index & CHUNK_MASK) << 3, value);
+    }
+
+    /**
+     * Makes sure every index lower than the given one can be used
+     */
+    void ensureCapacity(int capacity) {
+        int required = (int) (((long) capacity + CHUNK_MASK) >>> CHUNK_SHIFT);
+        if (required <= chunks.length) {
+            return;
+        }
+        int existing = chunks.length;
+        chunks = Arrays.copyOf(chunks, required);
+        for (int i = existing; i < required; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(Long.BYTES << CHUNK_SHIFT)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+}
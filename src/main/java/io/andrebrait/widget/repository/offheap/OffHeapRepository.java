@@ -0,0 +1,316 @@
+package io.andrebrait.widget.repository.offheap;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.WidgetRepository;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Repository;
+
+import javax.validation.Valid;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Keeps every widget outside of the heap, with the same Z-index rules as the {@code
+ * InMemoryRepository}. Each widget has an {@code int} slot, and each of its fields is kept at that
+ * slot in a column of primitive values. The stacking order, the spatial index and the index of the
+ * IDs are kept the same way, with slots instead of references, so the heap used stays the same
+ * however many widgets there are.<br><br>
+ *
+ * The price is that nothing is kept to be handed out: every read builds new {@link WidgetSnapshot
+ * WidgetSnapshots} from the columns, which only live as long as whoever asked for them holds on to
+ * them.
+ */
+@Repository
+@Profile("off-heap")
+public class OffHeapRepository implements WidgetRepository {
+
+    private static final int NIL = -1;
+
+    private final LongColumn mostSignificantBits = new LongColumn();
+    private final LongColumn leastSignificantBits = new LongColumn();
+    private final LongColumn x = new LongColumn();
+    private final LongColumn y = new LongColumn();
+    private final LongColumn width = new LongColumn();
+    private final LongColumn height = new LongColumn();
+
+    private final SlotIndex ids = new SlotIndex(mostSignificantBits, leastSignificantBits);
+    private final SlotStack stack = new SlotStack();
+    private final SlotRTree tree = new SlotRTree(
+            (slot, otherSlot) -> Long.compare(stack.label(slot), stack.label(otherSlot)));
+
+    /**
+     * Slots freed by deleted widgets, used before new ones
+     */
+    private final IntColumn freeSlots = new IntColumn();
+    private int freeSlotCount;
+    /**
+     * Slots after this one have never been used
+     */
+    private int highWaterMark;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public WidgetSnapshot save(@Valid Widget widget) {
+        lock.writeLock().lock();
+        try {
+            UUID id = widget.getId() == null ? UUID.randomUUID() : widget.getId();
+            long msb = id.getMostSignificantBits();
+            long lsb = id.getLeastSignificantBits();
+            int slot = ids.get(msb, lsb);
+            boolean existing = slot != NIL;
+            if (existing) {
+                stack.remove(slot);
+            } else {
+                slot = allocate();
+                mostSignificantBits.set(slot, msb);
+                leastSignificantBits.set(slot, lsb);
+                ids.add(slot);
+            }
+            x.set(slot, widget.getX());
+            y.set(slot, widget.getY());
+            width.set(slot, widget.getWidth());
+            height.set(slot, widget.getHeight());
+            int rank = rankFor(widget.getZ());
+            stack.insert(rank, slot);
+            if (existing) {
+                // Its label changed even if its bounds didn't
+                tree.update(slot, widget.getX(), widget.getY(), widget.getX2(), widget.getY2());
+            } else {
+                tree.add(slot, widget.getX(), widget.getY(), widget.getX2(), widget.getY2());
+            }
+            return snapshotOf(slot, rank);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Saves every widget or none of them, under a single write lock: the existing ones are taken
+     * out of the stack and of the spatial index first, and then every widget is put at
+     * consecutive positions from the first one.
+     */
+    @Override
+    public List<WidgetSnapshot> saveAll(Collection<? extends Widget> widgets) {
+        Map<UUID, Widget> byId = new LinkedHashMap<>();
+        for (Widget widget : widgets) {
+            UUID id = widget.getId() == null ? UUID.randomUUID() : widget.getId();
+            if (byId.put(id, widget) != null) {
+                throw new IllegalArgumentException("Widget " + id + " is repeated");
+            }
+        }
+        if (byId.isEmpty()) {
+            return List.of();
+        }
+        lock.writeLock().lock();
+        try {
+            int[] slots = new int[byId.size()];
+            int i = 0;
+            for (UUID id : byId.keySet()) {
+                int slot = ids.get(id.getMostSignificantBits(), id.getLeastSignificantBits());
+                if (slot != NIL) {
+                    tree.remove(slot);
+                    stack.remove(slot);
+                }
+                slots[i++] = slot;
+            }
+            int rank = rankFor(widgets.iterator().next().getZ());
+            List<WidgetSnapshot> saved = new ArrayList<>(slots.length);
+            i = 0;
+            for (Map.Entry<UUID, Widget> entry : byId.entrySet()) {
+                int slot = slots[i];
+                if (slot == NIL) {
+                    slot = allocate();
+                    mostSignificantBits.set(slot, entry.getKey().getMostSignificantBits());
+                    leastSignificantBits.set(slot, entry.getKey().getLeastSignificantBits());
+                    ids.add(slot);
+                }
+                Widget widget = entry.getValue();
+                x.set(slot, widget.getX());
+                y.set(slot, widget.getY());
+                width.set(slot, widget.getWidth());
+                height.set(slot, widget.getHeight());
+                stack.insert(rank + i, slot);
+                tree.add(slot, widget.getX(), widget.getY(), widget.getX2(), widget.getY2());
+                saved.add(snapshotOf(slot, rank + i));
+                i++;
+            }
+            return saved;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Only called after the widgets being saved left the stack, if they were there.
+     *
+     * @return the position for the requested Z-index, from the bottom to right above the top
+     */
+    private int rankFor(@Nullable BigInteger z) {
+        return WidgetRepository.rankFor(z, stack.size());
+    }
+
+    private int allocate() {
+        if (freeSlotCount > 0) {
+            return freeSlots.get(--freeSlotCount);
+        }
+        int slot = highWaterMark++;
+        mostSignificantBits.ensureCapacity(highWaterMark);
+        leastSignificantBits.ensureCapacity(highWaterMark);
+        x.ensureCapacity(highWaterMark);
+        y.ensureCapacity(highWaterMark);
+        width.ensureCapacity(highWaterMark);
+        height.ensureCapacity(highWaterMark);
+        stack.ensureCapacity(highWaterMark);
+        tree.ensureCapacity(highWaterMark);
+        freeSlots.ensureCapacity(highWaterMark);
+        return slot;
+    }
+
+    private WidgetSnapshot snapshotOf(int slot, int rank) {
+        return WidgetSnapshot.builder()
+                .id(new UUID(mostSignificantBits.get(slot), leastSignificantBits.get(slot)))
+                .x(x.get(slot))
+                .y(y.get(slot))
+                .z(BigInteger.valueOf(rank))
+                .width(width.get(slot))
+                .height(height.get(slot))
+                .build();
+    }
+
+    /**
+     * Only called with the read lock, so positions can't change meanwhile
+     */
+    private WidgetSnapshot snapshotOf(int slot) {
+        return snapshotOf(slot, stack.rank(slot));
+    }
+
+    @Override
+    public Optional<WidgetSnapshot> findOne(UUID id) {
+        lock.readLock().lock();
+        try {
+            int slot = ids.get(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            return slot == NIL ? Optional.empty() : Optional.of(snapshotOf(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteById(UUID id) {
+        lock.writeLock().lock();
+        try {
+            int slot = ids.remove(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (slot == NIL) {
+                return;
+            }
+            tree.remove(slot);
+            stack.remove(slot);
+            freeSlots.set(freeSlotCount++, slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterable<WidgetSnapshot> findAll() {
+        lock.readLock().lock();
+        try {
+            List<WidgetSnapshot> result = new ArrayList<>(stack.size());
+            stack.forEachInOrder(slot -> result.add(snapshotOf(slot, result.size())));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        forEachInside(rectangle, result::add);
+        return result;
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllInside(Rectangle rectangle, int limit, ZOrder order) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+        lock.readLock().lock();
+        try {
+            tree.forEachInside(
+                    rectangle.getX(),
+                    rectangle.getY(),
+                    rectangle.getX2(),
+                    rectangle.getY2(),
+                    order,
+                    slot -> {
+                        result.add(snapshotOf(slot));
+                        return result.size() < limit;
+                    });
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The read lock is held while visiting, so the visitor should be quick.
+     */
+    @Override
+    public boolean forEachInside(Rectangle rectangle, Predicate<? super WidgetSnapshot> visitor) {
+        lock.readLock().lock();
+        try {
+            return tree.forEachInside(
+                    rectangle.getX(),
+                    rectangle.getY(),
+                    rectangle.getX2(),
+                    rectangle.getY2(),
+                    slot -> visitor.test(snapshotOf(slot)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<WidgetSnapshot> findAllIntersecting(Rectangle rectangle) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            tree.forEachIntersecting(
+                    rectangle.getX(),
+                    rectangle.getY(),
+                    rectangle.getX2(),
+                    rectangle.getY2(),
+                    slot -> result.add(snapshotOf(slot)));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<WidgetSnapshot> findTopmostAt(long pointX, long pointY) {
+        lock.readLock().lock();
+        try {
+            int slot = tree.topmostAt(pointX, pointY);
+            return slot == NIL ? Optional.empty() : Optional.of(snapshotOf(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.andrebrait.widget.repository.offheap;
+
+/**
+ * Finds the slot of a widget by its ID: an open-addressing hash table with linear probing, kept
+ * in an {@link IntColumn}. It only holds slots, the IDs themselves are read from the columns of
+ * the widgets, so an entry takes 4 bytes (8 with the table half empty) and no object at all.
+ * <br><br>
+ *
+ * This class is not thread-safe and must be synchronized externally.
+ */
+final class SlotIndex {
+
+    static final int NIL = -1;
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final LongColumn mostSignificantBits;
+    private final LongColumn leastSignificantBits;
+
+    /**
+     * Each bucket holds a slot plus one, so that the zeroes of new chunks are empty buckets
+     */
+    private IntColumn table = new IntColumn();
+    private int capacity = INITIAL_CAPACITY;
+    private int size;
+
+    /**
+     * @param mostSignificantBits the column with the most significant bits of the IDs
+     * @param leastSignificantBits the column with the least significant bits of the IDs
+     */
+    SlotIndex(LongColumn mostSignificantBits, LongColumn leastSignificantBits) {
+        this.mostSignificantBits = mostSignificantBits;
+        this.leastSignificantBits = leastSignificantBits;
+        table.ensureCapacity(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot of the widget with the given ID, or {@link #NIL} if there is none
+     */
+    int get(long msb, long lsb) {
+        int bucket = find(msb, lsb);
+        return table.get(bucket) - 1;
+    }
+
+    /**
+     * Adds a slot, whose ID must already be in the columns and must not be in the index yet
+     */
+    void add(int slot) {
+        if ((size + 1) * 2L > capacity) {
+            grow();
+        }
+        table.set(find(mostSignificantBits.get(slot), leastSignificantBits.get(slot)), slot + 1);
+        size++;
+    }
+
+    /**
+     * @return the slot removed, or {@link #NIL} if there was none with that ID
+     */
+    int remove(long msb, long lsb) {
+        int bucket = find(msb, lsb);
+        int slot = table.get(bucket) - 1;
+        if (slot == NIL) {
+            return NIL;
+        }
+        /*
+            Backward-shift deletion: entries after the removed one which would have been in its
+            bucket or before it are moved back, so no lookup stops early at the hole
+         */
+        int mask = capacity - 1;
+        int hole = bucket;
+        int current = bucket;
+        while (true) {
+            current = (current + 1) & mask;
+            int entry = table.get(current);
+            if (entry == 0) {
+                break;
+            }
+            int home = bucketOf(
+                    mostSignificantBits.get(entry - 1),
+                    leastSignificantBits.get(entry - 1));
+            // Whether its home is cyclically outside of (hole, current]
+            if (((current - home) & mask) >= ((current - hole) & mask)) {
+                table.set(hole, entry);
+                hole = current;
+            }
+        }
+        table.set(hole, 0);
+        size--;
+        return slot;
+    }
+
+    /**
+     * @return the bucket holding the ID, or the empty one where it would be
+     */
+    private int find(long msb, long lsb) {
+        int mask = capacity - 1;
+        int bucket = bucketOf(msb, lsb);
+        while (true) {
+            int entry = table.get(bucket);
+            if (entry == 0
+                    || (mostSignificantBits.get(entry - 1) == msb
+                    && leastSignificantBits.get(entry - 1) == lsb)) {
+                return bucket;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    private int bucketOf(long msb, long lsb) {
+        long hash = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (capacity - 1);
+    }
+
+    private void grow() {
+        IntColumn old = table;
+        int oldCapacity = capacity;
+        capacity = oldCapacity * 2;
+        table = new IntColumn();
+        table.ensureCapacity(capacity);
+        for (int bucket = 0; bucket < oldCapacity; bucket++) {
+            int entry = old.get(bucket);
+            if (entry != 0) {
+                table.set(find(
+                        mostSignificantBits.get(entry - 1),
+                        leastSignificantBits.get(entry - 1)), entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package io.andrebrait.widget.repository.offheap;
+
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * The same binary R-Tree as {@code FlatRTreeRepository}, but with its nodes kept in columns
+ * outside of the heap, and with the slots of the widgets as its values instead of references to
+ * them. The bounds of each widget are copied into its leaf, and the widgets are compared by a
+ * given order of their slots, so the tree never needs to read anything else about them.<br><br>
+ *
+ * Nodes have slots of their own, which are not the slots of the widgets: the leaf of each widget
+ * is found through a column indexed by the slot of the widget.<br><br>
+ *
+ * This class is not thread-safe and must be synchronized externally.
+ */
+final class SlotRTree {
+
+    static final int NIL = -1;
+
+    /**
+     * Compares the slots of two widgets by their Z-index
+     */
+    @FunctionalInterface
+    interface SlotOrder {
+
+        int compare(int slot, int otherSlot);
+    }
+
+    private final LongColumn x = new LongColumn();
+    private final LongColumn y = new LongColumn();
+    private final LongColumn x2 = new LongColumn();
+    private final LongColumn y2 = new LongColumn();
+    private final LongColumn minimumWidthInside = new LongColumn();
+    private final LongColumn minimumHeightInside = new LongColumn();
+    /**
+     * Node of the highest leaf inside each node, which is the node itself for leaves
+     */
+    private final IntColumn topmostLeaf = new IntColumn();
+    /**
+     * Node of the lowest leaf inside each node, which is the node itself for leaves
+     */
+    private final IntColumn bottommostLeaf = new IntColumn();
+    private final IntColumn left = new IntColumn();
+    private final IntColumn right = new IntColumn();
+    private final IntColumn parent = new IntColumn();
+    /**
+     * Slot of the widget in each leaf, or {@link #NIL} for internal nodes
+     */
+    private final IntColumn value = new IntColumn();
+    /**
+     * Leaf of each widget, by the slot of the widget
+     */
+    private final IntColumn leafOf = new IntColumn();
+
+    private final SlotOrder zOrder;
+
+    /**
+     * Node slots after this one have never been used
+     */
+    private int highWaterMark;
+    /**
+     * Head of the list of freed node slots, linked through {@link #left}
+     */
+    private int freeListHead = NIL;
+    private int root = NIL;
+
+    SlotRTree(SlotOrder zOrder) {
+        this.zOrder = zOrder;
+    }
+
+    /**
+     * Makes sure every widget slot lower than the given one can be added
+     */
+    void ensureCapacity(int widgetSlots) {
+        leafOf.ensureCapacity(widgetSlots);
+    }
+
+    /**
+     * Adds a widget, which must not be in the tree yet
+     */
+    void add(int slot, long newX, long newY, long newX2, long newY2) {
+        int leaf = allocate();
+        x.set(leaf, newX);
+        y.set(leaf, newY);
+        x2.set(leaf, newX2);
+        y2.set(leaf, newY2);
+        minimumWidthInside.set(leaf, newX2 - newX);
+        minimumHeightInside.set(leaf, newY2 - newY);
+        topmostLeaf.set(leaf, leaf);
+        bottommostLeaf.set(leaf, leaf);
+        left.set(leaf, NIL);
+        right.set(leaf, NIL);
+        parent.set(leaf, NIL);
+        value.set(leaf, slot);
+        leafOf.set(slot, leaf);
+
+        if (root == NIL) {
+            root = leaf;
+            return;
+        }
+        int current = root;
+        while (!isLeaf(current)) {
+            if (newX <= x.get(current)
+                    && newX2 >= x2.get(current)
+                    && newY <= y.get(current)
+                    && newY2 >= y2.get(current)) {
+                // The new rectangle contains the whole subtree, so it becomes its sibling
+                break;
+            }
+            int currentLeft = left.get(current);
+            int currentRight = right.get(current);
+            if (contains(currentLeft, newX, newY, newX2, newY2)) {
+                current = currentLeft;
+            } else if (contains(currentRight, newX, newY, newX2, newY2)) {
+                current = currentRight;
+            } else if (areaIncrease(currentLeft, newX, newY, newX2, newY2)
+                    <= areaIncrease(currentRight, newX, newY, newX2, newY2)) {
+                current = currentLeft;
+            } else {
+                current = currentRight;
+            }
+        }
+        merge(current, leaf);
+    }
+
+    /**
+     * Removes a widget, which must be in the tree
+     */
+    void remove(int slot) {
+        int leaf = leafOf.get(slot);
+        int leafParent = parent.get(leaf);
+        free(leaf);
+        if (leafParent == NIL) {
+            root = NIL;
+            return;
+        }
+        int sibling = left.get(leafParent) == leaf
+                ? right.get(leafParent)
+                : left.get(leafParent);
+        int grandparent = parent.get(leafParent);
+        replaceChild(grandparent, leafParent, sibling);
+        free(leafParent);
+        refit(grandparent, false);
+    }
+
+    /**
+     * Moves a widget, which must be in the tree, to new bounds, or tells the tree its Z-index
+     * changed. If the new bounds still fit inside the parent of its leaf, the leaf is reused and
+     * only its ancestors are refitted. Otherwise, it's removed and added again.
+     */
+    void update(int slot, long newX, long newY, long newX2, long newY2) {
+        int leaf = leafOf.get(slot);
+        int leafParent = parent.get(leaf);
+        if (leafParent == NIL || !contains(leafParent, newX, newY, newX2, newY2)) {
+            remove(slot);
+            add(slot, newX, newY, newX2, newY2);
+            return;
+        }
+        x.set(leaf, newX);
+        y.set(leaf, newY);
+        x2.set(leaf, newX2);
+        y2.set(leaf, newY2);
+        minimumWidthInside.set(leaf, newX2 - newX);
+        minimumHeightInside.set(leaf, newY2 - newY);
+        refit(leafParent, true);
+    }
+
+    /**
+     * Visits the widgets inside the search rectangle until the visitor returns {@code false}
+     *
+     * @return whether every widget inside the search rectangle was visited
+     */
+    boolean forEachInside(
+            long searchX,
+            long searchY,
+            long searchX2,
+            long searchY2,
+            IntPredicate visitor) {
+        if (root == NIL) {
+            return true;
+        }
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        while (stackSize > 0) {
+            int current = stack[--stackSize];
+            if (isLeaf(current)) {
+                if (isInside(current, searchX, searchY, searchX2, searchY2)
+                        && !visitor.test(value.get(current))) {
+                    return false;
+                }
+                continue;
+            }
+            // Internal nodes always have both children
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            int currentLeft = left.get(current);
+            int currentRight = right.get(current);
+            if (mayContainAnyInside(currentLeft, searchX, searchY, searchX2, searchY2)) {
+                stack[stackSize++] = currentLeft;
+            }
+            if (mayContainAnyInside(currentRight, searchX, searchY, searchX2, searchY2)) {
+                stack[stackSize++] = currentRight;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Like {@link #forEachInside(long, long, long, long, IntPredicate)}, but the widgets are
+     * visited in the given Z-order. Nodes are visited best-first, in order of their highest (or
+     * lowest) leaf, so each widget is found before any node which can only have widgets after it.
+     */
+    boolean forEachInside(
+            long searchX,
+            long searchY,
+            long searchX2,
+            long searchY2,
+            ZOrder order,
+            IntPredicate visitor) {
+        if (root == NIL) {
+            return true;
+        }
+        PriorityQueue<Integer> queue = new PriorityQueue<>(order == ZOrder.ASCENDING
+                ? (a, b) -> compareZ(bottommostLeaf.get(a), bottommostLeaf.get(b))
+                : (a, b) -> compareZ(topmostLeaf.get(b), topmostLeaf.get(a)));
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            if (isLeaf(current)) {
+                if (isInside(current, searchX, searchY, searchX2, searchY2)
+                        && !visitor.test(value.get(current))) {
+                    return false;
+                }
+                continue;
+            }
+            int currentLeft = left.get(current);
+            int currentRight = right.get(current);
+            if (mayContainAnyInside(currentLeft, searchX, searchY, searchX2, searchY2)) {
+                queue.add(currentLeft);
+            }
+            if (mayContainAnyInside(currentRight, searchX, searchY, searchX2, searchY2)) {
+                queue.add(currentRight);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the widgets intersecting the search rectangle, not counting the ones only touching
+     * its border
+     */
+    void forEachIntersecting(
+            long searchX,
+            long searchY,
+            long searchX2,
+            long searchY2,
+            IntConsumer visitor) {
+        if (root == NIL) {
+            return;
+        }
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        while (stackSize > 0) {
+            int current = stack[--stackSize];
+            if (x.get(current) >= searchX2
+                    || x2.get(current) <= searchX
+                    || y.get(current) >= searchY2
+                    || y2.get(current) <= searchY) {
+                continue;
+            }
+            if (isLeaf(current)) {
+                visitor.accept(value.get(current));
+                continue;
+            }
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[stackSize++] = left.get(current);
+            stack[stackSize++] = right.get(current);
+        }
+    }
+
+    /**
+     * Goes into the subtree with the highest leaf first, and skips subtrees which can't have
+     * anything higher than what was already found.
+     *
+     * @return the slot of the highest widget containing the point, without its right and bottom
+     * edges, or {@link #NIL} if there is none
+     */
+    int topmostAt(long pointX, long pointY) {
+        if (root == NIL) {
+            return NIL;
+        }
+        int result = NIL;
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        while (stackSize > 0) {
+            int current = stack[--stackSize];
+            if ((result != NIL && compareZ(topmostLeaf.get(current), result) <= 0)
+                    || x.get(current) > pointX
+                    || x2.get(current) <= pointX
+                    || y.get(current) > pointY
+                    || y2.get(current) <= pointY) {
+                continue;
+            }
+            if (isLeaf(current)) {
+                result = current;
+                continue;
+            }
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            int currentLeft = left.get(current);
+            int currentRight = right.get(current);
+            // The highest one is pushed last, so it's searched first
+            if (compareZ(topmostLeaf.get(currentLeft), topmostLeaf.get(currentRight)) <= 0) {
+                stack[stackSize++] = currentLeft;
+                stack[stackSize++] = currentRight;
+            } else {
+                stack[stackSize++] = currentRight;
+                stack[stackSize++] = currentLeft;
+            }
+        }
+        return result == NIL ? NIL : value.get(result);
+    }
+
+    private int compareZ(int leaf, int otherLeaf) {
+        return zOrder.compare(value.get(leaf), value.get(otherLeaf));
+    }
+
+    private boolean isInside(
+            int node,
+            long searchX,
+            long searchY,
+            long searchX2,
+            long searchY2) {
+        return searchX <= x.get(node)
+                && searchX2 >= x2.get(node)
+                && searchY <= y.get(node)
+                && searchY2 >= y2.get(node);
+    }
+
+    private boolean mayContainAnyInside(
+            int node,
+            long searchX,
+            long searchY,
+            long searchX2,
+            long searchY2) {
+        long intersectionX = Math.max(x.get(node), searchX);
+        long intersectionX2 = Math.min(x2.get(node), searchX2);
+        if (intersectionX > intersectionX2
+                || Long.compareUnsigned(
+                intersectionX2 - intersectionX,
+                minimumWidthInside.get(node)) < 0) {
+            return false;
+        }
+        long intersectionY = Math.max(y.get(node), searchY);
+        long intersectionY2 = Math.min(y2.get(node), searchY2);
+        return intersectionY <= intersectionY2
+                && Long.compareUnsigned(
+                intersectionY2 - intersectionY,
+                minimumHeightInside.get(node)) >= 0;
+    }
+
+    private boolean isLeaf(int node) {
+        return value.get(node) != NIL;
+    }
+
+    private boolean contains(int node, long otherX, long otherY, long otherX2, long otherY2) {
+        return x.get(node) <= otherX
+                && x2.get(node) >= otherX2
+                && y.get(node) <= otherY
+                && y2.get(node) >= otherY2;
+    }
+
+    /**
+     * Only used to decide where to insert, so precision isn't important
+     */
+    private double areaIncrease(int node, long otherX, long otherY, long otherX2, long otherY2) {
+        double joinedArea = area(
+                Math.min(x.get(node), otherX),
+                Math.min(y.get(node), otherY),
+                Math.max(x2.get(node), otherX2),
+                Math.max(y2.get(node), otherY2));
+        return joinedArea - area(x.get(node), y.get(node), x2.get(node), y2.get(node));
+    }
+
+    private static double area(long x, long y, long x2, long y2) {
+        return ((double) x2 - (double) x) * ((double) y2 - (double) y);
+    }
+
+    /*
+        Replaces the existing node with a new internal node having the existing node and the new
+        leaf as children
+
+                P                P
+                |                |
+                E      ->        N
+                                / \
+                               E   L
+     */
+    private void merge(int existing, int leaf) {
+        int existingParent = parent.get(existing);
+        int node = allocate();
+        value.set(node, NIL);
+        left.set(node, existing);
+        right.set(node, leaf);
+        parent.set(existing, node);
+        parent.set(leaf, node);
+        replaceChild(existingParent, existing, node);
+        refit(node, false);
+    }
+
+    private void replaceChild(int node, int oldChild, int newChild) {
+        parent.set(newChild, node);
+        if (node == NIL) {
+            root = newChild;
+        } else if (left.get(node) == oldChild) {
+            left.set(node, newChild);
+        } else {
+            right.set(node, newChild);
+        }
+    }
+
+    /**
+     * Recomputes the bounds of the node and of its ancestors from their children, stopping as
+     * soon as nothing changes.
+     *
+     * @param wholePath whether to go all the way up to the root, which is needed when a leaf
+     * changed, since the slots alone can't tell it did
+     */
+    private void refit(int node, boolean wholePath) {
+        int current = node;
+        while (current != NIL) {
+            int l = left.get(current);
+            int r = right.get(current);
+            long newX = Math.min(x.get(l), x.get(r));
+            long newY = Math.min(y.get(l), y.get(r));
+            long newX2 = Math.max(x2.get(l), x2.get(r));
+            long newY2 = Math.max(y2.get(l), y2.get(r));
+            long newMinimumWidth = unsignedMin(
+                    minimumWidthInside.get(l),
+                    minimumWidthInside.get(r));
+            long newMinimumHeight = unsignedMin(
+                    minimumHeightInside.get(l),
+                    minimumHeightInside.get(r));
+            int leftTopmost = topmostLeaf.get(l);
+            int rightTopmost = topmostLeaf.get(r);
+            int newTopmostLeaf = compareZ(leftTopmost, rightTopmost) >= 0
+                    ? leftTopmost
+                    : rightTopmost;
+            int leftBottommost = bottommostLeaf.get(l);
+            int rightBottommost = bottommostLeaf.get(r);
+            int newBottommostLeaf = compareZ(leftBottommost, rightBottommost) <= 0
+                    ? leftBottommost
+                    : rightBottommost;
+            if (current != node
+                    && !wholePath
+                    && x.get(current) == newX
+                    && y.get(current) == newY
+                    && x2.get(current) == newX2
+                    && y2.get(current) == newY2
+                    && minimumWidthInside.get(current) == newMinimumWidth
+                    && minimumHeightInside.get(current) == newMinimumHeight
+                    && topmostLeaf.get(current) == newTopmostLeaf
+                    && bottommostLeaf.get(current) == newBottommostLeaf) {
+                return;
+            }
+            x.set(current, newX);
+            y.set(current, newY);
+            x2.set(current, newX2);
+            y2.set(current, newY2);
+            minimumWidthInside.set(current, newMinimumWidth);
+            minimumHeightInside.set(current, newMinimumHeight);
+            topmostLeaf.set(current, newTopmostLeaf);
+            bottommostLeaf.set(current, newBottommostLeaf);
+            current = parent.get(current);
+        }
+    }
+
+    private static long unsignedMin(long a, long b) {
+        return Long.compareUnsigned(a, b) <= 0 ? a : b;
+    }
+
+    private int allocate() {
+        if (freeListHead != NIL) {
+            int node = freeListHead;
+            freeListHead = left.get(node);
+            return node;
+        }
+        int node = highWaterMark++;
+        x.ensureCapacity(highWaterMark);
+        y.ensureCapacity(highWaterMark);
+        x2.ensureCapacity(highWaterMark);
+        y2.ensureCapacity(highWaterMark);
+        minimumWidthInside.ensureCapacity(highWaterMark);
+        minimumHeightInside.ensureCapacity(highWaterMark);
+        topmostLeaf.ensureCapacity(highWaterMark);
+        bottommostLeaf.ensureCapacity(highWaterMark);
+        left.ensureCapacity(highWaterMark);
+        right.ensureCapacity(highWaterMark);
+        parent.ensureCapacity(highWaterMark);
+        value.ensureCapacity(highWaterMark);
+        return node;
+    }
+
+    private void free(int node) {
+        value.set(node, NIL);
+        parent.set(node, NIL);
+        right.set(node, NIL);
+        left.set(node, freeListHead);
+        freeListHead = node;
+    }
+}
@@ -0,0 +1,234 @@
+package io.andrebrait.widget.repository.offheap;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+/**
+ * The stacking order of the widgets, the same as {@code ZOrderTree} (an order-statistics treap
+ * sorted by spread out {@code long} labels), but every node is the slot of a widget and its
+ * fields are kept in columns outside of the heap.<br><br>
+ *
+ * Relabelling keeps the order of the labels, so anything comparing slots by their labels (like
+ * the spatial index) stays valid.<br><br>
+ *
+ * This class is not thread-safe and must be synchronized externally.
+ */
+final class SlotStack {
+
+    static final int NIL = -1;
+
+    /**
+     * Gap between a new label at the top and the label below it
+     */
+    private static final long TOP_GAP = 1L << 32;
+
+    private final LongColumn label = new LongColumn();
+    private final IntColumn priority = new IntColumn();
+    private final IntColumn size = new IntColumn();
+    private final IntColumn left = new IntColumn();
+    private final IntColumn right = new IntColumn();
+
+    private final Random random = new Random();
+    private int root = NIL;
+
+    /*
+        Results of the last split, lower and higher than the label it was split at
+     */
+    private int splitLower;
+    private int splitHigher;
+
+    /**
+     * Makes sure every slot lower than the given one can be used
+     */
+    void ensureCapacity(int capacity) {
+        label.ensureCapacity(capacity);
+        priority.ensureCapacity(capacity);
+        size.ensureCapacity(capacity);
+        left.ensureCapacity(capacity);
+        right.ensureCapacity(capacity);
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    long label(int slot) {
+        return label.get(slot);
+    }
+
+    /**
+     * Inserts a slot, which must not be in the stack, at the given position, moving everything at
+     * or above it one position up.
+     *
+     * @param rank the position, from 0 (bottom) to {@link #size()} (top)
+     */
+    void insert(int rank, int slot) {
+        if (rank < 0 || rank > size()) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " for size " + size());
+        }
+        long newLabel = labelFor(rank);
+        if (newLabel < 0) {
+            relabel();
+            newLabel = labelFor(rank);
+        }
+        label.set(slot, newLabel);
+        priority.set(slot, random.nextInt());
+        size.set(slot, 1);
+        left.set(slot, NIL);
+        right.set(slot, NIL);
+        split(root, newLabel);
+        int lower = splitLower;
+        int higher = splitHigher;
+        root = merge(merge(lower, slot), higher);
+    }
+
+    /**
+     * Removes a slot, which must be in the stack
+     */
+    void remove(int slot) {
+        long slotLabel = label.get(slot);
+        split(root, slotLabel);
+        int lower = splitLower;
+        split(splitHigher, slotLabel + 1);
+        root = merge(lower, splitHigher);
+    }
+
+    /**
+     * @return the position of a slot, which must be in the stack
+     */
+    int rank(int slot) {
+        long slotLabel = label.get(slot);
+        int rank = 0;
+        int current = root;
+        while (current != NIL) {
+            long currentLabel = label.get(current);
+            if (slotLabel < currentLabel) {
+                current = left.get(current);
+            } else if (slotLabel > currentLabel) {
+                rank += size(left.get(current)) + 1;
+                current = right.get(current);
+            } else {
+                return rank + size(left.get(current));
+            }
+        }
+        throw new IllegalArgumentException("Slot " + slot + " is not in the stack");
+    }
+
+    /**
+     * Visits every slot from the bottom to the top
+     */
+    void forEachInOrder(IntConsumer visitor) {
+        int[] stack = new int[64];
+        int stackSize = 0;
+        int current = root;
+        while (current != NIL || stackSize > 0) {
+            while (current != NIL) {
+                if (stackSize == stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[stackSize++] = current;
+                current = left.get(current);
+            }
+            current = stack[--stackSize];
+            visitor.accept(current);
+            current = right.get(current);
+        }
+    }
+
+    /**
+     * @return a free label between the ones at {@code rank - 1} and {@code rank}, or -1 if there
+     * is no room left
+     */
+    private long labelFor(int rank) {
+        long lower = rank == 0 ? -1 : label.get(select(rank - 1));
+        if (rank == size()) {
+            return lower < Long.MAX_VALUE - TOP_GAP ? lower + TOP_GAP : -1;
+        }
+        long upper = label.get(select(rank));
+        if (upper - lower < 2) {
+            return -1;
+        }
+        return lower + (upper - lower) / 2;
+    }
+
+    private int select(int rank) {
+        int current = root;
+        int remaining = rank;
+        while (current != NIL) {
+            int leftSize = size(left.get(current));
+            if (remaining < leftSize) {
+                current = left.get(current);
+            } else if (remaining > leftSize) {
+                remaining -= leftSize + 1;
+                current = right.get(current);
+            } else {
+                return current;
+            }
+        }
+        throw new IndexOutOfBoundsException("Rank " + rank + " for size " + size());
+    }
+
+    /**
+     * Spreads the labels evenly over the whole range, keeping their order
+     */
+    private void relabel() {
+        long gap = Long.MAX_VALUE / (size() + 2);
+        long[] next = {gap};
+        forEachInOrder(slot -> {
+            label.set(slot, next[0]);
+            next[0] += gap;
+        });
+    }
+
+    /**
+     * Splits the subtree into {@link #splitLower}, with the labels lower than the given one, and
+     * {@link #splitHigher}, with the others
+     */
+    private void split(int node, long splitLabel) {
+        if (node == NIL) {
+            splitLower = NIL;
+            splitHigher = NIL;
+            return;
+        }
+        if (label.get(node) < splitLabel) {
+            split(right.get(node), splitLabel);
+            right.set(node, splitLower);
+            splitLower = node;
+        } else {
+            split(left.get(node), splitLabel);
+            left.set(node, splitHigher);
+            splitHigher = node;
+        }
+        update(node);
+    }
+
+    /**
+     * @return the union of both subtrees, where every label in the first is lower than every
+     * label in the second
+     */
+    private int merge(int first, int second) {
+        if (first == NIL) {
+            return second;
+        }
+        if (second == NIL) {
+            return first;
+        }
+        if (priority.get(first) > priority.get(second)) {
+            right.set(first, merge(right.get(first), second));
+            update(first);
+            return first;
+        }
+        left.set(second, merge(first, left.get(second)));
+        update(second);
+        return second;
+    }
+
+    private void update(int node) {
+        size.set(node, size(left.get(node)) + size(right.get(node)) + 1);
+    }
+
+    private int size(int node) {
+        return node == NIL ? 0 : size.get(node);
+    }
+}
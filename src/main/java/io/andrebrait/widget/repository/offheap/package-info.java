@@ -0,0 +1,11 @@
+/**
+ * A {@link io.andrebrait.widget.repository.WidgetRepository} keeping its widgets outside of the
+ * heap, as columns of primitive values addressed by {@code int} slots, so the garbage collector
+ * has nothing to trace for them however many there are.
+ */
+@NonNullApi
+@NonNullFields
+package io.andrebrait.widget.repository.offheap;
+
+import org.springframework.lang.NonNullApi;
+import org.springframework.lang.NonNullFields;
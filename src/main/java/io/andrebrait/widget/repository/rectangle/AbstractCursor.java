@@ -0,0 +1,42 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import org.springframework.lang.Nullable;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for cursors which find their next result on demand.
+ *
+ * @param <R> the type of the results
+ */
+abstract class AbstractCursor<R> implements Cursor<R> {
+
+    @Nullable
+    private R next;
+    private boolean exhausted;
+
+    /**
+     * @return the next result, or {@code null} if there are no more results
+     */
+    @Nullable
+    protected abstract R computeNext();
+
+    @Override
+    public final boolean hasNext() {
+        if (next == null && !exhausted) {
+            next = computeNext();
+            exhausted = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public final R next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        R result = next;
+        next = null;
+        return result;
+    }
+}
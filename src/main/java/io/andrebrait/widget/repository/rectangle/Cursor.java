@@ -0,0 +1,63 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A lazy traversal over the results of a query. Results are only found as they're requested, so
+ * stopping early costs nothing, and the traversal can be resumed later from where it stopped
+ * (e.g. to return the results in pages).<br><br>
+ *
+ * Unless stated otherwise by the repository, a cursor is not valid anymore once the repository is
+ * modified, and using it afterwards throws a {@link java.util.ConcurrentModificationException}.
+ *
+ * @param <R> the type of the results
+ */
+public interface Cursor<R> extends Iterator<R> {
+
+    /**
+     * Visits the next results, in order, until the visitor returns {@code false} or the limit is
+     * reached. The cursor stays right after the last result visited, so calling this again
+     * resumes the traversal.
+     *
+     * @param visitor receives each result and returns whether to keep going
+     * @param limit the maximum number of results to visit
+     * @return whether there may be more results left
+     */
+    default boolean forEachRemaining(Predicate<? super R> visitor, long limit) {
+        for (long visited = 0; visited < limit && hasNext(); visited++) {
+            if (!visitor.test(next())) {
+                break;
+            }
+        }
+        return hasNext();
+    }
+
+    /**
+     * @param limit the maximum number of results to return
+     * @return the next results, up to the limit
+     */
+    default List<R> next(int limit) {
+        List<R> page = new ArrayList<>(Math.min(limit, 64));
+        forEachRemaining(page::add, limit);
+        return page;
+    }
+
+    /**
+     * @return a sequential stream of the remaining results, which advances this cursor as it's
+     * consumed
+     */
+    default Stream<R> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(
+                        this,
+                        Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL),
+                false);
+    }
+}
@@ -0,0 +1,597 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.IdentifiableRectangle;
+import io.andrebrait.widget.domain.Rectangle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * The same binary R-Tree as {@link RTreeRepository}, but with the nodes stored as
+ * struct-of-arrays instead of one object per node. Each node is just an index (a slot) into a set
+ * of primitive arrays holding its bounds, its children and its parent. Freed slots are kept in a
+ * free-list and reused by later insertions, so the arrays only grow when the tree does.<br><br>
+ *
+ * This avoids the per-node object headers, the references between nodes and the
+ * {@link java.math.BigInteger} areas kept by {@link RTreeRepository}, and keeps the data read by
+ * queries close together in memory, so there's less pointer-chasing.<br><br>
+ *
+ * Instead of the smallest area of a leaf inside a subtree, this stores the smallest width and the
+ * smallest height of a leaf inside it. That way we can avoid going into a subtree if the
+ * intersection of the search rectangle with the node's rectangle is narrower or shorter than any
+ * of the items inside it, using only exact {@code long} arithmetic. It also stores the slots of the
+ * highest and the lowest leaves inside it, so point queries can skip subtrees with nothing higher
+ * than what they already found, and searches in Z-order can visit the nodes best-first.<br><br>
+ *
+ * Unlike {@link RTreeRepository}, there's no fixed grid at the top of the tree, and removals go
+ * straight to the leaf through the ID index instead of searching for it.<br><br>
+ *
+ * Widths and heights can be larger than {@link Long#MAX_VALUE} (e.g. a rectangle from
+ * {@link Long#MIN_VALUE} to {@link Long#MAX_VALUE}), but they're never negative, so they're
+ * stored and compared as unsigned values.<br><br>
+ *
+ * This class is not thread-safe and must be synchronized externally.
+ *
+ * @param <R> the type of the rectangles stored
+ */
+public final class FlatRTreeRepository<R extends IdentifiableRectangle>
+        implements RectangleRepository<R> {
+
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] x;
+    private long[] y;
+    private long[] x2;
+    private long[] y2;
+    private long[] minimumWidthInside;
+    private long[] minimumHeightInside;
+    /**
+     * Slot of the highest leaf inside each node, which is the node itself for leaves
+     */
+    private int[] topmostLeaf;
+    /**
+     * Slot of the lowest leaf inside each node, which is the node itself for leaves
+     */
+    private int[] bottommostLeaf;
+    private int[] left;
+    private int[] right;
+    private int[] parent;
+    private Object[] values;
+
+    /**
+     * Slots after this one have never been used
+     */
+    private int highWaterMark;
+    /**
+     * Head of the list of freed slots, linked through {@link #left}
+     */
+    private int freeListHead = NIL;
+    private int root = NIL;
+    /**
+     * Incremented on every modification, so cursors can tell they're not valid anymore
+     */
+    private int modifications;
+
+    private final Map<UUID, Integer> slotsById = new HashMap<>();
+    private final Comparator<? super R> zOrder;
+
+    public FlatRTreeRepository(Comparator<? super R> zOrder) {
+        this(zOrder, INITIAL_CAPACITY);
+    }
+
+    public FlatRTreeRepository(Comparator<? super R> zOrder, int initialCapacity) {
+        this.zOrder = zOrder;
+        int capacity = Math.max(1, initialCapacity);
+        this.x = new long[capacity];
+        this.y = new long[capacity];
+        this.x2 = new long[capacity];
+        this.y2 = new long[capacity];
+        this.minimumWidthInside = new long[capacity];
+        this.minimumHeightInside = new long[capacity];
+        this.topmostLeaf = new int[capacity];
+        this.bottommostLeaf = new int[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.parent = new int[capacity];
+        this.values = new Object[capacity];
+    }
+
+    /**
+     * @return the number of slots currently allocated in the node arrays, used or not
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    @Override
+    public boolean add(R rectangle) {
+        if (slotsById.containsKey(rectangle.getId())) {
+            return false;
+        }
+        modifications++;
+        int leaf = allocate();
+        x[leaf] = rectangle.getX();
+        y[leaf] = rectangle.getY();
+        x2[leaf] = rectangle.getX2();
+        y2[leaf] = rectangle.getY2();
+        minimumWidthInside[leaf] = x2[leaf] - x[leaf];
+        minimumHeightInside[leaf] = y2[leaf] - y[leaf];
+        topmostLeaf[leaf] = leaf;
+        bottommostLeaf[leaf] = leaf;
+        left[leaf] = NIL;
+        right[leaf] = NIL;
+        parent[leaf] = NIL;
+        values[leaf] = rectangle;
+        slotsById.put(rectangle.getId(), leaf);
+
+        if (root == NIL) {
+            root = leaf;
+            return true;
+        }
+
+        int current = root;
+        while (!isLeaf(current)) {
+            if (rectangle.contains(x[current], y[current], x2[current], y2[current])) {
+                // The new rectangle contains the whole subtree, so it becomes its sibling
+                break;
+            }
+            int currentLeft = left[current];
+            int currentRight = right[current];
+            if (contains(currentLeft, rectangle)) {
+                current = currentLeft;
+            } else if (contains(currentRight, rectangle)) {
+                current = currentRight;
+            } else if (areaIncrease(currentLeft, rectangle)
+                    <= areaIncrease(currentRight, rectangle)) {
+                current = currentLeft;
+            } else {
+                current = currentRight;
+            }
+        }
+        merge(current, leaf);
+        return true;
+    }
+
+    @Override
+    public boolean remove(R rectangle) {
+        Integer slot = slotsById.remove(rectangle.getId());
+        if (slot == null) {
+            return false;
+        }
+        modifications++;
+        int leaf = slot;
+        int leafParent = parent[leaf];
+        free(leaf);
+        if (leafParent == NIL) {
+            root = NIL;
+            return true;
+        }
+        int sibling = left[leafParent] == leaf ? right[leafParent] : left[leafParent];
+        int grandparent = parent[leafParent];
+        replaceChild(grandparent, leafParent, sibling);
+        free(leafParent);
+        refit(grandparent);
+        return true;
+    }
+
+    /**
+     * If the new bounds still fit inside the parent of the leaf, the leaf slot is reused for the
+     * new rectangle and only its ancestors are refitted. Otherwise, it's removed and added again.
+     */
+    @Override
+    public boolean update(R oldRectangle, R newRectangle) {
+        if (!oldRectangle.getId().equals(newRectangle.getId())) {
+            throw new IllegalArgumentException("Cannot update a rectangle with a different ID");
+        }
+        Integer slot = slotsById.get(oldRectangle.getId());
+        if (slot == null) {
+            return false;
+        }
+        int leaf = slot;
+        int leafParent = parent[leaf];
+        if (leafParent == NIL || !contains(leafParent, newRectangle)) {
+            return RectangleRepository.super.update(oldRectangle, newRectangle);
+        }
+        modifications++;
+        x[leaf] = newRectangle.getX();
+        y[leaf] = newRectangle.getY();
+        x2[leaf] = newRectangle.getX2();
+        y2[leaf] = newRectangle.getY2();
+        minimumWidthInside[leaf] = x2[leaf] - x[leaf];
+        minimumHeightInside[leaf] = y2[leaf] - y[leaf];
+        values[leaf] = newRectangle;
+        refit(leafParent, true);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<R> findAllInside(Rectangle rectangle) {
+        List<R> result = new ArrayList<>();
+        if (root == NIL) {
+            return result;
+        }
+        long searchX = rectangle.getX();
+        long searchY = rectangle.getY();
+        long searchX2 = rectangle.getX2();
+        long searchY2 = rectangle.getY2();
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        while (stackSize > 0) {
+            int current = stack[--stackSize];
+            if (isLeaf(current)) {
+                if (rectangle.contains(x[current], y[current], x2[current], y2[current])) {
+                    result.add((R) values[current]);
+                }
+                continue;
+            }
+            // Internal nodes always have both children
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            int currentLeft = left[current];
+            int currentRight = right[current];
+            if (mayContainAnyInside(currentLeft, searchX, searchY, searchX2, searchY2)) {
+                stack[stackSize++] = currentLeft;
+            }
+            if (mayContainAnyInside(currentRight, searchX, searchY, searchX2, searchY2)) {
+                stack[stackSize++] = currentRight;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle) {
+        int expectedModifications = modifications;
+        long searchX = rectangle.getX();
+        long searchY = rectangle.getY();
+        long searchX2 = rectangle.getX2();
+        long searchY2 = rectangle.getY2();
+        return new AbstractCursor<>() {
+
+            private int[] stack = new int[64];
+            private int stackSize;
+
+            {
+                if (root != NIL) {
+                    stack[stackSize++] = root;
+                }
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected R computeNext() {
+                if (modifications != expectedModifications) {
+                    throw new ConcurrentModificationException();
+                }
+                while (stackSize > 0) {
+                    int current = stack[--stackSize];
+                    if (isLeaf(current)) {
+                        if (rectangle.contains(x[current], y[current], x2[current], y2[current])) {
+                            return (R) values[current];
+                        }
+                        continue;
+                    }
+                    if (stackSize + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    int currentLeft = left[current];
+                    int currentRight = right[current];
+                    if (mayContainAnyInside(currentLeft, searchX, searchY, searchX2, searchY2)) {
+                        stack[stackSize++] = currentLeft;
+                    }
+                    if (mayContainAnyInside(currentRight, searchX, searchY, searchX2, searchY2)) {
+                        stack[stackSize++] = currentRight;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Best-first search: nodes are visited in order of their highest (or lowest) leaf, so each
+     * rectangle is found before any node which can only have rectangles after it.
+     */
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle, ZOrder order) {
+        int expectedModifications = modifications;
+        long searchX = rectangle.getX();
+        long searchY = rectangle.getY();
+        long searchX2 = rectangle.getX2();
+        long searchY2 = rectangle.getY2();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(order == ZOrder.ASCENDING
+                ? (a, b) -> compareZ(bottommostLeaf[a], bottommostLeaf[b])
+                : (a, b) -> compareZ(topmostLeaf[b], topmostLeaf[a]));
+        if (root != NIL) {
+            queue.add(root);
+        }
+        return new AbstractCursor<>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected R computeNext() {
+                if (modifications != expectedModifications) {
+                    throw new ConcurrentModificationException();
+                }
+                while (!queue.isEmpty()) {
+                    int current = queue.poll();
+                    if (isLeaf(current)) {
+                        if (rectangle.contains(x[current], y[current], x2[current], y2[current])) {
+                            return (R) values[current];
+                        }
+                        continue;
+                    }
+                    int currentLeft = left[current];
+                    int currentRight = right[current];
+                    if (mayContainAnyInside(currentLeft, searchX, searchY, searchX2, searchY2)) {
+                        queue.add(currentLeft);
+                    }
+                    if (mayContainAnyInside(currentRight, searchX, searchY, searchX2, searchY2)) {
+                        queue.add(currentRight);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<R> findAllIntersecting(Rectangle rectangle) {
+        List<R> result = new ArrayList<>();
+        if (root == NIL) {
+            return result;
+        }
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        while (stackSize > 0) {
+            int current = stack[--stackSize];
+            if (!rectangle.intersects(x[current], y[current], x2[current], y2[current])) {
+                continue;
+            }
+            if (isLeaf(current)) {
+                result.add((R) values[current]);
+                continue;
+            }
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[stackSize++] = left[current];
+            stack[stackSize++] = right[current];
+        }
+        return result;
+    }
+
+    /**
+     * Goes into the subtree with the highest leaf first, and skips subtrees which can't have
+     * anything higher than what was already found.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Optional<R> findTopmostAt(long pointX, long pointY) {
+        if (root == NIL) {
+            return Optional.empty();
+        }
+        int result = NIL;
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = root;
+        while (stackSize > 0) {
+            int current = stack[--stackSize];
+            if ((result != NIL && compareZ(topmostLeaf[current], result) <= 0)
+                    || x[current] > pointX
+                    || x2[current] <= pointX
+                    || y[current] > pointY
+                    || y2[current] <= pointY) {
+                continue;
+            }
+            if (isLeaf(current)) {
+                result = current;
+                continue;
+            }
+            if (stackSize + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            int currentLeft = left[current];
+            int currentRight = right[current];
+            // The highest one is pushed last, so it's searched first
+            if (compareZ(topmostLeaf[currentLeft], topmostLeaf[currentRight]) <= 0) {
+                stack[stackSize++] = currentLeft;
+                stack[stackSize++] = currentRight;
+            } else {
+                stack[stackSize++] = currentRight;
+                stack[stackSize++] = currentLeft;
+            }
+        }
+        return result == NIL ? Optional.empty() : Optional.of((R) values[result]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareZ(int leaf, int otherLeaf) {
+        return zOrder.compare((R) values[leaf], (R) values[otherLeaf]);
+    }
+
+    private boolean mayContainAnyInside(
+            int node,
+            long searchX,
+            long searchY,
+            long searchX2,
+            long searchY2) {
+        long intersectionX = Math.max(x[node], searchX);
+        long intersectionX2 = Math.min(x2[node], searchX2);
+        if (intersectionX > intersectionX2
+                || Long.compareUnsigned(intersectionX2 - intersectionX, minimumWidthInside[node])
+                < 0) {
+            return false;
+        }
+        long intersectionY = Math.max(y[node], searchY);
+        long intersectionY2 = Math.min(y2[node], searchY2);
+        return intersectionY <= intersectionY2
+                && Long.compareUnsigned(intersectionY2 - intersectionY, minimumHeightInside[node])
+                >= 0;
+    }
+
+    private boolean isLeaf(int node) {
+        return values[node] != null;
+    }
+
+    private boolean contains(int node, Rectangle rectangle) {
+        return x[node] <= rectangle.getX()
+                && x2[node] >= rectangle.getX2()
+                && y[node] <= rectangle.getY()
+                && y2[node] >= rectangle.getY2();
+    }
+
+    /**
+     * Only used to decide where to insert, so precision isn't important
+     */
+    private double areaIncrease(int node, Rectangle rectangle) {
+        double joinedArea = area(
+                Math.min(x[node], rectangle.getX()),
+                Math.min(y[node], rectangle.getY()),
+                Math.max(x2[node], rectangle.getX2()),
+                Math.max(y2[node], rectangle.getY2()));
+        return joinedArea - area(x[node], y[node], x2[node], y2[node]);
+    }
+
+    private static double area(long x, long y, long x2, long y2) {
+        return ((double) x2 - (double) x) * ((double) y2 - (double) y);
+    }
+
+    /*
+        Replaces the existing node with a new internal node having the existing node and the new
+        leaf as children
+
+                P                P
+                |                |
+                E      ->        N
+                                / \
+                               E   L
+     */
+    private void merge(int existing, int leaf) {
+        int existingParent = parent[existing];
+        int node = allocate();
+        values[node] = null;
+        left[node] = existing;
+        right[node] = leaf;
+        parent[existing] = node;
+        parent[leaf] = node;
+        replaceChild(existingParent, existing, node);
+        refit(node);
+    }
+
+    private void replaceChild(int node, int oldChild, int newChild) {
+        parent[newChild] = node;
+        if (node == NIL) {
+            root = newChild;
+        } else if (left[node] == oldChild) {
+            left[node] = newChild;
+        } else {
+            right[node] = newChild;
+        }
+    }
+
+    /**
+     * Recomputes the bounds of the node and of its ancestors from their children, stopping as
+     * soon as nothing changes.
+     */
+    private void refit(int node) {
+        refit(node, false);
+    }
+
+    /**
+     * @param wholePath whether to go all the way up to the root, which is needed when a leaf
+     * slot was reused for a different value, since the slots alone can't tell it changed
+     */
+    private void refit(int node, boolean wholePath) {
+        int current = node;
+        while (current != NIL) {
+            int l = left[current];
+            int r = right[current];
+            long newX = Math.min(x[l], x[r]);
+            long newY = Math.min(y[l], y[r]);
+            long newX2 = Math.max(x2[l], x2[r]);
+            long newY2 = Math.max(y2[l], y2[r]);
+            long newMinimumWidth = unsignedMin(minimumWidthInside[l], minimumWidthInside[r]);
+            long newMinimumHeight = unsignedMin(minimumHeightInside[l], minimumHeightInside[r]);
+            int newTopmostLeaf =
+                    compareZ(topmostLeaf[l], topmostLeaf[r]) >= 0 ? topmostLeaf[l] : topmostLeaf[r];
+            int newBottommostLeaf = compareZ(bottommostLeaf[l], bottommostLeaf[r]) <= 0
+                    ? bottommostLeaf[l]
+                    : bottommostLeaf[r];
+            if (current != node
+                    && !wholePath
+                    && x[current] == newX
+                    && y[current] == newY
+                    && x2[current] == newX2
+                    && y2[current] == newY2
+                    && minimumWidthInside[current] == newMinimumWidth
+                    && minimumHeightInside[current] == newMinimumHeight
+                    && topmostLeaf[current] == newTopmostLeaf
+                    && bottommostLeaf[current] == newBottommostLeaf) {
+                return;
+            }
+            x[current] = newX;
+            y[current] = newY;
+            x2[current] = newX2;
+            y2[current] = newY2;
+            minimumWidthInside[current] = newMinimumWidth;
+            minimumHeightInside[current] = newMinimumHeight;
+            topmostLeaf[current] = newTopmostLeaf;
+            bottommostLeaf[current] = newBottommostLeaf;
+            current = parent[current];
+        }
+    }
+
+    private static long unsignedMin(long a, long b) {
+        return Long.compareUnsigned(a, b) <= 0 ? a : b;
+    }
+
+    private int allocate() {
+        if (freeListHead != NIL) {
+            int slot = freeListHead;
+            freeListHead = left[slot];
+            return slot;
+        }
+        if (highWaterMark == values.length) {
+            grow();
+        }
+        return highWaterMark++;
+    }
+
+    private void free(int slot) {
+        values[slot] = null;
+        parent[slot] = NIL;
+        right[slot] = NIL;
+        left[slot] = freeListHead;
+        freeListHead = slot;
+    }
+
+    private void grow() {
+        int capacity = values.length * 2;
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        x2 = Arrays.copyOf(x2, capacity);
+        y2 = Arrays.copyOf(y2, capacity);
+        minimumWidthInside = Arrays.copyOf(minimumWidthInside, capacity);
+        minimumHeightInside = Arrays.copyOf(minimumHeightInside, capacity);
+        topmostLeaf = Arrays.copyOf(topmostLeaf, capacity);
+        bottommostLeaf = Arrays.copyOf(bottommostLeaf, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+}
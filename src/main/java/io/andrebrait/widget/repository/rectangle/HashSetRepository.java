@@ -1,26 +1,81 @@
 package io.andrebrait.widget.repository.rectangle;
 
+import io.andrebrait.widget.domain.IdentifiableRectangle;
+import io.andrebrait.widget.domain.Rectangle;
+
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-public class HashSetRepository implements RectangleRepository {
+public class HashSetRepository<R extends IdentifiableRectangle> implements RectangleRepository<R> {
+
+    private final Set<R> repository = new HashSet<>();
+    private final Comparator<? super R> zOrder;
 
-    private final Set<InternalRectangle> repository = new HashSet<>();
+    public HashSetRepository(Comparator<? super R> zOrder) {
+        this.zOrder = zOrder;
+    }
 
     @Override
-    public boolean add(InternalRectangle rectangle) {
+    public boolean add(R rectangle) {
         return repository.add(rectangle);
     }
 
     @Override
-    public boolean remove(InternalRectangle rectangle) {
+    public boolean remove(R rectangle) {
         return repository.remove(rectangle);
     }
 
     @Override
-    public List<InternalRectangle> findAllInside(InternalRectangle rectangle) {
+    public List<R> findAllInside(Rectangle rectangle) {
         return repository.stream().filter(rectangle::contains).collect(Collectors.toList());
     }
+
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle) {
+        Iterator<R> iterator = repository.iterator();
+        return new AbstractCursor<>() {
+            @Override
+            protected R computeNext() {
+                while (iterator.hasNext()) {
+                    R candidate = iterator.next();
+                    if (rectangle.contains(candidate)) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Not lazy at all: the results are collected and sorted upfront.
+     */
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle, ZOrder order) {
+        Comparator<R> ascending = zOrder::compare;
+        List<R> sorted = findAllInside(rectangle);
+        sorted.sort(order == ZOrder.ASCENDING ? ascending : ascending.reversed());
+        Iterator<R> iterator = sorted.iterator();
+        return new AbstractCursor<>() {
+            @Override
+            protected R computeNext() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+        };
+    }
+
+    @Override
+    public List<R> findAllIntersecting(Rectangle rectangle) {
+        return repository.stream().filter(rectangle::intersects).collect(Collectors.toList());
+    }
+
+    @Override
+    public Optional<R> findTopmostAt(long x, long y) {
+        return repository.stream().filter(r -> r.containsPoint(x, y)).max(zOrder);
+    }
 }
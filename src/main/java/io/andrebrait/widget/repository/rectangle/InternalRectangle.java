@@ -30,6 +30,13 @@ class InternalRectangle implements Rectangle {
         return new InternalRectangle(x, y, x2, y2);
     }
 
+    public static InternalRectangle of(Rectangle rectangle) {
+        if (rectangle instanceof InternalRectangle) {
+            return (InternalRectangle) rectangle;
+        }
+        return of(rectangle.getX(), rectangle.getY(), rectangle.getX2(), rectangle.getY2());
+    }
+
     public InternalRectangle join(Rectangle o) {
         return of(
                 Math.min(x, o.getX()),
@@ -0,0 +1,516 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.IdentifiableRectangle;
+import io.andrebrait.widget.domain.Rectangle;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A persistent (in the functional sense) M-ary R-Tree, safe to be used by many threads without
+ * external synchronization.<br><br>
+ *
+ * Nodes are immutable. Adding or removing a rectangle copies only the nodes on the path from the
+ * root to the affected leaf (plus the ones created by splits or dissolved by underflows) and then
+ * publishes the new root through an {@link AtomicReference}. Queries read the root once and
+ * traverse that snapshot, so they never take a lock, never block writers and never see a
+ * half-applied modification.<br><br>
+ *
+ * Writers are serialized by a lock, which is only ever held by writers. The index from IDs to
+ * entries is only used by writers, so it's a plain {@link HashMap} guarded by that lock.<br><br>
+ *
+ * The tree is kept balanced like a classic R-Tree: nodes have between {@code minEntries} and
+ * {@code maxEntries} entries (except the root), overflowing nodes are split in two along their
+ * widest axis, and underflowing nodes are dissolved and their entries inserted again. Every node
+ * also keeps the highest and the lowest values inside it, so point queries and searches in
+ * Z-order can visit the nodes best-first.<br><br>
+ *
+ * Cursors traverse the snapshot taken when they were created, so they stay valid (and keep
+ * seeing that same snapshot) regardless of later modifications.<br><br>
+ *
+ * Values must not be modified while they're in the repository, as concurrent queries may be
+ * reading them.
+ *
+ * @param <R> the type of the rectangles stored
+ */
+public final class PersistentRTreeRepository<R extends IdentifiableRectangle>
+        implements RectangleRepository<R> {
+
+    public static final int DEFAULT_MIN_ENTRIES = 4;
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private static final Comparator<Node<?>> CENTER_X_COMPARATOR =
+            Comparator.comparingLong(node -> node.x / 2 + node.x2 / 2);
+    private static final Comparator<Node<?>> CENTER_Y_COMPARATOR =
+            Comparator.comparingLong(node -> node.y / 2 + node.y2 / 2);
+
+    private static final class Node<R> {
+
+        private final long x;
+        private final long y;
+        private final long x2;
+        private final long y2;
+
+        /**
+         * -1 for entries holding a value, 0 for leaves, and so on
+         */
+        private final int level;
+
+        @Nullable
+        private final R value;
+        /**
+         * The highest value inside this node, which is {@code null} only for an empty root
+         */
+        @Nullable
+        private final R topmost;
+        /**
+         * The lowest value inside this node, which is {@code null} only for an empty root
+         */
+        @Nullable
+        private final R bottommost;
+        private final List<Node<R>> children;
+
+        private Node(R value, Rectangle bounds) {
+            this.x = bounds.getX();
+            this.y = bounds.getY();
+            this.x2 = bounds.getX2();
+            this.y2 = bounds.getY2();
+            this.level = -1;
+            this.value = value;
+            this.topmost = value;
+            this.bottommost = value;
+            this.children = List.of();
+        }
+
+        /**
+         * @param children the children, which must not be modified afterwards
+         */
+        private Node(int level, List<Node<R>> children, Comparator<? super R> zOrder) {
+            long newX = Long.MAX_VALUE;
+            long newY = Long.MAX_VALUE;
+            long newX2 = Long.MIN_VALUE;
+            long newY2 = Long.MIN_VALUE;
+            R newTopmost = null;
+            R newBottommost = null;
+            for (Node<R> child : children) {
+                newX = Math.min(newX, child.x);
+                newY = Math.min(newY, child.y);
+                newX2 = Math.max(newX2, child.x2);
+                newY2 = Math.max(newY2, child.y2);
+                if (newTopmost == null || zOrder.compare(child.topmost, newTopmost) > 0) {
+                    newTopmost = child.topmost;
+                }
+                if (newBottommost == null || zOrder.compare(child.bottommost, newBottommost) < 0) {
+                    newBottommost = child.bottommost;
+                }
+            }
+            this.x = newX;
+            this.y = newY;
+            this.x2 = newX2;
+            this.y2 = newY2;
+            this.level = level;
+            this.value = null;
+            this.topmost = newTopmost;
+            this.bottommost = newBottommost;
+            this.children = children;
+        }
+
+        private boolean contains(Node<R> o) {
+            return x <= o.x && x2 >= o.x2 && y <= o.y && y2 >= o.y2;
+        }
+
+        private double areaEnlargement(Node<R> o) {
+            double joinedArea = area(
+                    Math.min(x, o.x),
+                    Math.min(y, o.y),
+                    Math.max(x2, o.x2),
+                    Math.max(y2, o.y2));
+            return joinedArea - area(x, y, x2, y2);
+        }
+
+        private static double area(long x, long y, long x2, long y2) {
+            return ((double) x2 - (double) x) * ((double) y2 - (double) y);
+        }
+    }
+
+    private final int minEntries;
+    private final int maxEntries;
+    private final Comparator<? super R> zOrder;
+    private final Comparator<Node<R>> topmostFirst;
+    private final Comparator<Node<R>> bottommostFirst;
+
+    private final AtomicReference<Node<R>> root;
+
+    private final Lock writeLock = new ReentrantLock();
+    private final Map<UUID, Node<R>> entriesById = new HashMap<>();
+
+    public PersistentRTreeRepository(Comparator<? super R> zOrder) {
+        this(zOrder, DEFAULT_MIN_ENTRIES, DEFAULT_MAX_ENTRIES);
+    }
+
+    public PersistentRTreeRepository(
+            Comparator<? super R> zOrder,
+            int minEntries,
+            int maxEntries) {
+        if (maxEntries < 4) {
+            throw new IllegalArgumentException("'maxEntries' must be at least 4");
+        }
+        if (minEntries < 2 || minEntries > maxEntries / 2) {
+            throw new IllegalArgumentException(
+                    "'minEntries' must be between 2 and half of 'maxEntries'");
+        }
+        this.minEntries = minEntries;
+        this.maxEntries = maxEntries;
+        this.zOrder = zOrder;
+        this.topmostFirst = (a, b) -> zOrder.compare(b.topmost, a.topmost);
+        this.bottommostFirst = (a, b) -> zOrder.compare(a.bottommost, b.bottommost);
+        this.root = new AtomicReference<>(new Node<>(0, List.of(), zOrder));
+    }
+
+    /**
+     * @return the number of levels of the current snapshot, counting the leaves and the root
+     */
+    public int height() {
+        return root.get().level + 1;
+    }
+
+    @Override
+    public boolean add(R rectangle) {
+        writeLock.lock();
+        try {
+            if (entriesById.containsKey(rectangle.getId())) {
+                return false;
+            }
+            Node<R> entry = new Node<>(rectangle, rectangle);
+            entriesById.put(rectangle.getId(), entry);
+            root.set(insert(root.get(), entry));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(R rectangle) {
+        writeLock.lock();
+        try {
+            Node<R> entry = entriesById.remove(rectangle.getId());
+            if (entry == null) {
+                return false;
+            }
+            root.set(remove(root.get(), entry));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the old rectangle and adds the new one to the same copy of the tree, so there's a
+     * single new snapshot: readers see either the old rectangle or the new one, never none.
+     */
+    @Override
+    public boolean update(R oldRectangle, R newRectangle) {
+        if (!oldRectangle.getId().equals(newRectangle.getId())) {
+            throw new IllegalArgumentException("Cannot update a rectangle with a different ID");
+        }
+        writeLock.lock();
+        try {
+            Node<R> entry = entriesById.get(oldRectangle.getId());
+            if (entry == null) {
+                return false;
+            }
+            Node<R> newEntry = new Node<>(newRectangle, newRectangle);
+            entriesById.put(newRectangle.getId(), newEntry);
+            root.set(insert(remove(root.get(), entry), newEntry));
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the root of a copy of the tree without the entry
+     */
+    private Node<R> remove(Node<R> currentRoot, Node<R> entry) {
+        List<Node<R>> orphans = new ArrayList<>();
+        Node<R> newRoot = remove(currentRoot, entry, orphans);
+        if (newRoot == null) {
+            throw new IllegalStateException("Entry not found in the tree: " + entry.value);
+        }
+        while (newRoot.level > 0 && newRoot.children.size() == 1) {
+            newRoot = newRoot.children.get(0);
+        }
+        // Higher entries first, so the tree is tall enough for them
+        orphans.sort(Comparator.comparingInt((Node<R> n) -> n.level).reversed());
+        for (Node<R> orphan : orphans) {
+            newRoot = insert(newRoot, orphan);
+        }
+        return newRoot;
+    }
+
+    /**
+     * Never blocks. The result reflects the tree as it was when the search started.
+     */
+    @Override
+    public List<R> findAllInside(Rectangle rectangle) {
+        List<R> result = new ArrayList<>();
+        Deque<Node<R>> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root.get());
+        while (!nodeSearchStack.isEmpty()) {
+            Node<R> currentNode = nodeSearchStack.pop();
+            for (Node<R> child : currentNode.children) {
+                if (child.value != null) {
+                    if (rectangle.contains(child.x, child.y, child.x2, child.y2)) {
+                        result.add(child.value);
+                    }
+                } else if (child.x <= rectangle.getX2()
+                        && child.x2 >= rectangle.getX()
+                        && child.y <= rectangle.getY2()
+                        && child.y2 >= rectangle.getY()) {
+                    nodeSearchStack.push(child);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Never blocks, and never becomes invalid. The cursor reflects the tree as it was when it was
+     * created.
+     */
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle) {
+        Deque<Node<R>> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root.get());
+        return new AbstractCursor<>() {
+            @Override
+            protected R computeNext() {
+                while (!nodeSearchStack.isEmpty()) {
+                    Node<R> currentNode = nodeSearchStack.pop();
+                    if (currentNode.value != null) {
+                        return currentNode.value;
+                    }
+                    // Entries holding a value are only pushed if they're inside the rectangle
+                    for (Node<R> child : currentNode.children) {
+                        if (child.value != null) {
+                            if (rectangle.contains(child.x, child.y, child.x2, child.y2)) {
+                                nodeSearchStack.push(child);
+                            }
+                        } else if (child.x <= rectangle.getX2()
+                                && child.x2 >= rectangle.getX()
+                                && child.y <= rectangle.getY2()
+                                && child.y2 >= rectangle.getY()) {
+                            nodeSearchStack.push(child);
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Never blocks, and never becomes invalid. Best-first search: nodes are visited in order of
+     * their highest (or lowest) value, so each value is found before any node which can only
+     * have values after it.
+     */
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle, ZOrder order) {
+        PriorityQueue<Node<R>> queue = new PriorityQueue<>(
+                order == ZOrder.ASCENDING ? bottommostFirst : topmostFirst);
+        Node<R> currentRoot = root.get();
+        if (!currentRoot.children.isEmpty()) {
+            queue.add(currentRoot);
+        }
+        return new AbstractCursor<>() {
+            @Override
+            protected R computeNext() {
+                while (!queue.isEmpty()) {
+                    Node<R> currentNode = queue.poll();
+                    if (currentNode.value != null) {
+                        return currentNode.value;
+                    }
+                    // Entries holding a value are only queued if they're inside the rectangle
+                    for (Node<R> child : currentNode.children) {
+                        if (child.value != null) {
+                            if (rectangle.contains(child.x, child.y, child.x2, child.y2)) {
+                                queue.add(child);
+                            }
+                        } else if (child.x <= rectangle.getX2()
+                                && child.x2 >= rectangle.getX()
+                                && child.y <= rectangle.getY2()
+                                && child.y2 >= rectangle.getY()) {
+                            queue.add(child);
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Never blocks. The result reflects the tree as it was when the search started.
+     */
+    @Override
+    public List<R> findAllIntersecting(Rectangle rectangle) {
+        List<R> result = new ArrayList<>();
+        Deque<Node<R>> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root.get());
+        while (!nodeSearchStack.isEmpty()) {
+            Node<R> currentNode = nodeSearchStack.pop();
+            for (Node<R> child : currentNode.children) {
+                if (rectangle.intersects(child.x, child.y, child.x2, child.y2)) {
+                    if (child.value != null) {
+                        result.add(child.value);
+                    } else {
+                        nodeSearchStack.push(child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Never blocks. Best-first search: nodes are visited from the one with the highest value
+     * inside it, so the first value reached is the answer.
+     */
+    @Override
+    public Optional<R> findTopmostAt(long x, long y) {
+        Node<R> currentRoot = root.get();
+        if (currentRoot.children.isEmpty()) {
+            return Optional.empty();
+        }
+        PriorityQueue<Node<R>> queue = new PriorityQueue<>(topmostFirst);
+        queue.add(currentRoot);
+        while (!queue.isEmpty()) {
+            Node<R> currentNode = queue.poll();
+            if (currentNode.value != null) {
+                return Optional.of(currentNode.value);
+            }
+            for (Node<R> child : currentNode.children) {
+                if (child.x <= x && x < child.x2 && child.y <= y && y < child.y2) {
+                    queue.add(child);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return a copy of the root with the entry inserted one level above its own, possibly
+     * one level taller if the root had to be split
+     */
+    private Node<R> insert(Node<R> currentRoot, Node<R> entry) {
+        List<Node<R>> inserted = insert(currentRoot, entry, entry.level + 1);
+        if (inserted.size() == 1) {
+            return inserted.get(0);
+        }
+        return new Node<>(currentRoot.level + 1, inserted, zOrder);
+    }
+
+    /**
+     * @return a copy of the node with the entry inserted, or two nodes if it had to be split
+     */
+    private List<Node<R>> insert(Node<R> node, Node<R> entry, int level) {
+        List<Node<R>> children = new ArrayList<>(node.children.size() + 1);
+        children.addAll(node.children);
+        if (node.level == level) {
+            children.add(entry);
+        } else {
+            int chosen = chooseSubtree(node, entry);
+            List<Node<R>> inserted = insert(children.get(chosen), entry, level);
+            children.set(chosen, inserted.get(0));
+            if (inserted.size() > 1) {
+                children.add(inserted.get(1));
+            }
+        }
+        if (children.size() <= maxEntries) {
+            return List.of(new Node<>(node.level, List.copyOf(children), zOrder));
+        }
+        return split(node.level, children);
+    }
+
+    private static <R> int chooseSubtree(Node<R> node, Node<R> entry) {
+        int best = -1;
+        double bestEnlargement = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < node.children.size(); i++) {
+            Node<R> child = node.children.get(i);
+            if (child.contains(entry)) {
+                return i;
+            }
+            double enlargement = child.areaEnlargement(entry);
+            if (enlargement < bestEnlargement) {
+                best = i;
+                bestEnlargement = enlargement;
+            }
+        }
+        if (best < 0) {
+            throw new IllegalStateException("Invalid internal node without children");
+        }
+        return best;
+    }
+
+    /**
+     * Splits the entries in two halves, sorted by their centers along the widest axis
+     */
+    private List<Node<R>> split(int level, List<Node<R>> entries) {
+        Node<R> bounds = new Node<>(level, entries, zOrder);
+        boolean wider = Long.compareUnsigned(bounds.x2 - bounds.x, bounds.y2 - bounds.y) >= 0;
+        entries.sort(wider ? CENTER_X_COMPARATOR : CENTER_Y_COMPARATOR);
+        int middle = entries.size() / 2;
+        return List.of(
+                new Node<>(level, List.copyOf(entries.subList(0, middle)), zOrder),
+                new Node<>(level, List.copyOf(entries.subList(middle, entries.size())), zOrder));
+    }
+
+    /**
+     * @return a copy of the node without the entry, or {@code null} if the entry isn't in it.
+     * Children left with too few entries are dropped and their entries added to the orphans.
+     */
+    @Nullable
+    private Node<R> remove(Node<R> node, Node<R> entry, List<Node<R>> orphans) {
+        if (node.level == 0) {
+            int index = node.children.indexOf(entry);
+            if (index < 0) {
+                return null;
+            }
+            List<Node<R>> children = new ArrayList<>(node.children);
+            children.remove(index);
+            return new Node<>(0, List.copyOf(children), zOrder);
+        }
+        for (int i = 0; i < node.children.size(); i++) {
+            Node<R> child = node.children.get(i);
+            if (!child.contains(entry)) {
+                continue;
+            }
+            Node<R> removed = remove(child, entry, orphans);
+            if (removed == null) {
+                continue;
+            }
+            List<Node<R>> children = new ArrayList<>(node.children);
+            if (removed.children.size() < minEntries) {
+                children.remove(i);
+                orphans.addAll(removed.children);
+            } else {
+                children.set(i, removed);
+            }
+            return new Node<>(node.level, List.copyOf(children), zOrder);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,693 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.IdentifiableRectangle;
+import io.andrebrait.widget.domain.Rectangle;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * An M-ary R*-Tree. Unlike {@link RTreeRepository}, this one balances itself, so its height stays
+ * at O(log<sub>M</sub> n) regardless of the order rectangles are added and removed in.<br><br>
+ *
+ * It follows the original paper closely:
+ * <ul>
+ *     <li>Every node other than the root has between {@code minEntries} and {@code maxEntries}
+ *     entries, and all leaves are on the same level</li>
+ *     <li>The subtree to insert into is the one needing the least overlap enlargement (right
+ *     above the leaves) or the least area enlargement (anywhere else)</li>
+ *     <li>The first time a level overflows during an insertion, the 30% entries farthest from
+ *     the center of the node are removed and inserted again (forced reinsertion)</li>
+ *     <li>If it overflows again, the node is split along the axis with the smallest margin sum,
+ *     choosing the distribution with the least overlap</li>
+ *     <li>On removal, nodes with less than {@code minEntries} entries are dissolved and their
+ *     entries are inserted again at the level they were</li>
+ * </ul>
+ *
+ * Every node also keeps the highest and the lowest values inside it, so
+ * {@link #findTopmostAt(long, long)} and {@link #cursorInside(Rectangle, ZOrder)} can search
+ * best-first, and stop as soon as no node left can have anything higher (or lower).<br><br>
+ *
+ * Areas and distances are only used to choose between nodes, so they're computed with
+ * {@code double}s. Precision doesn't matter much there.<br><br>
+ *
+ * This class is not thread-safe and must be synchronized externally.
+ *
+ * @param <R> the type of the rectangles stored
+ * @see <a href="https://doi.org/10.1145/93597.98741">The R*-tree: an efficient and robust access
+ * method for points and rectangles</a>
+ */
+public final class RStarTreeRepository<R extends IdentifiableRectangle>
+        implements RectangleRepository<R> {
+
+    public static final int DEFAULT_MIN_ENTRIES = 6;
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private static final double REINSERT_FACTOR = 0.3;
+
+    private static final class Node<R> {
+
+        private long x;
+        private long y;
+        private long x2;
+        private long y2;
+
+        /**
+         * -1 for entries holding a value, 0 for leaves, and so on
+         */
+        private final int level;
+
+        @Nullable
+        private final R value;
+        /**
+         * The highest value inside this node, which is {@code null} only for an empty root
+         */
+        @Nullable
+        private R topmost;
+        /**
+         * The lowest value inside this node, which is {@code null} only for an empty root
+         */
+        @Nullable
+        private R bottommost;
+        @Nullable
+        private Node<R> parent;
+        private final List<Node<R>> children;
+
+        private Node(int level, int capacity) {
+            this.level = level;
+            this.value = null;
+            this.children = new ArrayList<>(capacity);
+        }
+
+        private Node(R value, Rectangle bounds) {
+            this.x = bounds.getX();
+            this.y = bounds.getY();
+            this.x2 = bounds.getX2();
+            this.y2 = bounds.getY2();
+            this.level = -1;
+            this.value = value;
+            this.topmost = value;
+            this.bottommost = value;
+            this.children = List.of();
+        }
+
+        private void add(Node<R> child) {
+            children.add(child);
+            child.parent = this;
+        }
+
+        /**
+         * Recomputes the bounds and the highest and lowest values from the children
+         *
+         * @return whether anything changed
+         */
+        private boolean refit(Comparator<? super R> zOrder) {
+            long newX = Long.MAX_VALUE;
+            long newY = Long.MAX_VALUE;
+            long newX2 = Long.MIN_VALUE;
+            long newY2 = Long.MIN_VALUE;
+            R newTopmost = null;
+            R newBottommost = null;
+            for (Node<R> child : children) {
+                newX = Math.min(newX, child.x);
+                newY = Math.min(newY, child.y);
+                newX2 = Math.max(newX2, child.x2);
+                newY2 = Math.max(newY2, child.y2);
+                if (newTopmost == null || zOrder.compare(child.topmost, newTopmost) > 0) {
+                    newTopmost = child.topmost;
+                }
+                if (newBottommost == null || zOrder.compare(child.bottommost, newBottommost) < 0) {
+                    newBottommost = child.bottommost;
+                }
+            }
+            boolean changed = newX != x
+                    || newY != y
+                    || newX2 != x2
+                    || newY2 != y2
+                    || newTopmost != topmost
+                    || newBottommost != bottommost;
+            x = newX;
+            y = newY;
+            x2 = newX2;
+            y2 = newY2;
+            topmost = newTopmost;
+            bottommost = newBottommost;
+            return changed;
+        }
+
+        private double area() {
+            return RStarTreeRepository.area(x, y, x2, y2);
+        }
+
+        private double joinedArea(Node<R> o) {
+            return RStarTreeRepository.area(
+                    Math.min(x, o.x),
+                    Math.min(y, o.y),
+                    Math.max(x2, o.x2),
+                    Math.max(y2, o.y2));
+        }
+
+        private double centerX() {
+            return x / 2.0 + x2 / 2.0;
+        }
+
+        private double centerY() {
+            return y / 2.0 + y2 / 2.0;
+        }
+    }
+
+    private final int minEntries;
+    private final int maxEntries;
+    private final int reinsertCount;
+    private final Comparator<? super R> zOrder;
+    private final Comparator<Node<R>> topmostFirst;
+    private final Comparator<Node<R>> bottommostFirst;
+
+    private final Map<UUID, Node<R>> entriesById = new HashMap<>();
+    private Node<R> root;
+
+    /**
+     * Levels which already had a forced reinsertion during the current insertion, as a bit mask
+     */
+    private long reinsertedLevels;
+    /**
+     * Incremented on every modification, so cursors can tell they're not valid anymore
+     */
+    private int modifications;
+
+    public RStarTreeRepository(Comparator<? super R> zOrder) {
+        this(zOrder, DEFAULT_MIN_ENTRIES, DEFAULT_MAX_ENTRIES);
+    }
+
+    public RStarTreeRepository(Comparator<? super R> zOrder, int minEntries, int maxEntries) {
+        if (maxEntries < 4) {
+            throw new IllegalArgumentException("'maxEntries' must be at least 4");
+        }
+        if (minEntries < 2 || minEntries > maxEntries / 2) {
+            throw new IllegalArgumentException(
+                    "'minEntries' must be between 2 and half of 'maxEntries'");
+        }
+        this.minEntries = minEntries;
+        this.maxEntries = maxEntries;
+        this.reinsertCount = Math.max(1, (int) Math.round(maxEntries * REINSERT_FACTOR));
+        this.zOrder = zOrder;
+        this.topmostFirst = (a, b) -> zOrder.compare(b.topmost, a.topmost);
+        this.bottommostFirst = (a, b) -> zOrder.compare(a.bottommost, b.bottommost);
+        this.root = newNode(0);
+    }
+
+    /**
+     * @return the number of levels of the tree, counting the leaves and the root
+     */
+    public int height() {
+        return root.level + 1;
+    }
+
+    @Override
+    public boolean add(R rectangle) {
+        if (entriesById.containsKey(rectangle.getId())) {
+            return false;
+        }
+        modifications++;
+        Node<R> entry = new Node<>(rectangle, rectangle);
+        entriesById.put(rectangle.getId(), entry);
+        reinsertedLevels = 0;
+        insert(entry);
+        return true;
+    }
+
+    @Override
+    public boolean remove(R rectangle) {
+        Node<R> entry = entriesById.remove(rectangle.getId());
+        if (entry == null) {
+            return false;
+        }
+        modifications++;
+        Node<R> leaf = entry.parent;
+        if (leaf == null) {
+            throw new IllegalStateException("Invalid parent for entry: " + rectangle);
+        }
+        leaf.children.remove(entry);
+        condense(leaf);
+        return true;
+    }
+
+    /**
+     * If the new bounds still fit inside the leaf holding the entry, the entry is replaced in
+     * place and only its ancestors are refitted. Otherwise, it's removed and inserted again.
+     */
+    @Override
+    public boolean update(R oldRectangle, R newRectangle) {
+        if (!oldRectangle.getId().equals(newRectangle.getId())) {
+            throw new IllegalArgumentException("Cannot update a rectangle with a different ID");
+        }
+        Node<R> entry = entriesById.get(oldRectangle.getId());
+        if (entry == null) {
+            return false;
+        }
+        Node<R> leaf = entry.parent;
+        if (leaf == null) {
+            throw new IllegalStateException("Invalid parent for entry: " + oldRectangle);
+        }
+        if (leaf.x <= newRectangle.getX()
+                && leaf.y <= newRectangle.getY()
+                && leaf.x2 >= newRectangle.getX2()
+                && leaf.y2 >= newRectangle.getY2()) {
+            modifications++;
+            Node<R> newEntry = new Node<>(newRectangle, newRectangle);
+            leaf.children.set(leaf.children.indexOf(entry), newEntry);
+            newEntry.parent = leaf;
+            entriesById.put(newRectangle.getId(), newEntry);
+            refitUpwards(leaf);
+            return true;
+        }
+        return RectangleRepository.super.update(oldRectangle, newRectangle);
+    }
+
+    @Override
+    public List<R> findAllInside(Rectangle rectangle) {
+        List<R> result = new ArrayList<>();
+        Deque<Node<R>> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root);
+        while (!nodeSearchStack.isEmpty()) {
+            Node<R> currentNode = nodeSearchStack.pop();
+            for (Node<R> child : currentNode.children) {
+                if (child.value != null) {
+                    if (rectangle.contains(child.x, child.y, child.x2, child.y2)) {
+                        result.add(child.value);
+                    }
+                } else if (child.x <= rectangle.getX2()
+                        && child.x2 >= rectangle.getX()
+                        && child.y <= rectangle.getY2()
+                        && child.y2 >= rectangle.getY()) {
+                    nodeSearchStack.push(child);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle) {
+        int expectedModifications = modifications;
+        Deque<Node<R>> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root);
+        return new AbstractCursor<>() {
+            @Override
+            protected R computeNext() {
+                if (modifications != expectedModifications) {
+                    throw new ConcurrentModificationException();
+                }
+                while (!nodeSearchStack.isEmpty()) {
+                    Node<R> currentNode = nodeSearchStack.pop();
+                    if (currentNode.value != null) {
+                        return currentNode.value;
+                    }
+                    // Entries holding a value are only pushed if they're inside the rectangle
+                    for (Node<R> child : currentNode.children) {
+                        if (child.value != null) {
+                            if (rectangle.contains(child.x, child.y, child.x2, child.y2)) {
+                                nodeSearchStack.push(child);
+                            }
+                        } else if (child.x <= rectangle.getX2()
+                                && child.x2 >= rectangle.getX()
+                                && child.y <= rectangle.getY2()
+                                && child.y2 >= rectangle.getY()) {
+                            nodeSearchStack.push(child);
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Best-first search: nodes are visited in order of their highest (or lowest) value, so each
+     * value is found before any node which can only have values after it.
+     */
+    @Override
+    public Cursor<R> cursorInside(Rectangle rectangle, ZOrder order) {
+        int expectedModifications = modifications;
+        PriorityQueue<Node<R>> queue = new PriorityQueue<>(
+                order == ZOrder.ASCENDING ? bottommostFirst : topmostFirst);
+        Node<R> currentRoot = root;
+        if (!currentRoot.children.isEmpty()) {
+            queue.add(currentRoot);
+        }
+        return new AbstractCursor<>() {
+            @Override
+            protected R computeNext() {
+                if (modifications != expectedModifications) {
+                    throw new ConcurrentModificationException();
+                }
+                while (!queue.isEmpty()) {
+                    Node<R> currentNode = queue.poll();
+                    if (currentNode.value != null) {
+                        return currentNode.value;
+                    }
+                    // Entries holding a value are only queued if they're inside the rectangle
+                    for (Node<R> child : currentNode.children) {
+                        if (child.value != null) {
+                            if (rectangle.contains(child.x, child.y, child.x2, child.y2)) {
+                                queue.add(child);
+                            }
+                        } else if (child.x <= rectangle.getX2()
+                                && child.x2 >= rectangle.getX()
+                                && child.y <= rectangle.getY2()
+                                && child.y2 >= rectangle.getY()) {
+                            queue.add(child);
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public List<R> findAllIntersecting(Rectangle rectangle) {
+        List<R> result = new ArrayList<>();
+        Deque<Node<R>> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root);
+        while (!nodeSearchStack.isEmpty()) {
+            Node<R> currentNode = nodeSearchStack.pop();
+            for (Node<R> child : currentNode.children) {
+                if (rectangle.intersects(child.x, child.y, child.x2, child.y2)) {
+                    if (child.value != null) {
+                        result.add(child.value);
+                    } else {
+                        nodeSearchStack.push(child);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Best-first search: nodes are visited from the one with the highest value inside it, so the
+     * first value reached is the answer.
+     */
+    @Override
+    public Optional<R> findTopmostAt(long x, long y) {
+        if (root.children.isEmpty()) {
+            return Optional.empty();
+        }
+        PriorityQueue<Node<R>> queue = new PriorityQueue<>(topmostFirst);
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Node<R> currentNode = queue.poll();
+            if (currentNode.value != null) {
+                return Optional.of(currentNode.value);
+            }
+            for (Node<R> child : currentNode.children) {
+                if (child.x <= x && x < child.x2 && child.y <= y && y < child.y2) {
+                    queue.add(child);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Node<R> newNode(int level) {
+        return new Node<>(level, maxEntries + 1);
+    }
+
+    /**
+     * Inserts an entry (or a whole subtree) into a node one level above it
+     */
+    private void insert(Node<R> entry) {
+        Node<R> node = chooseSubtree(entry, entry.level + 1);
+        node.add(entry);
+        refitUpwards(node);
+        if (node.children.size() > maxEntries) {
+            treatOverflow(node);
+        }
+    }
+
+    private Node<R> chooseSubtree(Node<R> entry, int level) {
+        Node<R> node = root;
+        while (node.level > level) {
+            boolean minimizeOverlap = node.level == level + 1;
+            Node<R> best = null;
+            double bestOverlapEnlargement = Double.POSITIVE_INFINITY;
+            double bestAreaEnlargement = Double.POSITIVE_INFINITY;
+            double bestArea = Double.POSITIVE_INFINITY;
+            for (Node<R> child : node.children) {
+                double area = child.area();
+                double areaEnlargement = child.joinedArea(entry) - area;
+                double overlapEnlargement =
+                        minimizeOverlap ? overlapEnlargement(node, child, entry) : 0;
+                if (overlapEnlargement < bestOverlapEnlargement
+                        || (overlapEnlargement == bestOverlapEnlargement
+                        && (areaEnlargement < bestAreaEnlargement
+                        || (areaEnlargement == bestAreaEnlargement && area < bestArea)))) {
+                    best = child;
+                    bestOverlapEnlargement = overlapEnlargement;
+                    bestAreaEnlargement = areaEnlargement;
+                    bestArea = area;
+                }
+            }
+            if (best == null) {
+                throw new IllegalStateException("Invalid internal node without children");
+            }
+            node = best;
+        }
+        return node;
+    }
+
+    private static <R> double overlapEnlargement(Node<R> parent, Node<R> child, Node<R> entry) {
+        long joinedX = Math.min(child.x, entry.x);
+        long joinedY = Math.min(child.y, entry.y);
+        long joinedX2 = Math.max(child.x2, entry.x2);
+        long joinedY2 = Math.max(child.y2, entry.y2);
+        double enlargement = 0;
+        for (Node<R> sibling : parent.children) {
+            if (sibling != child) {
+                enlargement += overlap(joinedX, joinedY, joinedX2, joinedY2, sibling)
+                        - overlap(child.x, child.y, child.x2, child.y2, sibling);
+            }
+        }
+        return enlargement;
+    }
+
+    private void treatOverflow(Node<R> node) {
+        long levelBit = 1L << node.level;
+        if (node != root && (reinsertedLevels & levelBit) == 0) {
+            reinsertedLevels |= levelBit;
+            reinsert(node);
+        } else {
+            split(node);
+        }
+    }
+
+    /**
+     * Removes the entries farthest from the center of the node and inserts them again, closest
+     * first. This often moves them to a better node, instead of splitting this one.
+     */
+    private void reinsert(Node<R> node) {
+        double centerX = node.centerX();
+        double centerY = node.centerY();
+        node.children.sort(Comparator.comparingDouble(
+                (Node<R> child) -> distance(child, centerX, centerY)).reversed());
+        List<Node<R>> farthest = new ArrayList<>(node.children.subList(0, reinsertCount));
+        node.children.subList(0, reinsertCount).clear();
+        refitUpwards(node);
+        for (int i = farthest.size() - 1; i >= 0; i--) {
+            insert(farthest.get(i));
+        }
+    }
+
+    private void split(Node<R> node) {
+        List<List<Node<R>>> groups = chooseSplit(node.children);
+        Node<R> sibling = newNode(node.level);
+        node.children.clear();
+        groups.get(0).forEach(node::add);
+        groups.get(1).forEach(sibling::add);
+        node.refit(zOrder);
+        sibling.refit(zOrder);
+
+        Node<R> parent = node.parent;
+        if (parent == null) {
+            Node<R> newRoot = newNode(node.level + 1);
+            newRoot.add(node);
+            newRoot.add(sibling);
+            newRoot.refit(zOrder);
+            root = newRoot;
+            return;
+        }
+        parent.add(sibling);
+        refitUpwards(parent);
+        if (parent.children.size() > maxEntries) {
+            treatOverflow(parent);
+        }
+    }
+
+    /**
+     * Sorts the entries along the axis with the smallest sum of margins over all the possible
+     * distributions, and picks the distribution with the least overlap (then the least area)
+     * along that axis.
+     *
+     * @return the two groups of entries of the chosen distribution
+     */
+    private List<List<Node<R>>> chooseSplit(List<Node<R>> entries) {
+        List<List<Node<R>>> xSortings = List.of(
+                sorted(entries, Comparator.<Node<R>>comparingLong(n -> n.x)
+                        .thenComparingLong(n -> n.x2)),
+                sorted(entries, Comparator.<Node<R>>comparingLong(n -> n.x2)
+                        .thenComparingLong(n -> n.x)));
+        List<List<Node<R>>> ySortings = List.of(
+                sorted(entries, Comparator.<Node<R>>comparingLong(n -> n.y)
+                        .thenComparingLong(n -> n.y2)),
+                sorted(entries, Comparator.<Node<R>>comparingLong(n -> n.y2)
+                        .thenComparingLong(n -> n.y)));
+        List<List<Node<R>>> axis =
+                marginSum(xSortings) <= marginSum(ySortings) ? xSortings : ySortings;
+
+        List<Node<R>> best = null;
+        int bestIndex = 0;
+        double bestOverlap = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (List<Node<R>> sorting : axis) {
+            for (int k = minEntries; k <= sorting.size() - minEntries; k++) {
+                long[] first = bounds(sorting, 0, k);
+                long[] second = bounds(sorting, k, sorting.size());
+                double overlap = overlap(first, second);
+                double area = area(first[0], first[1], first[2], first[3])
+                        + area(second[0], second[1], second[2], second[3]);
+                if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+                    best = sorting;
+                    bestIndex = k;
+                    bestOverlap = overlap;
+                    bestArea = area;
+                }
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("No distribution for " + entries.size() + " entries");
+        }
+        return List.of(best.subList(0, bestIndex), best.subList(bestIndex, best.size()));
+    }
+
+    private double marginSum(List<List<Node<R>>> sortings) {
+        double sum = 0;
+        for (List<Node<R>> sorting : sortings) {
+            for (int k = minEntries; k <= sorting.size() - minEntries; k++) {
+                sum += margin(bounds(sorting, 0, k)) + margin(bounds(sorting, k, sorting.size()));
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Removes underflowing nodes from the leaf up to the root, inserting their entries again,
+     * and shortens the tree if the root is left with a single child.
+     */
+    private void condense(Node<R> leaf) {
+        List<Node<R>> orphans = new ArrayList<>();
+        Node<R> current = leaf;
+        while (current != root) {
+            Node<R> parent = current.parent;
+            if (parent == null) {
+                throw new IllegalStateException("Invalid parent for node at level "
+                        + current.level);
+            }
+            if (current.children.size() < minEntries) {
+                parent.children.remove(current);
+                orphans.addAll(current.children);
+            } else {
+                current.refit(zOrder);
+            }
+            current = parent;
+        }
+        root.refit(zOrder);
+        while (root.level > 0 && root.children.size() == 1) {
+            root = root.children.get(0);
+            root.parent = null;
+        }
+        // Higher entries first, so the tree is tall enough for them
+        orphans.sort(Comparator.comparingInt((Node<R> n) -> n.level).reversed());
+        for (Node<R> orphan : orphans) {
+            reinsertedLevels = 0;
+            insert(orphan);
+        }
+    }
+
+    private void refitUpwards(Node<R> node) {
+        Node<R> current = node;
+        while (current != null && current.refit(zOrder)) {
+            current = current.parent;
+        }
+    }
+
+    private static <R> List<Node<R>> sorted(List<Node<R>> entries, Comparator<Node<R>> comparator) {
+        List<Node<R>> result = new ArrayList<>(entries);
+        result.sort(comparator);
+        return result;
+    }
+
+    private static <R> long[] bounds(List<Node<R>> entries, int from, int to) {
+        long[] bounds = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+        for (int i = from; i < to; i++) {
+            Node<R> entry = entries.get(i);
+            bounds[0] = Math.min(bounds[0], entry.x);
+            bounds[1] = Math.min(bounds[1], entry.y);
+            bounds[2] = Math.max(bounds[2], entry.x2);
+            bounds[3] = Math.max(bounds[3], entry.y2);
+        }
+        return bounds;
+    }
+
+    private static double margin(long[] bounds) {
+        return ((double) bounds[2] - (double) bounds[0])
+                + ((double) bounds[3] - (double) bounds[1]);
+    }
+
+    private static double overlap(long[] a, long[] b) {
+        return overlap(a[0], a[1], a[2], a[3], b[0], b[1], b[2], b[3]);
+    }
+
+    private static <R> double overlap(long x, long y, long x2, long y2, Node<R> o) {
+        return overlap(x, y, x2, y2, o.x, o.y, o.x2, o.y2);
+    }
+
+    private static double overlap(
+            long ax,
+            long ay,
+            long ax2,
+            long ay2,
+            long bx,
+            long by,
+            long bx2,
+            long by2) {
+        long overlapX = Math.max(ax, bx);
+        long overlapY = Math.max(ay, by);
+        long overlapX2 = Math.min(ax2, bx2);
+        long overlapY2 = Math.min(ay2, by2);
+        if (overlapX >= overlapX2 || overlapY >= overlapY2) {
+            return 0;
+        }
+        return area(overlapX, overlapY, overlapX2, overlapY2);
+    }
+
+    private static double area(long x, long y, long x2, long y2) {
+        return ((double) x2 - (double) x) * ((double) y2 - (double) y);
+    }
+
+    private static <R> double distance(Node<R> node, double centerX, double centerY) {
+        double dx = node.centerX() - centerX;
+        double dy = node.centerY() - centerY;
+        return dx * dx + dy * dy;
+    }
+}
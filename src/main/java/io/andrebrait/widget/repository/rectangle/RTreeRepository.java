@@ -1,5 +1,6 @@
 package io.andrebrait.widget.repository.rectangle;
 
+import io.andrebrait.widget.domain.Areas;
 import io.andrebrait.widget.domain.Rectangle;
 import io.andrebrait.widget.domain.Widget;
 import lombok.AccessLevel;
@@ -15,11 +16,15 @@ import java.math.BigInteger;
 import java.math.RoundingMode;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.Comparator;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.UUID;
 
 /**
@@ -65,12 +70,26 @@ import java.util.UUID;
  * contained inside the search rectangle, as even the smallest item has an area larger than
  * the intersection.<br><br>
  *
+ * Likewise, each node keeps the highest and the lowest leaves inside it (see
+ * {@link Widget#Z_ORDER}), so finding the topmost widget at a point can skip any subtree which
+ * can't have anything higher than what was already found, and searches in Z-order can visit the
+ * nodes best-first. These are references to the widgets instead of copies of their Z-indexes, so
+ * they stay valid when Z-indexes are shifted without changing their relative order.<br><br>
+ *
  * Worst-case time complexity for queries is O(n) (if you insert only rectangles inside one
  * another). <br>
  * Average time complexity for queries is higher than O(log2 n) but I didn't validate precisely
  * what it is. It's far lower than O(n), most of the time, however. It seems to be proportional
  * to the size of the search rectangle, which is expected, given more nodes will be visited the
- * more nodes intersect with the search rectangle.<br> In a few random sets of
+ * more nodes intersect with the search rectangle.<br><br>
+ *
+ * When the whole data set is known upfront, {@link #bulkLoad(Collection)} builds a packed,
+ * height-balanced tree in O(n log n), splitting the rectangles in two around the median of their
+ * centers along the widest axis, over and over. That's much faster than adding them one by one
+ * and produces a shallower tree with less overlap between siblings. Batches added to a tree that
+ * isn't empty are packed the same way, then inserted a subtree at a time (see
+ * {@link #addAll(Collection)}), while single changes still go through the regular
+ * (non-rebalancing) paths.<br><br>
  *
  * @see <a href="https://github.com/aled/jsi">JSI</a>
  * @see <a href="https://github.com/plokhotnyuk/rtree2d">RTree2D</a>
@@ -97,6 +116,21 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
 
     private static final InternalRectangle GRID = Q1Q4.join(Q2Q3);
 
+    private static final Comparator<Node> CENTER_X_COMPARATOR =
+            Comparator.comparingLong(node -> centerX(node.getRectangle()));
+    private static final Comparator<Node> CENTER_Y_COMPARATOR =
+            Comparator.comparingLong(node -> centerY(node.getRectangle()));
+
+    /**
+     * Overlaps are kept as multiples of 1/2<sup>30</sup>, so no sum of them is ever rounded
+     */
+    private static final int OVERLAP_SCALE = 1 << 30;
+
+    private static final Comparator<Node> TOPMOST_FIRST =
+            (a, b) -> Widget.Z_ORDER.compare(b.getTopmost(), a.getTopmost());
+    private static final Comparator<Node> BOTTOMMOST_FIRST =
+            (a, b) -> Widget.Z_ORDER.compare(a.getBottommost(), b.getBottommost());
+
     @Value
     public static class Stats {
 
@@ -119,9 +153,57 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
         @ToString.Exclude
         private final Rectangle originalRectangle;
 
+        /*
+            Smallest area of a leaf inside this node, as two longs (see Areas), so comparing it
+            during queries doesn't allocate anything
+         */
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private long minimumAreaInsideHigh;
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private long minimumAreaInsideLow;
+
+        @Nullable
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private Widget topmost;
+        @Nullable
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private Widget bottommost;
+
+        /*
+            Statistics of the subtree under this node, kept up to date along with its bounds, so
+            the ones of the whole tree are the ones of the root. The depth of a leaf is counted
+            from this node, in edges. The overlap of two siblings is the area of their intersection
+            over the sum of their areas, which is at most 1/2, in units of 1/OVERLAP_SCALE, so
+            they add up exactly.
+         */
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private int leaves;
+        /*
+            Deepest leaf, or -1 without any
+         */
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private int height;
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private long depthSum;
+        /*
+            Overlap of the children of this node, or 0 unless it has two
+         */
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private int overlap;
         @Setter(AccessLevel.NONE)
         @ToString.Exclude
-        private BigInteger minimumAreaInside;
+        private int maxOverlap;
+        @Setter(AccessLevel.NONE)
+        @ToString.Exclude
+        private long overlapSum;
 
         @Nullable
         @ToString.Exclude
@@ -143,7 +225,12 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
             } else {
                 this.originalRectangle = null;
             }
-            this.minimumAreaInside = rectangle.area();
+            this.minimumAreaInsideHigh = rectangle.areaHigh();
+            this.minimumAreaInsideLow = rectangle.areaLow();
+            this.topmost = rectangle instanceof Widget ? (Widget) rectangle : null;
+            this.bottommost = this.topmost;
+            this.leaves = isLeaf() ? 1 : 0;
+            this.height = isLeaf() ? 0 : -1;
         }
 
         public Node(Rectangle rectangle) {
@@ -170,20 +257,22 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
         }
 
         public void setLeft(@Nullable Node left) {
+            Node removed = this.left;
             this.left = left;
             if (left != null) {
                 left.parent = this;
             }
-            propagateUpwards();
+            propagateUpwards(removed, left);
             sortUpwards();
         }
 
         public void setRight(@Nullable Node right) {
+            Node removed = this.right;
             this.right = right;
             if (right != null) {
                 right.parent = this;
             }
-            propagateUpwards();
+            propagateUpwards(removed, right);
             sortUpwards();
         }
 
@@ -196,63 +285,264 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
         }
 
         private void propagateUpwards() {
+            propagateUpwards(null, null);
+        }
+
+        /**
+         * @param removed the child this node lost, if any
+         * @param added the child this node got, if any
+         */
+        private void propagateUpwards(@Nullable Node removed, @Nullable Node added) {
+            // Changes to the statistics of the current node, carried up to the root
+            int leavesDelta = leavesOf(added) - leavesOf(removed);
+            long depthSumDelta = depthSumBelow(added) - depthSumBelow(removed);
+            long overlapSumDelta = overlapSumOf(added) - overlapSumOf(removed);
             Node current = this;
+            // Whether a child of the current node may have been resized or replaced
+            boolean childResized = true;
             while (current != null) {
                 Node currentLeft = current.getLeft();
                 Node currentRight = current.getRight();
 
                 Rectangle selectedRectangle = current.rectangle;
-                BigInteger selectedMinimumArea;
+                long selectedMinimumAreaHigh;
+                long selectedMinimumAreaLow;
+                Widget selectedTopmost;
+                Widget selectedBottommost;
 
-                if (currentLeft != null && currentRight != null) {
-                    Rectangle r = currentLeft.getRectangle().join(currentRight.getRectangle());
+                if (currentLeft != null || currentRight != null) {
+                    Rectangle r;
+                    // Never keep a leaf's rectangle here, or this node would look like a leaf
+                    if (currentLeft == null) {
+                        r = InternalRectangle.of(currentRight.getRectangle());
+                    } else if (currentRight == null) {
+                        r = InternalRectangle.of(currentLeft.getRectangle());
+                    } else {
+                        r = InternalRectangle.of(currentLeft.getRectangle())
+                                .join(currentRight.getRectangle());
+                    }
                     if (current.isInternal() && current.originalRectangle != null) {
                         if (current.originalRectangle.contains(r)) {
                             r = current.originalRectangle;
                         } else {
-                            r = r.join(current.originalRectangle);
+                            r = InternalRectangle.of(r).join(current.originalRectangle);
                         }
                     }
                     selectedRectangle = r;
                 }
 
                 if (currentLeft == null && currentRight == null) {
-                    selectedMinimumArea = current.rectangle.area();
-                } else if (currentRight == null) {
-                    selectedMinimumArea = currentLeft.minimumAreaInside;
-                } else if (currentLeft == null) {
-                    selectedMinimumArea = currentRight.minimumAreaInside;
+                    selectedMinimumAreaHigh = current.rectangle.areaHigh();
+                    selectedMinimumAreaLow = current.rectangle.areaLow();
+                    selectedTopmost = current.isLeaf() ? (Widget) current.rectangle : null;
+                    selectedBottommost = selectedTopmost;
                 } else {
-                    BigInteger leftArea = currentLeft.minimumAreaInside;
-                    BigInteger rightArea = currentRight.minimumAreaInside;
-                    if (leftArea.compareTo(rightArea) <= 0) {
-                        selectedMinimumArea = leftArea;
+                    Node smallest;
+                    if (currentRight == null) {
+                        smallest = currentLeft;
+                    } else if (currentLeft == null) {
+                        smallest = currentRight;
+                    } else if (currentLeft.compareMinimumAreaInside(currentRight) <= 0) {
+                        smallest = currentLeft;
                     } else {
-                        selectedMinimumArea = rightArea;
+                        smallest = currentRight;
                     }
+                    selectedMinimumAreaHigh = smallest.minimumAreaInsideHigh;
+                    selectedMinimumAreaLow = smallest.minimumAreaInsideLow;
+                    selectedTopmost = higher(
+                            currentLeft == null ? null : currentLeft.topmost,
+                            currentRight == null ? null : currentRight.topmost);
+                    selectedBottommost = lower(
+                            currentLeft == null ? null : currentLeft.bottommost,
+                            currentRight == null ? null : currentRight.bottommost);
                 }
 
                 boolean changedRectangle =
                         !selectedRectangle.equalDimensions(current.getRectangle());
                 boolean changedAreaInside =
-                        selectedMinimumArea.compareTo(current.minimumAreaInside) != 0;
+                        selectedMinimumAreaHigh != current.minimumAreaInsideHigh
+                                || selectedMinimumAreaLow != current.minimumAreaInsideLow;
+                boolean changedZ = selectedTopmost != current.topmost
+                        || selectedBottommost != current.bottommost;
+
+                if (childResized) {
+                    int newOverlap = current.childrenOverlap();
+                    overlapSumDelta += newOverlap - current.overlap;
+                    current.overlap = newOverlap;
+                }
+                current.leaves += leavesDelta;
+                current.depthSum += depthSumDelta;
+                current.overlapSum += overlapSumDelta;
+                boolean changedMaxima = current.updateMaxima();
+                depthSumDelta += leavesDelta;
 
                 if (changedRectangle) {
                     current.rectangle = selectedRectangle;
                 }
 
                 if (changedAreaInside) {
-                    current.minimumAreaInside = selectedMinimumArea;
+                    current.minimumAreaInsideHigh = selectedMinimumAreaHigh;
+                    current.minimumAreaInsideLow = selectedMinimumAreaLow;
+                }
+
+                if (changedZ) {
+                    current.topmost = selectedTopmost;
+                    current.bottommost = selectedBottommost;
                 }
 
-                if (!changedRectangle && !changedAreaInside) {
+                if (!changedRectangle && !changedAreaInside && !changedZ) {
+                    // Nothing but the statistics changes further up
+                    addStatisticsUpwards(
+                            current.getParent(),
+                            leavesDelta,
+                            depthSumDelta,
+                            overlapSumDelta,
+                            changedMaxima);
                     return;
                 }
 
+                // The first one may have been resized by the caller
+                childResized = changedRectangle || current == this;
                 current = current.getParent();
             }
         }
 
+        /**
+         * Adds changes to the statistics of a node to its ancestors, starting from its parent.
+         * Only the maxima have to be compared with the other children, and only while they change.
+         */
+        private static void addStatisticsUpwards(
+                @Nullable Node from,
+                int leavesDelta,
+                long depthSumDelta,
+                long overlapSumDelta,
+                boolean changedMaxima) {
+            Node current = from;
+            while (current != null
+                    && (leavesDelta != 0
+                    || depthSumDelta != 0
+                    || overlapSumDelta != 0
+                    || changedMaxima)) {
+                current.leaves += leavesDelta;
+                current.depthSum += depthSumDelta;
+                current.overlapSum += overlapSumDelta;
+                if (changedMaxima) {
+                    changedMaxima = current.updateMaxima();
+                }
+                depthSumDelta += leavesDelta;
+                current = current.getParent();
+            }
+        }
+
+        /**
+         * @return whether the deepest leaf or the largest overlap under this node changed
+         */
+        private boolean updateMaxima() {
+            int newHeight = isLeaf() ? 0 : -1;
+            int newMaxOverlap = overlap;
+            for (int i = 0; i < 2; i++) {
+                Node child = i == 0 ? left : right;
+                if (child == null) {
+                    continue;
+                }
+                if (child.leaves > 0) {
+                    newHeight = Math.max(newHeight, child.height + 1);
+                }
+                newMaxOverlap = Math.max(newMaxOverlap, child.maxOverlap);
+            }
+            if (newHeight == height && newMaxOverlap == maxOverlap) {
+                return false;
+            }
+            height = newHeight;
+            maxOverlap = newMaxOverlap;
+            return true;
+        }
+
+        private static int leavesOf(@Nullable Node node) {
+            return node == null ? 0 : node.leaves;
+        }
+
+        /**
+         * @return the sum of the depths of the leaves of a child, counted from its parent
+         */
+        private static long depthSumBelow(@Nullable Node node) {
+            return node == null ? 0 : node.depthSum + node.leaves;
+        }
+
+        private static long overlapSumOf(@Nullable Node node) {
+            return node == null ? 0 : node.overlapSum;
+        }
+
+        private int childrenOverlap() {
+            if (left == null || right == null) {
+                return 0;
+            }
+            return (int) Math.round(overlap(left.rectangle, right.rectangle) * OVERLAP_SCALE);
+        }
+
+        private static double overlap(Rectangle a, Rectangle b) {
+            if (!a.intersects(b)) {
+                return 0;
+            }
+            long width = Math.min(a.getX2(), b.getX2()) - Math.max(a.getX(), b.getX());
+            long height = Math.min(a.getY2(), b.getY2()) - Math.max(a.getY(), b.getY());
+            double total = Areas.toDouble(a.areaHigh(), a.areaLow())
+                    + Areas.toDouble(b.areaHigh(), b.areaLow());
+            if (total == 0) {
+                return 0;
+            }
+            return Areas.toDouble(Areas.high(width, height), Areas.low(width, height)) / total;
+        }
+
+        @Nullable
+        private static Widget higher(@Nullable Widget a, @Nullable Widget b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            return Widget.Z_ORDER.compare(a, b) >= 0 ? a : b;
+        }
+
+        @Nullable
+        private static Widget lower(@Nullable Widget a, @Nullable Widget b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            return Widget.Z_ORDER.compare(a, b) <= 0 ? a : b;
+        }
+
+        /**
+         * @return whether something inside this node can be higher than the given widget
+         */
+        private boolean mayContainHigherThan(@Nullable Widget widget) {
+            return topmost != null
+                    && (widget == null || Widget.Z_ORDER.compare(topmost, widget) > 0);
+        }
+
+        private int compareMinimumAreaInside(Node o) {
+            return Areas.compare(
+                    minimumAreaInsideHigh,
+                    minimumAreaInsideLow,
+                    o.minimumAreaInsideHigh,
+                    o.minimumAreaInsideLow);
+        }
+
+        /**
+         * @return whether the intersection of this node with the search rectangle is large
+         * enough for something inside this node to be contained in the search rectangle
+         */
+        private boolean mayContainAnyInside(Rectangle search) {
+            return rectangle.compareIntersectionArea(
+                    search,
+                    minimumAreaInsideHigh,
+                    minimumAreaInsideLow) >= 0;
+        }
+
         private void sortUpwards() {
             Node current = this;
             while (current != null && current.isInternal()) {
@@ -263,7 +553,15 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
     }
 
     private final Node root;
-    private final Map<UUID, InternalRectangle> nodesById;
+    private final List<Node> quadrants;
+    /**
+     * The leaf of every widget, so it can be removed without searching for it
+     */
+    private final Map<UUID, Node> nodesById;
+    /**
+     * Incremented on every modification, so cursors can tell they're not valid anymore
+     */
+    private int modifications;
 
     public RTreeRepository() {
         // Messy initialization code
@@ -271,15 +569,79 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
         this.nodesById = new HashMap<>();
         Node q1q4Node = new Node(Q1Q4, true);
         Node q2q3Node = new Node(Q2Q3, true);
-        q1q4Node.setLeft(new Node(Q4, true));
-        q1q4Node.setRight(new Node(Q1, true));
-        q2q3Node.setLeft(new Node(Q3, true));
-        q2q3Node.setRight(new Node(Q2, true));
+        Node q1Node = new Node(Q1, true);
+        Node q2Node = new Node(Q2, true);
+        Node q3Node = new Node(Q3, true);
+        Node q4Node = new Node(Q4, true);
+        q1q4Node.setLeft(q4Node);
+        q1q4Node.setRight(q1Node);
+        q2q3Node.setLeft(q3Node);
+        q2q3Node.setRight(q2Node);
         this.root.setLeft(q1q4Node);
         this.root.setRight(q2q3Node);
+        this.quadrants = List.of(q1Node, q2Node, q3Node, q4Node);
+    }
+
+    /**
+     * Creates a repository containing the given widgets, building the tree in bulk.
+     *
+     * @param widgets the widgets to be added
+     * @return a new repository containing the widgets
+     * @see #addAll(Collection)
+     */
+    public static RTreeRepository bulkLoad(Collection<Widget> widgets) {
+        RTreeRepository repository = new RTreeRepository();
+        repository.addAll(widgets);
+        return repository;
     }
 
+    /**
+     * The statistics are kept up to date as the tree changes, so this takes constant time. The
+     * depth of a leaf is the number of nodes from it up to the root, and the overlap of each pair
+     * of siblings is the area of their intersection over the sum of their areas.
+     *
+     * @see #exactStats()
+     */
     public Stats stats() {
+        // Below the nodes the tree starts with, every node but the leaves has two children
+        long nodes = 0;
+        long pairs = 0;
+        Deque<Node> initialNodes = new ArrayDeque<>();
+        initialNodes.push(root);
+        while (!initialNodes.isEmpty()) {
+            Node node = initialNodes.pop();
+            nodes++;
+            if (node.getLeft() != null && node.getRight() != null) {
+                pairs++;
+            }
+            for (int i = 0; i < 2; i++) {
+                Node child = i == 0 ? node.getLeft() : node.getRight();
+                if (child == null) {
+                    continue;
+                }
+                if (child.isInternal()) {
+                    initialNodes.push(child);
+                } else {
+                    nodes += 2L * child.leaves - 1;
+                    pairs += child.leaves - 1;
+                }
+            }
+        }
+        long leaves = root.leaves;
+        return new Stats(
+                leaves == 0 ? 0 : root.height + 1,
+                leaves == 0 ? 0 : (double) (root.depthSum + leaves) / leaves,
+                nodes,
+                leaves,
+                (double) root.maxOverlap / OVERLAP_SCALE,
+                pairs == 0 ? 0 : (double) root.overlapSum / OVERLAP_SCALE / pairs);
+    }
+
+    /**
+     * Computes the same statistics as {@link #stats()} by walking the whole tree, with the
+     * overlaps rounded to 4 decimal places, to validate them. This takes O(n log n) time.
+     */
+    public Stats exactStats() {
         List<Long> depths = new ArrayList<>();
         List<Double> intersectionAreas = new ArrayList<>();
         List<Node> nodes = new ArrayList<>();
@@ -306,8 +668,8 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
                     nodeSearchStack.push(right);
                 }
                 if (left != null && right != null) {
-                    InternalRectangle leftRectangle = left.getRectangle();
-                    InternalRectangle rightRectangle = right.getRectangle();
+                    Rectangle leftRectangle = left.getRectangle();
+                    Rectangle rightRectangle = right.getRectangle();
                     if (leftRectangle.intersects(rightRectangle)) {
                         InternalRectangle intersection = InternalRectangle.of(
                                 Math.max(leftRectangle.getX(), rightRectangle.getX()),
@@ -339,7 +701,27 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
         if (nodesById.containsKey(rectangle.getId())) {
             return false;
         }
-        Node currentNode = root;
+        modifications++;
+        insert(root, rectangle);
+        return true;
+    }
+
+    /**
+     * Moves down from the given node to the best place for the rectangle and adds it there
+     */
+    private void insert(Node from, Widget rectangle) {
+        Node leaf = new Node(rectangle);
+        nodesById.put(rectangle.getId(), leaf);
+        insert(from, leaf);
+    }
+
+    /**
+     * Moves down from the given node to the best place for the bounds of the subtree, a single
+     * leaf or a packed subtree, and adds it there
+     */
+    private void insert(Node from, Node subtree) {
+        Rectangle rectangle = subtree.getRectangle();
+        Node currentNode = from;
         while (!currentNode.isLeaf()) {
             if (!currentNode.isInternal() && rectangle.contains(currentNode.getRectangle())) {
             /*
@@ -361,8 +743,8 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
 
              */
                 // The condition guarantees this is not the root node
-                merge(currentNode, rectangle);
-                return true;
+                merge(currentNode, subtree);
+                return;
             }
 
             Node currentLeft = currentNode.getLeft();
@@ -372,20 +754,16 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
             } else if (currentRight != null && currentRight.getRectangle().contains(rectangle)) {
                 currentNode = currentRight;
             } else {
-                BigInteger areaIncrease1 = getAreaIncrease(rectangle, currentLeft);
-                BigInteger areaIncrease2 = getAreaIncrease(rectangle, currentRight);
-                if (areaIncrease1.compareTo(areaIncrease2) <= 0) {
+                if (compareAreaIncrease(rectangle, currentLeft, currentRight) <= 0) {
                     if (currentLeft == null) {
-                        currentNode.setLeft(new Node(rectangle));
-                        nodesById.put(rectangle.getId(), rectangle);
-                        return true;
+                        currentNode.setLeft(subtree);
+                        return;
                     }
                     currentNode = currentLeft;
                 } else {
                     if (currentRight == null) {
-                        currentNode.setRight(new Node(rectangle));
-                        nodesById.put(rectangle.getId(), rectangle);
-                        return true;
+                        currentNode.setRight(subtree);
+                        return;
                     }
                     currentNode = currentRight;
                 }
@@ -408,83 +786,387 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
                      B    C
 
              */
-        merge(currentNode, rectangle);
-        return true;
+        merge(currentNode, subtree);
     }
 
+    /**
+     * The widgets are distributed among the quadrants by their center and each quadrant gets a
+     * packed subtree of its own: the widgets are partitioned around the median of their centers
+     * along the widest axis and each half is packed recursively. The result is height-balanced
+     * and is built in O(n log n).<br><br>
+     *
+     * If the tree is not empty, each packed subtree is inserted as a whole, the same way a single
+     * widget is, so widgets added together and close to each other (e.g. the widgets of a
+     * template) end up together under a subtree of their own, after a single descent. A packed
+     * node whose children are far apart isn't kept, though, and each of them is inserted on its
+     * own, so widgets scattered all over don't end up under a node spanning all of them.
+     */
     @Override
-    @Nullable
-    public boolean remove(InternalRectangle rectangle) {
-        if (!nodesById.containsKey(rectangle.getId())) {
+    public boolean addAll(Collection<? extends Widget> rectangles) {
+        boolean empty = nodesById.isEmpty();
+        int count = 0;
+        List<List<Node>> leavesByQuadrant = new ArrayList<>(quadrants.size());
+        for (int i = 0; i < quadrants.size(); i++) {
+            leavesByQuadrant.add(new ArrayList<>());
+        }
+        for (Widget rectangle : rectangles) {
+            Node leaf = new Node(rectangle);
+            if (nodesById.putIfAbsent(rectangle.getId(), leaf) == null) {
+                leavesByQuadrant.get(quadrantIndex(rectangle)).add(leaf);
+                count++;
+            }
+        }
+        if (count == 0) {
             return false;
         }
-        Deque<Node> nodeSearchStack = new ArrayDeque<>();
-        Node found = null;
-        nodeSearchStack.push(root);
-        while (!nodeSearchStack.isEmpty()) {
-            Node currentNode = nodeSearchStack.pop();
-            if (currentNode.isLeaf() && currentNode.getRectangle().equals(rectangle)) {
-                found = currentNode;
-                break;
+        modifications++;
+        for (int i = 0; i < quadrants.size(); i++) {
+            List<Node> leaves = leavesByQuadrant.get(i);
+            if (leaves.isEmpty()) {
+                continue;
             }
-            if (currentNode.getLeft() != null
-                    && currentNode.getLeft().getRectangle().contains(rectangle)) {
-                nodeSearchStack.push(currentNode.getLeft());
+            Node quadrant = quadrants.get(i);
+            Node packed = pack(leaves);
+            if (!empty) {
+                insertPacked(quadrant, packed);
+            } else if (packed.isLeaf()) {
+                quadrant.setLeft(packed);
+            } else {
+                Node left = packed.getLeft();
+                Node right = packed.getRight();
+                quadrant.setLeft(left);
+                quadrant.setRight(right);
             }
-            if (currentNode.getRight() != null
-                    && currentNode.getRight().getRectangle().contains(rectangle)) {
-                nodeSearchStack.push(currentNode.getRight());
+        }
+        return true;
+    }
+
+    /**
+     * Inserts a packed subtree as a whole if its children are close to each other, or each of
+     * them on its own otherwise
+     */
+    private void insertPacked(Node from, Node packed) {
+        Node left = packed.getLeft();
+        Node right = packed.getRight();
+        if (left == null || right == null || isCompact(packed, left, right)) {
+            insert(from, packed);
+            return;
+        }
+        insertPacked(from, left);
+        insertPacked(from, right);
+    }
+
+    /**
+     * @return whether the node is at most twice as large as its children together, i.e. they're
+     * close enough to each other to be kept under it
+     */
+    private static boolean isCompact(Node node, Node left, Node right) {
+        double children = area(left.getRectangle()) + area(right.getRectangle());
+        return area(node.getRectangle()) <= 2 * children;
+    }
+
+    private static double area(Rectangle rectangle) {
+        return Areas.toDouble(rectangle.areaHigh(), rectangle.areaLow());
+    }
+
+    private int quadrantIndex(Rectangle rectangle) {
+        long centerX = centerX(rectangle);
+        long centerY = centerY(rectangle);
+        for (int i = 0; i < quadrants.size(); i++) {
+            if (quadrants.get(i).originalRectangle.contains(centerX, centerY, centerX, centerY)) {
+                return i;
             }
         }
+        throw new IllegalStateException("No quadrant contains the center of: " + rectangle);
+    }
+
+    private static Node pack(List<Node> leaves) {
+        return pack(leaves.toArray(new Node[0]), 0, leaves.size());
+    }
+
+    private static Node pack(Node[] nodes, int from, int to) {
+        if (to - from == 1) {
+            return nodes[from];
+        }
+        long minX = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        long minY = Long.MAX_VALUE;
+        long maxY = Long.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            long centerX = centerX(nodes[i].getRectangle());
+            long centerY = centerY(nodes[i].getRectangle());
+            minX = Math.min(minX, centerX);
+            maxX = Math.max(maxX, centerX);
+            minY = Math.min(minY, centerY);
+            maxY = Math.max(maxY, centerY);
+        }
+        // The spread can overflow a long, but it is never negative, so compare it as unsigned
+        Comparator<Node> comparator =
+                Long.compareUnsigned(maxX - minX, maxY - minY) >= 0
+                        ? CENTER_X_COMPARATOR
+                        : CENTER_Y_COMPARATOR;
+        int middle = (from + to) >>> 1;
+        select(nodes, from, to - 1, middle, comparator);
+
+        Node left = pack(nodes, from, middle);
+        Node right = pack(nodes, middle, to);
+        Node parent =
+                new Node(InternalRectangle.of(left.getRectangle()).join(right.getRectangle()));
+        parent.setLeft(left);
+        parent.setRight(right);
+        return parent;
+    }
+
+    /**
+     * Quickselect: partially sorts the range so the n-th element is in its final sorted position,
+     * with no greater element before it and no smaller element after it. Runs in expected linear
+     * time, which is what keeps the packing at O(n log n).
+     */
+    private static void select(
+            Node[] nodes,
+            int left,
+            int right,
+            int n,
+            Comparator<Node> comparator) {
+        while (left < right) {
+            Node pivot = nodes[left + ((right - left) >>> 1)];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (comparator.compare(nodes[i], pivot) < 0) {
+                    i++;
+                }
+                while (comparator.compare(nodes[j], pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    Node tmp = nodes[i];
+                    nodes[i] = nodes[j];
+                    nodes[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (n <= j) {
+                right = j;
+            } else if (n >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static long centerX(Rectangle rectangle) {
+        return rectangle.getX() / 2 + rectangle.getX2() / 2;
+    }
+
+    private static long centerY(Rectangle rectangle) {
+        return rectangle.getY() / 2 + rectangle.getY2() / 2;
+    }
+
+    /**
+     * The leaf of the widget is looked up by its ID, so no search is needed: only the ancestors of
+     * the leaf are visited, to tighten their bounds.
+     */
+    @Override
+    public boolean remove(Widget rectangle) {
+        Node found = nodesById.get(rectangle.getId());
         if (found == null) {
             return false;
         }
+        modifications++;
+        unlink(found);
+        nodesById.remove(rectangle.getId());
+        return true;
+    }
 
+    /**
+     * If the new bounds still fit inside the parent of the leaf, the leaf is changed in place and
+     * only its ancestors are visited, to adjust their bounds. Otherwise, the leaf is removed and
+     * the new rectangle is inserted starting from its closest ancestor that contains it, instead
+     * of the root.
+     */
+    @Override
+    public boolean update(Widget oldRectangle, Widget newRectangle) {
+        if (!oldRectangle.getId().equals(newRectangle.getId())) {
+            throw new IllegalArgumentException("Cannot update a rectangle with a different ID");
+        }
+        Node found = nodesById.get(oldRectangle.getId());
+        if (found == null) {
+            return false;
+        }
+        modifications++;
+        Node parent = found.getParent();
+        if (parent == null) {
+            throw new IllegalStateException("Invalid parent for node: " + found);
+        }
+        if (parent.getRectangle().contains(newRectangle)) {
+            found.rectangle = newRectangle;
+            found.propagateUpwards();
+            parent.sortUpwards();
+            return true;
+        }
+        nodesById.remove(oldRectangle.getId());
+        Node from = unlink(found);
+        while (from != root && !from.getRectangle().contains(newRectangle)) {
+            from = from.getParent();
+        }
+        insert(from, newRectangle);
+        return true;
+    }
+
+    /**
+     * Takes a leaf out of the tree, along with its parent if the parent would be left with a
+     * single child. The nodes the tree starts with are never taken out, even when left with a
+     * single child or none, so the quadrants are always the same nodes.
+     *
+     * @return the closest ancestor of the leaf that is still in the tree
+     */
+    private Node unlink(Node found) {
         Node parent = found.getParent();
         if (parent == null) {
             throw new IllegalStateException("Invalid parent for node: " + found);
         }
 
-        if (found == parent.getLeft()) {
+        if (parent.isInternal()) {
+            parent.replaceChild(found, null);
+        } else if (found == parent.getLeft()) {
             if (parent.getRight() != null && parent.getParent() != null) {
-                parent.getParent().replaceChild(parent, parent.getRight());
-            } else {
-                parent.setLeft(null);
+                Node grandparent = parent.getParent();
+                grandparent.replaceChild(parent, parent.getRight());
+                return grandparent;
             }
+            parent.setLeft(null);
         } else if (found == parent.getRight()) {
             if (parent.getLeft() != null && parent.getParent() != null) {
-                parent.getParent().replaceChild(parent, parent.getLeft());
-            } else {
-                parent.setRight(null);
+                Node grandparent = parent.getParent();
+                grandparent.replaceChild(parent, parent.getLeft());
+                return grandparent;
             }
+            parent.setRight(null);
         }
 
-        nodesById.remove(found.getRectangle().getId());
-        return true;
+        return parent;
     }
 
     @Override
-    public List<InternalRectangle> findAllInside(InternalRectangle rectangle) {
-        List<InternalRectangle> result = new ArrayList<>();
+    public List<Widget> findAllInside(Rectangle rectangle) {
+        List<Widget> result = new ArrayList<>();
         Deque<Node> nodeSearchStack = new ArrayDeque<>();
         nodeSearchStack.push(root);
         while (!nodeSearchStack.isEmpty()) {
             Node currentNode = nodeSearchStack.pop();
             if (currentNode.isLeaf()) {
                 if (rectangle.contains(currentNode.getRectangle())) {
-                    result.add(currentNode.getRectangle());
+                    result.add((Widget) currentNode.getRectangle());
+                }
+            } else {
+                Node left = currentNode.getLeft();
+                Node right = currentNode.getRight();
+                if (left != null && left.mayContainAnyInside(rectangle)) {
+                    nodeSearchStack.push(left);
+                }
+                if (right != null && right.mayContainAnyInside(rectangle)) {
+                    nodeSearchStack.push(right);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Cursor<Widget> cursorInside(Rectangle rectangle) {
+        int expectedModifications = modifications;
+        Deque<Node> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root);
+        return new AbstractCursor<>() {
+            @Override
+            protected Widget computeNext() {
+                if (modifications != expectedModifications) {
+                    throw new ConcurrentModificationException();
+                }
+                while (!nodeSearchStack.isEmpty()) {
+                    Node currentNode = nodeSearchStack.pop();
+                    if (currentNode.isLeaf()) {
+                        if (rectangle.contains(currentNode.getRectangle())) {
+                            return (Widget) currentNode.getRectangle();
+                        }
+                    } else {
+                        Node left = currentNode.getLeft();
+                        Node right = currentNode.getRight();
+                        if (left != null && left.mayContainAnyInside(rectangle)) {
+                            nodeSearchStack.push(left);
+                        }
+                        if (right != null && right.mayContainAnyInside(rectangle)) {
+                            nodeSearchStack.push(right);
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Best-first search: nodes are visited in order of their highest (or lowest) leaf, so each
+     * widget is found before any node which can only have widgets after it.
+     */
+    @Override
+    public Cursor<Widget> cursorInside(Rectangle rectangle, ZOrder order) {
+        int expectedModifications = modifications;
+        PriorityQueue<Node> queue = new PriorityQueue<>(
+                order == ZOrder.ASCENDING ? BOTTOMMOST_FIRST : TOPMOST_FIRST);
+        if (root.getTopmost() != null) {
+            queue.add(root);
+        }
+        return new AbstractCursor<>() {
+            @Override
+            protected Widget computeNext() {
+                if (modifications != expectedModifications) {
+                    throw new ConcurrentModificationException();
                 }
+                while (!queue.isEmpty()) {
+                    Node currentNode = queue.poll();
+                    // Leaves are only queued if they're inside the rectangle
+                    if (currentNode.isLeaf()) {
+                        return (Widget) currentNode.getRectangle();
+                    }
+                    offer(currentNode.getLeft());
+                    offer(currentNode.getRight());
+                }
+                return null;
+            }
+
+            private void offer(@Nullable Node node) {
+                if (node == null || node.getTopmost() == null) {
+                    return;
+                }
+                if (node.isLeaf()
+                        ? rectangle.contains(node.getRectangle())
+                        : node.mayContainAnyInside(rectangle)) {
+                    queue.add(node);
+                }
+            }
+        };
+    }
+
+    @Override
+    public List<Widget> findAllIntersecting(Rectangle rectangle) {
+        List<Widget> result = new ArrayList<>();
+        Deque<Node> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root);
+        while (!nodeSearchStack.isEmpty()) {
+            Node currentNode = nodeSearchStack.pop();
+            if (currentNode.isLeaf()) {
+                result.add((Widget) currentNode.getRectangle());
             } else {
                 Node left = currentNode.getLeft();
                 Node right = currentNode.getRight();
-                if (left != null
-                        && left.getRectangle().intersectionArea(rectangle)
-                        .compareTo(left.getMinimumAreaInside()) >= 0) {
+                if (left != null && left.getRectangle().intersects(rectangle)) {
                     nodeSearchStack.push(left);
                 }
-                if (right != null
-                        && right.getRectangle().intersectionArea(rectangle)
-                        .compareTo(right.getMinimumAreaInside()) >= 0) {
+                if (right != null && right.getRectangle().intersects(rectangle)) {
                     nodeSearchStack.push(right);
                 }
             }
@@ -492,24 +1174,89 @@ public final class RTreeRepository implements RectangleRepository<Widget> {
         return result;
     }
 
-    private BigInteger getAreaIncrease(InternalRectangle rectangle, @Nullable Node node) {
+    /**
+     * Goes into the subtree with the highest leaf first, and skips subtrees which can't have
+     * anything higher than what was already found.
+     */
+    @Override
+    public Optional<Widget> findTopmostAt(long x, long y) {
+        Widget result = null;
+        Deque<Node> nodeSearchStack = new ArrayDeque<>();
+        nodeSearchStack.push(root);
+        while (!nodeSearchStack.isEmpty()) {
+            Node currentNode = nodeSearchStack.pop();
+            if (!currentNode.mayContainHigherThan(result)
+                    || !currentNode.getRectangle().containsPoint(x, y)) {
+                continue;
+            }
+            if (currentNode.isLeaf()) {
+                result = (Widget) currentNode.getRectangle();
+                continue;
+            }
+            Node left = currentNode.getLeft();
+            Node right = currentNode.getRight();
+            if (left != null && right != null && right.mayContainHigherThan(left.getTopmost())) {
+                // The highest one is pushed last, so it's searched first
+                nodeSearchStack.push(left);
+                nodeSearchStack.push(right);
+            } else {
+                if (right != null) {
+                    nodeSearchStack.push(right);
+                }
+                if (left != null) {
+                    nodeSearchStack.push(left);
+                }
+            }
+        }
+        return Optional.ofNullable(result);
+    }
+
+    /**
+     * Compares how much the area of each node would increase if the rectangle was added to it. A
+     * missing node increases by the area of the rectangle itself.<br><br>
+     *
+     * The increases are computed with {@link Areas}, so this doesn't allocate anything.
+     */
+    private static int compareAreaIncrease(
+            Rectangle rectangle,
+            @Nullable Node first,
+            @Nullable Node second) {
+        return Areas.compare(
+                getAreaIncreaseHigh(rectangle, first),
+                getAreaIncreaseLow(rectangle, first),
+                getAreaIncreaseHigh(rectangle, second),
+                getAreaIncreaseLow(rectangle, second));
+    }
+
+    private static long getAreaIncreaseHigh(Rectangle rectangle, @Nullable Node node) {
         if (node == null) {
-            return rectangle.area();
+            return rectangle.areaHigh();
         }
-        BigInteger joinededArea = node.getRectangle().joinedArea(rectangle);
-        return joinededArea.subtract(node.getRectangle().area());
+        Rectangle r = node.getRectangle();
+        return Areas.subtractHigh(
+                r.joinedAreaHigh(rectangle),
+                r.joinedAreaLow(rectangle),
+                r.areaHigh(),
+                r.areaLow());
     }
 
-    private void merge(Node existingNode, InternalRectangle rectangle) {
-        InternalRectangle newParentRectangle = existingNode.getRectangle().join(rectangle);
+    private static long getAreaIncreaseLow(Rectangle rectangle, @Nullable Node node) {
+        if (node == null) {
+            return rectangle.areaLow();
+        }
+        Rectangle r = node.getRectangle();
+        return Areas.subtractLow(r.joinedAreaLow(rectangle), r.areaLow());
+    }
+
+    private void merge(Node existingNode, Node subtree) {
+        InternalRectangle newParentRectangle =
+                InternalRectangle.of(existingNode.getRectangle()).join(subtree.getRectangle());
         Node node = new Node(newParentRectangle);
         if (existingNode.getParent() != null) {
             existingNode.getParent().replaceChild(existingNode, node);
         }
         node.setLeft(existingNode);
-        node.setRight(new Node(rectangle));
-
-        nodesById.put(rectangle.getId(), rectangle);
+        node.setRight(subtree);
     }
 
 }
@@ -4,12 +4,21 @@ import io.andrebrait.widget.domain.IdentifiableRectangle;
 import io.andrebrait.widget.domain.Rectangle;
 import org.springframework.lang.Nullable;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 /**
  * Small abstraction layer so we can test the difference between using a structure with linear time
  * complexity for queries ({@link HashSetRepository}) and an RTree-based structure ({@link
- * RTreeRepository} with ease.
+ * RTreeRepository} with ease.<br><br>
+ *
+ * Repositories know the stacking order of the rectangles (their Z-index), so they can tell which
+ * one is on top of the others. It's given to them as a {@link java.util.Comparator}, where greater
+ * means higher. The relative order of the rectangles must not change while they're in the
+ * repository, but their Z-indexes can (e.g. shifting every one of them up by one).
  */
 public interface RectangleRepository<R extends IdentifiableRectangle> {
 
@@ -21,6 +30,22 @@ public interface RectangleRepository<R extends IdentifiableRectangle> {
      */
     boolean add(R rectangle);
 
+    /**
+     * Adds all rectangles to the repository. Implementations may override this to build their
+     * internal structures in bulk, which is usually faster and produces better structures than
+     * adding them one by one.
+     *
+     * @param rectangles the rectangles
+     * @return true if the repository changed as a result of this call
+     */
+    default boolean addAll(Collection<? extends R> rectangles) {
+        boolean changed = false;
+        for (R rectangle : rectangles) {
+            changed |= add(rectangle);
+        }
+        return changed;
+    }
+
     /**
      * Removes a rectangle from the repository
      *
@@ -30,6 +55,32 @@ public interface RectangleRepository<R extends IdentifiableRectangle> {
     @Nullable
     boolean remove(R rectangle);
 
+    /**
+     * Replaces a rectangle with a new version of it (e.g. the same widget after being moved or
+     * resized). It's the same as removing the old one and adding the new one, but implementations
+     * may override this to adjust their structures in place when the new bounds are close enough
+     * to the old ones.<br><br>
+     *
+     * The old rectangle must be the one in the repository, unmodified, or the structures may not
+     * be found where they're expected.
+     *
+     * @param oldRectangle the rectangle in the repository
+     * @param newRectangle the new version of the rectangle, with the same ID
+     * @return true if the repository contained the old rectangle and now contains the new one
+     * instead
+     * @throws IllegalArgumentException if the rectangles don't have the same ID
+     */
+    default boolean update(R oldRectangle, R newRectangle) {
+        if (!oldRectangle.getId().equals(newRectangle.getId())) {
+            throw new IllegalArgumentException("Cannot update a rectangle with a different ID");
+        }
+        if (!remove(oldRectangle)) {
+            return false;
+        }
+        add(newRectangle);
+        return true;
+    }
+
     /**
      * Finds all rectangles contained inside the one provided as argument.<br>
      *
@@ -40,4 +91,83 @@ public interface RectangleRepository<R extends IdentifiableRectangle> {
      * @return a list of rectangles present that are fully contained inside the search rectangle
      */
     List<R> findAllInside(Rectangle rectangle);
+
+    /**
+     * Starts a lazy search for the rectangles contained inside the one provided as argument. The
+     * same rectangles as {@link #findAllInside(Rectangle)} are found, but only as they're
+     * requested, so nothing needs to be collected upfront.
+     *
+     * @param rectangle the target search rectangle
+     * @return a cursor over the rectangles fully contained inside the search rectangle
+     */
+    Cursor<R> cursorInside(Rectangle rectangle);
+
+    /**
+     * Like {@link #cursorInside(Rectangle)}, but the rectangles are found in the given Z-order.
+     * Implementations should find them best-first, so the first ones are found without looking
+     * at all the others.
+     *
+     * @param rectangle the target search rectangle
+     * @param order the order in which rectangles are found
+     * @return a cursor over the rectangles fully contained inside the search rectangle
+     */
+    Cursor<R> cursorInside(Rectangle rectangle, ZOrder order);
+
+    /**
+     * Finds the first rectangles contained inside the one provided as argument, in the given
+     * Z-order (e.g. the 100 highest ones).
+     *
+     * @param rectangle the target search rectangle
+     * @param limit the maximum number of rectangles to return
+     * @param order the order of the rectangles
+     * @return a list of rectangles fully contained inside the search rectangle, sorted
+     */
+    default List<R> findAllInside(Rectangle rectangle, int limit, ZOrder order) {
+        return cursorInside(rectangle, order).next(limit);
+    }
+
+    /**
+     * Visits the rectangles contained inside the one provided as argument, as they're found,
+     * until the visitor returns {@code false}.
+     *
+     * @param rectangle the target search rectangle
+     * @param visitor receives each rectangle and returns whether to keep going
+     * @return whether every rectangle inside the search rectangle was visited
+     */
+    default boolean forEachInside(Rectangle rectangle, Predicate<? super R> visitor) {
+        return !cursorInside(rectangle).forEachRemaining(visitor, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param rectangle the target search rectangle
+     * @return a lazy stream of the rectangles fully contained inside the search rectangle
+     * @see #cursorInside(Rectangle)
+     */
+    default Stream<R> streamInside(Rectangle rectangle) {
+        return cursorInside(rectangle).stream();
+    }
+
+    /**
+     * Finds all rectangles intersecting the one provided as argument, including the ones only
+     * partially inside it.<br>
+     *
+     * Only rectangles that return {@code true} for {@link Rectangle#intersects(Rectangle)} will
+     * be returned, so rectangles only touching the border of the search rectangle are not.
+     *
+     * @param rectangle the target search rectangle
+     * @return a list of rectangles present that intersect the search rectangle
+     */
+    List<R> findAllIntersecting(Rectangle rectangle);
+
+    /**
+     * Finds the rectangle on top of all the others at the given point. The left and top edges of
+     * the rectangles are included, but not the right and bottom ones (see {@link
+     * Rectangle#containsPoint(long, long)}), so a point on an edge shared by two rectangles is
+     * only in one of them.
+     *
+     * @param x the X coordinate of the point
+     * @param y the Y coordinate of the point
+     * @return the highest rectangle containing the point, if any
+     */
+    Optional<R> findTopmostAt(long x, long y);
 }
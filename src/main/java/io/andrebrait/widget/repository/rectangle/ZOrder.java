@@ -0,0 +1,16 @@
+package io.andrebrait.widget.repository.rectangle;
+
+/**
+ * Order of results by their Z-index
+ */
+public enum ZOrder {
+
+    /**
+     * From the bottom to the top, i.e. the lowest Z-index first
+     */
+    ASCENDING,
+    /**
+     * From the top to the bottom, i.e. the highest Z-index first
+     */
+    DESCENDING
+}
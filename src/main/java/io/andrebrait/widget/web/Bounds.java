@@ -0,0 +1,52 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.domain.Widget;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Checks the rectangles sent to the API. Their right and bottom edges, {@code x + width} and
+ * {@code y + height}, must fit in a {@code long} too, or they'd end before they start, which the
+ * spatial indexes and everything built on them can't make sense of.
+ */
+final class Bounds {
+
+    private Bounds() {
+    }
+
+    /**
+     * @param width a positive width
+     * @param height a positive height
+     * @return whether the right and bottom edges fit in a {@code long}
+     */
+    static boolean fit(long x, long y, long width, long height) {
+        return x <= Long.MAX_VALUE - width && y <= Long.MAX_VALUE - height;
+    }
+
+    /**
+     * @return the rectangle, to search for widgets in
+     * @throws ResponseStatusException if it's empty or its edges don't fit in a {@code long}
+     */
+    static Widget rectangle(long x, long y, long width, long height) {
+        if (width <= 0 || height <= 0) {
+            throw new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST,
+                    "The width and the height must be positive");
+        }
+        Widget rectangle = Widget.builder().x(x).y(y).width(width).height(height).build();
+        check(rectangle);
+        return rectangle;
+    }
+
+    /**
+     * @param widget a widget with a positive width and height
+     * @throws ResponseStatusException if its edges don't fit in a {@code long}
+     */
+    static void check(Widget widget) {
+        if (!fit(widget.getX(), widget.getY(), widget.getWidth(), widget.getHeight())) {
+            throw new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST,
+                    "x + width and y + height must be at most " + Long.MAX_VALUE);
+        }
+    }
+}
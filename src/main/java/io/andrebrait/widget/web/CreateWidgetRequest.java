@@ -1,8 +1,54 @@
 package io.andrebrait.widget.web;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.andrebrait.widget.domain.Widget;
 import lombok.Value;
+import org.springframework.lang.Nullable;
 
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+import java.math.BigInteger;
+
+/**
+ * A new widget. Without a Z-index, or with one above the top, it's put on top of every other
+ * widget. Its right and bottom edges must fit in a {@code long}.
+ */
 @Value
 public class CreateWidgetRequest {
 
+    @NotNull
+    Long x;
+    @NotNull
+    Long y;
+    @Nullable
+    BigInteger z;
+    @NotNull
+    @Positive
+    Long width;
+    @NotNull
+    @Positive
+    Long height;
+
+    /**
+     * Public, so it can be found when the widget is part of a batch
+     */
+    @JsonIgnore
+    @AssertTrue(message = "x + width and y + height must be at most " + Long.MAX_VALUE)
+    public boolean isInBounds() {
+        // Left to the other constraints if any of them is missing or not positive
+        return x == null || y == null || width == null || height == null
+                || width <= 0 || height <= 0
+                || Bounds.fit(x, y, width, height);
+    }
+
+    Widget toWidget() {
+        return Widget.builder()
+                .x(x)
+                .y(y)
+                .z(z)
+                .width(width)
+                .height(height)
+                .build();
+    }
 }
@@ -0,0 +1,35 @@
+package io.andrebrait.widget.web;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import io.andrebrait.widget.domain.Widget;
+import lombok.Value;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * New widgets, sent as a JSON array, to be put at consecutive positions in the order they're
+ * sent: the first one where a single new widget would be put and each of the others right above
+ * the previous one, so only the Z-index of the first one is taken into account.
+ */
+@Value
+public class CreateWidgetsRequest {
+
+    public static final int MAX_SIZE = 10_000;
+
+    @NotNull
+    @Size(min = 1, max = MAX_SIZE)
+    List<@Valid @NotNull CreateWidgetRequest> widgets;
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    public CreateWidgetsRequest(List<CreateWidgetRequest> widgets) {
+        this.widgets = widgets;
+    }
+
+    List<Widget> toWidgets() {
+        return widgets.stream().map(CreateWidgetRequest::toWidget).collect(Collectors.toList());
+    }
+}
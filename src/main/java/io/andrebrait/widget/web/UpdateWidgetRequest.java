@@ -0,0 +1,53 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import lombok.Value;
+import org.springframework.lang.Nullable;
+
+import javax.validation.constraints.Positive;
+import java.math.BigInteger;
+
+/**
+ * Changes to a widget. Whatever is left out stays the same, and the right and bottom edges of the
+ * changed widget must still fit in a {@code long}.
+ */
+@Value
+public class UpdateWidgetRequest {
+
+    @Nullable
+    Long x;
+    @Nullable
+    Long y;
+    @Nullable
+    BigInteger z;
+    @Nullable
+    @Positive
+    Long width;
+    @Nullable
+    @Positive
+    Long height;
+
+    /**
+     * @return a copy of the widget with these changes
+     */
+    Widget applyTo(WidgetSnapshot existing) {
+        Widget widget = existing.toWidget();
+        if (x != null) {
+            widget.setX(x);
+        }
+        if (y != null) {
+            widget.setY(y);
+        }
+        if (z != null) {
+            widget.setZ(z);
+        }
+        if (width != null) {
+            widget.setWidth(width);
+        }
+        if (height != null) {
+            widget.setHeight(height);
+        }
+        return widget;
+    }
+}
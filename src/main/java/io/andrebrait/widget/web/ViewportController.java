@@ -0,0 +1,85 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.repository.WidgetRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Pushes what happens inside a viewport as Server-Sent Events, instead of having clients search
+ * it over and over: first an {@code enter} event for each widget already there, then {@code
+ * enter}, {@code update} and {@code leave} events as widgets are saved and deleted. The data of
+ * each is the widget, as JSON, or only its ID when it leaves.<br><br>
+ *
+ * The stream ends after {@code widget.subscriptions.timeout} milliseconds (30 minutes by
+ * default), or sooner if the client falls too far behind, and browsers then subscribe again on
+ * their own.
+ */
+@RestController
+@RequestMapping("/widgets")
+@Profile("!sharded & !off-heap")
+public class ViewportController {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30 * 60 * 1_000;
+
+    private final WidgetRepository repository;
+    private final ViewportSubscriptions subscriptions;
+    private final long timeoutMillis;
+
+    public ViewportController(
+            WidgetRepository repository,
+            ViewportSubscriptions subscriptions,
+            @Value("${widget.subscriptions.timeout:" + DEFAULT_TIMEOUT_MILLIS + "}")
+                    long timeoutMillis) {
+        this.repository = repository;
+        this.subscriptions = subscriptions;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @GetMapping(
+            path = "/events",
+            params = {"x", "y", "width", "height"},
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribe(
+            @RequestParam long x,
+            @RequestParam long y,
+            @RequestParam long width,
+            @RequestParam long height) {
+        Widget viewport = Bounds.rectangle(x, y, width, height);
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        ViewportSubscriptions.Subscription subscription =
+                subscriptions.subscribe(viewport, new ViewportSubscriptions.Sink() {
+
+                    @Override
+                    public void send(ViewportEvent event) throws IOException {
+                        emitter.send(SseEmitter.event()
+                                .name(event.getType().name().toLowerCase(Locale.ROOT))
+                                .data(event.getWidget() == null
+                                        ? Map.of("id", event.getId())
+                                        : event.getWidget(),
+                                        MediaType.APPLICATION_JSON));
+                    }
+
+                    @Override
+                    public void complete() {
+                        emitter.complete();
+                    }
+                });
+        emitter.onCompletion(subscription::close);
+        emitter.onTimeout(subscription::close);
+        emitter.onError(e -> subscription.close());
+        // Found after subscribing, so whatever changes meanwhile is sent after it
+        subscription.start(repository.findAllIntersecting(viewport));
+        return emitter;
+    }
+}
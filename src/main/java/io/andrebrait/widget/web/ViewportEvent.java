@@ -0,0 +1,38 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import lombok.Value;
+import org.springframework.lang.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Something that happened to a widget in a viewport. It always has the whole widget, as it is
+ * now, never only what changed, so applying it more than once does no harm.
+ */
+@Value
+public class ViewportEvent {
+
+    public enum Type {
+        /**
+         * The widget is in the viewport now, and wasn't before
+         */
+        ENTER,
+        /**
+         * The widget was and still is in the viewport, but it changed
+         */
+        UPDATE,
+        /**
+         * The widget was in the viewport, and isn't anymore (it moved away or was deleted)
+         */
+        LEAVE
+    }
+
+    Type type;
+    UUID id;
+    /**
+     * {@code null} when it leaves
+     */
+    @Nullable
+    WidgetSnapshot widget;
+}
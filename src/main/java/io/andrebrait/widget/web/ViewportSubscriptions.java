@@ -0,0 +1,396 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.domain.IdentifiableRectangle;
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.WidgetChangeListener;
+import io.andrebrait.widget.repository.rectangle.RStarTreeRepository;
+import io.andrebrait.widget.repository.rectangle.RectangleRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The viewports clients are watching, each told about the widgets entering it, leaving it or
+ * changing inside it as they're saved and deleted. A widget is in a viewport if it intersects it,
+ * even if only partially.<br><br>
+ *
+ * The viewports are kept in a spatial index of their own, so a change only visits the ones
+ * intersecting the old or the new bounds of the widget, however many others there are. That's
+ * done while the repository is locked, so all it does is queue the events: each subscription
+ * sends its own in order, on a thread of the executor, and one whose client falls more than
+ * {@code maxPending} events behind is dropped rather than left to grow, so the client can
+ * subscribe again and start over.<br><br>
+ *
+ * By default, that's a fixed number of platform threads, not virtual ones. Sending an event to a
+ * slow client blocks on its socket inside {@code synchronized} code of the emitter, which pins a
+ * virtual thread to its carrier, so as many slow clients as there are CPUs would stall every
+ * virtual thread, request handling included. With a pool of their own, they can only hold up the
+ * other subscriptions: once every thread is sending to a slow client, the others wait, and are
+ * dropped if they fall too far behind meanwhile.<br><br>
+ *
+ * Only the repositories which take a {@link WidgetChangeListener} can be watched, so there are no
+ * subscriptions with the sharded and the off-heap ones.
+ */
+@Component
+@Profile("!sharded & !off-heap")
+public class ViewportSubscriptions implements WidgetChangeListener, Closeable {
+
+    public static final int DEFAULT_MAX_PENDING = 10_000;
+    public static final int DEFAULT_THREADS = 32;
+
+    /**
+     * Where the events of a subscription go, one at a time and in order
+     */
+    public interface Sink {
+
+        /**
+         * @throws IOException if the client is gone, which drops the subscription
+         */
+        void send(ViewportEvent event) throws IOException;
+
+        /**
+         * Called once the subscription is dropped, for whatever reason
+         */
+        void complete();
+    }
+
+    private final RectangleRepository<Subscription> index =
+            new RStarTreeRepository<>(Comparator.comparing(Subscription::getId));
+    /**
+     * The same subscriptions as the index, to go through all of them
+     */
+    private final Set<Subscription> subscriptions = new HashSet<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ExecutorService executor;
+    private final int maxPending;
+
+    /**
+     * @param threads how many subscriptions can be sending their events at once
+     * @param maxPending how many events a subscription can have waiting to be sent
+     */
+    @Autowired
+    public ViewportSubscriptions(
+            @Value("${widget.subscriptions.threads:" + DEFAULT_THREADS + "}") int threads,
+            @Value("${widget.subscriptions.max-pending:" + DEFAULT_MAX_PENDING + "}")
+                    int maxPending) {
+        this(
+                Executors.newFixedThreadPool(
+                        threads,
+                        Thread.ofPlatform().name("viewport-subscriptions-", 0).daemon().factory()),
+                maxPending);
+    }
+
+    /**
+     * @param executor runs the subscriptions while they send their events
+     * @param maxPending how many events a subscription can have waiting to be sent
+     */
+    public ViewportSubscriptions(ExecutorService executor, int maxPending) {
+        if (maxPending <= 0) {
+            throw new IllegalArgumentException("'maxPending' must be positive");
+        }
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Starts watching a viewport. The changes made from now on are queued, but nothing is sent
+     * until the subscription is {@link Subscription#start(List) started} with what's in the
+     * viewport, so no change is missed between finding that and subscribing.
+     */
+    public Subscription subscribe(Rectangle viewport, Sink sink) {
+        Subscription subscription = new Subscription(viewport, sink);
+        lock.writeLock().lock();
+        try {
+            index.add(subscription);
+            subscriptions.add(subscription);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return subscription;
+    }
+
+    /**
+     * @return how many viewports are being watched
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return subscriptions.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void changed(UUID id, @Nullable Rectangle previous, @Nullable WidgetSnapshot current) {
+        lock.readLock().lock();
+        try {
+            if (previous != null) {
+                for (Subscription subscription : index.findAllIntersecting(previous)) {
+                    subscription.queue(current != null && subscription.intersects(current)
+                            ? new ViewportEvent(ViewportEvent.Type.UPDATE, id, current)
+                            : new ViewportEvent(ViewportEvent.Type.LEAVE, id, null));
+                }
+            }
+            if (current != null) {
+                for (Subscription subscription : index.findAllIntersecting(current)) {
+                    if (previous == null || !subscription.intersects(previous)) {
+                        subscription.queue(
+                                new ViewportEvent(ViewportEvent.Type.ENTER, id, current));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops every subscription and stops sending
+     */
+    @Override
+    public void close() {
+        List<Subscription> dropped;
+        lock.writeLock().lock();
+        try {
+            dropped = new ArrayList<>(subscriptions);
+            dropped.forEach(index::remove);
+            subscriptions.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Subscription subscription : dropped) {
+            if (subscription.markClosed()) {
+                subscription.sink.complete();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * A viewport being watched, with the events waiting to be sent to it
+     */
+    public final class Subscription implements IdentifiableRectangle {
+
+        private final UUID id = UUID.randomUUID();
+        private final long x;
+        private final long y;
+        private final long x2;
+        private final long y2;
+        private final Sink sink;
+
+        private final Lock sendLock = new ReentrantLock();
+        /*
+            Guarded by sendLock
+         */
+        private final Deque<ViewportEvent> pending = new ArrayDeque<>();
+        @Nullable
+        private List<WidgetSnapshot> initial;
+        /**
+         * Whether there's a thread sending the events, or there must not be one yet
+         */
+        private boolean sending = true;
+        private boolean closed;
+
+        private Subscription(Rectangle viewport, Sink sink) {
+            this.x = viewport.getX();
+            this.y = viewport.getY();
+            this.x2 = viewport.getX2();
+            this.y2 = viewport.getY2();
+            this.sink = sink;
+        }
+
+        @Override
+        public UUID getId() {
+            return id;
+        }
+
+        @Override
+        public long getX() {
+            return x;
+        }
+
+        @Override
+        public long getY() {
+            return y;
+        }
+
+        @Override
+        public long getX2() {
+            return x2;
+        }
+
+        @Override
+        public long getY2() {
+            return y2;
+        }
+
+        /**
+         * Sends an {@link ViewportEvent.Type#ENTER} event for each of the widgets in the viewport,
+         * then the changes queued since subscribing, which may repeat some of them.
+         *
+         * @param widgets what's in the viewport, found after subscribing
+         */
+        public void start(List<WidgetSnapshot> widgets) {
+            sendLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                initial = widgets;
+                execute();
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        private void queue(ViewportEvent event) {
+            boolean overflowed;
+            sendLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                overflowed = pending.size() >= maxPending;
+                if (!overflowed) {
+                    pending.add(event);
+                    if (!sending) {
+                        sending = true;
+                        execute();
+                    }
+                }
+            } finally {
+                sendLock.unlock();
+            }
+            if (overflowed) {
+                // The index is locked for reading right now, so it's removed from it later
+                close();
+            }
+        }
+
+        /**
+         * Only called with the send lock
+         */
+        private void execute() {
+            try {
+                executor.execute(this::send);
+            } catch (RejectedExecutionException e) {
+                // Closing everything down
+                closed = true;
+            }
+        }
+
+        private void send() {
+            try {
+                List<WidgetSnapshot> widgets = takeInitial();
+                if (widgets != null) {
+                    for (WidgetSnapshot widget : widgets) {
+                        sink.send(new ViewportEvent(
+                                ViewportEvent.Type.ENTER,
+                                widget.getId(),
+                                widget));
+                    }
+                }
+                ViewportEvent next;
+                while ((next = poll()) != null) {
+                    sink.send(next);
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        @Nullable
+        private List<WidgetSnapshot> takeInitial() {
+            sendLock.lock();
+            try {
+                List<WidgetSnapshot> widgets = initial;
+                initial = null;
+                return widgets;
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * @return the next event to send, or {@code null} if there's none, in which case the
+         * next one queued starts sending again
+         */
+        @Nullable
+        private ViewportEvent poll() {
+            sendLock.lock();
+            try {
+                ViewportEvent next = closed ? null : pending.poll();
+                if (next == null) {
+                    sending = false;
+                }
+                return next;
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * @return whether it was open until now
+         */
+        private boolean markClosed() {
+            sendLock.lock();
+            try {
+                if (closed) {
+                    return false;
+                }
+                closed = true;
+                pending.clear();
+                initial = null;
+                return true;
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Stops watching the viewport. Events already being sent may still be.
+         */
+        public void close() {
+            if (!markClosed()) {
+                return;
+            }
+            try {
+                executor.execute(() -> {
+                    lock.writeLock().lock();
+                    try {
+                        index.remove(this);
+                        subscriptions.remove(this);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    sink.complete();
+                });
+            } catch (RejectedExecutionException e) {
+                // Closing everything down, which removes and completes it
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.andrebrait.widget.web;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.WidgetRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.Valid;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * The widgets, as JSON.<br><br>
+ *
+ * Lists of widgets are found and written a page at a time ({@code widget.lists.page-size}
+ * widgets, 1000 by default), straight into the response and without a length, so each page is
+ * sent in a chunk as soon as it's found. The repository is only locked while finding each page,
+ * not while a slow client reads it, and only a page is kept in memory, however many widgets there
+ * are.<br><br>
+ *
+ * Each page is consistent on its own, but the widgets may change between pages: one saved or
+ * deleted while a list is written may be in it twice, or not at all, and the Z-indexes in
+ * different pages may not add up. Repositories which can't find widgets a page at a time find
+ * them all first (see {@link WidgetRepository#forEachPage(int, java.util.function.Consumer)}).
+ */
+@RestController
+@RequestMapping("/widgets")
+public class WidgetController {
+
+    public static final int DEFAULT_PAGE_SIZE = 1_000;
+
+    private final WidgetRepository repository;
+    private final JsonFactory jsonFactory;
+    private final int pageSize;
+
+    public WidgetController(
+            WidgetRepository repository,
+            ObjectMapper objectMapper,
+            @Value("${widget.lists.page-size:" + DEFAULT_PAGE_SIZE + "}") int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("'pageSize' must be positive");
+        }
+        this.repository = repository;
+        this.jsonFactory = objectMapper.getFactory();
+        this.pageSize = pageSize;
+    }
+
+    @PostMapping
+    public ResponseEntity<WidgetSnapshot> create(@Valid @RequestBody CreateWidgetRequest request) {
+        WidgetSnapshot saved = repository.save(request.toWidget());
+        return ResponseEntity.created(ServletUriComponentsBuilder.fromCurrentRequest()
+                .path("/{id}")
+                .buildAndExpand(saved.getId())
+                .toUri())
+                .body(saved);
+    }
+
+    /**
+     * Saves every widget or none of them, at consecutive positions from the first one, with
+     * nothing else saved in between, whichever repository is used
+     */
+    @PostMapping("/batch")
+    @ResponseStatus(HttpStatus.CREATED)
+    public List<WidgetSnapshot> createAll(@Valid @RequestBody CreateWidgetsRequest request) {
+        return repository.saveAll(request.toWidgets());
+    }
+
+    @GetMapping("/{id}")
+    public WidgetSnapshot get(@PathVariable UUID id) {
+        return repository.findOne(id).orElseThrow(() -> notFound(id));
+    }
+
+    /**
+     * A widget deleted meanwhile is saved again.
+     */
+    @PutMapping("/{id}")
+    public WidgetSnapshot update(
+            @PathVariable UUID id,
+            @Valid @RequestBody UpdateWidgetRequest request) {
+        WidgetSnapshot existing = repository.findOne(id).orElseThrow(() -> notFound(id));
+        Widget changed = request.applyTo(existing);
+        Bounds.check(changed);
+        return repository.save(changed);
+    }
+
+    @DeleteMapping("/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void delete(@PathVariable UUID id) {
+        repository.deleteById(id);
+    }
+
+    /**
+     * Every widget, from the bottom to the top
+     */
+    @GetMapping
+    public void findAll(HttpServletResponse response) throws IOException {
+        write(visitor -> repository.forEachPage(pageSize, visitor), response);
+    }
+
+    /**
+     * The widgets entirely inside the given rectangle, from the bottom up, unless the repository
+     * can't find them a page at a time
+     */
+    @GetMapping(params = {"x", "y", "width", "height"})
+    public void findAllInside(
+            @RequestParam long x,
+            @RequestParam long y,
+            @RequestParam long width,
+            @RequestParam long height,
+            HttpServletResponse response) throws IOException {
+        Widget rectangle = Bounds.rectangle(x, y, width, height);
+        write(visitor -> repository.forEachPageInside(rectangle, pageSize, visitor), response);
+    }
+
+    /**
+     * @param pages visits every page of widgets with the visitor it's given
+     */
+    private void write(
+            Consumer<Consumer<List<WidgetSnapshot>>> pages,
+            HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator generator = jsonFactory.createGenerator(response.getOutputStream())) {
+            generator.writeStartArray();
+            try {
+                pages.accept(page -> {
+                    try {
+                        for (WidgetSnapshot widget : page) {
+                            WidgetSnapshotSerializer.write(widget, generator);
+                        }
+                        // Sent before the next page is found
+                        generator.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static ResponseStatusException notFound(UUID id) {
+        return new ResponseStatusException(HttpStatus.NOT_FOUND, "No widget with ID " + id);
+    }
+}
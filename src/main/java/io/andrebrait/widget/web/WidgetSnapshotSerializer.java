@@ -0,0 +1,41 @@
+package io.andrebrait.widget.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import org.springframework.boot.jackson.JsonComponent;
+
+import java.io.IOException;
+
+/**
+ * Writes a widget as a JSON object with its ID, position, Z-index and size, and nothing else. The
+ * same is written for a single widget and for each widget streamed by the {@link
+ * WidgetController}.
+ */
+@JsonComponent
+public class WidgetSnapshotSerializer extends StdSerializer<WidgetSnapshot> {
+
+    public WidgetSnapshotSerializer() {
+        super(WidgetSnapshot.class);
+    }
+
+    @Override
+    public void serialize(
+            WidgetSnapshot widget,
+            JsonGenerator generator,
+            SerializerProvider provider) throws IOException {
+        write(widget, generator);
+    }
+
+    static void write(WidgetSnapshot widget, JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("id", widget.getId().toString());
+        generator.writeNumberField("x", widget.getX());
+        generator.writeNumberField("y", widget.getY());
+        generator.writeNumberField("z", widget.getZ());
+        generator.writeNumberField("width", widget.getWidth());
+        generator.writeNumberField("height", widget.getHeight());
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,46 @@
+package io.andrebrait.widget;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.repository.WidgetRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@AutoConfigureMetrics
+class PrometheusEndpointTests {
+
+	@Autowired
+	private WidgetRepository repository;
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Test
+	void publishesTheRepositoryMetrics() throws Exception {
+		repository.save(Widget.builder().width(10L).height(10L).build());
+		repository.findAllInside(Widget.builder().width(100L).height(100L).build());
+
+		mockMvc.perform(get("/actuator/prometheus"))
+				.andExpect(status().isOk())
+				.andExpect(content().string(containsString(
+						"widget_repository_operations_seconds_bucket{operation=\"save\"")))
+				.andExpect(content().string(containsString(
+						"widget_repository_results_widgets_count{operation=\"findAllInside\",}")))
+				.andExpect(content().string(containsString(
+						"widget_repository_lock_wait_seconds_count{mode=\"write\",}")))
+				.andExpect(content().string(containsString("widget_rtree_depth{statistic=\"max\",}")))
+				.andExpect(content().string(containsString(
+						"widget_cache_inside_gets_total{result=\"miss\",}")));
+	}
+
+}
@@ -0,0 +1,54 @@
+package io.andrebrait.widget;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.WidgetRepository;
+import io.andrebrait.widget.repository.WidgetTableWriter;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest
+@ActiveProfiles("sql")
+class SqlProfileTests {
+
+	@Autowired
+	private WidgetRepository repository;
+
+	@Autowired
+	private WidgetTableWriter writer;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Test
+	void savedWidgetsLandInTheTable() {
+		WidgetSnapshot top = repository.save(Widget.builder().width(10L).height(10L).build());
+		WidgetSnapshot bottom = repository.save(Widget.builder()
+				.width(10L)
+				.height(10L)
+				.z(BigInteger.ZERO)
+				.build());
+		writer.flush();
+
+		assertEquals(
+				BigInteger.ZERO,
+				jdbcTemplate.queryForObject(
+						"SELECT Z FROM WIDGET WHERE ID = ?",
+						BigInteger.class,
+						bottom.getId()));
+		assertEquals(
+				BigInteger.ONE,
+				jdbcTemplate.queryForObject(
+						"SELECT Z FROM WIDGET WHERE ID = ?",
+						BigInteger.class,
+						top.getId()));
+	}
+
+}
@@ -0,0 +1,51 @@
+package io.andrebrait.widget;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.annotation.Bean;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = "widget.web.threads=virtual")
+class VirtualThreadsTests {
+
+	@Autowired
+	private TestRestTemplate restTemplate;
+
+	@Test
+	void runsRequestsOnVirtualThreads() {
+		assertEquals(Boolean.TRUE, restTemplate.getForObject("/thread/virtual", Boolean.class));
+		assertTrue(restTemplate.getForEntity("/widgets", String.class)
+				.getStatusCode()
+				.is2xxSuccessful());
+	}
+
+	@TestConfiguration
+	static class ThreadConfiguration {
+
+		@Bean
+		ThreadController threadController() {
+			return new ThreadController();
+		}
+
+	}
+
+	@RestController
+	static class ThreadController {
+
+		@GetMapping("/thread/virtual")
+		boolean isVirtual() {
+			return Thread.currentThread().isVirtual();
+		}
+
+	}
+
+}
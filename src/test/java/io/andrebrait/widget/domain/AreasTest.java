@@ -0,0 +1,114 @@
+package io.andrebrait.widget.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AreasTest {
+
+    private static final long[] EDGE_CASES = {
+            0, 1, 2, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, -1, -2
+    };
+
+    @Test
+    void testAreasMatchBigInteger() {
+        Random r = new Random(42L);
+        for (int i = 0; i < 10_000; i++) {
+            assertSameArea(r.nextLong(), r.nextLong());
+        }
+        for (long width : EDGE_CASES) {
+            for (long height : EDGE_CASES) {
+                assertSameArea(width, height);
+            }
+        }
+    }
+
+    @Test
+    void testCompareAndSubtractMatchBigInteger() {
+        Random r = new Random(42L);
+        for (int i = 0; i < 10_000; i++) {
+            long width1 = r.nextLong();
+            long height1 = i % 2 == 0 ? r.nextLong() : r.nextInt();
+            long width2 = r.nextLong();
+            long height2 = r.nextInt(3) == 0 ? height1 : r.nextLong();
+            long high1 = Areas.high(width1, height1);
+            long low1 = Areas.low(width1, height1);
+            long high2 = Areas.high(width2, height2);
+            long low2 = Areas.low(width2, height2);
+            BigInteger area1 = Areas.toBigInteger(high1, low1);
+            BigInteger area2 = Areas.toBigInteger(high2, low2);
+
+            assertEquals(
+                    Integer.signum(area1.compareTo(area2)),
+                    Integer.signum(Areas.compare(high1, low1, high2, low2)));
+            if (area1.compareTo(area2) >= 0) {
+                assertEquals(
+                        area1.subtract(area2),
+                        Areas.toBigInteger(
+                                Areas.subtractHigh(high1, low1, high2, low2),
+                                Areas.subtractLow(low1, low2)));
+            }
+        }
+    }
+
+    @Test
+    void testRectangleAreaAcrossWholeRange() {
+        Rectangle everything =
+                rectangle(Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        BigInteger side = BigInteger.TWO.pow(64).subtract(BigInteger.ONE);
+        assertEquals(side.multiply(side), everything.area());
+        assertEquals(0, everything.compareArea(everything.areaHigh(), everything.areaLow()));
+
+        Rectangle small = rectangle(-1, -1, 1, 1);
+        assertEquals(BigInteger.valueOf(4), small.intersectionArea(everything));
+        assertEquals(0, everything.compareIntersectionArea(small, 0, 4));
+        assertEquals(1, everything.compareIntersectionArea(small, 0, 3));
+        assertEquals(
+                everything.area(),
+                Areas.toBigInteger(
+                        small.joinedAreaHigh(everything),
+                        small.joinedAreaLow(everything)));
+    }
+
+    private static void assertSameArea(long width, long height) {
+        BigInteger expected = unsigned(width).multiply(unsigned(height));
+        assertEquals(
+                expected,
+                Areas.toBigInteger(Areas.high(width, height), Areas.low(width, height)));
+        assertEquals(
+                expected.doubleValue(),
+                Areas.toDouble(Areas.high(width, height), Areas.low(width, height)),
+                expected.doubleValue() * 1e-15);
+    }
+
+    private static BigInteger unsigned(long value) {
+        return new BigInteger(Long.toUnsignedString(value));
+    }
+
+    private static Rectangle rectangle(long x, long y, long x2, long y2) {
+        return new Rectangle() {
+            @Override
+            public long getX() {
+                return x;
+            }
+
+            @Override
+            public long getY() {
+                return y;
+            }
+
+            @Override
+            public long getX2() {
+                return x2;
+            }
+
+            @Override
+            public long getY2() {
+                return y2;
+            }
+        };
+    }
+}
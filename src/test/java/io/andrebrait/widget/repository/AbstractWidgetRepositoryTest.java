@@ -0,0 +1,386 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Behavioural tests every in-memory {@link WidgetRepository} must pass
+ */
+public abstract class AbstractWidgetRepositoryTest {
+
+    protected WidgetRepository repository;
+
+    protected abstract WidgetRepository newRepository();
+
+    /**
+     * @return whether the repository keeps its snapshots, so reads hand out the same instances
+     */
+    protected boolean keepsSnapshots() {
+        return true;
+    }
+
+    @BeforeEach
+    void setUp() {
+        repository = newRepository();
+    }
+
+    @Test
+    void testZIndexesStayDense() {
+        Random r = new Random(42L);
+        List<UUID> expected = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            if (!expected.isEmpty() && r.nextInt(4) == 0) {
+                repository.deleteById(expected.remove(r.nextInt(expected.size())));
+            } else if (!expected.isEmpty() && r.nextInt(4) == 0) {
+                UUID id = expected.remove(r.nextInt(expected.size()));
+                int z = r.nextInt(expected.size() + 1);
+                expected.add(z, id);
+                assertEquals(BigInteger.valueOf(z), repository.save(widget(id, z)).getZ());
+            } else {
+                int z = r.nextInt(expected.size() + 1);
+                WidgetSnapshot saved = repository.save(widget(null, z));
+                expected.add(z, saved.getId());
+            }
+        }
+        assertSameStack(expected);
+    }
+
+    @Test
+    void testSavesOnTopWithoutZIndex() {
+        WidgetSnapshot first = repository.save(widget(null, 0));
+        WidgetSnapshot second = repository.save(widget(null, null));
+        WidgetSnapshot third = repository.save(widget(null, 1_000));
+        assertEquals(BigInteger.ONE, second.getZ());
+        assertEquals(BigInteger.TWO, third.getZ());
+        assertSameStack(List.of(first.getId(), second.getId(), third.getId()));
+    }
+
+    @Test
+    void testSavesZIndexesBeyondTheStackAtItsEnds() {
+        BigInteger far = BigInteger.valueOf(Long.MAX_VALUE).multiply(BigInteger.TEN);
+        WidgetSnapshot middle = repository.save(widget(null, null));
+        WidgetSnapshot bottom = repository.save(widget(null, null).toBuilder()
+                .z(far.negate())
+                .build());
+        WidgetSnapshot top = repository.save(widget(null, null).toBuilder().z(far).build());
+        assertSameStack(List.of(bottom.getId(), middle.getId(), top.getId()));
+
+        List<WidgetSnapshot> batch = repository.saveAll(List.of(
+                widget(null, null).toBuilder().z(BigInteger.valueOf(-10_000_000_000L)).build(),
+                widget(top.getId(), null)));
+        assertSameStack(List.of(
+                batch.get(0).getId(),
+                top.getId(),
+                bottom.getId(),
+                middle.getId()));
+    }
+
+    @Test
+    void testSavingAtOccupiedZIndexPushesOthersUp() {
+        WidgetSnapshot bottom = repository.save(widget(null, 0));
+        WidgetSnapshot top = repository.save(widget(null, 1));
+        WidgetSnapshot middle = repository.save(widget(null, 1));
+        assertSameStack(List.of(bottom.getId(), middle.getId(), top.getId()));
+        assertEquals(top.getId(), repository.findTopmostAt(50, 50).orElseThrow().getId());
+
+        WidgetSnapshot newBottom = repository.save(widget(null, 0));
+        assertSameStack(List.of(newBottom.getId(), bottom.getId(), middle.getId(), top.getId()));
+        assertEquals(BigInteger.valueOf(3), repository.findOne(top.getId()).orElseThrow().getZ());
+        assertEquals(top.getId(), repository.findTopmostAt(50, 50).orElseThrow().getId());
+    }
+
+    @Test
+    void testFindsTheWidgetStartingAtASharedEdge() {
+        WidgetSnapshot right = repository.save(widget(null, null).toBuilder().x(100L).build());
+        WidgetSnapshot left = repository.save(widget(null, null));
+
+        assertEquals(left.getId(), repository.findTopmostAt(99, 50).orElseThrow().getId());
+        assertEquals(right.getId(), repository.findTopmostAt(100, 50).orElseThrow().getId());
+        assertTrue(repository.findTopmostAt(50, 100).isEmpty());
+        assertTrue(repository.findTopmostAt(200, 50).isEmpty());
+    }
+
+    @Test
+    void testMovingWidgetUpdatesSpatialIndex() {
+        WidgetSnapshot below = repository.save(widget(null, null));
+        Widget moved = repository.save(widget(null, null)).toWidget();
+        moved.setX(1_000L);
+        moved.setZ(BigInteger.ZERO);
+        repository.save(moved);
+
+        assertEquals(below.getId(), repository.findTopmostAt(50, 50).orElseThrow().getId());
+        List<WidgetSnapshot> found = repository.findAllInside(widget(null, null).toBuilder()
+                .x(1_000L)
+                .build());
+        assertEquals(1, found.size());
+        assertEquals(moved.getId(), found.get(0).getId());
+        assertEquals(BigInteger.ZERO, found.get(0).getZ());
+        assertEquals(BigInteger.ONE, repository.findOne(below.getId()).orElseThrow().getZ());
+    }
+
+    @Test
+    void testReadsHandOutSameSnapshotsUntilTheyChange() {
+        Widget widget = widget(null, null);
+        WidgetSnapshot saved = repository.save(widget);
+        assertNull(widget.getId());
+        assertSameSnapshot(saved, repository.findOne(saved.getId()).orElseThrow());
+        assertSameSnapshot(saved, repository.findAll().iterator().next());
+        assertSameSnapshot(saved, repository.findAllInside(saved).get(0));
+        assertSameSnapshot(saved, repository.findTopmostAt(50, 50).orElseThrow());
+
+        WidgetSnapshot below = repository.save(widget(null, 0));
+        WidgetSnapshot moved = repository.findOne(saved.getId()).orElseThrow();
+        assertEquals(BigInteger.ONE, moved.getZ());
+        assertEquals(saved.withZ(BigInteger.ONE), moved);
+        assertSameSnapshot(moved, repository.findTopmostAt(50, 50).orElseThrow());
+        assertSameSnapshot(below, repository.findAll().iterator().next());
+    }
+
+    @Test
+    void testSavesBatchesAtConsecutivePositions() {
+        List<UUID> stack = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            stack.add(repository.save(widget(null, null)).getId());
+        }
+        // Two of them existing, one below and one above where the batch goes
+        List<WidgetSnapshot> saved = repository.saveAll(List.of(
+                widget(null, 2),
+                widget(stack.get(4), 0).toBuilder().x(1_000L).build(),
+                widget(null, null),
+                widget(stack.get(0), null)));
+
+        List<UUID> expected = new ArrayList<>(stack);
+        expected.remove(4);
+        expected.remove(0);
+        expected.addAll(2, List.of(
+                saved.get(0).getId(),
+                stack.get(4),
+                saved.get(2).getId(),
+                stack.get(0)));
+        assertSameStack(expected);
+        for (int i = 0; i < saved.size(); i++) {
+            assertEquals(BigInteger.valueOf(2 + i), saved.get(i).getZ());
+        }
+        assertEquals(stack.get(3), repository.findTopmostAt(50, 50).orElseThrow().getId());
+        List<WidgetSnapshot> moved = repository.findAllInside(widget(null, null).toBuilder()
+                .x(1_000L)
+                .build());
+        assertEquals(List.of(saved.get(1)), moved);
+
+        // On top, without a Z-index
+        List<WidgetSnapshot> onTop = repository.saveAll(List.of(
+                widget(null, null),
+                widget(null, 0)));
+        assertEquals(BigInteger.valueOf(7), onTop.get(0).getZ());
+        assertEquals(BigInteger.valueOf(8), onTop.get(1).getZ());
+        assertEquals(List.of(), repository.saveAll(List.of()));
+    }
+
+    @Test
+    void testFindsBatchesSavedAfterDeleting() {
+        // Right where the batch goes, and the only other one far from it
+        WidgetSnapshot deleted = repository.save(widget(null, null));
+        WidgetSnapshot kept = repository.save(widget(null, null).toBuilder().x(5_000L).build());
+        repository.deleteById(deleted.getId());
+        List<WidgetSnapshot> saved = repository.saveAll(List.of(
+                widget(null, null).toBuilder().x(10L).y(10L).build(),
+                widget(null, null).toBuilder().x(20L).y(20L).build()));
+
+        Widget everything = widget(null, null).toBuilder().width(10_000L).height(1_000L).build();
+        assertEquals(3, repository.findAllInside(everything).size());
+        assertEquals(
+                saved.get(1).getId(),
+                repository.findTopmostAt(50, 50).orElseThrow().getId());
+
+        repository.deleteById(kept.getId());
+        saved.forEach(widget -> repository.deleteById(widget.getId()));
+        List<WidgetSnapshot> again = repository.saveAll(List.of(
+                widget(null, null),
+                widget(null, null).toBuilder().x(-500L).y(-500L).build()));
+        assertEquals(new HashSet<>(again), new HashSet<>(repository.findAllInside(everything
+                .toBuilder()
+                .x(-1_000L)
+                .y(-1_000L)
+                .width(2_000L)
+                .height(2_000L)
+                .build())));
+        assertEquals(again.get(0).getId(), repository.findTopmostAt(50, 50).orElseThrow().getId());
+    }
+
+    @Test
+    void testNeverShowsHalfSavedBatches() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            repository.save(widget(null, null));
+        }
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        // Far from each other, and moved from the bottom to the middle and back, swapped each time
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 5_000; i++) {
+                repository.saveAll(List.of(
+                        widget(i % 2 == 0 ? first : second, i % 2 == 0 ? 0 : 5),
+                        widget(i % 2 == 0 ? second : first, null).toBuilder()
+                                .x(1_000_000L)
+                                .build()));
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            List<UUID> all = new ArrayList<>();
+            repository.findAll().forEach(widget -> all.add(widget.getId()));
+            int firstRank = all.indexOf(first);
+            int secondRank = all.indexOf(second);
+            assertEquals(firstRank < 0, secondRank < 0);
+            if (firstRank >= 0) {
+                assertEquals(1, Math.abs(firstRank - secondRank));
+            }
+        }
+        writer.join();
+        assertEquals(12, repository.findAllInside(widget(null, null).toBuilder()
+                .width(2_000_000L)
+                .build()).size());
+    }
+
+    @Test
+    void testVisitsEveryWidgetInPages() {
+        List<WidgetSnapshot> saved = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            saved.add(repository.save(widget(null, null).toBuilder().x(i * 10L).build()));
+        }
+        List<Integer> sizes = new ArrayList<>();
+        List<WidgetSnapshot> visited = new ArrayList<>();
+        repository.forEachPage(10, page -> {
+            sizes.add(page.size());
+            visited.addAll(page);
+        });
+        assertEquals(List.of(10, 10, 5), sizes);
+        assertEquals(saved, visited);
+
+        // The first 11 of them
+        Widget rectangle = widget(null, null).toBuilder()
+                .x(-1L)
+                .y(-1L)
+                .width(205L)
+                .height(205L)
+                .build();
+        List<WidgetSnapshot> inside = new ArrayList<>();
+        repository.forEachPageInside(rectangle, 4, page -> {
+            assertTrue(page.size() <= 4);
+            inside.addAll(page);
+        });
+        assertEquals(new HashSet<>(saved.subList(0, 11)), new HashSet<>(inside));
+    }
+
+    @Test
+    void testVisitsWidgetsLeftAloneOnceWhileChangingBetweenPages() {
+        Widget everything = widget(null, null).toBuilder()
+                .x(-1L)
+                .y(-1L)
+                .width(1_000L)
+                .height(1_000L)
+                .build();
+        for (boolean insideOnly : new boolean[]{false, true}) {
+            repository = newRepository();
+            List<UUID> saved = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                saved.add(repository.save(widget(null, null)).getId());
+            }
+            Set<UUID> deleted = new HashSet<>();
+            List<UUID> visited = new ArrayList<>();
+            Consumer<List<WidgetSnapshot>> visitor = page -> {
+                page.forEach(widget -> visited.add(widget.getId()));
+                // The last one visited goes away, and the others move up and down
+                UUID last = page.get(page.size() - 1).getId();
+                repository.deleteById(last);
+                deleted.add(last);
+                repository.save(widget(null, 0));
+                repository.save(widget(null, null));
+            };
+            if (insideOnly) {
+                repository.forEachPageInside(everything, 7, visitor);
+            } else {
+                repository.forEachPage(7, visitor);
+            }
+            for (UUID id : saved) {
+                if (!deleted.contains(id)) {
+                    assertEquals(1, visited.stream().filter(id::equals).count());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testRejectsBatchesWithRepeatedWidgets() {
+        WidgetSnapshot existing = repository.save(widget(null, null));
+        UUID repeated = UUID.randomUUID();
+        assertThrows(IllegalArgumentException.class, () -> repository.saveAll(List.of(
+                widget(existing.getId(), 0),
+                widget(repeated, null),
+                widget(repeated, null))));
+        assertSameStack(List.of(existing.getId()));
+    }
+
+    private void assertSameSnapshot(WidgetSnapshot expected, WidgetSnapshot actual) {
+        if (keepsSnapshots()) {
+            assertSame(expected, actual);
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+
+    protected void assertSameStack(List<UUID> expected) {
+        List<UUID> actual = new ArrayList<>();
+        for (WidgetSnapshot widget : repository.findAll()) {
+            assertEquals(BigInteger.valueOf(actual.size()), widget.getZ());
+            assertEquals(widget.getZ(), repository.findOne(widget.getId()).orElseThrow().getZ());
+            actual.add(widget.getId());
+        }
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * @return a few widgets to save together, some new and some with distinct IDs from the given
+     * ones, moved somewhere else
+     */
+    protected static List<Widget> randomBatch(Random r, List<UUID> ids) {
+        List<Widget> batch = new ArrayList<>();
+        Set<UUID> used = new HashSet<>();
+        int size = 1 + r.nextInt(8);
+        for (int i = 0; i < size; i++) {
+            UUID id = !ids.isEmpty() && r.nextBoolean() ? ids.get(r.nextInt(ids.size())) : null;
+            if (id == null || used.add(id)) {
+                Integer z = r.nextBoolean() ? null : r.nextInt(ids.size() + 1);
+                batch.add(widget(id, z).toBuilder().x((long) r.nextInt(10_000)).build());
+            }
+        }
+        return batch;
+    }
+
+    protected static Widget widget(UUID id, Integer z) {
+        return Widget.builder()
+                .id(id)
+                .x(0L)
+                .y(0L)
+                .width(100L)
+                .height(100L)
+                .z(z == null ? null : BigInteger.valueOf(z))
+                .build();
+    }
+}
@@ -0,0 +1,215 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryRepositoryTest extends AbstractWidgetRepositoryTest {
+
+    @TempDir
+    Path directory;
+
+    @Override
+    protected WidgetRepository newRepository() {
+        return new InMemoryRepository(new RTreeRepository(), null, 10_000);
+    }
+
+    @Test
+    void testCachedResultsStayConsistent() {
+        Random r = new Random(42L);
+        WidgetRepository expected = new InMemoryRepository(new RTreeRepository());
+        List<Rectangle> viewports = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            viewports.add(Widget.builder()
+                    .x(r.nextInt(10_000) - 5_000L)
+                    .y(r.nextInt(10_000) - 5_000L)
+                    .width(1L + r.nextInt(5_000))
+                    .height(1L + r.nextInt(5_000))
+                    .build());
+        }
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            // Mostly reads, with sparse changes
+            if (r.nextInt(5) != 0) {
+                Rectangle viewport = viewports.get(r.nextInt(viewports.size()));
+                assertEquals(expected.findAllInside(viewport), repository.findAllInside(viewport));
+            } else if (!ids.isEmpty() && r.nextInt(4) == 0) {
+                UUID id = ids.remove(r.nextInt(ids.size()));
+                repository.deleteById(id);
+                expected.deleteById(id);
+            } else {
+                UUID id = !ids.isEmpty() && r.nextBoolean()
+                        ? ids.get(r.nextInt(ids.size()))
+                        : UUID.randomUUID();
+                Widget widget = Widget.builder()
+                        .id(id)
+                        .x(r.nextInt(10_000) - 5_000L)
+                        .y(r.nextInt(10_000) - 5_000L)
+                        .width(1L + r.nextInt(1_000))
+                        .height(1L + r.nextInt(1_000))
+                        .z(r.nextBoolean() ? null : BigInteger.valueOf(r.nextInt(ids.size() + 1)))
+                        .build();
+                assertEquals(expected.save(widget.toBuilder().build()), repository.save(widget));
+                if (!ids.contains(id)) {
+                    ids.add(id);
+                }
+            }
+        }
+
+        QueryCacheStats stats = ((InMemoryRepository) repository).queryCacheStats().orElseThrow();
+        assertTrue(stats.getHits() > stats.getMisses());
+        assertTrue(stats.getInvalidations() > 0);
+        assertEquals(0, stats.getEvictions());
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsedResults() {
+        // Room for two results with a single widget each
+        InMemoryRepository cached = new InMemoryRepository(new RTreeRepository(), null, 5);
+        cached.save(widget(null, null));
+        Rectangle first = widget(null, null).toBuilder().x(-1L).width(200L).build();
+        Rectangle second = widget(null, null).toBuilder().y(-1L).height(200L).build();
+        Rectangle third = widget(null, null).toBuilder().width(200L).height(200L).build();
+
+        cached.findAllInside(first);
+        cached.findAllInside(second);
+        cached.findAllInside(first);
+        cached.findAllInside(third);
+        cached.findAllInside(first);
+        cached.findAllInside(second);
+
+        QueryCacheStats stats = cached.queryCacheStats().orElseThrow();
+        assertEquals(2, stats.getEntries());
+        assertEquals(2, stats.getHits());
+        assertEquals(4, stats.getMisses());
+        assertEquals(2, stats.getEvictions());
+    }
+
+    @Test
+    void testDropsOnlyResultsAroundChangedWidgets() {
+        InMemoryRepository cached = new InMemoryRepository(new RTreeRepository(), null, 100);
+        WidgetSnapshot saved = cached.save(widget(null, null));
+        // Around it, sharing its edges, next to it, and far from it
+        Rectangle around = widget(null, null).toBuilder().x(-1L).width(200L).build();
+        Rectangle same = widget(null, null);
+        Rectangle beside = widget(null, null).toBuilder().x(100L).build();
+        Rectangle far = widget(null, null).toBuilder().x(10_000L).y(10_000L).build();
+        for (Rectangle rectangle : List.of(around, same, beside, far)) {
+            cached.findAllInside(rectangle);
+        }
+
+        cached.save(saved.toWidget().toBuilder().x(10_000L).y(10_000L).build());
+        QueryCacheStats stats = cached.queryCacheStats().orElseThrow();
+        assertEquals(3, stats.getInvalidations());
+        assertEquals(1, stats.getEntries());
+        assertEquals(List.of(), cached.findAllInside(beside));
+        assertEquals(saved.getId(), cached.findAllInside(far).get(0).getId());
+    }
+
+    @Test
+    void testRecordsOperationsAndResultSizes() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        InMemoryRepository metered =
+                new InMemoryRepository(new RTreeRepository(), null, 10_000, registry);
+        WidgetSnapshot saved = metered.save(widget(null, null));
+        metered.save(widget(null, 0));
+        metered.findOne(saved.getId());
+        metered.findAll();
+        Rectangle everything =
+                widget(null, null).toBuilder().x(-1L).y(-1L).width(200L).height(200L).build();
+        metered.findAllInside(everything);
+        metered.findAllInside(everything);
+        metered.deleteById(saved.getId());
+        metered.saveAll(List.of(widget(null, null), widget(null, null)));
+
+        assertEquals(2, count(registry, "save"));
+        assertEquals(1, count(registry, "saveAll"));
+        assertEquals(1, count(registry, "findOne"));
+        assertEquals(1, count(registry, "findAll"));
+        assertEquals(2, count(registry, "findAllInside"));
+        assertEquals(1, count(registry, "deleteById"));
+        assertEquals(
+                4,
+                registry.get(RepositoryMetrics.RESULTS)
+                        .tag("operation", "findAllInside")
+                        .summary()
+                        .totalAmount());
+        // The second search found a cached result, but still took the read lock
+        assertEquals(
+                4,
+                registry.get(RepositoryMetrics.LOCK_WAIT).tag("mode", "write").timer().count());
+        assertEquals(
+                4,
+                registry.get(RepositoryMetrics.LOCK_WAIT).tag("mode", "read").timer().count());
+        assertEquals(
+                1,
+                registry.get("widget.cache.inside.gets").tag("result", "hit").functionCounter()
+                        .count());
+        assertEquals(3, registry.get("widget.rtree.leaves").gauge().value());
+    }
+
+    private static long count(MeterRegistry registry, String operation) {
+        return registry.get(RepositoryMetrics.OPERATIONS)
+                .tag("operation", operation)
+                .timer()
+                .count();
+    }
+
+    @Test
+    void testRecoversEverythingAfterRestart() {
+        Random r = new Random(42L);
+        List<UUID> ids = new ArrayList<>();
+        List<WidgetSnapshot> expected = new ArrayList<>();
+        // Restarting a few times, with a few snapshots along the way
+        for (int restart = 0; restart < 4; restart++) {
+            WriteAheadLog log = new WriteAheadLog(directory, 150);
+            repository = new InMemoryRepository(new RTreeRepository(), log);
+            assertEquals(expected, all(repository));
+            for (int i = 0; i < 500; i++) {
+                if (!ids.isEmpty() && r.nextInt(4) == 0) {
+                    repository.deleteById(ids.remove(r.nextInt(ids.size())));
+                } else if (r.nextInt(8) == 0) {
+                    for (WidgetSnapshot saved : repository.saveAll(randomBatch(r, ids))) {
+                        if (!ids.contains(saved.getId())) {
+                            ids.add(saved.getId());
+                        }
+                    }
+                } else {
+                    UUID id = !ids.isEmpty() && r.nextBoolean()
+                            ? ids.get(r.nextInt(ids.size()))
+                            : null;
+                    Integer z = r.nextBoolean() ? null : r.nextInt(ids.size() + 1);
+                    WidgetSnapshot saved = repository.save(widget(id, z).toBuilder()
+                            .x((long) r.nextInt(10_000))
+                            .build());
+                    if (id == null) {
+                        ids.add(saved.getId());
+                    }
+                }
+            }
+            expected = all(repository);
+            log.close();
+        }
+    }
+
+    private static List<WidgetSnapshot> all(WidgetRepository repository) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        repository.findAll().forEach(result::add);
+        return result;
+    }
+}
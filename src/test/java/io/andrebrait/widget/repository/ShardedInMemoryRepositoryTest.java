@@ -0,0 +1,191 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedInMemoryRepositoryTest extends AbstractWidgetRepositoryTest {
+
+    private static final long TILE_SIZE = 10_000;
+
+    @Override
+    protected WidgetRepository newRepository() {
+        return new ShardedInMemoryRepository(TILE_SIZE, RTreeRepository::new);
+    }
+
+    @Test
+    void testFindsSameAsUnsharded() {
+        Random r = new Random(42L);
+        WidgetRepository expected = new InMemoryRepository(new RTreeRepository());
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            if (!ids.isEmpty() && r.nextInt(5) == 0) {
+                UUID id = ids.remove(r.nextInt(ids.size()));
+                repository.deleteById(id);
+                expected.deleteById(id);
+                continue;
+            }
+            UUID id = !ids.isEmpty() && r.nextBoolean()
+                    ? ids.get(r.nextInt(ids.size()))
+                    : UUID.randomUUID();
+            // Some of them cross the borders between tiles
+            Widget widget = Widget.builder()
+                    .id(id)
+                    .x(r.nextInt(200_000) - 100_000L)
+                    .y(r.nextInt(200_000) - 100_000L)
+                    .width(1L + r.nextInt(r.nextInt(10) == 0 ? 30_000 : 1_000))
+                    .height(1L + r.nextInt(r.nextInt(10) == 0 ? 30_000 : 1_000))
+                    .z(r.nextBoolean() ? null : BigInteger.valueOf(r.nextInt(ids.size() + 1)))
+                    .build();
+            assertEquals(
+                    expected.save(widget.toBuilder().build()).getZ(),
+                    repository.save(widget).getZ());
+            if (!ids.contains(id)) {
+                ids.add(id);
+            }
+        }
+
+        assertEquals(idsAndZ(expected.findAll()), idsAndZ(repository.findAll()));
+        for (int i = 0; i < 200; i++) {
+            long x = r.nextInt(200_000) - 100_000L;
+            long y = r.nextInt(200_000) - 100_000L;
+            Rectangle search = Widget.builder()
+                    .x(x)
+                    .y(y)
+                    .width(1L + r.nextInt(50_000))
+                    .height(1L + r.nextInt(50_000))
+                    .build();
+            assertEquals(
+                    new HashSet<>(idsAndZ(expected.findAllInside(search))),
+                    new HashSet<>(idsAndZ(repository.findAllInside(search))));
+            assertEquals(
+                    new HashSet<>(idsAndZ(expected.findAllIntersecting(search))),
+                    new HashSet<>(idsAndZ(repository.findAllIntersecting(search))));
+            assertEquals(
+                    idsAndZ(expected.findAllInside(search, 10, ZOrder.DESCENDING)),
+                    idsAndZ(repository.findAllInside(search, 10, ZOrder.DESCENDING)));
+            assertEquals(
+                    idsAndZ(expected.findTopmostAt(x, y).stream().collect(Collectors.toList())),
+                    idsAndZ(repository.findTopmostAt(x, y).stream().collect(Collectors.toList())));
+        }
+    }
+
+    @Test
+    void testFindsInFewTilesAndAcrossThePlane() {
+        List<WidgetSnapshot> saved = new ArrayList<>();
+        for (long tile = -3; tile < 3; tile++) {
+            saved.add(repository.save(Widget.builder()
+                    .x(tile * TILE_SIZE + 10)
+                    .y(tile * TILE_SIZE + 10)
+                    .width(100L)
+                    .height(100L)
+                    .build()));
+        }
+        WidgetSnapshot far = repository.save(Widget.builder()
+                .x(Long.MAX_VALUE / 4)
+                .y(Long.MIN_VALUE / 4)
+                .width(100L)
+                .height(100L)
+                .build());
+        saved.add(far);
+
+        // A single tile, then a few around the origin, which are looked up one by one
+        Widget one = Widget.builder().x(-TILE_SIZE).y(-TILE_SIZE).width(500L).height(500L).build();
+        assertEquals(Set.of(saved.get(2)), new HashSet<>(repository.findAllInside(one)));
+        Widget few = Widget.builder()
+                .x(-TILE_SIZE)
+                .y(-TILE_SIZE)
+                .width(TILE_SIZE + 500)
+                .height(TILE_SIZE + 500)
+                .build();
+        assertEquals(
+                Set.of(saved.get(2), saved.get(3)),
+                new HashSet<>(repository.findAllInside(few)));
+
+        // Far more tiles than there are shards, so every shard is gone through instead
+        Widget plane = Widget.builder()
+                .x(Long.MIN_VALUE / 2 - 1)
+                .y(Long.MIN_VALUE / 2 - 1)
+                .width(Long.MAX_VALUE)
+                .height(Long.MAX_VALUE)
+                .build();
+        assertEquals(new HashSet<>(saved), new HashSet<>(repository.findAllInside(plane)));
+        assertEquals(Optional.of(far), repository.findTopmostAt(far.getX(), far.getY()));
+    }
+
+    @Test
+    void testConcurrentSaves() throws Exception {
+        int threads = 4;
+        int widgetsPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long offset = t * TILE_SIZE * 3;
+            Random r = new Random(t);
+            futures.add(executor.submit(() -> {
+                List<WidgetSnapshot> saved = new ArrayList<>();
+                for (int i = 0; i < widgetsPerThread; i++) {
+                    Widget widget = Widget.builder()
+                            .x(offset + r.nextInt(20_000))
+                            .y(r.nextInt(20_000))
+                            .width(100L)
+                            .height(100L)
+                            .z(r.nextBoolean() ? BigInteger.ZERO : null)
+                            .build();
+                    saved.add(repository.save(widget));
+                    int index = r.nextInt(saved.size());
+                    Widget moved = saved.get(index).toWidget();
+                    moved.setX(offset + r.nextInt(20_000));
+                    moved.setZ(null);
+                    saved.set(index, repository.save(moved));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        List<WidgetSnapshot> all = new ArrayList<>();
+        repository.findAll().forEach(all::add);
+        assertEquals(threads * widgetsPerThread, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(BigInteger.valueOf(i), all.get(i).getZ());
+        }
+        Widget everything = Widget.builder()
+                .x(-TILE_SIZE)
+                .y(-TILE_SIZE)
+                .width(TILE_SIZE * 3 * threads + TILE_SIZE)
+                .height(TILE_SIZE * 4)
+                .build();
+        assertEquals(new HashSet<>(all), new HashSet<>(repository.findAllInside(everything)));
+    }
+
+    private static List<String> idsAndZ(Iterable<WidgetSnapshot> widgets) {
+        List<String> result = new ArrayList<>();
+        widgets.forEach(widget -> result.add(widget.getId() + "@" + widget.getZ()));
+        return result;
+    }
+}
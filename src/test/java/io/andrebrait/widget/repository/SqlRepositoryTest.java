@@ -0,0 +1,270 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SqlRepositoryTest extends AbstractWidgetRepositoryTest {
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private WidgetTableWriter writer;
+
+    @Override
+    protected WidgetRepository newRepository() {
+        database = new EmbeddedDatabaseBuilder()
+                .generateUniqueName(true)
+                .setType(EmbeddedDatabaseType.H2)
+                .build();
+        jdbcTemplate = new JdbcTemplate(database);
+        // The same table Hibernate creates for the entity
+        jdbcTemplate.execute("CREATE TABLE WIDGET ("
+                + "ID BINARY(16) NOT NULL PRIMARY KEY, "
+                + "HEIGHT BIGINT NOT NULL, "
+                + "WIDTH BIGINT NOT NULL, "
+                + "X BIGINT NOT NULL, "
+                + "Y BIGINT NOT NULL, "
+                + "Z DECIMAL(19, 2) NOT NULL UNIQUE)");
+        return restart();
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.close();
+        database.shutdown();
+    }
+
+    private WidgetRepository restart() {
+        if (writer != null) {
+            writer.close();
+        }
+        // Small batches and a small queue, so saving has to wait for them sometimes
+        writer = new WidgetTableWriter(
+                jdbcTemplate,
+                new TransactionTemplate(new DataSourceTransactionManager(database)),
+                16,
+                8);
+        return new SqlRepository(new RTreeRepository(), writer);
+    }
+
+    @Test
+    void testWritesEverythingToTheTable() {
+        Random r = new Random(42L);
+        List<UUID> ids = new ArrayList<>();
+        for (int restart = 0; restart < 3; restart++) {
+            for (int i = 0; i < 500; i++) {
+                if (!ids.isEmpty() && r.nextInt(4) == 0) {
+                    repository.deleteById(ids.remove(r.nextInt(ids.size())));
+                } else if (r.nextInt(8) == 0) {
+                    for (WidgetSnapshot saved : repository.saveAll(randomBatch(r, ids))) {
+                        if (!ids.contains(saved.getId())) {
+                            ids.add(saved.getId());
+                        }
+                    }
+                } else {
+                    UUID id = !ids.isEmpty() && r.nextBoolean()
+                            ? ids.get(r.nextInt(ids.size()))
+                            : null;
+                    Integer z = r.nextBoolean() ? null : r.nextInt(ids.size() + 1);
+                    WidgetSnapshot saved = repository.save(widget(id, z).toBuilder()
+                            .x((long) r.nextInt(10_000))
+                            .build());
+                    if (id == null) {
+                        ids.add(saved.getId());
+                    }
+                }
+            }
+            List<WidgetSnapshot> expected = all(repository);
+            writer.flush();
+            assertEquals(
+                    expected.size(),
+                    jdbcTemplate.queryForObject("SELECT COUNT(*) FROM WIDGET", Integer.class));
+
+            repository = restart();
+            assertEquals(expected, all(repository));
+        }
+    }
+
+    @Test
+    void testWritesABatchAtTheBottomWithAConstantNumberOfStatements() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger statements = new AtomicInteger();
+        JdbcTemplate counting = new JdbcTemplate(database) {
+
+            @Override
+            public int update(String sql) {
+                count();
+                return super.update(sql);
+            }
+
+            @Override
+            public int update(String sql, Object... args) {
+                count();
+                return super.update(sql, args);
+            }
+
+            @Override
+            public int[] batchUpdate(String sql, List<Object[]> batchArgs) {
+                count();
+                return super.batchUpdate(sql, batchArgs);
+            }
+
+            private void count() {
+                if (statements.getAndIncrement() == 0) {
+                    // Holds the first batch, so the next ones pile up behind it
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        List<UUID> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(repository.save(widget(null, null)).getId());
+        }
+        writer.close();
+        writer = new WidgetTableWriter(
+                counting,
+                new TransactionTemplate(new DataSourceTransactionManager(database)),
+                1_000,
+                1_000);
+        repository = new SqlRepository(new RTreeRepository(), writer);
+
+        expected.add(repository.save(widget(null, null)).getId());
+        writing.await();
+        for (int i = 0; i < 100; i++) {
+            expected.add(0, repository.save(widget(null, 0)).getId());
+        }
+        // Some of the ones already in the table and some of the new ones
+        for (int index : new int[]{105, 50}) {
+            WidgetSnapshot moved = repository.save(widget(expected.remove(index), 3));
+            expected.add(3, moved.getId());
+        }
+        for (int index : new int[]{108, 20}) {
+            Widget resized = repository.findOne(expected.get(index)).orElseThrow().toWidget();
+            resized.setWidth(200L);
+            repository.save(resized);
+        }
+        repository.deleteById(expected.remove(107));
+        repository.deleteById(expected.remove(30));
+        release.countDown();
+        writer.flush();
+
+        // The first insert, then a delete, two to shift, an update and an insert for the rest
+        assertEquals(1 + 5, statements.get());
+        assertEquals(expected, jdbcTemplate.query(
+                "SELECT ID FROM WIDGET ORDER BY Z",
+                (resultSet, row) -> {
+                    ByteBuffer id = ByteBuffer.wrap(resultSet.getBytes(1));
+                    return new UUID(id.getLong(), id.getLong());
+                }));
+    }
+
+    @Test
+    void testReadsWhileWaitingForTheDatabase() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        JdbcTemplate stuck = new JdbcTemplate(database) {
+
+            @Override
+            public int update(String sql, Object... args) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.update(sql, args);
+            }
+        };
+        writer.close();
+        writer = new WidgetTableWriter(
+                stuck,
+                new TransactionTemplate(new DataSourceTransactionManager(database)),
+                2,
+                1);
+        repository = new SqlRepository(new RTreeRepository(), writer);
+
+        repository.save(widget(null, null));
+        writing.await();
+        // Two more fill the queue, and the one after them waits for room
+        List<UUID> saved = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            saved.add(repository.save(widget(null, null)).getId());
+        }
+        Widget waiting = widget(UUID.randomUUID(), null);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread saving = new Thread(() -> {
+            repository.save(waiting);
+            done.countDown();
+        });
+        saving.start();
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+
+        assertEquals(4, all(repository).size());
+        assertTrue(repository.findOne(waiting.getId()).isPresent());
+        assertTrue(repository.findOne(saved.get(1)).isPresent());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        writer.flush();
+        assertEquals(4, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM WIDGET", Integer.class));
+    }
+
+    @Test
+    void testGivesUpClosingIfTheDatabaseIsGone() {
+        JdbcTemplate gone = new JdbcTemplate(database) {
+
+            @Override
+            public int update(String sql, Object... args) {
+                throw new DataAccessResourceFailureException("Gone");
+            }
+        };
+        writer.close();
+        writer = new WidgetTableWriter(
+                gone,
+                new TransactionTemplate(new DataSourceTransactionManager(database)),
+                16,
+                8,
+                200);
+        repository = new SqlRepository(new RTreeRepository(), writer);
+        repository.save(widget(null, null));
+
+        long start = System.nanoTime();
+        writer.close();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM WIDGET", Integer.class));
+    }
+
+    private static List<WidgetSnapshot> all(WidgetRepository repository) {
+        List<WidgetSnapshot> result = new ArrayList<>();
+        repository.findAll().forEach(result::add);
+        return result;
+    }
+}
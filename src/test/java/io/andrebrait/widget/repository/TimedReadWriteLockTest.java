@@ -0,0 +1,77 @@
+package io.andrebrait.widget.repository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimedReadWriteLockTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final TimedReadWriteLock lock = new TimedReadWriteLock(registry, "test.lock.wait");
+
+    @Test
+    void testReadersWaitBehindQueuedWriter() throws Exception {
+        CountDownLatch read = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            lock.readLock().lock();
+            try {
+                read.countDown();
+                releaseRead.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+        reader.start();
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch written = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            lock.writeLock().lock();
+            try {
+                written.countDown();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+        writer.start();
+        awaitWaiting(writer);
+
+        CountDownLatch readAgain = new CountDownLatch(1);
+        Thread secondReader = new Thread(() -> {
+            lock.readLock().lock();
+            try {
+                // The writer got it first
+                if (written.getCount() == 0) {
+                    readAgain.countDown();
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+        secondReader.start();
+        assertFalse(readAgain.await(200, TimeUnit.MILLISECONDS));
+
+        releaseRead.countDown();
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertTrue(readAgain.await(5, TimeUnit.SECONDS));
+        assertEquals(2, registry.get("test.lock.wait").tag("mode", "read").timer().count());
+        assertEquals(1, registry.get("test.lock.wait").tag("mode", "write").timer().count());
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.nanoTime() < deadline, "Never waited for the lock");
+            Thread.sleep(1);
+        }
+    }
+}
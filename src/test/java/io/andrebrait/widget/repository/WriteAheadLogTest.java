@@ -0,0 +1,310 @@
+package io.andrebrait.widget.repository;
+
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path directory;
+
+    private final List<Object> replayed = new ArrayList<>();
+
+    @Test
+    void testReplaysInOrder() {
+        WidgetSnapshot first = widget(0);
+        WidgetSnapshot second = widget(1);
+        try (WriteAheadLog log = recovered(10)) {
+            log.appendSave(first);
+            log.appendSave(second);
+            log.sync(log.appendDelete(first.getId()));
+        }
+        recovered(10).close();
+        assertEquals(List.of(first, second, first.getId()), replayed);
+    }
+
+    @Test
+    void testDropsTornTail() throws IOException {
+        WidgetSnapshot first = widget(0);
+        try (WriteAheadLog log = recovered(10)) {
+            log.sync(log.appendSave(first));
+            log.appendSave(widget(1));
+        }
+        Path segment = files("wal-").get(0);
+        try (var channel = Files.newByteChannel(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 3);
+        }
+
+        try (WriteAheadLog log = recovered(10)) {
+            log.sync(log.appendSave(widget(2)));
+        }
+        replayed.clear();
+        recovered(10).close();
+        assertEquals(List.of(first, widget(2)), replayed);
+    }
+
+    @Test
+    void testReplaysBatchesOutOfTheWayFirst() {
+        WidgetSnapshot first = widget(0);
+        List<WidgetSnapshot> batch = List.of(widget(1), widget(2));
+        try (WriteAheadLog log = recovered(10)) {
+            log.appendSave(first);
+            log.sync(log.appendSaves(batch));
+        }
+        recovered(10).close();
+        assertEquals(
+                List.of(
+                        first,
+                        batch.get(0).getId(),
+                        batch.get(1).getId(),
+                        batch.get(0),
+                        batch.get(1)),
+                replayed);
+    }
+
+    @Test
+    void testDropsTornBatchWhole() throws IOException {
+        WidgetSnapshot first = widget(0);
+        try (WriteAheadLog log = recovered(10)) {
+            log.sync(log.appendSave(first));
+            log.appendSaves(List.of(widget(1), widget(2)));
+        }
+        Path segment = files("wal-").get(0);
+        try (var channel = Files.newByteChannel(segment, StandardOpenOption.WRITE)) {
+            // The first save of the batch is whole, but not the second one
+            channel.truncate(Files.size(segment) - 3);
+        }
+
+        try (WriteAheadLog log = recovered(10)) {
+            log.sync(log.appendSave(widget(3)));
+        }
+        replayed.clear();
+        recovered(10).close();
+        assertEquals(List.of(first, widget(3)), replayed);
+    }
+
+    @Test
+    void testSnapshotReplacesOlderSegments() throws IOException {
+        List<WidgetSnapshot> widgets = List.of(widget(0), widget(1), widget(2));
+        try (WriteAheadLog log = recovered(2)) {
+            log.appendSave(widgets.get(0));
+            assertFalse(log.isSnapshotDue());
+            log.appendSave(widgets.get(1));
+            assertTrue(log.isSnapshotDue());
+            long segment = log.rotateIfDue();
+            assertEquals(-1, log.rotateIfDue());
+            log.writeSnapshot(segment, widgets.subList(0, 2));
+            log.sync(log.appendSave(widgets.get(2)));
+        }
+        assertEquals(1, files("snapshot-").size());
+        assertEquals(1, files("wal-").size());
+
+        recovered(2).close();
+        assertEquals(widgets, replayed);
+    }
+
+    @Test
+    void testTakesBackRecordsFailingHalfway() {
+        WidgetSnapshot first = widget(0);
+        WidgetSnapshot third = widget(2);
+        List<FailingChannel> channels = new ArrayList<>();
+        try (WriteAheadLog log = new WriteAheadLog(directory, 10, path -> {
+            FailingChannel channel = new FailingChannel(FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE));
+            channels.add(channel);
+            return channel;
+        })) {
+            log.recover(replayed::add, replayed::add);
+            log.sync(log.appendSave(first));
+            channels.get(0).failWrite = true;
+            assertThrows(UncheckedIOException.class, () -> log.appendSave(widget(1)));
+            log.sync(log.appendSave(third));
+        }
+        recovered(10).close();
+        assertEquals(List.of(first, third), replayed);
+    }
+
+    @Test
+    void testFailsForGoodIfRecordsCantBeTakenBack() {
+        List<FailingChannel> channels = new ArrayList<>();
+        try (WriteAheadLog log = new WriteAheadLog(directory, 10, path -> {
+            FailingChannel channel = new FailingChannel(FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE));
+            channels.add(channel);
+            return channel;
+        })) {
+            log.recover(replayed::add, replayed::add);
+            channels.get(0).failWrite = true;
+            channels.get(0).failTruncate = true;
+            assertThrows(UncheckedIOException.class, () -> log.appendSave(widget(0)));
+            channels.get(0).failTruncate = false;
+            assertThrows(UncheckedIOException.class, () -> log.appendDelete(new UUID(0, 0)));
+        }
+    }
+
+    private WriteAheadLog recovered(int snapshotEvery) {
+        WriteAheadLog log = new WriteAheadLog(directory, snapshotEvery);
+        log.recover(replayed::add, replayed::add);
+        return log;
+    }
+
+    private List<Path> files(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static WidgetSnapshot widget(int z) {
+        return WidgetSnapshot.builder()
+                .id(new UUID(0, z))
+                .x(z * 10L)
+                .y(-z)
+                .width(100L)
+                .height(200L)
+                .z(BigInteger.valueOf(z))
+                .build();
+    }
+
+    /**
+     * Writes half of what it's given and fails when told to, as when the disk fills up
+     */
+    private static final class FailingChannel extends FileChannel {
+
+        private final FileChannel delegate;
+        boolean failWrite;
+        boolean failTruncate;
+
+        private FailingChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!failWrite) {
+                return delegate.write(src);
+            }
+            failWrite = false;
+            ByteBuffer half = src.duplicate();
+            half.limit(half.position() + half.remaining() / 2);
+            src.position(half.limit());
+            delegate.write(half);
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate) {
+                throw new IOException("Input/output error");
+            }
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+                throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count)
+                throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
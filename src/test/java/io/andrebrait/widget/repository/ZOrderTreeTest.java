@@ -0,0 +1,147 @@
+package io.andrebrait.widget.repository;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZOrderTreeTest {
+
+    private static final long SEED = 42L;
+
+    private final Map<Integer, Long> labels = new HashMap<>();
+    private final ZOrderTree<Integer> tree = new ZOrderTree<>(labels::put);
+
+    @Test
+    void testKeepsSameOrderAsList() {
+        Random r = new Random(SEED);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            if (!expected.isEmpty() && r.nextInt(4) == 0) {
+                Integer removed = expected.remove(r.nextInt(expected.size()));
+                assertEquals(removed, tree.remove(labels.remove(removed)));
+            } else {
+                int rank = r.nextInt(expected.size() + 1);
+                expected.add(rank, i);
+                labels.put(i, tree.insert(rank, i));
+            }
+        }
+        assertSameOrder(expected);
+    }
+
+    @Test
+    void testVisitsPagesAboveALabel() {
+        Random r = new Random(SEED);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            int rank = r.nextInt(expected.size() + 1);
+            expected.add(rank, i);
+            labels.put(i, tree.insert(rank, i));
+        }
+        for (int from = -1; from < expected.size(); from += 1 + r.nextInt(50)) {
+            long label = from < 0 ? Long.MIN_VALUE : tree.labelAt(from);
+            if (from >= 0) {
+                assertEquals(labels.get(expected.get(from)), label);
+            }
+            int limit = r.nextInt(100);
+            List<Integer> page = new ArrayList<>();
+            List<Integer> ranks = new ArrayList<>();
+            tree.forEachAbove(label, limit, (value, rank) -> {
+                page.add(value);
+                ranks.add(rank);
+            });
+            int end = Math.min(from + 1 + limit, expected.size());
+            assertEquals(expected.subList(from + 1, end), page);
+            for (int i = 0; i < ranks.size(); i++) {
+                assertEquals(from + 1 + i, ranks.get(i));
+            }
+        }
+    }
+
+    @Test
+    void testRelabelsWhenThereIsNoRoomLeft() {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            expected.add(0, i);
+            labels.put(i, tree.insert(0, i));
+            expected.add(1, -i - 1);
+            labels.put(-i - 1, tree.insert(1, -i - 1));
+        }
+        assertSameOrder(expected);
+    }
+
+    @Test
+    void testInsertsAllAtConsecutivePositions() {
+        Random r = new Random(SEED);
+        List<Integer> expected = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < 500; i++) {
+            // Always at the bottom every other time, so the gap there runs out
+            int rank = i % 2 == 0 ? 0 : r.nextInt(expected.size() + 1);
+            List<Integer> values = new ArrayList<>();
+            for (int j = r.nextInt(20); j > 0; j--) {
+                values.add(next++);
+            }
+            expected.addAll(rank, values);
+            long[] inserted = tree.insertAll(rank, values);
+            assertEquals(values.size(), inserted.length);
+            for (int j = 0; j < inserted.length; j++) {
+                labels.put(values.get(j), inserted[j]);
+            }
+        }
+        assertSameOrder(expected);
+    }
+
+    @Test
+    void testTryInsertNeverRelabels() {
+        assertTrue(tree.tryInsert(0, 0) >= 0);
+        long label = 0;
+        for (int i = 1; label >= 0; i++) {
+            label = tree.tryInsert(0, i);
+        }
+        assertTrue(labels.isEmpty());
+        tree.relabel();
+        assertEquals(tree.size(), labels.size());
+        assertTrue(tree.tryInsert(0, -1) >= 0);
+    }
+
+    @Test
+    void testRemoveMissingLabel() {
+        labels.put(0, tree.insert(0, 0));
+        assertNull(tree.remove(labels.get(0) + 1));
+        assertEquals(1, tree.size());
+        assertThrows(IllegalArgumentException.class, () -> tree.rank(labels.get(0) + 1));
+    }
+
+    @Test
+    void testInsertOutOfRange() {
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.insert(1, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.insert(-1, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.insertAll(1, List.of(0)));
+    }
+
+    private void assertSameOrder(List<Integer> expected) {
+        assertEquals(expected.size(), tree.size());
+        List<Integer> actual = new ArrayList<>();
+        tree.forEachInOrder((value, rank) -> {
+            assertEquals(actual.size(), rank);
+            actual.add(value);
+        });
+        assertEquals(expected, actual);
+        long previous = Long.MIN_VALUE;
+        for (int rank = 0; rank < expected.size(); rank++) {
+            long label = labels.get(expected.get(rank));
+            assertTrue(label > previous);
+            assertEquals(rank, tree.rank(label));
+            previous = label;
+        }
+    }
+}
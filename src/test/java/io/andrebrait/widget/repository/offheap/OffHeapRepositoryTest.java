@@ -0,0 +1,111 @@
+package io.andrebrait.widget.repository.offheap;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.AbstractWidgetRepositoryTest;
+import io.andrebrait.widget.repository.InMemoryRepository;
+import io.andrebrait.widget.repository.WidgetRepository;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import io.andrebrait.widget.repository.rectangle.ZOrder;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OffHeapRepositoryTest extends AbstractWidgetRepositoryTest {
+
+    @Override
+    protected WidgetRepository newRepository() {
+        return new OffHeapRepository();
+    }
+
+    @Override
+    protected boolean keepsSnapshots() {
+        return false;
+    }
+
+    @Test
+    void testFindsSameAsInMemory() {
+        Random r = new Random(42L);
+        WidgetRepository expected = new InMemoryRepository(new RTreeRepository());
+        List<UUID> ids = new ArrayList<>();
+        // Enough of them to grow the index of the IDs and to reuse the slots of deleted ones
+        for (int i = 0; i < 5_000; i++) {
+            if (!ids.isEmpty() && r.nextInt(4) == 0) {
+                UUID id = ids.remove(r.nextInt(ids.size()));
+                repository.deleteById(id);
+                expected.deleteById(id);
+                continue;
+            }
+            UUID id = !ids.isEmpty() && r.nextBoolean()
+                    ? ids.get(r.nextInt(ids.size()))
+                    : UUID.randomUUID();
+            Widget widget = Widget.builder()
+                    .id(id)
+                    .x(r.nextInt(100_000) - 50_000L)
+                    .y(r.nextInt(100_000) - 50_000L)
+                    .width(1L + r.nextInt(r.nextInt(10) == 0 ? 20_000 : 1_000))
+                    .height(1L + r.nextInt(r.nextInt(10) == 0 ? 20_000 : 1_000))
+                    .z(r.nextBoolean() ? null : BigInteger.valueOf(r.nextInt(ids.size() + 1)))
+                    .build();
+            assertEquals(expected.save(widget.toBuilder().build()), repository.save(widget));
+            if (!ids.contains(id)) {
+                ids.add(id);
+            }
+        }
+
+        assertEquals(expected.findAll(), repository.findAll());
+        for (UUID id : ids) {
+            assertEquals(expected.findOne(id), repository.findOne(id));
+        }
+        for (int i = 0; i < 200; i++) {
+            long x = r.nextInt(100_000) - 50_000L;
+            long y = r.nextInt(100_000) - 50_000L;
+            Rectangle search = Widget.builder()
+                    .x(x)
+                    .y(y)
+                    .width(1L + r.nextInt(30_000))
+                    .height(1L + r.nextInt(30_000))
+                    .build();
+            assertEquals(
+                    new HashSet<>(expected.findAllInside(search)),
+                    new HashSet<>(repository.findAllInside(search)));
+            assertEquals(
+                    new HashSet<>(expected.findAllIntersecting(search)),
+                    new HashSet<>(repository.findAllIntersecting(search)));
+            assertEquals(
+                    expected.findAllInside(search, 10, ZOrder.DESCENDING),
+                    repository.findAllInside(search, 10, ZOrder.DESCENDING));
+            assertEquals(
+                    expected.findAllInside(search, 10, ZOrder.ASCENDING),
+                    repository.findAllInside(search, 10, ZOrder.ASCENDING));
+            assertEquals(expected.findTopmostAt(x, y), repository.findTopmostAt(x, y));
+        }
+    }
+
+    @Test
+    void testDeletedWidgetsAreGone() {
+        List<WidgetSnapshot> saved = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            saved.add(repository.save(widget(null, null)));
+        }
+        for (WidgetSnapshot widget : saved) {
+            repository.deleteById(widget.getId());
+        }
+        assertEquals(List.of(), repository.findAll());
+        assertEquals(List.of(), repository.findAllIntersecting(saved.get(0)));
+        assertEquals(false, repository.findTopmostAt(50, 50).isPresent());
+        assertEquals(false, repository.findOne(saved.get(0).getId()).isPresent());
+
+        WidgetSnapshot reused = repository.save(widget(null, null));
+        assertEquals(BigInteger.ZERO, reused.getZ());
+        assertEquals(List.of(reused), repository.findAllInside(reused));
+    }
+}
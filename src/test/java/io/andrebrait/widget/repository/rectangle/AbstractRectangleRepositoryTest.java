@@ -0,0 +1,426 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.Rectangle;
+import io.andrebrait.widget.domain.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Behavioural tests every {@link RectangleRepository} must pass. Results are checked against a
+ * {@link HashSetRepository}, which is too simple to be wrong.<br><br>
+ *
+ * Performance is measured by the JMH benchmarks in {@code src/jmh}, not here.
+ */
+abstract class AbstractRectangleRepositoryTest {
+
+    protected static final long SEED = 42L;
+
+    private static final AtomicLong Z_SEQUENCE = new AtomicLong();
+
+    protected abstract RectangleRepository<Widget> newRepository();
+
+    @Test
+    void testFindsSameRectanglesAsLinearSearch() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 5_000);
+        RectangleRepository<Widget> repository = newRepository();
+        widgets.forEach(repository::add);
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        expected.addAll(widgets);
+
+        assertSameAsLinearSearch(r, expected, repository);
+        assertEquals(widgets.size(), repository.findAllInside(everything()).size());
+    }
+
+    @Test
+    void testAddAndRemove() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 2_000);
+        RectangleRepository<Widget> repository = newRepository();
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        for (Widget widget : widgets) {
+            assertTrue(repository.add(widget));
+            expected.add(widget);
+        }
+
+        assertFalse(repository.add(widgets.get(0)));
+        for (Widget widget : widgets.subList(0, 1_000)) {
+            assertTrue(repository.remove(widget));
+            expected.remove(widget);
+        }
+        assertFalse(repository.remove(widgets.get(0)));
+        for (Widget widget : randomWidgets(r, 1_000)) {
+            assertTrue(repository.add(widget));
+            expected.add(widget);
+        }
+
+        assertSameAsLinearSearch(r, expected, repository);
+    }
+
+    @Test
+    void testUpdateFindsSameAsLinearSearch() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            int x = r.nextInt(100_000) * (r.nextBoolean() ? 1 : -1);
+            int y = r.nextInt(100_000) * (r.nextBoolean() ? 1 : -1);
+            widgets.add(widget(x, y, 1 + r.nextInt(50_000), 1 + r.nextInt(50_000)));
+        }
+        RectangleRepository<Widget> repository = newRepository();
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        widgets.forEach(repository::add);
+        widgets.forEach(expected::add);
+
+        for (int i = 0; i < 5_000; i++) {
+            int index = r.nextInt(widgets.size());
+            Widget oldWidget = widgets.get(index);
+            Widget newWidget;
+            if (r.nextInt(4) == 0) {
+                // Somewhere else entirely, and on top of everything
+                newWidget = widget(
+                        r.nextInt(100_000) * (r.nextBoolean() ? 1 : -1),
+                        r.nextInt(100_000) * (r.nextBoolean() ? 1 : -1),
+                        oldWidget.getWidth(),
+                        oldWidget.getHeight());
+                newWidget.setId(oldWidget.getId());
+            } else {
+                // Dragged a little
+                newWidget = oldWidget.toBuilder()
+                        .x(oldWidget.getX() + r.nextInt(201) - 100)
+                        .y(oldWidget.getY() + r.nextInt(201) - 100)
+                        .build();
+            }
+            assertTrue(repository.update(oldWidget, newWidget));
+            expected.update(oldWidget, newWidget);
+            widgets.set(index, newWidget);
+        }
+
+        assertEquals(widgets.size(), repository.findAllInside(everything()).size());
+        assertSameAsLinearSearch(r, expected, repository);
+        assertSameTopmostAsLinearSearch(r, expected, repository);
+    }
+
+    @Test
+    void testUpdateMissingRectangle() {
+        RectangleRepository<Widget> repository = newRepository();
+        Widget widget = widget(0, 0, 10, 10);
+        assertFalse(repository.update(widget, widget.toBuilder().x(5L).build()));
+        assertTrue(repository.findAllInside(everything()).isEmpty());
+
+        repository.add(widget);
+        Widget other = widget(0, 0, 10, 10);
+        assertThrows(IllegalArgumentException.class, () -> repository.update(widget, other));
+        assertEquals(List.of(widget), repository.findAllInside(everything()));
+    }
+
+    @Test
+    void testRemoveEverything() {
+        List<Widget> widgets = randomWidgets(new Random(SEED), 500);
+        RectangleRepository<Widget> repository = newRepository();
+        widgets.forEach(repository::add);
+        widgets.forEach(repository::remove);
+        assertTrue(repository.findAllInside(everything()).isEmpty());
+
+        widgets.forEach(repository::add);
+        assertEquals(widgets.size(), repository.findAllInside(everything()).size());
+    }
+
+    @Test
+    void testNestedRectangles() {
+        RectangleRepository<Widget> repository = newRepository();
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        // Innermost first, so every new rectangle contains everything added before it
+        for (int i = 1; i <= 200; i++) {
+            Widget widget = widget(-i, -i, 2L * i, 2L * i);
+            repository.add(widget);
+            expected.add(widget);
+        }
+        for (int i = 1; i <= 200; i++) {
+            Rectangle search = InternalRectangle.of(-i, -i, i, i);
+            assertEquals(
+                    new HashSet<>(expected.findAllInside(search)),
+                    new HashSet<>(repository.findAllInside(search)));
+        }
+    }
+
+    @Test
+    void testExtremeCoordinates() {
+        RectangleRepository<Widget> repository = newRepository();
+        Widget huge = widget(Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        Widget small = widget(-10, -10, 20, 20);
+        repository.add(huge);
+        repository.add(small);
+
+        assertEquals(Set.of(huge, small), new HashSet<>(repository.findAllInside(everything())));
+        assertEquals(
+                List.of(small),
+                repository.findAllInside(InternalRectangle.of(-10, -10, 10, 10)));
+        assertTrue(repository.findAllInside(InternalRectangle.of(-9, -10, 10, 10)).isEmpty());
+    }
+
+    @Test
+    void testCursorFindsSameAsFindAllInside() {
+        Random r = new Random(SEED);
+        RectangleRepository<Widget> repository = newRepository();
+        randomWidgets(r, 5_000).forEach(repository::add);
+        for (int i = 0; i < 100; i++) {
+            Rectangle search = randomSearch(r);
+            Set<Widget> expected = new HashSet<>(repository.findAllInside(search));
+            assertEquals(expected, repository.streamInside(search).collect(Collectors.toSet()));
+
+            List<Widget> paged = new ArrayList<>();
+            Cursor<Widget> cursor = repository.cursorInside(search);
+            for (List<Widget> page = cursor.next(7); !page.isEmpty(); page = cursor.next(7)) {
+                assertTrue(page.size() <= 7);
+                paged.addAll(page);
+            }
+            assertEquals(expected.size(), paged.size());
+            assertEquals(expected, new HashSet<>(paged));
+        }
+    }
+
+    @Test
+    void testForEachInsideStopsEarly() {
+        RectangleRepository<Widget> repository = newRepository();
+        randomWidgets(new Random(SEED), 1_000).forEach(repository::add);
+
+        AtomicInteger visited = new AtomicInteger();
+        assertFalse(repository.forEachInside(everything(), w -> visited.incrementAndGet() < 10));
+        assertEquals(10, visited.get());
+        assertTrue(repository.forEachInside(everything(), w -> true));
+        assertEquals(5, repository.streamInside(everything()).limit(5).count());
+
+        Cursor<Widget> cursor = repository.cursorInside(everything());
+        assertTrue(cursor.forEachRemaining(w -> true, 999));
+        assertFalse(cursor.forEachRemaining(w -> true, 999));
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    void testFindsInsideInZOrder() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 5_000);
+        // Z-indexes unrelated to the order they're added in
+        List<BigInteger> zs = new ArrayList<>();
+        widgets.forEach(w -> zs.add(w.getZ()));
+        Collections.shuffle(zs, r);
+        for (int i = 0; i < widgets.size(); i++) {
+            widgets.get(i).setZ(zs.get(i));
+        }
+        RectangleRepository<Widget> repository = newRepository();
+        widgets.forEach(repository::add);
+        for (Widget widget : widgets.subList(0, 1_000)) {
+            repository.remove(widget);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Rectangle search = randomSearch(r);
+            List<Widget> ascending = new ArrayList<>(repository.findAllInside(search));
+            ascending.sort(Widget.Z_ORDER);
+            List<Widget> descending = new ArrayList<>(ascending);
+            Collections.reverse(descending);
+
+            assertEquals(
+                    ascending.subList(0, Math.min(10, ascending.size())),
+                    repository.findAllInside(search, 10, ZOrder.ASCENDING));
+            assertEquals(
+                    descending.subList(0, Math.min(10, descending.size())),
+                    repository.findAllInside(search, 10, ZOrder.DESCENDING));
+            assertEquals(
+                    descending,
+                    repository.cursorInside(search, ZOrder.DESCENDING)
+                            .stream()
+                            .collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void testFindsSameIntersectingAsLinearSearch() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 5_000);
+        RectangleRepository<Widget> repository = newRepository();
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        widgets.forEach(repository::add);
+        widgets.forEach(expected::add);
+        for (Widget widget : widgets.subList(0, 2_500)) {
+            repository.remove(widget);
+            expected.remove(widget);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            Rectangle search = randomSearch(r);
+            assertEquals(
+                    new HashSet<>(expected.findAllIntersecting(search)),
+                    new HashSet<>(repository.findAllIntersecting(search)));
+        }
+        assertEquals(2_500, repository.findAllIntersecting(everything()).size());
+    }
+
+    @Test
+    void testIntersectingExcludesTouchingRectangles() {
+        RectangleRepository<Widget> repository = newRepository();
+        Widget inside = widget(10, 10, 10, 10);
+        Widget partial = widget(15, 15, 10, 10);
+        Widget touching = widget(20, 0, 10, 10);
+        repository.add(inside);
+        repository.add(partial);
+        repository.add(touching);
+
+        assertEquals(
+                Set.of(inside, partial),
+                new HashSet<>(repository.findAllIntersecting(InternalRectangle.of(0, 10, 20, 20))));
+    }
+
+    @Test
+    void testFindsSameTopmostAsLinearSearch() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = new ArrayList<>();
+        // Large widgets, so points are covered by many of them
+        for (int i = 0; i < 5_000; i++) {
+            int x = r.nextInt(100_000) * (r.nextBoolean() ? 1 : -1);
+            int y = r.nextInt(100_000) * (r.nextBoolean() ? 1 : -1);
+            widgets.add(widget(x, y, 1 + r.nextInt(50_000), 1 + r.nextInt(50_000)));
+        }
+        RectangleRepository<Widget> repository = newRepository();
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        widgets.forEach(repository::add);
+        widgets.forEach(expected::add);
+        for (Widget widget : widgets.subList(0, 1_000)) {
+            repository.remove(widget);
+            expected.remove(widget);
+        }
+        assertSameTopmostAsLinearSearch(r, expected, repository);
+
+        // Shifting every Z-index keeps the order, so nothing needs to be updated
+        for (Widget widget : widgets) {
+            widget.setZ(widget.getZ().add(BigInteger.ONE));
+        }
+        assertSameTopmostAsLinearSearch(r, expected, repository);
+    }
+
+    @Test
+    void testTopmostAt() {
+        RectangleRepository<Widget> repository = newRepository();
+        assertTrue(repository.findTopmostAt(0, 0).isEmpty());
+
+        Widget bottom = widget(0, 0, 100, 100);
+        Widget top = widget(50, 50, 100, 100);
+        Widget middle = widget(-100, -100, 1_000, 1_000);
+        middle.setZ(bottom.getZ().add(BigInteger.ONE));
+        top.setZ(bottom.getZ().add(BigInteger.TWO));
+        repository.add(top);
+        repository.add(middle);
+        repository.add(bottom);
+
+        assertEquals(Optional.of(middle), repository.findTopmostAt(0, 0));
+        assertEquals(Optional.of(top), repository.findTopmostAt(50, 50));
+        assertEquals(Optional.of(top), repository.findTopmostAt(149, 149));
+        assertEquals(Optional.of(middle), repository.findTopmostAt(150, 149));
+        assertEquals(Optional.of(middle), repository.findTopmostAt(149, 150));
+        assertTrue(repository.findTopmostAt(-101, 0).isEmpty());
+
+        repository.remove(top);
+        assertEquals(Optional.of(middle), repository.findTopmostAt(50, 50));
+        repository.remove(middle);
+        assertEquals(Optional.of(bottom), repository.findTopmostAt(50, 50));
+        repository.remove(bottom);
+        assertTrue(repository.findTopmostAt(50, 50).isEmpty());
+    }
+
+    @Test
+    void testTopmostAtSharedEdges() {
+        RectangleRepository<Widget> repository = newRepository();
+        // Side by side, and the one on the right below the one on the left
+        Widget right = widget(100, 0, 100, 100);
+        Widget left = widget(0, 0, 100, 100);
+        Widget below = widget(0, 100, 100, 100);
+        left.setZ(right.getZ().add(BigInteger.ONE));
+        below.setZ(right.getZ().subtract(BigInteger.ONE));
+        repository.add(left);
+        repository.add(right);
+        repository.add(below);
+
+        assertEquals(Optional.of(left), repository.findTopmostAt(99, 99));
+        assertEquals(Optional.of(right), repository.findTopmostAt(100, 0));
+        assertEquals(Optional.of(right), repository.findTopmostAt(100, 99));
+        assertEquals(Optional.of(below), repository.findTopmostAt(0, 100));
+        assertEquals(Optional.of(below), repository.findTopmostAt(99, 100));
+        assertTrue(repository.findTopmostAt(100, 100).isEmpty());
+        assertTrue(repository.findTopmostAt(200, 50).isEmpty());
+    }
+
+    private static void assertSameTopmostAsLinearSearch(
+            Random r,
+            RectangleRepository<Widget> expected,
+            RectangleRepository<Widget> actual) {
+        for (int i = 0; i < 500; i++) {
+            long x = r.nextInt(150_000) * (r.nextBoolean() ? 1 : -1);
+            long y = r.nextInt(150_000) * (r.nextBoolean() ? 1 : -1);
+            assertEquals(expected.findTopmostAt(x, y), actual.findTopmostAt(x, y));
+        }
+    }
+
+    protected static void assertSameAsLinearSearch(
+            Random r,
+            RectangleRepository<Widget> expected,
+            RectangleRepository<Widget> actual) {
+        for (int i = 0; i < 200; i++) {
+            Rectangle search = randomSearch(r);
+            assertEquals(
+                    new HashSet<>(expected.findAllInside(search)),
+                    new HashSet<>(actual.findAllInside(search)));
+        }
+    }
+
+    protected static Widget widget(long x, long y, long width, long height) {
+        return Widget.builder()
+                .id(UUID.randomUUID())
+                .x(x)
+                .y(y)
+                .width(width)
+                .height(height)
+                .z(BigInteger.valueOf(Z_SEQUENCE.incrementAndGet()))
+                .build();
+    }
+
+    protected static List<Widget> randomWidgets(Random r, int n) {
+        List<Widget> widgets = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int x = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
+            int y = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
+            widgets.add(widget(x, y, 1 + r.nextInt(5_000), 1 + r.nextInt(5_000)));
+        }
+        return widgets;
+    }
+
+    protected static Rectangle randomSearch(Random r) {
+        int x = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
+        int y = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
+        return InternalRectangle.of(
+                x,
+                y,
+                x + 1 + r.nextInt(200_000),
+                y + 1 + r.nextInt(200_000));
+    }
+
+    protected static Rectangle everything() {
+        return InternalRectangle.of(Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+}
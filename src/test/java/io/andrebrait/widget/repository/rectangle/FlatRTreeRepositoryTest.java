@@ -0,0 +1,30 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FlatRTreeRepositoryTest extends AbstractRectangleRepositoryTest {
+
+    @Override
+    protected RectangleRepository<Widget> newRepository() {
+        return new FlatRTreeRepository<>(Widget.Z_ORDER);
+    }
+
+    @Test
+    void testFreedSlotsAreReused() {
+        List<Widget> widgets = randomWidgets(new Random(SEED), 1_000);
+        FlatRTreeRepository<Widget> repository = new FlatRTreeRepository<>(Widget.Z_ORDER);
+        widgets.forEach(repository::add);
+        int capacity = repository.capacity();
+        for (int i = 0; i < 10; i++) {
+            widgets.forEach(repository::remove);
+            widgets.forEach(repository::add);
+        }
+        assertEquals(capacity, repository.capacity());
+    }
+}
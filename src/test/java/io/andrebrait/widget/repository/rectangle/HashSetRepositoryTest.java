@@ -0,0 +1,11 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.Widget;
+
+class HashSetRepositoryTest extends AbstractRectangleRepositoryTest {
+
+    @Override
+    protected RectangleRepository<Widget> newRepository() {
+        return new HashSetRepository<>(Widget.Z_ORDER);
+    }
+}
@@ -0,0 +1,90 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentRTreeRepositoryTest extends AbstractRectangleRepositoryTest {
+
+    @Override
+    protected RectangleRepository<Widget> newRepository() {
+        return new PersistentRTreeRepository<>(Widget.Z_ORDER);
+    }
+
+    @Test
+    void testHeightIsLogarithmicForSortedInsertions() {
+        PersistentRTreeRepository<Widget> repository =
+                new PersistentRTreeRepository<>(Widget.Z_ORDER, 2, 4);
+        int n = 10_000;
+        for (int i = 0; i < n; i++) {
+            repository.add(widget(i, i, 1, 1));
+        }
+        assertTrue(repository.height() <= Math.ceil(Math.log(n) / Math.log(2)) + 1);
+    }
+
+    @Test
+    void testReadersSeeConsistentSnapshotsWhileWriting() throws Exception {
+        Random r = new Random(SEED);
+        PersistentRTreeRepository<Widget> repository =
+                new PersistentRTreeRepository<>(Widget.Z_ORDER);
+        // These are never touched, so every query must find all of them
+        List<Widget> fixed = randomWidgets(r, 1_000);
+        fixed.forEach(repository::add);
+        List<Widget> churn = randomWidgets(r, 1_000);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                readers.add(executor.submit(() -> {
+                    while (running.get()) {
+                        Set<Widget> found = new HashSet<>(repository.findAllInside(everything()));
+                        assertTrue(found.containsAll(fixed));
+                    }
+                    return null;
+                }));
+            }
+            for (int round = 0; round < 20; round++) {
+                churn.forEach(repository::add);
+                churn.forEach(repository::remove);
+            }
+            running.set(false);
+            for (Future<?> reader : readers) {
+                reader.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testCursorKeepsItsSnapshot() {
+        PersistentRTreeRepository<Widget> repository =
+                new PersistentRTreeRepository<>(Widget.Z_ORDER);
+        List<Widget> widgets = randomWidgets(new Random(SEED), 1_000);
+        widgets.forEach(repository::add);
+        Cursor<Widget> cursor = repository.cursorInside(everything());
+        List<Widget> found = new ArrayList<>(cursor.next(10));
+        widgets.forEach(repository::remove);
+        cursor.forEachRemaining(found::add);
+
+        assertEquals(new HashSet<>(widgets), new HashSet<>(found));
+        assertFalse(repository.cursorInside(everything()).hasNext());
+    }
+}
@@ -0,0 +1,81 @@
+package io.andrebrait.widget.repository.rectangle;
+
+import io.andrebrait.widget.domain.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RStarTreeRepositoryTest extends AbstractRectangleRepositoryTest {
+
+    @Override
+    protected RectangleRepository<Widget> newRepository() {
+        return new RStarTreeRepository<>(Widget.Z_ORDER);
+    }
+
+    @Test
+    void testHeightIsLogarithmicForSortedInsertions() {
+        RStarTreeRepository<Widget> repository = new RStarTreeRepository<>(Widget.Z_ORDER, 2, 4);
+        int n = 10_000;
+        // Diagonal and nested rectangles, the worst cases for RTreeRepository
+        for (int i = 0; i < n; i++) {
+            repository.add(widget(i, i, 1, 1));
+            repository.add(widget(-i, -i, 2L * i + 1, 2L * i + 1));
+        }
+        assertTrue(repository.height() <= maxHeight(2 * n, 2));
+    }
+
+    @Test
+    void testHeightIsLogarithmicUnderChurn() {
+        Random r = new Random(SEED);
+        RStarTreeRepository<Widget> repository = new RStarTreeRepository<>(Widget.Z_ORDER);
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        List<Widget> widgets = new ArrayList<>(randomWidgets(r, 5_000));
+        widgets.forEach(repository::add);
+        expected.addAll(widgets);
+        for (int round = 0; round < 20; round++) {
+            Collections.shuffle(widgets, r);
+            for (Widget removed : new ArrayList<>(widgets.subList(0, 1_000))) {
+                repository.remove(removed);
+                expected.remove(removed);
+                widgets.remove(removed);
+            }
+            for (Widget added : randomWidgets(r, 1_000)) {
+                repository.add(added);
+                expected.add(added);
+                widgets.add(added);
+            }
+            assertTrue(repository.height() <= maxHeight(widgets.size(),
+                    RStarTreeRepository.DEFAULT_MIN_ENTRIES));
+        }
+        assertSameAsLinearSearch(r, expected, repository);
+        assertEquals(widgets.size(), repository.findAllInside(everything()).size());
+    }
+
+    @Test
+    void testInvalidConfiguration() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new RStarTreeRepository<>(Widget.Z_ORDER, 2, 3));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new RStarTreeRepository<>(Widget.Z_ORDER, 1, 8));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new RStarTreeRepository<>(Widget.Z_ORDER, 5, 8));
+    }
+
+    /**
+     * Every node but the root has at least {@code minEntries} entries, so there are at most
+     * log<sub>minEntries</sub>(n) levels below the root
+     */
+    private static int maxHeight(int n, int minEntries) {
+        return (int) Math.ceil(Math.log(n) / Math.log(minEntries)) + 1;
+    }
+}
@@ -1,87 +1,248 @@
 package io.andrebrait.widget.repository.rectangle;
 
-import org.junit.jupiter.api.Disabled;
+import io.andrebrait.widget.domain.Widget;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Random;
-import java.util.concurrent.ThreadLocalRandom;
 
-/**
- * This is not an actual test class, so tests here are disabled by default. To test the performance
- * here, enable them. Using JMH would be better, of course, but this enough to give you a rough
- * idea. For a more accurate picture, run each "test" separately.
- */
-class RTreeRepositoryTest {
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RTreeRepositoryTest extends AbstractRectangleRepositoryTest {
+
+    @Override
+    protected RectangleRepository<Widget> newRepository() {
+        return new RTreeRepository();
+    }
 
     @Test
-    @Disabled
-    void testRTreePerformance() {
-        System.out.println("## Checking performance for " + RTreeRepository.class.getSimpleName());
-        for (int i = 1_000; i < 10_000_000; i *= 10) {
-            RTreeRepository repository = new RTreeRepository();
-            addRandom(repository, i);
-            System.out.println("Stats: " + repository.stats());
-            checkQueryPerformance(repository);
-        }
+    void testBulkLoadFindsSameRectanglesAsLinearSearch() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 5_000);
+        RTreeRepository repository = RTreeRepository.bulkLoad(widgets);
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        expected.addAll(widgets);
+        assertSameAsLinearSearch(r, expected, repository);
+        assertEquals(widgets.size(), repository.findAllInside(everything()).size());
+    }
+
+    @Test
+    void testBulkLoadBuildsBetterTreeThanRepeatedInsertion() {
+        List<Widget> widgets = randomWidgets(new Random(SEED), 20_000);
+        RTreeRepository inserted = new RTreeRepository();
+        widgets.forEach(inserted::add);
+        RTreeRepository.Stats insertedStats = inserted.stats();
+        RTreeRepository.Stats bulkLoadedStats = RTreeRepository.bulkLoad(widgets).stats();
+
+        assertEquals(insertedStats.getLeaves(), bulkLoadedStats.getLeaves());
+        assertTrue(bulkLoadedStats.getMaxDepth() < insertedStats.getMaxDepth());
+        assertTrue(bulkLoadedStats.getAverageIntersectingArea()
+                < insertedStats.getAverageIntersectingArea());
     }
 
     @Test
-    @Disabled
-    void testHashSetPerformance() {
-        System.out.println("## Checking performance for " + RTreeRepository.class.getSimpleName());
-        for (int i = 1_000; i < 10_000_000; i *= 10) {
-            RectangleRepository repository = new HashSetRepository();
-            addRandom(repository, i);
-            checkQueryPerformance(repository);
+    void testBulkLoadedTreeSupportsModifications() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 2_000);
+        RTreeRepository repository = RTreeRepository.bulkLoad(widgets);
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        expected.addAll(widgets);
+
+        assertFalse(repository.add(widgets.get(0)));
+        for (Widget widget : widgets.subList(0, 1_000)) {
+            assertTrue(repository.remove(widget));
+            expected.remove(widget);
+        }
+        for (Widget widget : randomWidgets(r, 1_000)) {
+            assertTrue(repository.add(widget));
+            expected.add(widget);
         }
+        assertSameAsLinearSearch(r, expected, repository);
     }
 
-    private void checkQueryPerformance(RectangleRepository repository) {
-        List<Double> times = new ArrayList<>();
-        List<Integer> results = new ArrayList<>();
-        Random r = ThreadLocalRandom.current();
-        for (int j = 0; j < 1000; j++) {
-            int x = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
-            int y = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
-            InternalRectangle search = InternalRectangle.of(
-                    x,
-                    y,
-                    x + 1 + r.nextInt(50_000),
-                    y + 1 + r.nextInt(50_000));
-            long startTime = System.nanoTime();
-            List<InternalRectangle> allInside = repository.findAllInside(search);
-            times.add((System.nanoTime() - startTime) / 1_000_000.0);
-            results.add(allInside.size());
+    @Test
+    void testKeepsStatsUpToDate() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 1_000);
+        RTreeRepository repository = RTreeRepository.bulkLoad(widgets);
+        assertSameStats(repository.exactStats(), repository.stats());
+        for (int i = 0; i < 3_000; i++) {
+            int operation = r.nextInt(4);
+            if (operation == 0 && !widgets.isEmpty()) {
+                repository.remove(widgets.remove(r.nextInt(widgets.size())));
+            } else if (operation == 1 && !widgets.isEmpty()) {
+                // Nudged, so it's usually updated in place, or moved anywhere
+                int index = r.nextInt(widgets.size());
+                Widget old = widgets.get(index);
+                Widget moved = r.nextBoolean()
+                        ? old.toBuilder().x(old.getX() + r.nextInt(3) - 1).build()
+                        : randomWidgets(r, 1).get(0).toBuilder().id(old.getId()).build();
+                repository.update(old, moved);
+                widgets.set(index, moved);
+            } else {
+                Widget added = randomWidgets(r, 1).get(0);
+                repository.add(added);
+                widgets.add(added);
+            }
+            if (i % 100 == 0) {
+                assertSameStats(repository.exactStats(), repository.stats());
+            }
         }
-        System.out.printf(
-                "Results (avg) %.5f rectangles\n",
-                results.stream().mapToDouble(x -> x).average().orElse(0));
-        System.out.printf(
-                "Search (avg) %.5f ms\n",
-                times.stream().mapToDouble(x -> x).average().orElse(0));
-        System.out.println("Total nodes: " + repository.findAllInside(InternalRectangle.of(
-                Long.MIN_VALUE,
-                Long.MIN_VALUE,
-                Long.MAX_VALUE,
-                Long.MAX_VALUE)).size() + "\n");
+        widgets.forEach(repository::remove);
+        assertSameStats(repository.exactStats(), repository.stats());
+        assertEquals(0, repository.stats().getLeaves());
     }
 
-    private void addRandom(RectangleRepository t, int n) {
-        Random r = ThreadLocalRandom.current();
-        List<Double> times = new ArrayList<>(n);
-        System.out.println("Inserting " + i + " random rectangles");
-        for (int i = 0; i < n; i++) {
-            int x = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
-            int y = r.nextInt(1_000_000) * (r.nextBoolean() ? 1 : -1);
-            InternalRectangle rec = InternalRectangle.of(x, y, x + 1 + r.nextInt(5_000), y + 1 + r.nextInt(5_000));
-            long startTime = System.nanoTime();
-            t.add(rec);
-            times.add((System.nanoTime() - startTime) / 1_000_000.0);
+    @Test
+    void testAddsBatchesToNonEmptyTree() {
+        Random r = new Random(SEED);
+        RTreeRepository repository = new RTreeRepository();
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        List<Widget> widgets = randomWidgets(r, 2_000);
+        widgets.forEach(repository::add);
+        expected.addAll(widgets);
+
+        // Clustered in a corner, so it's likely added as a whole, and scattered everywhere
+        List<Widget> clustered = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            clustered.add(widget(r.nextInt(10_000), r.nextInt(10_000), 1, 1));
+        }
+        List<Widget> scattered = randomWidgets(r, 500);
+        for (List<Widget> batch : List.of(clustered, scattered)) {
+            List<Widget> duplicated = new ArrayList<>(batch);
+            duplicated.add(widgets.get(0));
+            duplicated.add(batch.get(0));
+            repository.addAll(duplicated);
+            expected.addAll(batch);
+            assertSameStats(repository.exactStats(), repository.stats());
+            assertEquals(
+                    expected.findAllInside(everything()).size(),
+                    repository.stats().getLeaves());
+            assertSameAsLinearSearch(r, expected, repository);
+        }
+
+        for (Widget widget : clustered.subList(0, 250)) {
+            assertTrue(repository.remove(widget));
+            expected.remove(widget);
+        }
+        for (Widget widget : scattered.subList(0, 250)) {
+            Widget moved = randomWidgets(r, 1).get(0).toBuilder().id(widget.getId()).build();
+            repository.update(widget, moved);
+            expected.update(widget, moved);
         }
-        System.out.printf(
-                "Insertion (avg) %.5f ms\n",
-                times.stream().mapToDouble(i -> i).average().orElse(0));
+        assertSameStats(repository.exactStats(), repository.stats());
+        assertSameAsLinearSearch(r, expected, repository);
+    }
+
+    @Test
+    void testAddsBatchesAfterRemoving() {
+        RTreeRepository repository = new RTreeRepository();
+        // Leaves a single widget in a quadrant, far from where the batch goes
+        Widget removed = widget(100, 100, 10, 10);
+        Widget kept = widget(10_000, 10_000, 10, 10);
+        repository.add(removed);
+        repository.add(kept);
+        assertTrue(repository.remove(removed));
+        List<Widget> batch = List.of(widget(110, 110, 10, 10), widget(120, 120, 10, 10));
+        repository.addAll(batch);
+
+        List<Widget> expected = new ArrayList<>(batch);
+        expected.add(kept);
+        assertEquals(
+                new HashSet<>(expected),
+                new HashSet<>(repository.findAllInside(everything())));
+        assertEquals(Optional.of(batch.get(1)), repository.findTopmostAt(125, 125));
+        assertSameStats(repository.exactStats(), repository.stats());
+    }
+
+    @Test
+    void testBulkLoadsAgainAfterRemovingEverything() {
+        Random r = new Random(SEED);
+        List<Widget> widgets = randomWidgets(r, 1_000);
+        RTreeRepository repository = RTreeRepository.bulkLoad(widgets);
+        widgets.forEach(repository::remove);
+        assertTrue(repository.findAllInside(everything()).isEmpty());
+
+        List<Widget> again = randomWidgets(r, 1_000);
+        repository.addAll(again);
+        RectangleRepository<Widget> expected = new HashSetRepository<>(Widget.Z_ORDER);
+        expected.addAll(again);
+        assertEquals(again.size(), repository.findAllInside(everything()).size());
+        assertSameStats(repository.exactStats(), repository.stats());
+        assertSameAsLinearSearch(r, expected, repository);
+    }
+
+    private static void assertSameStats(
+            RTreeRepository.Stats expected,
+            RTreeRepository.Stats actual) {
+        assertEquals(expected.getMaxDepth(), actual.getMaxDepth());
+        assertEquals(expected.getAverageDepth(), actual.getAverageDepth(), 1e-9);
+        assertEquals(expected.getNodes(), actual.getNodes());
+        assertEquals(expected.getLeaves(), actual.getLeaves());
+        // The exact ones are rounded
+        assertEquals(expected.getMaxIntersectingArea(), actual.getMaxIntersectingArea(), 1e-4);
+        assertEquals(
+                expected.getAverageIntersectingArea(),
+                actual.getAverageIntersectingArea(),
+                1e-4);
+    }
+
+    @Test
+    void testBulkLoadIgnoresDuplicates() {
+        List<Widget> widgets = randomWidgets(new Random(SEED), 10);
+        List<Widget> duplicated = new ArrayList<>(widgets);
+        duplicated.addAll(widgets);
+        RTreeRepository repository = RTreeRepository.bulkLoad(duplicated);
+        assertEquals(widgets.size(), repository.findAllInside(everything()).size());
+        assertEquals(widgets.size(), repository.stats().getLeaves());
+    }
+
+    @Test
+    void testCursorFailsAfterModification() {
+        RTreeRepository repository = new RTreeRepository();
+        List<Widget> widgets = randomWidgets(new Random(SEED), 10);
+        widgets.forEach(repository::add);
+        Cursor<Widget> cursor = repository.cursorInside(everything());
+        cursor.next();
+        repository.remove(widgets.get(0));
+        assertThrows(ConcurrentModificationException.class, cursor::hasNext);
+    }
+
+    @Test
+    void testAddsBatchesOfExistingWidgetsWithoutChangingAnything() {
+        RTreeRepository repository = new RTreeRepository();
+        assertFalse(repository.addAll(List.of()));
+        List<Widget> widgets = randomWidgets(new Random(SEED), 10);
+        widgets.forEach(repository::add);
+        Cursor<Widget> cursor = repository.cursorInside(everything());
+        cursor.next();
+        assertFalse(repository.addAll(widgets.subList(0, 5)));
+        cursor.next();
+
+        assertTrue(repository.addAll(List.of(widgets.get(0), widget(10, 10, 10, 10))));
+        assertThrows(ConcurrentModificationException.class, cursor::hasNext);
+        assertEquals(11, repository.stats().getLeaves());
+    }
+
+    @Test
+    void testRemovesBulkLoadedAndMergedWidgets() {
+        Widget inner = widget(10, 10, 10, 10);
+        RTreeRepository repository = RTreeRepository.bulkLoad(List.of(inner));
+        Widget outer = widget(0, 0, 100, 100);
+        Widget sibling = widget(50, 50, 10, 10);
+        repository.add(outer);
+        repository.add(sibling);
+        assertTrue(repository.remove(inner));
+        assertTrue(repository.remove(outer));
+        assertEquals(List.of(sibling), repository.findAllInside(everything()));
+        assertTrue(repository.remove(sibling));
+        assertTrue(repository.findAllInside(everything()).isEmpty());
     }
-}
\ No newline at end of file
+}
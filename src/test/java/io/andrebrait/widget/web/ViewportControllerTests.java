@@ -0,0 +1,88 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.WidgetRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class ViewportControllerTests {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private WidgetRepository repository;
+
+	@Test
+	void streamsWhatHappensInsideAViewport() throws Exception {
+		WidgetSnapshot before = repository.save(widget(-2_000_000L));
+		MvcResult result = mockMvc.perform(get("/widgets/events")
+				.param("x", "-2000000")
+				.param("y", "-2000000")
+				.param("width", "1000")
+				.param("height", "1000"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		MockHttpServletResponse response = result.getResponse();
+		awaitContent(response, "event:enter\ndata:{\"id\":\"" + before.getId() + "\"");
+
+		WidgetSnapshot entered = repository.save(widget(-1_999_500L));
+		awaitContent(response, "event:enter\ndata:{\"id\":\"" + entered.getId() + "\"");
+		repository.save(entered.toWidget().toBuilder().width(20L).build());
+		awaitContent(response, "event:update\ndata:{\"id\":\"" + entered.getId() + "\"");
+		repository.deleteById(before.getId());
+		awaitContent(response, "event:leave\ndata:{\"id\":\"" + before.getId() + "\"}");
+
+		// Anything sent for it would come before what's sent for the next one inside
+		WidgetSnapshot outside = repository.save(widget(2_000_000L));
+		WidgetSnapshot last = repository.save(widget(-1_999_100L));
+		awaitContent(response, "event:enter\ndata:{\"id\":\"" + last.getId() + "\"");
+		assertFalse(response.getContentAsString().contains(outside.getId().toString()));
+	}
+
+	@Test
+	void rejectsEmptyOrOverflowingViewports() throws Exception {
+		mockMvc.perform(get("/widgets/events")
+				.param("x", "0")
+				.param("y", "0")
+				.param("width", "0")
+				.param("height", "10"))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(get("/widgets/events")
+				.param("x", "9223372036854775800")
+				.param("y", "0")
+				.param("width", "100")
+				.param("height", "10"))
+				.andExpect(status().isBadRequest());
+	}
+
+	private static Widget widget(long position) {
+		return Widget.builder().x(position).y(position).width(10L).height(10L).build();
+	}
+
+	private static void awaitContent(MockHttpServletResponse response, String expected)
+			throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!response.getContentAsString().contains(expected)) {
+			assertTrue(System.nanoTime() < deadline, "Never sent: " + expected);
+			Thread.sleep(10);
+		}
+	}
+
+}
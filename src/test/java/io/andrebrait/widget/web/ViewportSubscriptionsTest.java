@@ -0,0 +1,223 @@
+package io.andrebrait.widget.web;
+
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ViewportSubscriptionsTest {
+
+    private final ViewportSubscriptions subscriptions =
+            new ViewportSubscriptions(Executors.newVirtualThreadPerTaskExecutor(), 100);
+
+    @AfterEach
+    void tearDown() {
+        subscriptions.close();
+    }
+
+    @Test
+    void testSendsWhatIsInsideThenWhatChanges() throws Exception {
+        QueueSink sink = new QueueSink();
+        WidgetSnapshot inside = widget(UUID.randomUUID(), 10, 10);
+        ViewportSubscriptions.Subscription subscription =
+                subscriptions.subscribe(viewport(0, 0), sink);
+        subscription.start(List.of(inside));
+        assertEvent(ViewportEvent.Type.ENTER, inside, sink.next());
+
+        WidgetSnapshot entered = widget(UUID.randomUUID(), 95, 95);
+        subscriptions.changed(entered.getId(), null, entered);
+        assertEvent(ViewportEvent.Type.ENTER, entered, sink.next());
+
+        WidgetSnapshot updated = widget(entered.getId(), 90, 90);
+        subscriptions.changed(entered.getId(), entered, updated);
+        assertEvent(ViewportEvent.Type.UPDATE, updated, sink.next());
+
+        // Touching the border only isn't intersecting
+        WidgetSnapshot left = widget(entered.getId(), 100, 50);
+        subscriptions.changed(entered.getId(), updated, left);
+        assertEquals(
+                new ViewportEvent(ViewportEvent.Type.LEAVE, entered.getId(), null),
+                sink.next());
+
+        WidgetSnapshot outside = widget(UUID.randomUUID(), 500, 500);
+        subscriptions.changed(outside.getId(), null, outside);
+        subscriptions.changed(outside.getId(), outside, widget(outside.getId(), 600, 500));
+        subscriptions.changed(inside.getId(), inside, null);
+        assertEquals(
+                new ViewportEvent(ViewportEvent.Type.LEAVE, inside.getId(), null),
+                sink.next());
+        assertNull(sink.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testQueuesChangesUntilStarted() throws Exception {
+        QueueSink sink = new QueueSink();
+        ViewportSubscriptions.Subscription subscription =
+                subscriptions.subscribe(viewport(0, 0), sink);
+        WidgetSnapshot changed = widget(UUID.randomUUID(), 10, 10);
+        subscriptions.changed(changed.getId(), null, changed);
+        assertNull(sink.events.poll(100, TimeUnit.MILLISECONDS));
+
+        // Found after the change, so it's sent twice
+        subscription.start(List.of(changed));
+        assertEvent(ViewportEvent.Type.ENTER, changed, sink.next());
+        assertEvent(ViewportEvent.Type.ENTER, changed, sink.next());
+    }
+
+    @Test
+    void testOnlyTellsTheViewportsAWidgetIsIn() throws Exception {
+        List<QueueSink> sinks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                QueueSink sink = new QueueSink();
+                subscriptions.subscribe(viewport(i * 100, j * 100), sink).start(List.of());
+                sinks.add(sink);
+            }
+        }
+        assertEquals(10_000, subscriptions.size());
+
+        // Across the corner of four of them
+        WidgetSnapshot widget = widget(UUID.randomUUID(), 4_195, 2_195);
+        subscriptions.changed(widget.getId(), null, widget);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                QueueSink sink = sinks.get(i * 100 + j);
+                if ((i == 41 || i == 42) && (j == 21 || j == 22)) {
+                    assertEvent(ViewportEvent.Type.ENTER, widget, sink.next());
+                } else {
+                    assertTrue(sink.events.isEmpty());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testDropsSubscriptionsFallingBehind() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        QueueSink sink = new QueueSink() {
+
+            @Override
+            public void send(ViewportEvent event) {
+                super.send(event);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        subscriptions.subscribe(viewport(0, 0), sink).start(List.of());
+        WidgetSnapshot first = widget(UUID.randomUUID(), 10, 10);
+        subscriptions.changed(first.getId(), null, first);
+        // Stuck sending the first one, with a hundred more waiting
+        assertEvent(ViewportEvent.Type.ENTER, first, sink.next());
+        for (int i = 0; i < 101; i++) {
+            WidgetSnapshot widget = widget(UUID.randomUUID(), 10, 10);
+            subscriptions.changed(widget.getId(), null, widget);
+        }
+        assertTrue(sink.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, subscriptions.size());
+        release.countDown();
+        assertNull(sink.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testClosingDropsEverySubscription() throws Exception {
+        QueueSink sink = new QueueSink();
+        ViewportSubscriptions.Subscription subscription =
+                subscriptions.subscribe(viewport(0, 0), sink);
+        subscription.start(List.of());
+        subscription.close();
+        assertTrue(sink.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, subscriptions.size());
+
+        QueueSink other = new QueueSink();
+        subscriptions.subscribe(viewport(0, 0), other);
+        subscriptions.close();
+        assertTrue(other.completed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, subscriptions.size());
+    }
+
+    @Test
+    void testSendsFromPlatformThreadsByDefault() throws Exception {
+        ViewportSubscriptions platform = new ViewportSubscriptions(2, 100);
+        try {
+            BlockingQueue<Thread> senders = new LinkedBlockingQueue<>();
+            QueueSink sink = new QueueSink() {
+
+                @Override
+                public void send(ViewportEvent event) {
+                    senders.add(Thread.currentThread());
+                    super.send(event);
+                }
+            };
+            WidgetSnapshot inside = widget(UUID.randomUUID(), 10, 10);
+            platform.subscribe(viewport(0, 0), sink).start(List.of(inside));
+            assertEvent(ViewportEvent.Type.ENTER, inside, sink.next());
+            assertFalse(senders.take().isVirtual());
+        } finally {
+            platform.close();
+        }
+    }
+
+    private static void assertEvent(
+            ViewportEvent.Type type,
+            WidgetSnapshot widget,
+            ViewportEvent actual) {
+        assertEquals(new ViewportEvent(type, widget.getId(), widget), actual);
+    }
+
+    private static Widget viewport(long x, long y) {
+        return Widget.builder().x(x).y(y).width(100L).height(100L).build();
+    }
+
+    private static WidgetSnapshot widget(UUID id, long x, long y) {
+        return WidgetSnapshot.builder()
+                .id(id)
+                .x(x)
+                .y(y)
+                .z(BigInteger.ZERO)
+                .width(10L)
+                .height(10L)
+                .build();
+    }
+
+    private static class QueueSink implements ViewportSubscriptions.Sink {
+
+        final BlockingQueue<ViewportEvent> events = new LinkedBlockingQueue<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void send(ViewportEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+        }
+
+        ViewportEvent next() throws InterruptedException {
+            ViewportEvent event = events.poll(5, TimeUnit.SECONDS);
+            if (event == null) {
+                throw new AssertionError("No event was sent");
+            }
+            return event;
+        }
+    }
+}
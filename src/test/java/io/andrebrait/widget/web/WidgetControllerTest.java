@@ -0,0 +1,73 @@
+package io.andrebrait.widget.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.domain.WidgetSnapshot;
+import io.andrebrait.widget.repository.InMemoryRepository;
+import io.andrebrait.widget.repository.rectangle.RTreeRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WidgetControllerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+    /*
+        What was sent by the time each page was visited
+     */
+    private final List<String> sent = new ArrayList<>();
+
+    private final InMemoryRepository repository = new InMemoryRepository(new RTreeRepository()) {
+
+        @Override
+        public void forEachPage(int pageSize, Consumer<? super List<WidgetSnapshot>> visitor) {
+            super.forEachPage(pageSize, page -> {
+                sent.add(contentSoFar());
+                visitor.accept(page);
+            });
+        }
+    };
+
+    private final WidgetController controller = new WidgetController(repository, objectMapper, 2);
+
+    @Test
+    void testSendsEachPageBeforeFindingTheNext() throws Exception {
+        List<WidgetSnapshot> saved = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            saved.add(repository.save(widget(i * 10L)));
+        }
+        controller.findAll(response);
+
+        assertEquals(3, sent.size());
+        assertEquals("", sent.get(0));
+        assertTrue(sent.get(1).contains(saved.get(1).getId().toString()));
+        assertFalse(sent.get(1).contains(saved.get(2).getId().toString()));
+        assertTrue(sent.get(2).contains(saved.get(3).getId().toString()));
+        JsonNode all = objectMapper.readTree(response.getContentAsString());
+        assertEquals(5, all.size());
+        for (int i = 0; i < saved.size(); i++) {
+            assertEquals(saved.get(i).getId().toString(), all.get(i).get("id").asText());
+        }
+    }
+
+    private String contentSoFar() {
+        try {
+            return response.getContentAsString();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Widget widget(long x) {
+        return Widget.builder().x(x).y(0L).width(100L).height(100L).build();
+    }
+}
@@ -0,0 +1,227 @@
+package io.andrebrait.widget.web;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.andrebrait.widget.domain.Widget;
+import io.andrebrait.widget.repository.WidgetRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class WidgetControllerTests {
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private WidgetRepository repository;
+
+	@Test
+	void createsGetsUpdatesAndDeletesAWidget() throws Exception {
+		JsonNode created = json(mockMvc.perform(post("/widgets")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 10, \"y\": 20, \"width\": 30, \"height\": 40}"))
+				.andExpect(status().isCreated())
+				.andExpect(jsonPath("$.x").value(10))
+				.andExpect(jsonPath("$.width").value(30))
+				.andReturn());
+		String id = created.get("id").asText();
+		String location = "/widgets/" + id;
+
+		mockMvc.perform(get(location))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.id").value(id))
+				.andExpect(jsonPath("$.y").value(20))
+				.andExpect(jsonPath("$.z").value(created.get("z").asInt()))
+				.andExpect(jsonPath("$.height").value(40));
+
+		mockMvc.perform(put(location)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 15}"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.x").value(15))
+				.andExpect(jsonPath("$.y").value(20))
+				.andExpect(jsonPath("$.width").value(30));
+
+		mockMvc.perform(delete(location)).andExpect(status().isNoContent());
+		mockMvc.perform(get(location)).andExpect(status().isNotFound());
+		mockMvc.perform(put(location)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 15}"))
+				.andExpect(status().isNotFound());
+	}
+
+	@Test
+	void returnsTheLocationOfCreatedWidgets() throws Exception {
+		mockMvc.perform(post("/widgets")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 0, \"y\": 0, \"width\": 1, \"height\": 1}"))
+				.andExpect(status().isCreated())
+				.andExpect(header().string("Location", endsWith(
+						"/widgets/" + repository.findTopmostAt(0, 0).orElseThrow().getId())));
+	}
+
+	@Test
+	void createsWidgetsBelowTheBottom() throws Exception {
+		mockMvc.perform(post("/widgets")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 0, \"y\": 0, \"z\": -10000000000, \"width\": 1, \"height\": 1}"))
+				.andExpect(status().isCreated())
+				.andExpect(jsonPath("$.z").value(0));
+	}
+
+	@Test
+	void rejectsInvalidWidgets() throws Exception {
+		mockMvc.perform(post("/widgets")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 0, \"y\": 0, \"width\": 0, \"height\": 10}"))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(post("/widgets")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 0, \"width\": 10, \"height\": 10}"))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(get("/widgets")
+				.param("x", "0")
+				.param("y", "0")
+				.param("width", "-1")
+				.param("height", "10"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	void rejectsWidgetsEndingPastTheLargestCoordinate() throws Exception {
+		long before = repository.findAll().spliterator().getExactSizeIfKnown();
+		mockMvc.perform(post("/widgets")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 9223372036854775800, \"y\": 0, \"width\": 100, \"height\": 10}"))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(post("/widgets/batch")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("[{\"x\": 0, \"y\": 9223372036854775800, \"width\": 1, \"height\": 8}]"))
+				.andExpect(status().isBadRequest());
+		assertEquals(before, repository.findAll().spliterator().getExactSizeIfKnown());
+
+		String id = json(mockMvc.perform(post("/widgets")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"x\": 9223372036854775700, \"y\": 0, \"width\": 100, \"height\": 10}"))
+				.andExpect(status().isCreated())
+				.andReturn()).get("id").asText();
+		mockMvc.perform(put("/widgets/" + id)
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("{\"width\": 108}"))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(get("/widgets/" + id))
+				.andExpect(jsonPath("$.width").value(100));
+
+		mockMvc.perform(get("/widgets")
+				.param("x", "0")
+				.param("y", "9223372036854775800")
+				.param("width", "10")
+				.param("height", "10"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	void listsEveryWidgetFromTheBottomToTheTop() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			repository.save(Widget.builder().x(0L).y(0L).width(10L).height(10L).build());
+		}
+
+		JsonNode widgets = json(mockMvc.perform(get("/widgets"))
+				.andExpect(status().isOk())
+				.andReturn());
+
+		assertTrue(widgets.size() >= 10);
+		for (int i = 0; i < widgets.size(); i++) {
+			assertEquals(i, widgets.get(i).get("z").asInt());
+		}
+	}
+
+	@Test
+	void streamsEveryWidgetInsideAnArea() throws Exception {
+		Set<String> inside = new HashSet<>();
+		for (int i = 0; i < 5_000; i++) {
+			inside.add(repository.save(Widget.builder()
+					.x(1_000_000L + i)
+					.y(1_000_000L)
+					.width(10L)
+					.height(10L)
+					.build()).getId().toString());
+		}
+		repository.save(Widget.builder().x(999_999L).y(1_000_000L).width(10L).height(10L).build());
+
+		JsonNode widgets = json(mockMvc.perform(get("/widgets")
+				.param("x", "1000000")
+				.param("y", "1000000")
+				.param("width", "10000")
+				.param("height", "10"))
+				.andExpect(status().isOk())
+				.andReturn());
+
+		Set<String> found = new HashSet<>();
+		widgets.forEach(widget -> found.add(widget.get("id").asText()));
+		assertEquals(inside, found);
+	}
+
+	@Test
+	void createsWidgetsInABatchAtConsecutivePositions() throws Exception {
+		JsonNode created = json(mockMvc.perform(post("/widgets/batch")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("[{\"x\": 0, \"y\": 0, \"z\": 0, \"width\": 1, \"height\": 1},"
+						+ " {\"x\": 5, \"y\": 5, \"width\": 1, \"height\": 1},"
+						+ " {\"x\": 9, \"y\": 9, \"z\": 100, \"width\": 1, \"height\": 1}]"))
+				.andExpect(status().isCreated())
+				.andReturn());
+
+		assertEquals(3, created.size());
+		for (int i = 0; i < created.size(); i++) {
+			assertEquals(i, created.get(i).get("z").asInt());
+			mockMvc.perform(get("/widgets/" + created.get(i).get("id").asText()))
+					.andExpect(status().isOk())
+					.andExpect(jsonPath("$.x").value(created.get(i).get("x").asInt()));
+		}
+	}
+
+	@Test
+	void rejectsInvalidBatchesWhole() throws Exception {
+		long before = repository.findAll().spliterator().getExactSizeIfKnown();
+		mockMvc.perform(post("/widgets/batch")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("[{\"x\": 0, \"y\": 0, \"width\": 1, \"height\": 1},"
+						+ " {\"x\": 0, \"y\": 0, \"width\": 0, \"height\": 1}]"))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(post("/widgets/batch")
+				.contentType(MediaType.APPLICATION_JSON)
+				.content("[]"))
+				.andExpect(status().isBadRequest());
+		assertEquals(before, repository.findAll().spliterator().getExactSizeIfKnown());
+	}
+
+	private JsonNode json(MvcResult result) throws Exception {
+		return objectMapper.readTree(result.getResponse().getContentAsByteArray());
+	}
+
+}